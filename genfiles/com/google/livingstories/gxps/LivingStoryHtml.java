@@ -19,13 +19,12 @@ import com.google.gxp.text.*;
 import com.google.livingstories.client.FilterSpec;                              // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L25, C3
 import com.google.livingstories.client.LivingStory;                             // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L26, C3
 import com.google.livingstories.server.util.LivingStoryIterator;                // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L27, C3
-import com.google.livingstories.server.util.SummaryDiffUtil;                    // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L28, C3
-import java.util.Date;                                                          // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L29, C3
-import java.util.List;                                                          // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L30, C3
+import java.util.Date;                                                          // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L28, C3
+import java.util.List;                                                          // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L29, C3
 
 public class LivingStoryHtml extends com.google.gxp.base.GxpTemplate {          // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L24, C67
 
-  public static void write(final java.lang.Appendable gxp$out, final com.google.gxp.base.GxpContext gxp_context, final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories)
+  public static void write(final java.lang.Appendable gxp$out, final com.google.gxp.base.GxpContext gxp_context, final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final String summary, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories)
       throws java.io.IOException {
     final java.util.Locale gxp_locale = gxp_context.getLocale();
     gxp$out.append("<html><head><title>");                                      // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L47, C3
@@ -43,8 +42,8 @@ public class LivingStoryHtml extends com.google.gxp.base.GxpTemplate {
     gxp$out.append(",\n          STORY_URL: ");                                 // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L64, C59
     com.google.gxp.js.JavascriptAppender.INSTANCE.append(gxp$out, gxp_context, (livingStory.getUrl()));   // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L65, C22
     gxp$out.append(",\n          SUMMARY: ");                                   // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L65, C61
-    com.google.gxp.js.JavascriptAppender.INSTANCE.append(gxp$out, gxp_context, (SummaryDiffUtil.getDiffedSummary(livingStory, lastVisitDate)));   // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L66, C20
-    gxp$out.append(",\n          LAST_VISIT_DATE: ");                           // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L66, C99
+    com.google.gxp.js.JavascriptAppender.INSTANCE.append(gxp$out, gxp_context, (summary));   // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L66, C20
+    gxp$out.append(",\n          LAST_VISIT_DATE: ");                           // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L66, C46
     com.google.gxp.js.JavascriptAppender.INSTANCE.append(gxp$out, gxp_context, (lastVisitDate == null ? null : lastVisitDate.toString()));   // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L67, C28
     gxp$out.append(",\n          SUBSCRIPTION_STATUS: ");                       // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L67, C102
     com.google.gxp.js.JavascriptAppender.INSTANCE.append(gxp$out, gxp_context, (subscriptionStatus));   // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L68, C32
@@ -107,7 +106,7 @@ public class LivingStoryHtml extends com.google.gxp.base.GxpTemplate {
     gxp$out.append("</td></tr></table></div></div></body></html>");             // D:\Users\WangFengwei\Workspaces\MyEclipse 10\living-stories\src\com\google\livingstories\gxps\LivingStoryHtml.gxp: L100, C15
   }
 
-  private static final java.util.List<String> GXP$ARGLIST = java.util.Collections.unmodifiableList(java.util.Arrays.asList("currentUrl", "livingStory", "userName", "loginUrl", "logoutUrl", "subscriptionUrl", "lastVisitDate", "subscriptionStatus", "defaultStoryView", "friendConnectSiteId", "mapsKey", "analyticsAccountId", "logoLocation", "otherStories"));
+  private static final java.util.List<String> GXP$ARGLIST = java.util.Collections.unmodifiableList(java.util.Arrays.asList("currentUrl", "livingStory", "userName", "loginUrl", "logoutUrl", "subscriptionUrl", "summary", "lastVisitDate", "subscriptionStatus", "defaultStoryView", "friendConnectSiteId", "mapsKey", "analyticsAccountId", "logoLocation", "otherStories"));
 
   /**
    * @return the names of the user defined arguments to this template.
@@ -125,11 +124,11 @@ public class LivingStoryHtml extends com.google.gxp.base.GxpTemplate {
       implements com.google.gxp.html.HtmlClosure {
   }
 
-  public static com.google.gxp.html.HtmlClosure getGxpClosure(final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories) {
+  public static com.google.gxp.html.HtmlClosure getGxpClosure(final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final String summary, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories) {
     return new TunnelingHtmlClosure() {
       public void writeImpl(final java.lang.Appendable gxp$out, final com.google.gxp.base.GxpContext gxp_context)
           throws java.io.IOException {
-        com.google.livingstories.gxps.LivingStoryHtml.write(gxp$out, gxp_context, currentUrl, livingStory, userName, loginUrl, logoutUrl, subscriptionUrl, lastVisitDate, subscriptionStatus, defaultStoryView, friendConnectSiteId, mapsKey, analyticsAccountId, logoLocation, otherStories);
+        com.google.livingstories.gxps.LivingStoryHtml.write(gxp$out, gxp_context, currentUrl, livingStory, userName, loginUrl, logoutUrl, subscriptionUrl, summary, lastVisitDate, subscriptionStatus, defaultStoryView, friendConnectSiteId, mapsKey, analyticsAccountId, logoLocation, otherStories);
       }
     };
   }
@@ -138,10 +137,10 @@ public class LivingStoryHtml extends com.google.gxp.base.GxpTemplate {
    * Interface that defines a strategy for writing this GXP
    */
   public interface Interface {
-    public void write(final java.lang.Appendable gxp$out, final com.google.gxp.base.GxpContext gxp_context, final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories)
+    public void write(final java.lang.Appendable gxp$out, final com.google.gxp.base.GxpContext gxp_context, final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final String summary, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories)
         throws java.io.IOException;
 
-    public com.google.gxp.html.HtmlClosure getGxpClosure(final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories);
+    public com.google.gxp.html.HtmlClosure getGxpClosure(final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final String summary, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories);
   }
 
   /**
@@ -152,16 +151,16 @@ public class LivingStoryHtml extends com.google.gxp.base.GxpTemplate {
     public Instance() {
     }
 
-    public void write(final java.lang.Appendable gxp$out, final com.google.gxp.base.GxpContext gxp_context, final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories)
+    public void write(final java.lang.Appendable gxp$out, final com.google.gxp.base.GxpContext gxp_context, final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final String summary, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories)
         throws java.io.IOException {
-      com.google.livingstories.gxps.LivingStoryHtml.write(gxp$out, gxp_context, currentUrl, livingStory, userName, loginUrl, logoutUrl, subscriptionUrl, lastVisitDate, subscriptionStatus, defaultStoryView, friendConnectSiteId, mapsKey, analyticsAccountId, logoLocation, otherStories);
+      com.google.livingstories.gxps.LivingStoryHtml.write(gxp$out, gxp_context, currentUrl, livingStory, userName, loginUrl, logoutUrl, subscriptionUrl, summary, lastVisitDate, subscriptionStatus, defaultStoryView, friendConnectSiteId, mapsKey, analyticsAccountId, logoLocation, otherStories);
     }
 
-    public com.google.gxp.html.HtmlClosure getGxpClosure(final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories) {
+    public com.google.gxp.html.HtmlClosure getGxpClosure(final String currentUrl, final LivingStory livingStory, final String userName, final String loginUrl, final String logoutUrl, final String subscriptionUrl, final String summary, final Date lastVisitDate, final boolean subscriptionStatus, final FilterSpec defaultStoryView, final String friendConnectSiteId, final String mapsKey, final String analyticsAccountId, final String logoLocation, final List<LivingStory> otherStories) {
       return new TunnelingHtmlClosure() {
         public void writeImpl(final java.lang.Appendable gxp$out, final com.google.gxp.base.GxpContext gxp_context)
             throws java.io.IOException {
-          Instance.this.write(gxp$out, gxp_context, currentUrl, livingStory, userName, loginUrl, logoutUrl, subscriptionUrl, lastVisitDate, subscriptionStatus, defaultStoryView, friendConnectSiteId, mapsKey, analyticsAccountId, logoLocation, otherStories);
+          Instance.this.write(gxp$out, gxp_context, currentUrl, livingStory, userName, loginUrl, logoutUrl, subscriptionUrl, summary, lastVisitDate, subscriptionStatus, defaultStoryView, friendConnectSiteId, mapsKey, analyticsAccountId, logoLocation, otherStories);
         }
       };
     }
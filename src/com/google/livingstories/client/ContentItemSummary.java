@@ -0,0 +1,79 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.client;
+
+import com.google.livingstories.client.util.Constants;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * The parts of a content item that are needed to list it, e.g. in the content manager, without
+ * the full content of the item.
+ */
+public class ContentItemSummary implements Serializable {
+  private Long id;
+  private ContentItemType contentItemType;
+  private String displayString;
+  private Date timestamp;
+  private Importance importance;
+  private PublishState publishState;
+
+  // empty constructor to make GWT happy
+  public ContentItemSummary() {}
+
+  public ContentItemSummary(BaseContentItem contentItem) {
+    this.id = contentItem.getId();
+    this.contentItemType = contentItem.getContentItemType();
+    String displayString = contentItem.getDisplayString();
+    if (displayString.length() > Constants.CONTENT_SNIPPET_LENGTH) {
+      displayString = displayString.substring(0, Constants.CONTENT_SNIPPET_LENGTH).concat("...");
+    }
+    this.displayString = displayString;
+    this.timestamp = contentItem.getTimestamp();
+    this.importance = contentItem.getImportance();
+    this.publishState = contentItem.getPublishState();
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public ContentItemType getContentItemType() {
+    return contentItemType;
+  }
+
+  /**
+   * Returns the display string of the content item, shortened to
+   * Constants.CONTENT_SNIPPET_LENGTH characters.
+   */
+  public String getDisplayString() {
+    return displayString;
+  }
+
+  public Date getTimestamp() {
+    return timestamp;
+  }
+
+  public Importance getImportance() {
+    return importance;
+  }
+
+  public PublishState getPublishState() {
+    return publishState;
+  }
+}
@@ -34,6 +34,14 @@ public interface ContentRpcService extends RemoteService {
   
   List<BaseContentItem> getContentItemsForLivingStory(Long livingStoryId, boolean onlyPublished);
   
+  /**
+   * Returns summaries of up to count content items of a living story, starting at start, in the
+   * same order as getContentItemsForLivingStory. A result with fewer than count summaries is
+   * the last page.
+   */
+  List<ContentItemSummary> getContentItemSummariesForLivingStory(Long livingStoryId,
+      boolean onlyPublished, int start, int count);
+  
   BaseContentItem getContentItem(Long id, boolean getLinkedContentItems);
   
   List<BaseContentItem> getContentItems(Collection<Long> ids);
@@ -54,6 +62,13 @@ public interface ContentRpcService extends RemoteService {
   DisplayContentItemBundle getDisplayContentItemBundle(Long livingStoryId, FilterSpec filterSpec,
       Long focusedContentItemId, Date cutoff);  
   
+  /**
+   * Like the Date-based version, but continues from a cursor returned in
+   * DisplayContentItemBundle.getNextCursor(), or from the start if cursor is null.
+   */
+  DisplayContentItemBundle getDisplayContentItemBundle(Long livingStoryId, FilterSpec filterSpec,
+      Long focusedContentItemId, String cursor);
+  
   List<EventContentItem> getImportantEventsForLivingStory(Long livingStoryId);
   
   List<PlayerContentItem> getImportantPlayersForLivingStory(Long livingStoryId);
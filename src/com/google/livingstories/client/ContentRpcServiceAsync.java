@@ -34,6 +34,9 @@ public interface ContentRpcServiceAsync {
   void getContentItemsForLivingStory(Long livingStoryId, boolean onlyPublished, 
       AsyncCallback<List<BaseContentItem>> callback);
   
+  void getContentItemSummariesForLivingStory(Long livingStoryId, boolean onlyPublished,
+      int start, int count, AsyncCallback<List<ContentItemSummary>> callback);
+  
   void getContentItem(Long id, boolean getLinkedContentItems,
       AsyncCallback<BaseContentItem> callback);
   
@@ -55,6 +58,9 @@ public interface ContentRpcServiceAsync {
 
   void getDisplayContentItemBundle(Long livingStoryId, FilterSpec filterSpec,
       Long focusedContentItemId, Date cutoff, AsyncCallback<DisplayContentItemBundle> callback);
+
+  void getDisplayContentItemBundle(Long livingStoryId, FilterSpec filterSpec,
+      Long focusedContentItemId, String cursor, AsyncCallback<DisplayContentItemBundle> callback);
   
   void getImportantEventsForLivingStory(Long livingStoryId,
       AsyncCallback<List<EventContentItem>> callback);
@@ -40,6 +40,13 @@ public class DisplayContentItemBundle implements Serializable {
    */
   private Date nextDateInSequence;
   
+  /**
+   * Opaque position of the next content item to return, which can be passed back to
+   * ContentRpcService.getDisplayContentItemBundle to get the next page. Null if there were no
+   * additional content items to return, or if the bundle was built without cursor support.
+   */
+  private String nextCursor;
+  
   private FilterSpec adjustedFilterSpec;
   
   // empty constructor to make GWT happy
@@ -48,10 +55,17 @@ public class DisplayContentItemBundle implements Serializable {
   public DisplayContentItemBundle(List<BaseContentItem> coreContentItems,
       Set<BaseContentItem> linkedContentItems,
       Date nextDateInSequence, FilterSpec adjustedFilterSpec) {
+    this(coreContentItems, linkedContentItems, nextDateInSequence, null, adjustedFilterSpec);
+  }
+
+  public DisplayContentItemBundle(List<BaseContentItem> coreContentItems,
+      Set<BaseContentItem> linkedContentItems, Date nextDateInSequence, String nextCursor,
+      FilterSpec adjustedFilterSpec) {
     this.coreContentItems = new ArrayList<BaseContentItem>(coreContentItems);
     this.linkedContentItems = new HashSet<BaseContentItem>(linkedContentItems);
     this.nextDateInSequence =
         (nextDateInSequence == null ? null : new Date(nextDateInSequence.getTime()));
+    this.nextCursor = nextCursor;
     this.adjustedFilterSpec = adjustedFilterSpec;
   }
   
@@ -67,6 +81,10 @@ public class DisplayContentItemBundle implements Serializable {
     return (nextDateInSequence == null ? null : new Date(nextDateInSequence.getTime()));
   }
   
+  public String getNextCursor() {
+    return nextCursor;
+  }
+  
   public FilterSpec getAdjustedFilterSpec() {
     return new FilterSpec(adjustedFilterSpec);
   }
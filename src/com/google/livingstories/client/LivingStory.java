@@ -43,6 +43,14 @@ public class LivingStory implements Serializable {
       this.content = content;
       this.timestamp = timestamp;
     }
+
+    public String getContent() {
+      return content;
+    }
+
+    public Date getTimestamp() {
+      return timestamp;
+    }
   }
   
   // GWT needs a zero-argument constructor to be happy.
@@ -128,16 +136,34 @@ public class LivingStory implements Serializable {
     if (time == null) {
       return getSummary();
     }
-    String lastRevisionContent = "";
+    Summary revision = getLastRevisionBeforeTime(time);
+    return revision == null ? "" : revision.content;
+  }
+  
+  /**
+   * Return the timestamp of the last summary revision that was saved before a given time, or
+   * null if there is none. If the provided time is null, returns the timestamp of the latest
+   * summary revision.
+   */
+  public Date getLastSummaryRevisionTimeBeforeTime(Date time) {
+    if (time == null) {
+      return getLastChangeTimestamp();
+    }
+    Summary revision = getLastRevisionBeforeTime(time);
+    return revision == null ? null : revision.timestamp;
+  }
+  
+  private Summary getLastRevisionBeforeTime(Date time) {
+    Summary lastRevision = null;
     for (Summary revision : summaryRevisions) {
       Date revisionTimestamp = revision.timestamp;
       if (revisionTimestamp.before(time)) {
-        lastRevisionContent = revision.content;
+        lastRevision = revision;
       } else {
         break;
       }
     }
-    return lastRevisionContent;
+    return lastRevision;
   }
   
   public boolean dateWithinAvailableRevisions(Date time) {
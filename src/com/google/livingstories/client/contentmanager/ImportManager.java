@@ -93,8 +93,8 @@ public class ImportManager extends ManagerPane {
     upload.setName("data");
     fileUploadPanel.add(upload);
     
-    CheckBox override = new CheckBox("Check this box if the previous import attempt resulted in " +
-        "an error.");
+    CheckBox override = new CheckBox("Check this box to start over if the previous import " +
+        "attempt resulted in an error, instead of resuming it.");
     override.setName("override");
     override.setFormValue("true");
     fileUploadPanel.add(override);
@@ -127,6 +127,16 @@ public class ImportManager extends ManagerPane {
     VerticalPanel progressPanel = new VerticalPanel();
     progressForm.setWidget(progressPanel);
     
+    Button resume = new Button("Resume previous import");
+    resume.addClickHandler(new ClickHandler() {
+      public void onClick(ClickEvent e) {
+        progressForm.submit();
+        statusLabel.setHTML("Resuming...");
+        progress = 0;
+      }
+    });
+    progressPanel.add(resume);
+
     statusLabel = new HTML();
     progressPanel.add(statusLabel);
 
@@ -36,4 +36,10 @@ public class SearchTerms implements Serializable {
   public Date beforeDate;
   public Importance importance;
   public PublishState publishState;
+  // Words the content items must contain. If set, results are ordered by relevance instead of
+  // by time.
+  public String text;
+  // The range of results to return; a count of 0 or less returns all of them.
+  public int start;
+  public int count;
 }
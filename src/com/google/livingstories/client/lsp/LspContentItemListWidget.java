@@ -34,7 +34,6 @@ import com.google.livingstories.client.util.GlobalUtil;
 import com.google.livingstories.client.util.LivingStoryControls;
 
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -53,7 +52,7 @@ public class LspContentItemListWidget extends Composite {
   private VerticalPanel panel;
   private ContentItemList contentItemList;
 
-  private Date nextDateInSequence;
+  private String nextCursor;
   
   private Map<Long, BaseContentItem> idToContentItemMap;
   private Label moreLink;
@@ -104,9 +103,18 @@ public class LspContentItemListWidget extends Composite {
     });
   }
   
+  /**
+   * Returns whether there are more content items to load after those in the bundle. The
+   * overview pages by cursor, so there are more exactly when the bundle has a next cursor.
+   */
+  protected boolean hasMoreAfter(DisplayContentItemBundle bundle) {
+    return bundle.getNextCursor() != null;
+  }
+  
   public void clear() {
     contentItemList.clear();
     this.idToContentItemMap = new HashMap<Long, BaseContentItem>();
+    nextCursor = null;
   }
     
   public void beginLoading() {
@@ -153,9 +161,9 @@ public class LspContentItemListWidget extends Composite {
 
     contentItemList.appendContentItems(coreContentItems, idToContentItemMap);
     
-    nextDateInSequence = bundle.getNextDateInSequence();
+    nextCursor = bundle.getNextCursor();
     
-    moreLink.setVisible(bundle.getNextDateInSequence() != null);
+    moreLink.setVisible(hasMoreAfter(bundle));
     loadingImage.setVisible(false);
     problemLabel.setVisible(false);
   }
@@ -174,8 +182,12 @@ public class LspContentItemListWidget extends Composite {
     return contentItemList.openElements(contentItemIds);
   }
   
-  public Date getNextDateInSequence() {
-    return nextDateInSequence == null ? null : new Date(nextDateInSequence.getTime());
+  /**
+   * Returns the cursor from which to load the content items after those in the list, or null
+   * if the list starts over or there aren't any more.
+   */
+  public String getNextCursor() {
+    return nextCursor;
   }
   
   public boolean hasMore() {
@@ -19,6 +19,7 @@ package com.google.livingstories.client.lsp;
 import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.event.dom.client.HasClickHandlers;
+import com.google.livingstories.client.DisplayContentItemBundle;
 import com.google.livingstories.client.lsp.event.EventBus;
 import com.google.livingstories.client.lsp.event.ShowMoreEvent;
 
@@ -36,4 +37,13 @@ public class PlayerPageContentItemListWidget extends LspContentItemListWidget {
       }
     });
   }
+
+  /**
+   * Related content is still paged by date, so there are more content items as long as there's
+   * a next date in the sequence.
+   */
+  @Override
+  protected boolean hasMoreAfter(DisplayContentItemBundle bundle) {
+    return bundle.getNextDateInSequence() != null;
+  }
 }
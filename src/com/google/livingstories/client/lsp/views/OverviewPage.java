@@ -114,7 +114,7 @@ public class OverviewPage extends Page {
         contentItemList.doSimpleReversal(filter.oldestFirst);
       } else {
         contentService.getDisplayContentItemBundle(LivingStoryData.getLivingStoryId(), filter,
-            focusedContentItemId, null, new ContentItemCallback(focusedContentItemId));
+            focusedContentItemId, (String) null, new ContentItemCallback(focusedContentItemId));
         contentItemList.clear();
         contentItemList.beginLoading();
         beginLoading();
@@ -217,7 +217,7 @@ public class OverviewPage extends Page {
     boolean finished = contentItemList.goToContentItem(contentItemId);
     if (!finished) {
       contentService.getDisplayContentItemBundle(LivingStoryData.getLivingStoryId(),
-          filterList.getFilter(), contentItemId, contentItemList.getNextDateInSequence(),
+          filterList.getFilter(), contentItemId, contentItemList.getNextCursor(),
           new ContentItemCallback(contentItemId));
     }
     
@@ -234,7 +234,7 @@ public class OverviewPage extends Page {
   public void getMoreContentItems() {
     contentService.getDisplayContentItemBundle(
         LivingStoryData.getLivingStoryId(), filterList.getFilter(), null,
-        contentItemList.getNextDateInSequence(), new ContentItemCallback());
+        contentItemList.getNextCursor(), new ContentItemCallback());
     contentItemList.beginLoading();
   }
   
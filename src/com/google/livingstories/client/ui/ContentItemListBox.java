@@ -24,14 +24,15 @@ import com.google.gwt.user.client.ui.Composite;
 import com.google.gwt.user.client.ui.HorizontalPanel;
 import com.google.gwt.user.client.ui.Label;
 import com.google.gwt.user.client.ui.VerticalPanel;
+import com.google.livingstories.client.ContentItemSummary;
 import com.google.livingstories.client.ContentItemType;
 import com.google.livingstories.client.BaseContentItem;
 import com.google.livingstories.client.ContentRpcService;
 import com.google.livingstories.client.ContentRpcServiceAsync;
-import com.google.livingstories.client.util.Constants;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,20 +41,30 @@ import java.util.Set;
 /**
  * Widget that loads a list of content items based on an living story id, and has a built-in
  * filtering mechanism.
- * The underlying storage for the content items is a LinkedHashMap. To get incrementally-added items
+ * The list is built from summaries of the content items, which are loaded a page at a time.
+ * The full content items are only loaded when they're selected, or when they're added to the
+ * list after being saved.
+ * The underlying storage for the summaries is a LinkedHashMap. To get incrementally-added items
  * to appear at the top of the list, rather than at the bottom, the order in which items are
  * stored in the LinkedHashMap is actually opposite to the display order.
  */
 public class ContentItemListBox extends Composite {
+  private static final int SUMMARY_PAGE_SIZE = 200;
+
   /**
    * Create a remote service proxy to talk to the server-side content persisting service.
    */
   private final ContentRpcServiceAsync contentService = GWT.create(ContentRpcService.class);
 
-  private ItemList<BaseContentItem> itemList;
+  private ItemList<ContentItemSummary> itemList;
   protected EnumDropdown<ContentItemType> filter;
-  private Map<Long, BaseContentItem> loadedContentItemsMap =
-      new LinkedHashMap<Long, BaseContentItem>();
+  private Map<Long, ContentItemSummary> loadedSummariesMap =
+      new LinkedHashMap<Long, ContentItemSummary>();
+  // The full content items that have been loaded so far, by id.
+  private Map<Long, BaseContentItem> loadedContentItemsMap = new HashMap<Long, BaseContentItem>();
+  // Incremented every time a different story is loaded, so that pages that arrive late for the
+  // previous story can be ignored.
+  private int loadGeneration = 0;
 
   public ContentItemListBox(final boolean multiSelect) {
     filter = EnumDropdown.newInstance(ContentItemType.class, "All");
@@ -68,22 +79,18 @@ public class ContentItemListBox extends Composite {
     filterPanel.add(new Label("Filter:"));
     filterPanel.add(filter);
     
-    itemList = new ItemList<BaseContentItem>(multiSelect) {
+    itemList = new ItemList<ContentItemSummary>(multiSelect) {
       @Override
       public void loadItems() {
-        if (!loadedContentItemsMap.isEmpty()) {
+        if (!loadedSummariesMap.isEmpty()) {
           // loads the items in reverse order from how they're stored.
-          List<BaseContentItem> contentItems =
-              new ArrayList<BaseContentItem>(loadedContentItemsMap.values());
-          Collections.reverse(contentItems);
+          List<ContentItemSummary> summaries =
+              new ArrayList<ContentItemSummary>(loadedSummariesMap.values());
+          Collections.reverse(summaries);
 
-          for (BaseContentItem contentItem : contentItems) {
-            if (testContentItem(contentItem)) {
-              String content = contentItem.getDisplayString();
-              if (content.length() > Constants.CONTENT_SNIPPET_LENGTH) {
-                content = content.substring(0, Constants.CONTENT_SNIPPET_LENGTH).concat("...");
-              }
-              addItem(content, String.valueOf(contentItem.getId()));
+          for (ContentItemSummary summary : summaries) {
+            if (testContentItem(summary)) {
+              addItem(summary.getDisplayString(), String.valueOf(summary.getId()));
             }
           }
         }
@@ -100,28 +107,49 @@ public class ContentItemListBox extends Composite {
    * Tests whether a content item should be included in the displayed list, based on the filter
    * setting.
    */
-  protected boolean testContentItem(BaseContentItem contentItem) {
+  protected boolean testContentItem(ContentItemSummary summary) {
     ContentItemType type = filter.getSelectedConstant();
-    return type == null || contentItem.getContentItemType().equals(type) || isSelected(contentItem);
+    return type == null || summary.getContentItemType().equals(type) || isSelected(summary);
   }
   
   public void loadItemsForLivingStory(Long livingStoryId) {
     itemList.setSelectedIndex(-1);
+    loadedSummariesMap.clear();
     loadedContentItemsMap.clear();
-    contentService.getContentItemsForLivingStory(livingStoryId, false,
-        new AsyncCallback<List<BaseContentItem>>() {
+    loadGeneration++;
+    loadSummaryPage(livingStoryId, 0, new ArrayList<ContentItemSummary>(), loadGeneration);
+  }
+
+  /**
+   * Loads the page of summaries starting at start, and then the pages after it. The list is
+   * only updated once all the pages are in, since new items are added to the top of it.
+   */
+  private void loadSummaryPage(final Long livingStoryId, final int start,
+      final List<ContentItemSummary> loadedSummaries, final int generation) {
+    contentService.getContentItemSummariesForLivingStory(livingStoryId, false, start,
+        SUMMARY_PAGE_SIZE, new AsyncCallback<List<ContentItemSummary>>() {
           @Override
           public void onFailure(Throwable caught) {
-            itemList.clear();
-            itemList.addItem("Callback failed, please try again");
+            if (generation == loadGeneration) {
+              itemList.clear();
+              itemList.addItem("Callback failed, please try again");
+            }
           }
           @Override
-          public void onSuccess(List<BaseContentItem> result) {
-            // Put result on loadedAContentItemsMap in reverse order. Can't use useful
+          public void onSuccess(List<ContentItemSummary> result) {
+            if (generation != loadGeneration) {
+              return;
+            }
+            loadedSummaries.addAll(result);
+            if (result.size() == SUMMARY_PAGE_SIZE) {
+              loadSummaryPage(livingStoryId, start + result.size(), loadedSummaries, generation);
+              return;
+            }
+            // Put result on loadedSummariesMap in reverse order. Can't use useful
             // Google Collections stuff for it, so:
-            for (int i = result.size() - 1; i >= 0; i--) {
-              BaseContentItem contentItem = result.get(i);
-              loadedContentItemsMap.put(contentItem.getId(), contentItem);
+            for (int i = loadedSummaries.size() - 1; i >= 0; i--) {
+              ContentItemSummary summary = loadedSummaries.get(i);
+              loadedSummariesMap.put(summary.getId(), summary);
             }
             refresh();
           }
@@ -152,10 +180,47 @@ public class ContentItemListBox extends Composite {
     return itemList.hasSelection() ? Long.valueOf(itemList.getSelectedItemValue()) : null;
   }
   
+  /**
+   * Returns the selected content item, or null if there's no selection or the selected item
+   * hasn't been loaded yet with {@link #loadSelectedContentItem}.
+   */
   public BaseContentItem getSelectedContentItem() {
     return itemList.hasSelection() ? loadedContentItemsMap.get(getSelectedContentItemId()) : null;
   }
 
+  /**
+   * Loads the selected content item, along with the items it links to, unless it has been
+   * loaded already. The callback gets null if there's no selection.
+   */
+  public void loadSelectedContentItem(final AsyncCallback<BaseContentItem> callback) {
+    Long id = getSelectedContentItemId();
+    BaseContentItem contentItem = id == null ? null : loadedContentItemsMap.get(id);
+    if (id == null || contentItem != null) {
+      callback.onSuccess(contentItem);
+      return;
+    }
+    contentService.getContentItem(id, true, new AsyncCallback<BaseContentItem>() {
+      @Override
+      public void onFailure(Throwable caught) {
+        callback.onFailure(caught);
+      }
+      @Override
+      public void onSuccess(BaseContentItem result) {
+        if (result != null) {
+          loadedContentItemsMap.put(result.getId(), result);
+          if (result.getLinkedContentItems() != null) {
+            for (BaseContentItem linkedContentItem : result.getLinkedContentItems()) {
+              if (!loadedContentItemsMap.containsKey(linkedContentItem.getId())) {
+                loadedContentItemsMap.put(linkedContentItem.getId(), linkedContentItem);
+              }
+            }
+          }
+        }
+        callback.onSuccess(result);
+      }
+    });
+  }
+
   public List<String> getSelectedItems() {
     return itemList.getSelectedItems();
   }
@@ -171,20 +236,17 @@ public class ContentItemListBox extends Composite {
     }
   }
   
-  public List<BaseContentItem> getSelectedContentitems() {
-    List<BaseContentItem> result = new ArrayList<BaseContentItem>();
-    for (String contentItemId : itemList.getSelectedItemValues()) {
-      result.add(loadedContentItemsMap.get(Long.valueOf(contentItemId)));
-    }
-    return result;
-  }
-  
+  /**
+   * Returns the full content items that have been loaded so far, by id. These are the items
+   * that have been selected or saved, and the items that they link to.
+   */
   public Map<Long, BaseContentItem> getLoadedContentItemsMap() {
     return loadedContentItemsMap;
   }
   
   public void addOrUpdateContentItem(BaseContentItem contentItem) {
-    boolean isAdd = !loadedContentItemsMap.containsKey(contentItem.getId());
+    boolean isAdd = !loadedSummariesMap.containsKey(contentItem.getId());
+    loadedSummariesMap.put(contentItem.getId(), new ContentItemSummary(contentItem));
     loadedContentItemsMap.put(contentItem.getId(), contentItem);
     // Change the filter if necessary so that the added/updated content item
     // is visible and selectable.
@@ -200,9 +262,10 @@ public class ContentItemListBox extends Composite {
   }
   
   public void addContentItems(List<BaseContentItem> contentItems) {
-    // Add to loadedContentItemsMap in reverse order to how the items were specified.
+    // Add to loadedSummariesMap in reverse order to how the items were specified.
     for (int i = contentItems.size() - 1; i >= 0; i--) {
       BaseContentItem contentItem = contentItems.get(i);
+      loadedSummariesMap.put(contentItem.getId(), new ContentItemSummary(contentItem));
       loadedContentItemsMap.put(contentItem.getId(), contentItem);
     }
     itemList.refresh();
@@ -210,20 +273,21 @@ public class ContentItemListBox extends Composite {
   
   public void removeContentItem(long contentItemId) {
     itemList.removeItemWithValue(String.valueOf(contentItemId));
+    loadedSummariesMap.remove(contentItemId);
     loadedContentItemsMap.remove(contentItemId);
   }
   
-  private boolean isSelected(BaseContentItem contentItem) {
+  private boolean isSelected(ContentItemSummary summary) {
     if (itemList.isMultipleSelect()) {
       for (String value : itemList.getSelectedItemValues()) {
-        if (Long.valueOf(value).equals(contentItem.getId())) {
+        if (Long.valueOf(value).equals(summary.getId())) {
           return true;
         }
       }
       return false;
     } else {
       return itemList.getSelectedItemValue() != null
-          && Long.valueOf(itemList.getSelectedItemValue()).equals(contentItem.getId());
+          && Long.valueOf(itemList.getSelectedItemValue()).equals(summary.getId());
     }
   }
 }
@@ -54,6 +54,7 @@ public class SearchPanel extends Composite {
   
   private VerticalPanel contentPanel;
   private Grid filterGrid;
+  private TextBox text;
   private EnumDropdown<ContentItemType> contentItemType;
   private int contentItemSubtypeRow;
   private EnumDropdown<PlayerType> playerType;
@@ -71,6 +72,7 @@ public class SearchPanel extends Composite {
     contentPanel = new VerticalPanel();
     
     filterGrid = new Grid(0, 2);
+    createTextFilter();
     createPublishStateFilter();
     createContentItemTypeFilter();
     createContentItemSubtypeFilters();
@@ -85,6 +87,14 @@ public class SearchPanel extends Composite {
     initWidget(contentPanel);
   }
 
+  private void createTextFilter() {
+    text = new TextBox();
+
+    int row = filterGrid.insertRow(filterGrid.getRowCount());
+    filterGrid.setWidget(row, 0, new Label("Containing words:"));
+    filterGrid.setWidget(row, 1, text);
+  }
+
   private void createPublishStateFilter() {
     publishState = EnumDropdown.newInstance(PublishState.class);
     publishState.selectConstant(PublishState.PUBLISHED);
@@ -185,6 +195,9 @@ public class SearchPanel extends Composite {
     }
     searchTerms.importance = importance.getSelectedConstant();
     searchTerms.publishState = publishState.getSelectedConstant();
+    if (!text.getValue().trim().isEmpty()) {
+      searchTerms.text = text.getValue().trim();
+    }
     return searchTerms;
   }
 
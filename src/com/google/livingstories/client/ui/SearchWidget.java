@@ -17,7 +17,10 @@
 package com.google.livingstories.client.ui;
 
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.ui.Button;
 import com.google.gwt.user.client.ui.Composite;
 import com.google.gwt.user.client.ui.VerticalPanel;
 import com.google.gwt.user.client.ui.Widget;
@@ -36,11 +39,17 @@ import java.util.List;
  * over the entire corpus of content items.
  */
 public class SearchWidget extends Composite {
+  // Results are fetched a page at a time, since a story can have thousands of content items.
+  private static final int PAGE_SIZE = 50;
+
   private final ContentRpcServiceAsync contentService = GWT.create(ContentRpcService.class);
   
   private VerticalPanel contentPanel;
   private SearchPanel searchPanel;
   private SearchResultsList contentItemList;
+  private Button moreButton;
+  
+  private SearchTerms currentSearchTerms;
   
   public SearchWidget(ContentItemClickHandler handler) {
     contentPanel = new VerticalPanel();
@@ -48,6 +57,7 @@ public class SearchWidget extends Composite {
     contentItemList = new SearchResultsList(handler);
     
     contentPanel.add(contentItemList);
+    contentPanel.add(createMoreButton());
     initWidget(contentPanel);
   }
   
@@ -55,20 +65,55 @@ public class SearchWidget extends Composite {
     searchPanel = new SearchPanel();
     searchPanel.addSearchHandler(new SearchHandler() {
       public void onSearch(SearchTerms searchTerms) {
-        contentService.executeSearch(searchTerms, new AsyncCallback<List<BaseContentItem>>() {
-          public void onFailure(Throwable t) {
-            // Ignore;
-          }
-          public void onSuccess(List<BaseContentItem> contentItems) {
-            contentItemList.load(contentItems);
-          }
-        });
+        currentSearchTerms = searchTerms;
+        currentSearchTerms.start = 0;
+        currentSearchTerms.count = PAGE_SIZE;
+        fetchPage();
       }
     });
     return searchPanel;    
   }
+
+  private Widget createMoreButton() {
+    moreButton = new Button("More results");
+    moreButton.setVisible(false);
+    moreButton.addClickHandler(new ClickHandler() {
+      public void onClick(ClickEvent e) {
+        currentSearchTerms.start += PAGE_SIZE;
+        fetchPage();
+      }
+    });
+    return moreButton;
+  }
+
+  private void fetchPage() {
+    final SearchTerms searchTerms = currentSearchTerms;
+    final boolean firstPage = searchTerms.start == 0;
+    moreButton.setEnabled(false);
+    contentService.executeSearch(searchTerms, new AsyncCallback<List<BaseContentItem>>() {
+      public void onFailure(Throwable t) {
+        // Leave the results as they are, so that the page can be asked for again.
+        moreButton.setEnabled(true);
+      }
+      public void onSuccess(List<BaseContentItem> contentItems) {
+        if (searchTerms != currentSearchTerms) {
+          // A newer search was started in the meantime.
+          return;
+        }
+        if (firstPage) {
+          contentItemList.load(contentItems);
+        } else {
+          contentItemList.append(contentItems);
+        }
+        moreButton.setEnabled(true);
+        moreButton.setVisible(contentItems.size() == PAGE_SIZE);
+      }
+    });
+  }
   
   public void clear() {
+    currentSearchTerms = null;
+    moreButton.setVisible(false);
     contentItemList.clear();
   }
 }
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for cache activity, broken down by key family. The family of a key is the part
+ * before its first ':', e.g. "content" for "content:123:456".
+ *
+ * The counters live in process memory, so they only cover the current instance, and start
+ * over when it does.
+ */
+public class CacheStats {
+  private final ConcurrentMap<String, FamilyStats> statsByFamily =
+      new ConcurrentHashMap<String, FamilyStats>();
+
+  public static String getFamily(String key) {
+    int separatorIndex = key.indexOf(':');
+    return separatorIndex < 0 ? key : key.substring(0, separatorIndex);
+  }
+
+  /**
+   * Returns the counters for the family that key belongs to.
+   */
+  public FamilyStats forKey(String key) {
+    String family = getFamily(key);
+    FamilyStats stats = statsByFamily.get(family);
+    if (stats == null) {
+      FamilyStats newStats = new FamilyStats();
+      stats = statsByFamily.putIfAbsent(family, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Returns the counters of every family that has seen any activity, ordered by family name.
+   * The counters keep changing as the cache is used.
+   */
+  public Map<String, FamilyStats> getStatsByFamily() {
+    return new TreeMap<String, FamilyStats>(statsByFamily);
+  }
+
+  public static class FamilyStats {
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong remoteHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadMillis = new AtomicLong();
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong bytesPut = new AtomicLong();
+    private final AtomicLong maxValueBytes = new AtomicLong();
+    private final AtomicLong putFailures = new AtomicLong();
+    private final AtomicLong getFailures = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Records a lookup that was answered from process memory. */
+    public void recordLocalHit() {
+      localHits.incrementAndGet();
+    }
+
+    /** Records a lookup that was answered by memcache. */
+    public void recordRemoteHit() {
+      remoteHits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+      misses.incrementAndGet();
+    }
+
+    /** Records the time it took to compute a value that wasn't in the cache. */
+    public void recordLoad(long millis) {
+      loads.incrementAndGet();
+      loadMillis.addAndGet(millis);
+    }
+
+    /**
+     * Records a value being stored. size is its approximate serialized size in bytes, or
+     * -1 if it isn't known.
+     */
+    public void recordPut(long size) {
+      puts.incrementAndGet();
+      if (size >= 0) {
+        bytesPut.addAndGet(size);
+        long max = maxValueBytes.get();
+        while (size > max && !maxValueBytes.compareAndSet(max, size)) {
+          max = maxValueBytes.get();
+        }
+      }
+    }
+
+    /** Records a value that memcache refused or failed to store. */
+    public void recordPutFailure() {
+      putFailures.incrementAndGet();
+    }
+
+    /** Records a lookup that failed, e.g. because the stored value couldn't be deserialized. */
+    public void recordGetFailure() {
+      getFailures.incrementAndGet();
+    }
+
+    /** Records a value being dropped from process memory to make room for others. */
+    public void recordEviction() {
+      evictions.incrementAndGet();
+    }
+
+    public long getLocalHits() {
+      return localHits.get();
+    }
+
+    public long getRemoteHits() {
+      return remoteHits.get();
+    }
+
+    public long getMisses() {
+      return misses.get();
+    }
+
+    public long getLoads() {
+      return loads.get();
+    }
+
+    public long getLoadMillis() {
+      return loadMillis.get();
+    }
+
+    public long getPuts() {
+      return puts.get();
+    }
+
+    public long getBytesPut() {
+      return bytesPut.get();
+    }
+
+    public long getMaxValueBytes() {
+      return maxValueBytes.get();
+    }
+
+    public long getPutFailures() {
+      return putFailures.get();
+    }
+
+    public long getGetFailures() {
+      return getFailures.get();
+    }
+
+    public long getEvictions() {
+      return evictions.get();
+    }
+  }
+}
@@ -18,6 +18,7 @@ package com.google.livingstories.server.dataservices;
 
 import com.google.livingstories.client.ContentItemType;
 import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemSummary;
 import com.google.livingstories.client.Importance;
 import com.google.livingstories.client.PublishState;
 
@@ -77,6 +78,18 @@ public interface ContentDataService {
    */
   List<BaseContentItem> retrieveByLivingStory(Long livingStoryId, PublishState publishState);
   
+  /**
+   * Fetch summaries of a page of the content objects that belong to a living story, in the same
+   * order as retrieveByLivingStory.
+   * @param livingStoryId database id of a living story
+   * @param publishState if set, only summaries of content objects in this state should be
+   * returned
+   * @param start index of the first content object to return
+   * @param count maximum number of summaries to return
+   */
+  List<ContentItemSummary> retrieveSummariesByLivingStory(Long livingStoryId,
+      PublishState publishState, int start, int count);
+  
   /**
    * Fetch a list of content objects given a list of their ids.
    * @param ids list of database ids of content entities
@@ -23,8 +23,27 @@ public interface ServerCache {
   public <T> T get(String key);
 
   public <T> void put(String key, T value);
+
+  /**
+   * Like put, for callers that have already serialized value. serializedValue is value's
+   * java serialized form, from SerializationUtil.serialize, or null if it couldn't be
+   * serialized; implementations that need it use it rather than serializing value again.
+   */
+  public <T> void put(String key, T value, byte[] serializedValue);
+
+  /**
+   * Stores value at key only if there is no value there yet, and returns whether it did.
+   * The value expires after expirationSeconds, which makes this suitable for short leases.
+   */
+  public <T> boolean putIfAbsent(String key, T value, int expirationSeconds);
   
   public void remove(String key);
+
+  /**
+   * Atomically adds delta to the numeric value stored at key, and returns the new value. If
+   * there is no value at key, it is first set to initialValue.
+   */
+  public long increment(String key, long delta, long initialValue);
   
   public void clear();
 }
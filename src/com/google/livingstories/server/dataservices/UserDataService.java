@@ -73,6 +73,13 @@ public interface UserDataService {
    * @param livingStoryId database id of the living story
    */
   void updateVisitDataForStory(String userId, Long livingStoryId);
+
+  /**
+   * Write out the story visits that are buffered in memory, if they're due to be written.
+   * This is called at the end of every request, so that buffered visits don't have to wait
+   * for the next visit. Implementations that don't buffer visits don't need to do anything.
+   */
+  void flushBufferedVisits();
   
   /**
    * Set the email alerts subscription for the given user for the given living story
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.entities;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Progress of the latest job that re-runs auto-linking over all of the content of a story, after
+ * its players or concepts changed. The content items are gone through in id order, so the id of
+ * the last one that was done is enough to pick the job up where it left off.
+ */
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class AutoLinkJobEntity {
+  // The key is derived from the living story id, so that there's at most one job per story.
+  @PrimaryKey
+  @Persistent
+  private Key key;
+
+  @Persistent
+  private Long livingStoryId;
+
+  // Tells the tasks of this run apart from those of a run that was restarted.
+  @Persistent
+  private Long runId;
+
+  @Persistent
+  private Long lastDoneId;
+
+  @Persistent
+  private int totalCount;
+
+  @Persistent
+  private int checkedCount;
+
+  @Persistent
+  private int relinkedCount;
+
+  // The ids whose related-content bundles show content items that were relinked. Those caches
+  // are only cleared when the job finishes.
+  @Persistent
+  private Set<Long> relatedContentItemIds;
+
+  @Persistent
+  private Date startTime;
+
+  @Persistent
+  private Date finishTime;
+
+  public AutoLinkJobEntity(Long livingStoryId) {
+    this.key = createKey(livingStoryId);
+    this.livingStoryId = livingStoryId;
+  }
+
+  public static Key createKey(Long livingStoryId) {
+    return KeyFactory.createKey(AutoLinkJobEntity.class.getSimpleName(), livingStoryId);
+  }
+
+  /**
+   * Starts the job over, with a new run id, for content items that number totalCount.
+   */
+  public void restart(int totalCount) {
+    this.runId = System.currentTimeMillis();
+    this.lastDoneId = 0L;
+    this.totalCount = totalCount;
+    this.checkedCount = 0;
+    this.relinkedCount = 0;
+    this.relatedContentItemIds = new HashSet<Long>();
+    this.startTime = new Date();
+    this.finishTime = null;
+  }
+
+  public Long getLivingStoryId() {
+    return livingStoryId;
+  }
+
+  public Long getRunId() {
+    return runId;
+  }
+
+  public Long getLastDoneId() {
+    return lastDoneId;
+  }
+
+  /**
+   * Records that the content items up to and including lastDoneId are done.
+   * @param checkedCount how many content items were looked at
+   * @param relinkedCount how many of those got new links
+   * @param relatedContentItemIds the related-content ids of the ones that got new links
+   */
+  public void recordProgress(Long lastDoneId, int checkedCount, int relinkedCount,
+      Collection<Long> relatedContentItemIds) {
+    this.lastDoneId = lastDoneId;
+    this.checkedCount += checkedCount;
+    this.relinkedCount += relinkedCount;
+    getRelatedContentItemIds().addAll(relatedContentItemIds);
+  }
+
+  /**
+   * Returns how many content items the story had when the job started. As content can be added
+   * while the job runs, this is an estimate.
+   */
+  public int getTotalCount() {
+    return totalCount;
+  }
+
+  public int getCheckedCount() {
+    return checkedCount;
+  }
+
+  public int getRelinkedCount() {
+    return relinkedCount;
+  }
+
+  public Set<Long> getRelatedContentItemIds() {
+    if (relatedContentItemIds == null) {
+      relatedContentItemIds = new HashSet<Long>();
+    }
+    return relatedContentItemIds;
+  }
+
+  public Date getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * Returns when the job finished, or null if it's still running.
+   */
+  public Date getFinishTime() {
+    return finishTime;
+  }
+
+  public boolean isFinished() {
+    return finishTime != null;
+  }
+
+  public void setFinished() {
+    this.finishTime = new Date();
+  }
+}
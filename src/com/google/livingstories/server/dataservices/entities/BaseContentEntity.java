@@ -35,7 +35,10 @@ import com.google.livingstories.client.QuoteContentItem;
 import com.google.livingstories.client.ReactionContentItem;
 import com.google.livingstories.client.StoryPlayerContentItem;
 import com.google.livingstories.client.util.GlobalUtil;
+import com.google.livingstories.client.util.SnippetUtil;
+import com.google.livingstories.client.util.dom.JavaNodeAdapter;
 import com.google.livingstories.server.rpcimpl.ContentRpcImpl;
+import com.google.livingstories.server.util.StringUtil;
 import com.google.livingstories.server.util.TimeUtil;
 
 import org.json.JSONArray;
@@ -63,19 +66,23 @@ import javax.jdo.annotations.IdentityType;
 import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.Persistent;
 import javax.jdo.annotations.PrimaryKey;
+import javax.jdo.listener.StoreCallback;
 
 /**
  * This class represents a piece of content for a living story.
  */
 @PersistenceCapable(identityType = IdentityType.APPLICATION)
 public class BaseContentEntity
-    implements Serializable, JSONSerializable, HasSerializableLivingStoryId {
+    implements Serializable, JSONSerializable, HasSerializableLivingStoryId, StoreCallback {
   private static final Pattern EXTERNAL_LINK_PATTERN =
       Pattern.compile("<a\\b[^>]+?\\bhref=\"(?!javascript:)[^>]+?>",
           Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
   private static final Pattern TARGET_ATTR_PATTERN =
       Pattern.compile("\\btarget=", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
   private static final String DEFAULT_LINK_TARGET = " target=\"_blank\"";
+  public static final int EXTERNAL_SNIPPET_LENGTH = 500;
+  // Change this whenever the way the derived fields are computed changes.
+  private static final int DERIVED_FIELDS_VERSION = 1;
 
   @PrimaryKey
   @Persistent(valueStrategy = IdGeneratorStrategy.IDENTITY)
@@ -91,7 +98,8 @@ public class BaseContentEntity
   // This is the HTML content.
   @Persistent
   @Embedded(members={
-      @Persistent(name="value", columns=@Column(name="content"))
+      @Persistent(name="value", columns=@Column(name="content")),
+      @Persistent(name="compressedValue", columns=@Column(name="contentCompressed"))
   })
   private LongStringHolder content;
   
@@ -131,7 +139,8 @@ public class BaseContentEntity
     
     @Persistent
     @Embedded(members={
-        @Persistent(name="value", columns=@Column(name="description"))
+        @Persistent(name="value", columns=@Column(name="description")),
+        @Persistent(name="compressedValue", columns=@Column(name="descriptionCompressed"))
     })
     private LongStringHolder description;
 
@@ -165,6 +174,14 @@ public class BaseContentEntity
       this.description = new LongStringHolder(description);
     }
 
+    boolean reencodeDescription() {
+      if (needsReencoding(description)) {
+        description = new LongStringHolder(description.getValue());
+        return true;
+      }
+      return false;
+    }
+
     public Location toClientObject() {
       return new Location(latitude, longitude, description.getValue());
     }
@@ -197,7 +214,8 @@ public class BaseContentEntity
   /*** Fields related to the source ***/
   @Persistent
   @Embedded(members={
-      @Persistent(name="value", columns=@Column(name="sourceDescription"))
+      @Persistent(name="value", columns=@Column(name="sourceDescription")),
+      @Persistent(name="compressedValue", columns=@Column(name="sourceDescriptionCompressed"))
   })
   private LongStringHolder sourceDescription;
   
@@ -214,13 +232,15 @@ public class BaseContentEntity
   
   @Persistent
   @Embedded(members={
-      @Persistent(name="value", columns=@Column(name="eventUpdate"))
+      @Persistent(name="value", columns=@Column(name="eventUpdate")),
+      @Persistent(name="compressedValue", columns=@Column(name="eventUpdateCompressed"))
   })
   private LongStringHolder eventUpdate;
   
   @Persistent
   @Embedded(members={
-      @Persistent(name="value", columns=@Column(name="eventSummary"))
+      @Persistent(name="value", columns=@Column(name="eventSummary")),
+      @Persistent(name="compressedValue", columns=@Column(name="eventSummaryCompressed"))
   })
   private LongStringHolder eventSummary;
 
@@ -273,10 +293,43 @@ public class BaseContentEntity
   
   @Persistent
   @Embedded(members={
-      @Persistent(name="value", columns=@Column(name="narrativeSummary"))
+      @Persistent(name="value", columns=@Column(name="narrativeSummary")),
+      @Persistent(name="compressedValue", columns=@Column(name="narrativeSummaryCompressed"))
   })
   private LongStringHolder narrativeSummary;
 
+  // When the entity was last written to the datastore. Unlike timestamp, this isn't shown to
+  // anyone; it's what incremental exports go by. Entities that haven't been written since the
+  // field was added don't have it.
+  @Persistent
+  private Date lastModifiedTime;
+
+  // Versions of the content for showing outside of the living story pages, in emails and feeds.
+  // These are derived from the fields above when the entity is stored, so that they don't need
+  // to be worked out every time they're shown. derivedFieldsVersion says how they were derived;
+  // entities that were last stored with an older version, or before the fields were added,
+  // derive them when they're read instead.
+  @Persistent
+  @Embedded(members={
+      @Persistent(name="value", columns=@Column(name="externalSummary")),
+      @Persistent(name="compressedValue", columns=@Column(name="externalSummaryCompressed"))
+  })
+  private LongStringHolder externalSummary;
+
+  @Persistent
+  @Embedded(members={
+      @Persistent(name="value", columns=@Column(name="externalSnippet")),
+      @Persistent(name="compressedValue", columns=@Column(name="externalSnippetCompressed"))
+  })
+  private LongStringHolder externalSnippet;
+
+  @Persistent
+  private Integer derivedFieldsVersion;
+
+  // Whether any of the fields the derived fields depend on have been set since the entity was
+  // loaded.
+  private transient boolean derivedFieldsStale = false;
+
   private BaseContentEntity() {}
   
   public BaseContentEntity(Date timestamp, ContentItemType contentItemType,
@@ -293,10 +346,28 @@ public class BaseContentEntity
     return id;
   }
 
+  // The datastore assigns ids itself; this is only for the data import, which allocates the ids
+  // of the entities it creates up front.
+  public void setId(Long id) {
+    this.id = id;
+  }
+
   public Date getTimestamp() {
     return timestamp;
   }
 
+  public Date getLastModifiedTime() {
+    return lastModifiedTime;
+  }
+
+  @Override
+  public void jdoPreStore() {
+    lastModifiedTime = new Date();
+    if (derivedFieldsStale || !hasCurrentDerivedFields()) {
+      updateDerivedFields();
+    }
+  }
+
   public void setTimestamp(Date timestamp) {
     this.timestamp = timestamp;
   }
@@ -315,6 +386,7 @@ public class BaseContentEntity
 
   public void setContent(String content) {
     this.content = new LongStringHolder(content);
+    derivedFieldsStale = true;
   }
 
   public Importance getImportance() {
@@ -465,6 +537,7 @@ public class BaseContentEntity
   
   public void setEventSummary(String eventSummary) {
     this.eventSummary = new LongStringHolder(eventSummary);
+    derivedFieldsStale = true;
   }
   
   public String getName() {
@@ -570,8 +643,108 @@ public class BaseContentEntity
 
   public void setNarrativeSummary(String narrativeSummary) {
     this.narrativeSummary = new LongStringHolder(narrativeSummary);
+    derivedFieldsStale = true;
   }
     
+  /**
+   * Rewrites the long string fields that aren't stored the way they would be if they were set
+   * now, e.g. because they were stored before compression was turned on.
+   * @return whether any of the fields changed, and the entity needs to be saved
+   */
+  public boolean reencodeLongStrings() {
+    boolean changed = false;
+    if (needsReencoding(content)) {
+      content = new LongStringHolder(content.getValue());
+      changed = true;
+    }
+    if (needsReencoding(sourceDescription)) {
+      sourceDescription = new LongStringHolder(sourceDescription.getValue());
+      changed = true;
+    }
+    if (needsReencoding(eventUpdate)) {
+      eventUpdate = new LongStringHolder(eventUpdate.getValue());
+      changed = true;
+    }
+    if (needsReencoding(eventSummary)) {
+      eventSummary = new LongStringHolder(eventSummary.getValue());
+      changed = true;
+    }
+    if (needsReencoding(narrativeSummary)) {
+      narrativeSummary = new LongStringHolder(narrativeSummary.getValue());
+      changed = true;
+    }
+    if (location != null && location.reencodeDescription()) {
+      changed = true;
+    }
+    return changed;
+  }
+
+  private static boolean needsReencoding(LongStringHolder holder) {
+    return holder != null && !holder.isEncodedAsCurrent();
+  }
+
+  /**
+   * Returns the event or narrative summary, with the markup that only works on the living story
+   * pages stripped out, or null for other types of content.
+   */
+  public String getExternalSummary() {
+    return hasCurrentDerivedFields()
+        ? getValue(externalSummary) : StringUtil.stripForExternalSites(getSummary());
+  }
+
+  /**
+   * Returns a snippet of the content, EXTERNAL_SNIPPET_LENGTH characters long, with the markup
+   * that only works on the living story pages stripped out.
+   */
+  public String getExternalSnippet() {
+    return hasCurrentDerivedFields() ? getValue(externalSnippet) : createExternalSnippet();
+  }
+
+  /**
+   * Returns whether the derived fields were last computed the way they are now.
+   */
+  public boolean hasCurrentDerivedFields() {
+    return derivedFieldsVersion != null && derivedFieldsVersion == DERIVED_FIELDS_VERSION;
+  }
+
+  /**
+   * Recomputes the fields that are derived from the content and summary. This happens
+   * automatically when the entity is stored after any of those have changed.
+   */
+  public void updateDerivedFields() {
+    String summary = StringUtil.stripForExternalSites(getSummary());
+    String snippet = createExternalSnippet();
+    // Not every holder implementation accepts a null value, so an absent value is a null holder.
+    externalSummary = summary == null ? null : new LongStringHolder(summary);
+    externalSnippet = snippet == null ? null : new LongStringHolder(snippet);
+    derivedFieldsVersion = DERIVED_FIELDS_VERSION;
+    derivedFieldsStale = false;
+  }
+
+  private String getSummary() {
+    switch (getContentItemType()) {
+      case EVENT:
+        return getEventSummary();
+      case NARRATIVE:
+        return getNarrativeSummary();
+      default:
+        return null;
+    }
+  }
+
+  private String createExternalSnippet() {
+    String content = getContent();
+    if (GlobalUtil.isContentEmpty(content)) {
+      return content;
+    }
+    return StringUtil.stripForExternalSites(
+        SnippetUtil.createSnippet(JavaNodeAdapter.fromHtml(content), EXTERNAL_SNIPPET_LENGTH));
+  }
+
+  private static String getValue(LongStringHolder holder) {
+    return holder == null ? null : holder.getValue();
+  }
+
   public void copyFields(BaseContentItem clientContentItem) {
     setTimestamp(clientContentItem.getTimestamp());
     setContentItemType(clientContentItem.getContentItemType());
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.entities;
+
+import com.google.appengine.api.datastore.Text;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Date;
+import java.util.Map;
+
+import javax.jdo.annotations.IdGeneratorStrategy;
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * An email alert about a newly published event, waiting to be sent to the subscribers of its
+ * story. It holds the values that go into the email template, which are worked out when the
+ * event is published, since some of them depend on the request that published it.
+ * The recipients are split up into {@link EmailBatchEntity}s when the alert is processed.
+ */
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class EmailAlertEntity {
+  @PrimaryKey
+  @Persistent(valueStrategy = IdGeneratorStrategy.IDENTITY)
+  private Long id;
+
+  @Persistent
+  private Long livingStoryId;
+
+  @Persistent
+  private Long contentItemId;
+
+  @Persistent
+  private String fromAddress;
+
+  @Persistent
+  private String storyTitle;
+
+  @Persistent
+  private String updateTitle;
+
+  @Persistent
+  private String publisherName;
+
+  @Persistent
+  private Text snippet;
+
+  @Persistent
+  private String linkUrl;
+
+  @Persistent
+  private String loginUrl;
+
+  @Persistent
+  private Date createdTime;
+
+  // Whether the batches for this alert have been created and queued.
+  @Persistent
+  private boolean batchesQueued;
+
+  public EmailAlertEntity(Long livingStoryId, Long contentItemId, String fromAddress,
+      Map<String, String> placeholderMap) {
+    this.livingStoryId = livingStoryId;
+    this.contentItemId = contentItemId;
+    this.fromAddress = fromAddress;
+    this.storyTitle = placeholderMap.get("storyTitle");
+    this.updateTitle = placeholderMap.get("updateTitle");
+    this.publisherName = placeholderMap.get("publisherName");
+    String snippet = placeholderMap.get("snippet");
+    this.snippet = snippet == null ? null : new Text(snippet);
+    this.linkUrl = placeholderMap.get("linkUrl");
+    this.loginUrl = placeholderMap.get("loginUrl");
+    this.createdTime = new Date();
+    this.batchesQueued = false;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public Long getLivingStoryId() {
+    return livingStoryId;
+  }
+
+  public Long getContentItemId() {
+    return contentItemId;
+  }
+
+  public String getFromAddress() {
+    return fromAddress;
+  }
+
+  /**
+   * Returns the values for the placeholders in the email template, by name.
+   */
+  public Map<String, String> getPlaceholderMap() {
+    // ImmutableMap doesn't allow null values.
+    return new ImmutableMap.Builder<String, String>()
+        .put("storyTitle", nullToEmpty(storyTitle))
+        .put("updateTitle", nullToEmpty(updateTitle))
+        .put("publisherName", nullToEmpty(publisherName))
+        .put("snippet", snippet == null ? "" : snippet.getValue())
+        .put("linkUrl", nullToEmpty(linkUrl))
+        .put("loginUrl", nullToEmpty(loginUrl))
+        .build();
+  }
+
+  public Date getCreatedTime() {
+    return createdTime;
+  }
+
+  public boolean isBatchesQueued() {
+    return batchesQueued;
+  }
+
+  public void setBatchesQueued(boolean batchesQueued) {
+    this.batchesQueued = batchesQueued;
+  }
+
+  private static String nullToEmpty(String value) {
+    return value == null ? "" : value;
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.entities;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * A group of subscribers with the same locale who get an {@link EmailAlertEntity} in a single
+ * message, along with how the delivery went.
+ *
+ * The key is made up of the alert id, the locale and the position of the batch among the
+ * alert's batches for that locale, so that if creating the batches fails part way through,
+ * the next attempt can tell which ones already exist.
+ */
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class EmailBatchEntity {
+  public enum State {
+    PENDING, SENT, FAILED;
+  }
+
+  // Datastore strings can't be longer than this.
+  private static final int MAX_ERROR_LENGTH = 500;
+
+  @PrimaryKey
+  @Persistent
+  private Key key;
+
+  @Persistent
+  private Long alertId;
+
+  @Persistent
+  private String locale;
+
+  @Persistent
+  private List<String> recipients;
+
+  @Persistent
+  private State state;
+
+  @Persistent
+  private Integer attempts;
+
+  @Persistent
+  private String lastError;
+
+  @Persistent
+  private Date sentTime;
+
+  public EmailBatchEntity(Long alertId, String locale, int index, List<String> recipients) {
+    this.key = createKey(createName(alertId, locale, index));
+    this.alertId = alertId;
+    this.locale = locale;
+    this.recipients = new ArrayList<String>(recipients);
+    this.state = State.PENDING;
+    this.attempts = 0;
+  }
+
+  /**
+   * Returns a name for the batch that can also be used as a task name.
+   */
+  public static String createName(Long alertId, String locale, int index) {
+    return "alert-" + alertId + "-" + locale.replaceAll("[^a-zA-Z0-9_]", "_") + "-" + index;
+  }
+
+  public static Key createKey(String name) {
+    return KeyFactory.createKey(EmailBatchEntity.class.getSimpleName(), name);
+  }
+
+  public String getName() {
+    return key.getName();
+  }
+
+  public Long getAlertId() {
+    return alertId;
+  }
+
+  public String getLocale() {
+    return locale == null ? "" : locale;
+  }
+
+  public List<String> getRecipients() {
+    return recipients == null ? new ArrayList<String>() : recipients;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public int getAttempts() {
+    return attempts == null ? 0 : attempts;
+  }
+
+  public String getLastError() {
+    return lastError;
+  }
+
+  public Date getSentTime() {
+    return sentTime;
+  }
+
+  /**
+   * Records an attempt to send this batch. error is null if the attempt succeeded.
+   */
+  public void recordAttempt(String error, boolean permanent) {
+    attempts = getAttempts() + 1;
+    if (error == null) {
+      state = State.SENT;
+      sentTime = new Date();
+      lastError = null;
+    } else {
+      state = permanent ? State.FAILED : State.PENDING;
+      lastError = error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.entities;
+
+import com.google.appengine.api.datastore.Text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.annotations.IdGeneratorStrategy;
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * A piece of a data import that's waiting to be processed: the JSON for a batch of entities of
+ * one kind, as it appeared in the uploaded file. Storing the upload in pieces lets the import
+ * work through it a batch at a time, over as many requests as it takes, and keeps track of how
+ * far it got.
+ */
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class ImportChunkEntity {
+  /**
+   * How far along the import the entities in a chunk are.
+   */
+  public enum State {
+    // The entities only exist as JSON.
+    STAGED,
+    // The entities have been saved, but may still refer to each other by their exported ids.
+    CREATED,
+    // The entities refer to each other by their new ids.
+    MAPPED;
+  }
+
+  @PrimaryKey
+  @Persistent(valueStrategy = IdGeneratorStrategy.IDENTITY)
+  private Long id;
+
+  @Persistent
+  private Long importId;
+
+  @Persistent
+  private String entityKind;
+
+  @Persistent
+  private Text json;
+
+  @Persistent
+  private State state;
+
+  // The ids of the entities created from this chunk, in the same order as in the JSON. They're
+  // allocated before the entities are saved, so that saving them again overwrites them.
+  @Persistent
+  private List<Long> createdIds;
+
+  public ImportChunkEntity(Long importId, String entityKind, String json) {
+    this.importId = importId;
+    this.entityKind = entityKind;
+    this.json = new Text(json);
+    this.state = State.STAGED;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public Long getImportId() {
+    return importId;
+  }
+
+  /**
+   * Returns the simple class name of the entities in this chunk.
+   */
+  public String getEntityKind() {
+    return entityKind;
+  }
+
+  public String getJson() {
+    return json.getValue();
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public void setState(State state) {
+    this.state = state;
+  }
+
+  public List<Long> getCreatedIds() {
+    return createdIds == null ? new ArrayList<Long>() : createdIds;
+  }
+
+  public void setCreatedIds(List<Long> createdIds) {
+    this.createdIds = new ArrayList<Long>(createdIds);
+  }
+}
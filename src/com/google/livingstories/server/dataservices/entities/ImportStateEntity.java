@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.entities;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Progress of the current data import. There's at most one of these, so that an import can be
+ * picked up where it left off by whichever instance gets the next request.
+ */
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class ImportStateEntity {
+  /**
+   * The steps of an import, in the order in which they happen.
+   */
+  public enum Phase {
+    DELETING, CREATING, MAPPING, CLEANING_UP, FINISHED;
+
+    public Phase next() {
+      return values()[Math.min(ordinal() + 1, values().length - 1)];
+    }
+  }
+
+  public static final Key KEY =
+      KeyFactory.createKey(ImportStateEntity.class.getSimpleName(), "current");
+
+  @PrimaryKey
+  @Persistent
+  private Key key;
+
+  // Tells the chunks and id mappings of this import apart from those of abandoned ones.
+  @Persistent
+  private Long importId;
+
+  @Persistent
+  private Phase phase;
+
+  public ImportStateEntity(Long importId) {
+    this.key = KEY;
+    this.importId = importId;
+    this.phase = Phase.DELETING;
+  }
+
+  public Long getImportId() {
+    return importId;
+  }
+
+  public Phase getPhase() {
+    return phase;
+  }
+
+  public void setPhase(Phase phase) {
+    this.phase = phase;
+  }
+}
@@ -75,7 +75,8 @@ public class LivingStoryEntity
 
     @Persistent
     @Embedded(members={
-      @Persistent(name="value", columns=@Column(name="content"))
+      @Persistent(name="value", columns=@Column(name="content")),
+      @Persistent(name="compressedValue", columns=@Column(name="contentCompressed"))
     })
     private LongStringHolder content;
     
@@ -94,6 +95,14 @@ public class LivingStoryEntity
     public void setContent(String content) {
       this.content = new LongStringHolder(content);
     }
+
+    boolean reencodeContent() {
+      if (content != null && !content.isEncodedAsCurrent()) {
+        content = new LongStringHolder(content.getValue());
+        return true;
+      }
+      return false;
+    }
     
     private Date getTimestamp() {
       return timestamp;
@@ -142,6 +151,10 @@ public class LivingStoryEntity
     return id;
   }
   
+  public void setId(Long id) {
+    this.id = id;
+  }
+  
   public Long getLivingStoryId() {
     return getId();
   }
@@ -210,6 +223,19 @@ public class LivingStoryEntity
     this.summaryRevisions = Lists.newArrayList(summaryRevisions);
   }
   
+  /**
+   * Rewrites the summary revisions that aren't stored the way they would be if they were added
+   * now, e.g. because they were stored before compression was turned on.
+   * @return whether any revision changed, and the entity needs to be saved
+   */
+  public boolean reencodeLongStrings() {
+    boolean changed = false;
+    for (Summary revision : summaryRevisions) {
+      changed |= revision.reencodeContent();
+    }
+    return changed;
+  }
+  
   public LivingStory toClientObject(boolean latestRevisionsOnly) {
     List<LivingStory.Summary> clientRevisions = new ArrayList<LivingStory.Summary>();
     // If latestRevisionsOnly is true, only return an object with the last 5 summary revisions.
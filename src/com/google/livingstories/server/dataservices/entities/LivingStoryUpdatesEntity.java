@@ -0,0 +1,90 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.entities;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * The latest updates of a living story, as shown on the start page: the ids of its most recent
+ * published events and standalone narratives, newest first, and the time of the latest one.
+ * This duplicates what can be queried from the content entities, so that the start page can
+ * get the updates for all stories at once instead of querying for each story. It is rewritten
+ * whenever an event or narrative of the story is saved or deleted.
+ */
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class LivingStoryUpdatesEntity implements Serializable {
+
+  // The key is derived from the living story id, so that there's exactly one of these per story.
+  @PrimaryKey
+  @Persistent
+  private Key key;
+
+  @Persistent
+  private Long livingStoryId;
+
+  @Persistent
+  private List<Long> latestUpdateIds;
+
+  @Persistent
+  private Date lastUpdateTime;
+
+  public LivingStoryUpdatesEntity(Long livingStoryId, List<Long> latestUpdateIds,
+      Date lastUpdateTime) {
+    this.key = createKey(livingStoryId);
+    this.livingStoryId = livingStoryId;
+    this.latestUpdateIds = new ArrayList<Long>(latestUpdateIds);
+    this.lastUpdateTime = lastUpdateTime;
+  }
+
+  public static Key createKey(Long livingStoryId) {
+    return KeyFactory.createKey(LivingStoryUpdatesEntity.class.getSimpleName(), livingStoryId);
+  }
+
+  public Long getLivingStoryId() {
+    return livingStoryId;
+  }
+
+  public List<Long> getLatestUpdateIds() {
+    return latestUpdateIds == null ? new ArrayList<Long>() : latestUpdateIds;
+  }
+
+  public void setLatestUpdateIds(List<Long> latestUpdateIds) {
+    this.latestUpdateIds = new ArrayList<Long>(latestUpdateIds);
+  }
+
+  /**
+   * Returns the timestamp of the latest update, or null if the story has no updates.
+   */
+  public Date getLastUpdateTime() {
+    return lastUpdateTime;
+  }
+
+  public void setLastUpdateTime(Date lastUpdateTime) {
+    this.lastUpdateTime = lastUpdateTime;
+  }
+}
@@ -16,7 +16,12 @@
 
 package com.google.livingstories.server.dataservices.entities;
 
+import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Text;
+import com.google.livingstories.server.util.CompressionUtil;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.jdo.annotations.EmbeddedOnly;
 import javax.jdo.annotations.PersistenceCapable;
@@ -30,15 +35,44 @@ import javax.jdo.annotations.Persistent;
 @PersistenceCapable
 @EmbeddedOnly
 public class LongStringHolder implements LongStringHolderInterface {
+  private static final Logger logger =
+      Logger.getLogger(LongStringHolder.class.getCanonicalName());
+
+  // Only one of these is set. Long strings are stored compressed, with a header that
+  // CompressionUtil uses to pick the encoding; short ones, and everything stored before
+  // compression was added, are in value.
   @Persistent
   Text value;
+
+  @Persistent
+  Blob compressedValue;
   
   public LongStringHolder(String value) {
-    this.value = new Text(value);
+    byte[] compressed = CompressionUtil.compressString(value);
+    if (compressed == null) {
+      this.value = new Text(value);
+    } else {
+      this.compressedValue = new Blob(compressed);
+    }
   }
   
   @Override
   public String getValue() {
+    if (compressedValue != null) {
+      try {
+        return CompressionUtil.decompressString(compressedValue.getBytes());
+      } catch (IllegalArgumentException e) {
+        logger.log(Level.SEVERE, "Could not decompress a long string", e);
+      }
+    }
     return value == null ? null : value.getValue();
   }
+
+  /**
+   * Returns whether the string is stored in the encoding that a new holder would use for it.
+   */
+  public boolean isEncodedAsCurrent() {
+    byte[] compressed = CompressionUtil.compressString(getValue());
+    return compressed == null ? compressedValue == null : compressedValue != null;
+  }
 }
@@ -16,9 +16,12 @@
 
 package com.google.livingstories.server.dataservices.entities;
 
+import java.io.Serializable;
+
 /**
- * Any assignable superclass of LongStringHolder should implement this interface 
+ * Any assignable superclass of LongStringHolder should implement this interface. Holders are
+ * serializable so that the entities that contain them are.
  */
-public interface LongStringHolderInterface {
+public interface LongStringHolderInterface extends Serializable {
   public String getValue();
 }
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.entities;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * The words of one content item, as the content search index uses them: each word, with the
+ * positions at which it occurs in the item's text. Storing these means that the search index of
+ * a story can be put together again, e.g. on a new instance, without having to take the text of
+ * every content item apart again.
+ *
+ * The fingerprint identifies the text that the postings were computed from, so that a document
+ * that's out of date with its content item can be recognized and recomputed.
+ */
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class SearchDocumentEntity {
+
+  // The key is derived from the content item id, so that there's exactly one of these per item.
+  @PrimaryKey
+  @Persistent
+  private Key key;
+
+  @Persistent
+  private Long contentItemId;
+
+  @Persistent
+  private Long livingStoryId;
+
+  @Persistent
+  private String fingerprint;
+
+  // The encoded postings; see ContentSearchIndex.
+  @Persistent
+  private Blob postings;
+
+  public SearchDocumentEntity(Long contentItemId, Long livingStoryId, String fingerprint,
+      byte[] postings) {
+    this.key = createKey(contentItemId);
+    this.contentItemId = contentItemId;
+    this.livingStoryId = livingStoryId;
+    this.fingerprint = fingerprint;
+    this.postings = new Blob(postings);
+  }
+
+  public static Key createKey(Long contentItemId) {
+    return KeyFactory.createKey(SearchDocumentEntity.class.getSimpleName(), contentItemId);
+  }
+
+  public Long getContentItemId() {
+    return contentItemId;
+  }
+
+  public Long getLivingStoryId() {
+    return livingStoryId;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public byte[] getPostings() {
+    return postings.getBytes();
+  }
+}
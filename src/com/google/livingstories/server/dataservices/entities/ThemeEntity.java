@@ -63,6 +63,10 @@ public class ThemeEntity implements Serializable, JSONSerializable, HasSerializa
     return id;
   }
   
+  public void setId(Long id) {
+    this.id = id;
+  }
+  
   public void setName(String name) {
     this.name = name;
   }
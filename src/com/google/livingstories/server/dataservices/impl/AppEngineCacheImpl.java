@@ -16,14 +16,22 @@
 
 package com.google.livingstories.server.dataservices.impl;
 
+import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.InvalidValueException;
+import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 import com.google.appengine.api.memcache.stdimpl.GCacheException;
 import com.google.appengine.api.memcache.stdimpl.GCacheFactory;
+import com.google.livingstories.server.dataservices.CacheStats;
 import com.google.livingstories.server.dataservices.ServerCache;
+import com.google.livingstories.server.util.CompressionUtil;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.cache.Cache;
 import javax.cache.CacheException;
@@ -31,17 +39,35 @@ import javax.cache.CacheFactory;
 import javax.cache.CacheManager;
 
 /**
- * A server cache implementation backed by app engine's memcache.
+ * A server cache implementation backed by app engine's memcache. Memcache errors are not
+ * passed on to callers, since the cache is only an optimization, but they are logged and
+ * counted per key family.
+ *
+ * Large values, such as the lists of a story's content items, are stored compressed, which
+ * keeps them well under memcache's 1 MB limit on value size. Callers only ever see the
+ * uncompressed values.
  */
 public class AppEngineCacheImpl implements ServerCache {
+  private static final Logger logger =
+      Logger.getLogger(AppEngineCacheImpl.class.getCanonicalName());
+
   private Cache memcache;
+  // Counters and conditional puts aren't exposed through the javax.cache interface, so those go
+  // through the low-level API, which shares the same underlying memcache.
+  private MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+  private final CacheStats stats;
+
+  public AppEngineCacheImpl(int expirationSeconds) {
+    this(expirationSeconds, new CacheStats());
+  }
 
   /**
    * Configures a cache instance with an expiration of expirationSeconds.
-   * If expirationSeconds is 0, the cache will not expire.
+   * If expirationSeconds is 0, the cache will not expire. Failures are recorded in stats.
    */
   @SuppressWarnings("unchecked")
-  public AppEngineCacheImpl(int expirationSeconds) {
+  public AppEngineCacheImpl(int expirationSeconds, CacheStats stats) {
+    this.stats = stats;
     Map properties = new HashMap();
     if (expirationSeconds > 0) {
       properties.put(GCacheFactory.EXPIRATION_DELTA, expirationSeconds);
@@ -59,30 +85,78 @@ public class AppEngineCacheImpl implements ServerCache {
   @SuppressWarnings("unchecked")
   public <T> T get(String key) {
     try {
-      return (T) memcache.get(key);
+      return (T) CompressionUtil.decompressValue(memcache.get(key));
+    } catch (IllegalArgumentException ex) {
+      // Most likely written by a version that compressed differently; treat it as a miss.
+      recordGetFailure(key, ex);
+      return null;
     } catch (InvalidValueException ex) {
+      recordGetFailure(key, ex);
       return null;
     } catch (MemcacheServiceException ex) {
+      recordGetFailure(key, ex);
       return null;
     }
   }
 
-  @SuppressWarnings("unchecked")
   public <T> void put(String key, T value) {
+    putCompressed(key, CompressionUtil.compressValue(value));
+  }
+
+  public <T> void put(String key, T value, byte[] serializedValue) {
+    putCompressed(key, CompressionUtil.compressValue(value, serializedValue));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void putCompressed(String key, Object value) {
     try {
       memcache.put(key, value);
     } catch (MemcacheServiceException ex) {
+      recordPutFailure(key, ex);
       remove(key);
-    } catch (GCacheException e) {
+    } catch (GCacheException ex) {
+      recordPutFailure(key, ex);
       remove(key);
     }
   }
   
+  public <T> boolean putIfAbsent(String key, T value, int expirationSeconds) {
+    try {
+      return memcacheService.put(key, value, Expiration.byDeltaSeconds(expirationSeconds),
+          SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    } catch (MemcacheServiceException ex) {
+      recordPutFailure(key, ex);
+      // Without memcache there's no way to coordinate; let the caller go ahead.
+      return true;
+    }
+  }
+
   public void remove(String key) {
     memcache.remove(key);
   }
 
+  public long increment(String key, long delta, long initialValue) {
+    try {
+      Long value = memcacheService.increment(key, delta, initialValue);
+      return value == null ? initialValue + delta : value;
+    } catch (MemcacheServiceException ex) {
+      recordPutFailure(key, ex);
+      return initialValue + delta;
+    }
+  }
+
   public void clear() {
     memcache.clear();
   }
+
+  private void recordGetFailure(String key, Exception ex) {
+    stats.forKey(key).recordGetFailure();
+    logger.log(Level.WARNING, "Could not read " + key + " from memcache", ex);
+  }
+
+  // Values over memcache's size limit are the usual reason for a failed put.
+  private void recordPutFailure(String key, Exception ex) {
+    stats.forKey(key).recordPutFailure();
+    logger.log(Level.WARNING, "Could not write " + key + " to memcache", ex);
+  }
 }
@@ -18,6 +18,7 @@ package com.google.livingstories.server.dataservices.impl;
 
 import com.google.common.base.Function;
 import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemSummary;
 import com.google.livingstories.client.ContentItemType;
 import com.google.livingstories.client.Importance;
 import com.google.livingstories.client.PublishState;
@@ -41,7 +42,7 @@ import javax.jdo.Transaction;
 public class ContentDataServiceImpl implements ContentDataService {
 
   @Override
-  public synchronized BaseContentItem save(BaseContentItem baseContent) {
+  public BaseContentItem save(BaseContentItem baseContent) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Transaction tx = null;
     BaseContentEntity contentEntity;
@@ -67,7 +68,7 @@ public class ContentDataServiceImpl implements ContentDataService {
   }
 
   @Override
-  public synchronized void delete(final Long id) {
+  public void delete(final Long id) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
 
     try {
@@ -121,7 +122,7 @@ public class ContentDataServiceImpl implements ContentDataService {
   }
 
   @Override
-  public synchronized void deleteContentForLivingStory(Long livingStoryId) {
+  public void deleteContentForLivingStory(Long livingStoryId) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(BaseContentEntity.class);
     query.setFilter("livingStoryId == livingStoryIdParam");
@@ -138,7 +139,7 @@ public class ContentDataServiceImpl implements ContentDataService {
   }
   
   @Override
-  public synchronized void removeTheme(Long themeId) {
+  public void removeTheme(Long themeId) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(BaseContentEntity.class);
     // Checks to see if the collection has themeIdParam in themeIds somewhere, not
@@ -162,7 +163,7 @@ public class ContentDataServiceImpl implements ContentDataService {
   
 
   @Override
-  public synchronized BaseContentItem retrieveById(Long id, boolean populateLinkedEntities) {
+  public BaseContentItem retrieveById(Long id, boolean populateLinkedEntities) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     
     try {
@@ -179,7 +180,7 @@ public class ContentDataServiceImpl implements ContentDataService {
   }
 
   @Override
-  public synchronized List<BaseContentItem> retrieveByIds(Collection<Long> ids) {
+  public List<BaseContentItem> retrieveByIds(Collection<Long> ids) {
     if (ids.isEmpty()) {
       return new ArrayList<BaseContentItem>();
     }
@@ -204,7 +205,7 @@ public class ContentDataServiceImpl implements ContentDataService {
   }
 
   @Override
-  public synchronized List<BaseContentItem> retrieveByLivingStory(Long livingStoryId, 
+  public List<BaseContentItem> retrieveByLivingStory(Long livingStoryId, 
       PublishState publishState) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(BaseContentEntity.class);
@@ -216,7 +217,32 @@ public class ContentDataServiceImpl implements ContentDataService {
   }
 
   @Override
-  public synchronized List<BaseContentItem> retrieveEntitiesContributedBy(Long contributorId) {
+  public List<ContentItemSummary> retrieveSummariesByLivingStory(Long livingStoryId,
+      PublishState publishState, int start, int count) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(BaseContentEntity.class);
+    query.setFilter("livingStoryId == livingStoryIdParam"
+        + (publishState == null ? "" : " && publishState == '" + publishState.name() + "'"));
+    query.setOrdering("timestamp desc");
+    query.declareParameters("java.lang.Long livingStoryIdParam");
+    query.setRange(start, start + count);
+    try {
+      List<ContentItemSummary> summaries = new ArrayList<ContentItemSummary>();
+      @SuppressWarnings("unchecked")
+      List<BaseContentEntity> contentEntities =
+          (List<BaseContentEntity>) query.execute(livingStoryId);
+      for (BaseContentEntity contentEntity : contentEntities) {
+        summaries.add(new ContentItemSummary(contentEntity.toClientObject()));
+      }
+      return summaries;
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+
+  @Override
+  public List<BaseContentItem> retrieveEntitiesContributedBy(Long contributorId) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(BaseContentEntity.class);
     query.setFilter("contributorIds == entityIdParam"
@@ -227,7 +253,7 @@ public class ContentDataServiceImpl implements ContentDataService {
   }
 
   @Override
-  public synchronized List<BaseContentItem> retrieveEntitiesThatLinkTo(Long entityId) {
+  public List<BaseContentItem> retrieveEntitiesThatLinkTo(Long entityId) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(BaseContentEntity.class);
     query.setFilter("linkedContentEntityIds == entityIdParam"
@@ -254,7 +280,7 @@ public class ContentDataServiceImpl implements ContentDataService {
   }
 
   @Override
-  public synchronized List<BaseContentItem> search(Long livingStoryId,
+  public List<BaseContentItem> search(Long livingStoryId,
       ContentItemType contentItemType, Date afterDate, Date beforeDate, Importance importance,
       PublishState publishState) {
     StringBuilder queryFilters = new StringBuilder("livingStoryId == " + livingStoryId);
@@ -298,7 +324,7 @@ public class ContentDataServiceImpl implements ContentDataService {
   }
   
   @Override
-  public synchronized Integer getNumberOfEntitiesUpdatedSinceTime(Long livingStoryId, 
+  public Integer getNumberOfEntitiesUpdatedSinceTime(Long livingStoryId, 
       ContentItemType entityType, Date afterDate) throws IllegalArgumentException {
     if (livingStoryId == null || entityType == null || afterDate == null) {
       throw new IllegalArgumentException("Arguments cannot be null.");
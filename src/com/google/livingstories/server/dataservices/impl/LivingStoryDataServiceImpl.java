@@ -36,7 +36,7 @@ import javax.jdo.Transaction;
 public class LivingStoryDataServiceImpl implements LivingStoryDataService {
   
   @Override
-  public synchronized LivingStory save(Long id, String urlName, String title, 
+  public LivingStory save(Long id, String urlName, String title, 
       PublishState publishState, String summary) throws IllegalArgumentException {
     
     // If a new story is being created, first make sure another story with the same URL doesn't
@@ -80,7 +80,7 @@ public class LivingStoryDataServiceImpl implements LivingStoryDataService {
   }
 
   @Override
-  public synchronized void delete(Long id) {
+  public void delete(Long id) {
     // Delete any user data associated with this living story first
     DataImplFactory.getUserDataService().deleteVisitTimesForStory(id);
     // Then delete all the Content entities that are part of this living story
@@ -100,7 +100,7 @@ public class LivingStoryDataServiceImpl implements LivingStoryDataService {
   }
   
   @Override
-  public synchronized LivingStory retrieveById(Long id, boolean latestRevisionsOnly) {
+  public LivingStory retrieveById(Long id, boolean latestRevisionsOnly) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     try {
       return pm.getObjectById(LivingStoryEntity.class, id).toClientObject(latestRevisionsOnly);
@@ -112,7 +112,7 @@ public class LivingStoryDataServiceImpl implements LivingStoryDataService {
   }
 
   @Override
-  public synchronized LivingStory retrieveByUrlName(String urlName, boolean latestRevisionsOnly) {
+  public LivingStory retrieveByUrlName(String urlName, boolean latestRevisionsOnly) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(LivingStoryEntity.class);
     query.setFilter("url == urlParam");
@@ -133,7 +133,7 @@ public class LivingStoryDataServiceImpl implements LivingStoryDataService {
   }
   
   @Override
-  public synchronized List<LivingStory> retrieveAll(PublishState publishState, 
+  public List<LivingStory> retrieveAll(PublishState publishState, 
       boolean latestRevisionsOnly) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(LivingStoryEntity.class);
@@ -37,9 +37,23 @@ public class StubCacheImpl implements ServerCache {
   public <T> void put(String key, T value) {
   }
 
+  @Override
+  public <T> void put(String key, T value, byte[] serializedValue) {
+  }
+
+  @Override
+  public <T> boolean putIfAbsent(String key, T value, int expirationSeconds) {
+    return true;
+  }
+
   @Override
   public void remove(String key) {
   }
+
+  @Override
+  public long increment(String key, long delta, long initialValue) {
+    return initialValue + delta;
+  }
   
   @Override
   public void clear() {
@@ -69,4 +69,8 @@ public class StubUserDataServiceImpl implements UserDataService {
   @Override
   public void updateVisitDataForStory(String userId, Long livingStoryId) {
   }
+
+  @Override
+  public void flushBufferedVisits() {
+  }
 }
@@ -35,7 +35,7 @@ import javax.jdo.Transaction;
 public class ThemeDataServiceImpl implements ThemeDataService {
 
   @Override
-  public synchronized Theme save(Theme theme) throws IllegalArgumentException {
+  public Theme save(Theme theme) throws IllegalArgumentException {
     Long id = theme.getId();
     Long livingStoryId = theme.getLivingStoryId();
     String name = theme.getName();
@@ -85,7 +85,7 @@ public class ThemeDataServiceImpl implements ThemeDataService {
   }
   
   @Override
-  public synchronized void delete(Long id) {
+  public void delete(Long id) {
     // First remove the theme from any content objects it may appear in
     DataImplFactory.getContentService().removeTheme(id);
     // Then delete the entity from the database
@@ -99,7 +99,7 @@ public class ThemeDataServiceImpl implements ThemeDataService {
   }
 
   @Override
-  public synchronized void deleteThemesForLivingStory(Long livingStoryId) {
+  public void deleteThemesForLivingStory(Long livingStoryId) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(ThemeEntity.class);
     query.setFilter("livingStoryId == livingStoryIdParam");
@@ -116,7 +116,7 @@ public class ThemeDataServiceImpl implements ThemeDataService {
   }
 
   @Override
-  public synchronized Theme retrieveById(Long id) {
+  public Theme retrieveById(Long id) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     try {
       return pm.getObjectById(ThemeEntity.class, id).toClientObject();
@@ -128,7 +128,7 @@ public class ThemeDataServiceImpl implements ThemeDataService {
   }
 
   @Override
-  public synchronized List<Theme> retrieveByLivingStory(Long livingStoryId) {
+  public List<Theme> retrieveByLivingStory(Long livingStoryId) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(ThemeEntity.class);
     query.setFilter("livingStoryId == livingStoryIdParam");
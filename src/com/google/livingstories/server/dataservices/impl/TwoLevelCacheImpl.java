@@ -0,0 +1,174 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.impl;
+
+import com.google.livingstories.server.dataservices.CacheStats;
+import com.google.livingstories.server.dataservices.ServerCache;
+import com.google.livingstories.server.util.LRUCache;
+import com.google.livingstories.server.util.SerializationUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A server cache that keeps recently used values in process memory, in front of another
+ * (typically memcache-backed) cache. Lookups that hit the local level avoid both the network
+ * round trip and the deserialization cost of the backing cache.
+ *
+ * The local level is bounded by the approximate serialized size of the values it holds.
+ * Values read from the backing cache are copied into the local level as they are read.
+ *
+ * Since every app instance has its own local level, a write or removal on one instance is not
+ * seen by the local level of the others. Each local entry therefore expires after a time to live
+ * that is chosen per key family, where the family is the part of the key before the first ':'.
+ * This bounds how stale another instance's view of a value can get.
+ *
+ * Hits at either level, misses, the sizes of stored values and local evictions are recorded
+ * per key family in a {@link CacheStats}.
+ *
+ * Values handed out by this cache are shared between callers, and must not be modified.
+ */
+public class TwoLevelCacheImpl implements ServerCache {
+  private final ServerCache backingCache;
+  private final long maxLocalBytes;
+  private final long defaultTtlMillis;
+  private final Map<String, Long> ttlMillisByFamily = new HashMap<String, Long>();
+  private final LRUCache<String, LocalEntry> localEntries;
+  private final CacheStats stats;
+
+  /**
+   * Creates a two-level cache.
+   * @param backingCache the shared cache that is consulted on a local miss
+   * @param maxLocalBytes upper bound on the estimated size of the values kept locally
+   * @param defaultTtlSeconds how long a value may be served locally, for key families that
+   *    don't have their own entry in ttlSecondsByFamily
+   * @param ttlSecondsByFamily local time to live, in seconds, for specific key families
+   * @param stats where to record cache activity
+   */
+  public TwoLevelCacheImpl(ServerCache backingCache, long maxLocalBytes, int defaultTtlSeconds,
+      Map<String, Integer> ttlSecondsByFamily, final CacheStats stats) {
+    this.backingCache = backingCache;
+    this.stats = stats;
+    this.maxLocalBytes = maxLocalBytes;
+    this.defaultTtlMillis = defaultTtlSeconds * 1000L;
+    for (Map.Entry<String, Integer> entry : ttlSecondsByFamily.entrySet()) {
+      this.ttlMillisByFamily.put(entry.getKey(), entry.getValue() * 1000L);
+    }
+    this.localEntries = new LRUCache<String, LocalEntry>(maxLocalBytes,
+        new LRUCache.Weigher<LocalEntry>() {
+          @Override
+          public int weigh(LocalEntry entry) {
+            return entry.size;
+          }
+        },
+        new LRUCache.EvictionListener<String>() {
+          @Override
+          public void onEviction(String key) {
+            stats.forKey(key).recordEviction();
+          }
+        });
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T get(String key) {
+    LocalEntry entry = localEntries.get(key);
+    if (entry != null) {
+      if (entry.expirationTime > System.currentTimeMillis()) {
+        stats.forKey(key).recordLocalHit();
+        return (T) entry.value;
+      }
+      localEntries.remove(key);
+    }
+
+    T value = backingCache.<T>get(key);
+    if (value == null) {
+      stats.forKey(key).recordMiss();
+    } else {
+      stats.forKey(key).recordRemoteHit();
+      putLocal(key, value, SerializationUtil.getSerializedSize(value));
+    }
+    return value;
+  }
+
+  @Override
+  public <T> void put(String key, T value) {
+    // The value is serialized once, both to weigh it and for the backing cache to compress.
+    put(key, value, SerializationUtil.serialize(value));
+  }
+
+  @Override
+  public <T> void put(String key, T value, byte[] serializedValue) {
+    long size = serializedValue == null ? -1 : serializedValue.length;
+    stats.forKey(key).recordPut(size);
+    backingCache.put(key, value, serializedValue);
+    putLocal(key, value, size);
+  }
+
+  @Override
+  public <T> boolean putIfAbsent(String key, T value, int expirationSeconds) {
+    // Conditional puts are for coordinating between instances, so they only make sense in the
+    // shared level.
+    return backingCache.putIfAbsent(key, value, expirationSeconds);
+  }
+
+  @Override
+  public void remove(String key) {
+    localEntries.remove(key);
+    backingCache.remove(key);
+  }
+
+  @Override
+  public long increment(String key, long delta, long initialValue) {
+    long value = backingCache.increment(key, delta, initialValue);
+    putLocal(key, value, SerializationUtil.getSerializedSize(value));
+    return value;
+  }
+
+  @Override
+  public void clear() {
+    localEntries.clear();
+    backingCache.clear();
+  }
+
+  private void putLocal(String key, Object value, long size) {
+    // Values that would crowd out most of the local level are only kept in the backing cache.
+    if (size < 0 || size > maxLocalBytes / 4) {
+      localEntries.remove(key);
+      return;
+    }
+    localEntries.put(key,
+        new LocalEntry(value, (int) size, System.currentTimeMillis() + getTtlMillis(key)));
+  }
+
+  private long getTtlMillis(String key) {
+    Long ttlMillis = ttlMillisByFamily.get(CacheStats.getFamily(key));
+    return ttlMillis == null ? defaultTtlMillis : ttlMillis;
+  }
+
+  private static class LocalEntry {
+    public final Object value;
+    public final int size;
+    public final long expirationTime;
+
+    public LocalEntry(Object value, int size, long expirationTime) {
+      this.value = value;
+      this.size = size;
+      this.expirationTime = expirationTime;
+    }
+  }
+}
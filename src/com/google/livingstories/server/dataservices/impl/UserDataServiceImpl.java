@@ -18,15 +18,24 @@ package com.google.livingstories.server.dataservices.impl;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
 import com.google.livingstories.client.FilterSpec;
+import com.google.livingstories.server.dataservices.ServerCache;
 import com.google.livingstories.server.dataservices.UserDataService;
 import com.google.livingstories.server.dataservices.entities.UserEntity;
 import com.google.livingstories.server.dataservices.entities.UserLivingStoryEntity;
+import com.google.livingstories.server.dataservices.impl.VisitBuffer.PendingVisit;
+import com.google.livingstories.server.util.StripedLocks;
 
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
@@ -34,17 +43,48 @@ import javax.jdo.Query;
 
 /**
  * Implementation of the user data interface using JDO.
+ *
+ * Story visits are buffered in memory and written in batches, since every page view by a
+ * logged in user records one. The buffer is written out once it's full, or at the end of the
+ * first request after its oldest visit is MAX_PENDING_VISIT_AGE_MILLIS old. The reads of visit
+ * data take the buffered visits into account. So that other instances see the latest visit
+ * time before it's written, which is what decides what's highlighted as new to the user, each
+ * visit's time is also put in memcache.
  */
 public class UserDataServiceImpl implements UserDataService {
+  private static final int MAX_PENDING_VISITS = 100;
+  private static final long MAX_PENDING_VISIT_AGE_MILLIS = 10 * 1000;
+  // Long enough for any instance to have written the visit.
+  private static final int VISIT_TIME_CACHE_SECONDS = 60 * 60;
+
+  private static final Logger logger =
+      Logger.getLogger(UserDataServiceImpl.class.getCanonicalName());
+
+  // Creating a user's per-story row is check-then-act, so updates for the same user are
+  // serialized to keep concurrent requests from creating duplicate rows.
+  private final StripedLocks userLocks = new StripedLocks(64);
+  private final VisitBuffer visitBuffer =
+      new VisitBuffer(MAX_PENDING_VISITS, MAX_PENDING_VISIT_AGE_MILLIS);
+  private final ServerCache visitTimeCache = new AppEngineCacheImpl(VISIT_TIME_CACHE_SECONDS);
 
   @Override
-  public synchronized Date getLastVisitTimeForStory(String userId, Long livingStoryId) {
+  public Date getLastVisitTimeForStory(String userId, Long livingStoryId) {
+    PendingVisit pendingVisit = visitBuffer.get(userId, livingStoryId);
+    if (pendingVisit != null) {
+      return pendingVisit.getLastVisitTime();
+    }
     UserLivingStoryEntity entity = retrieveUserLivingStoryEntity(userId, livingStoryId);
-    return entity == null ? null : entity.getLastVisitedTime();
+    Date storedTime = entity == null ? null : entity.getLastVisitedTime();
+    // Another instance may have a later visit that it hasn't written yet.
+    Date cachedTime = visitTimeCache.get(getVisitTimeCacheKey(userId, livingStoryId));
+    if (cachedTime != null && (storedTime == null || cachedTime.after(storedTime))) {
+      return cachedTime;
+    }
+    return storedTime;
   }
   
   @Override
-  public synchronized Map<Long, Date> getAllLastVisitTimes(String userEmail) {
+  public Map<Long, Date> getAllLastVisitTimes(String userEmail) {
     Map<Long, Date> visitTimesMap = new HashMap<Long, Date>();
 
     PersistenceManager pm = PMF.get().getPersistenceManager();
@@ -58,6 +98,9 @@ public class UserDataServiceImpl implements UserDataService {
       for (UserLivingStoryEntity entity : userLivingStoryEntities) {
         visitTimesMap.put(entity.getLivingStoryId(), entity.getLastVisitedTime());
       }
+      for (PendingVisit pendingVisit : visitBuffer.getForUser(userEmail)) {
+        visitTimesMap.put(pendingVisit.getLivingStoryId(), pendingVisit.getLastVisitTime());
+      }
       return visitTimesMap;
     } finally {
       query.closeAll();
@@ -66,19 +109,21 @@ public class UserDataServiceImpl implements UserDataService {
   }
 
   @Override
-  public synchronized boolean isUserSubscribedToEmails(String userId, Long livingStoryId) {
+  public boolean isUserSubscribedToEmails(String userId, Long livingStoryId) {
     UserLivingStoryEntity entity = retrieveUserLivingStoryEntity(userId, livingStoryId);
     return entity == null ? false : entity.isSubscribedToEmails();
   }
   
   @Override
-  public synchronized int getVisitCountForStory(String userId, Long livingStoryId) {
+  public int getVisitCountForStory(String userId, Long livingStoryId) {
+    PendingVisit pendingVisit = visitBuffer.get(userId, livingStoryId);
+    int pendingVisitCount = pendingVisit == null ? 0 : pendingVisit.getVisitCount();
     UserLivingStoryEntity entity = retrieveUserLivingStoryEntity(userId, livingStoryId);
-    return entity == null ? 0 : entity.getVisitCount();
+    return (entity == null ? 0 : entity.getVisitCount()) + pendingVisitCount;
   }
 
   @Override
-  public synchronized FilterSpec getDefaultStoryView(String userId) {
+  public FilterSpec getDefaultStoryView(String userId) {
     UserEntity userEntity = retrieveUserEntity(userId);
     if (userEntity == null) {
       return null;
@@ -89,37 +134,156 @@ public class UserDataServiceImpl implements UserDataService {
   }
 
   @Override
-  public synchronized void updateVisitDataForStory(String userEmail, Long livingStoryId) {
-    UserLivingStoryEntity userLivingStoryEntity =
-        retrieveUserLivingStoryEntity(userEmail, livingStoryId);
-    if (userLivingStoryEntity == null) {
-      // This means the user has not visited this living story before. A new row needs to be added.
-      // Check if a userEntity exists for this user.  If not, we need to create that first.
-      if (retrieveUserEntity(userEmail) == null) {
+  public void updateVisitDataForStory(String userEmail, Long livingStoryId) {
+    Date now = new Date();
+    visitTimeCache.put(getVisitTimeCacheKey(userEmail, livingStoryId), now);
+    if (visitBuffer.recordVisit(userEmail, livingStoryId, now)) {
+      flushVisits();
+    }
+  }
+
+  @Override
+  public void flushBufferedVisits() {
+    if (visitBuffer.isFlushDue(System.currentTimeMillis())) {
+      flushVisits();
+    }
+  }
+
+  private static String getVisitTimeCacheKey(String userEmail, Long livingStoryId) {
+    return "visitTime:" + livingStoryId + ":" + userEmail;
+  }
+
+  /**
+   * Writes all the buffered visits to the datastore, with one query and one batch write per
+   * user. Visits that can't be written are put back in the buffer to be retried with the next
+   * flush.
+   */
+  public void flushVisits() {
+    ListMultimap<String, PendingVisit> visitsByUser = ArrayListMultimap.create();
+    for (PendingVisit visit : visitBuffer.drain()) {
+      visitsByUser.put(visit.getUserEmail(), visit);
+    }
+    for (String userEmail : visitsByUser.keySet()) {
+      List<PendingVisit> visits = visitsByUser.get(userEmail);
+      Lock lock = userLocks.getLock(userEmail);
+      lock.lock();
+      try {
+        writeVisitsLocked(userEmail, visits);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Could not write story visits for " + userEmail, e);
+        visitBuffer.restore(getUnwrittenVisits(userEmail, visits));
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Returns the visits that a failed write didn't get into the datastore. A batch write can
+   * partly succeed, and putting back visits that were written would count them twice, so the
+   * user's rows are read back to see which ones have the visits. If even that fails, all the
+   * visits are returned.
+   */
+  private List<PendingVisit> getUnwrittenVisits(String userEmail, List<PendingVisit> visits) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(UserLivingStoryEntity.class);
+    query.setFilter("parentEmailAddress == emailParam");
+    query.declareParameters("java.lang.String emailParam");
+
+    try {
+      @SuppressWarnings("unchecked")
+      List<UserLivingStoryEntity> entities =
+          (List<UserLivingStoryEntity>) query.execute(userEmail);
+      Map<Long, UserLivingStoryEntity> entitiesByStoryId =
+          new HashMap<Long, UserLivingStoryEntity>();
+      for (UserLivingStoryEntity entity : entities) {
+        entitiesByStoryId.put(entity.getLivingStoryId(), entity);
+      }
+      List<PendingVisit> unwrittenVisits = Lists.newArrayList();
+      for (PendingVisit visit : visits) {
+        UserLivingStoryEntity entity = entitiesByStoryId.get(visit.getLivingStoryId());
+        // The row only gets a last visit time at least as late as this visit's if this write
+        // got through, or if another instance has since written a later visit. In the second
+        // case this visit's count is dropped, which is better than counting it twice.
+        if (entity == null || entity.getLastVisitedTime() == null
+            || entity.getLastVisitedTime().before(visit.getLastVisitTime())) {
+          unwrittenVisits.add(visit);
+        }
+      }
+      return unwrittenVisits;
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Could not check which story visits were written for "
+          + userEmail, e);
+      return visits;
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+
+  private void writeVisitsLocked(String userEmail, List<PendingVisit> visits) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(UserLivingStoryEntity.class);
+    query.setFilter("parentEmailAddress == emailParam");
+    query.declareParameters("java.lang.String emailParam");
+
+    try {
+      @SuppressWarnings("unchecked")
+      List<UserLivingStoryEntity> existingEntities =
+          (List<UserLivingStoryEntity>) query.execute(userEmail);
+      Map<Long, UserLivingStoryEntity> entitiesByStoryId =
+          new HashMap<Long, UserLivingStoryEntity>();
+      for (UserLivingStoryEntity entity : existingEntities) {
+        entitiesByStoryId.put(entity.getLivingStoryId(), entity);
+      }
+      if (entitiesByStoryId.isEmpty() && retrieveUserEntity(userEmail) == null) {
+        // This means the user has not visited any living story before, so the userEntity needs
+        // to be created first.
         createNewUserEntity(userEmail);
       }
-      createNewUserLivingStoryEntity(userEmail, livingStoryId, false, null);
-    } else {
-      // This means the user has visited this living story before and the timestamp needs to be
-      // updated in place.
-      PersistenceManager pm = PMF.get().getPersistenceManager();
-      
-      try { 
-        // This object needs to be queried using its primary key from the same
-        // PeristentManager object as the one that is going to persist it
-        userLivingStoryEntity = pm.getObjectById(
-            UserLivingStoryEntity.class, userLivingStoryEntity.getId());
-        userLivingStoryEntity.setLastVisitedTime(new Date());
-        userLivingStoryEntity.incrementVisitCount();
-        pm.makePersistent(userLivingStoryEntity);
-      } finally {
-        pm.close();
+
+      List<UserLivingStoryEntity> updatedEntities = Lists.newArrayList();
+      for (PendingVisit visit : visits) {
+        UserLivingStoryEntity entity = entitiesByStoryId.get(visit.getLivingStoryId());
+        if (entity == null) {
+          // This means the user has not visited this living story before. A new row needs to
+          // be added.
+          entity = new UserLivingStoryEntity(
+              userEmail, visit.getLivingStoryId(), visit.getLastVisitTime());
+          entity.setVisitCount(visit.getVisitCount());
+        } else {
+          // Visits to the same story may have been written by other instances in the meantime.
+          if (entity.getLastVisitedTime() == null
+              || visit.getLastVisitTime().after(entity.getLastVisitedTime())) {
+            entity.setLastVisitedTime(visit.getLastVisitTime());
+          }
+          entity.setVisitCount(entity.getVisitCount() + visit.getVisitCount());
+        }
+        updatedEntities.add(entity);
       }
+      pm.makePersistentAll(updatedEntities);
+    } finally {
+      query.closeAll();
+      pm.close();
     }
   }
   
   @Override
-  public synchronized void setEmailSubscription(String userEmail, Long livingStoryId, 
+  public void setEmailSubscription(String userEmail, Long livingStoryId, 
+      boolean subscribe, String localeId) {
+    // Write any buffered visits first, so that a row that the subscription creates doesn't get
+    // duplicated by the next flush.
+    flushVisits();
+    Lock lock = userLocks.getLock(userEmail);
+    lock.lock();
+    try {
+      setEmailSubscriptionLocked(userEmail, livingStoryId, subscribe, localeId);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void setEmailSubscriptionLocked(String userEmail, Long livingStoryId,
       boolean subscribe, String localeId) {
     UserLivingStoryEntity userLivingStoryEntity =
         retrieveUserLivingStoryEntity(userEmail, livingStoryId);
@@ -149,7 +313,7 @@ public class UserDataServiceImpl implements UserDataService {
   }
 
   @Override
-  public synchronized void setDefaultStoryView(String userId, FilterSpec defaultView) {
+  public void setDefaultStoryView(String userId, FilterSpec defaultView) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     
     try { 
@@ -167,7 +331,8 @@ public class UserDataServiceImpl implements UserDataService {
   }
 
   @Override
-  public synchronized void deleteVisitTimesForStory(Long livingStoryId) {
+  public void deleteVisitTimesForStory(Long livingStoryId) {
+    visitBuffer.removeForStory(livingStoryId);
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(UserLivingStoryEntity.class);
     query.setFilter("livingStoryId == livingStoryIdParam");
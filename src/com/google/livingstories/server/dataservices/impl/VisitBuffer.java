@@ -0,0 +1,182 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.impl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds story visits that haven't been written to the datastore yet, merged so that there is
+ * at most one pending visit per user and story, with the latest visit time and the number of
+ * visits since the last write.
+ *
+ * The buffer only lives in the memory of the current instance, so visits that are still in it
+ * aren't visible to other instances, and are lost if the instance goes away before they're
+ * written.
+ */
+class VisitBuffer {
+  private final int maxSize;
+  private final long maxAgeMillis;
+  private final Map<String, PendingVisit> pendingVisits = Maps.newHashMap();
+  // When the oldest visit in the buffer was recorded, or 0 if the buffer is empty.
+  private long oldestVisitTime = 0;
+
+  /**
+   * Creates a buffer that should be flushed once it holds maxSize visits, or once its oldest
+   * visit is maxAgeMillis old.
+   */
+  public VisitBuffer(int maxSize, long maxAgeMillis) {
+    this.maxSize = maxSize;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * Records a visit, and returns whether the buffer should now be flushed.
+   */
+  public synchronized boolean recordVisit(String userEmail, Long livingStoryId, Date time) {
+    merge(new PendingVisit(userEmail, livingStoryId, time, 1));
+    return isFlushDue(time.getTime());
+  }
+
+  public synchronized boolean isFlushDue(long now) {
+    return pendingVisits.size() >= maxSize
+        || (oldestVisitTime != 0 && now - oldestVisitTime >= maxAgeMillis);
+  }
+
+  /**
+   * Returns a copy of the pending visit of a user to a story, or null if there isn't one.
+   */
+  public synchronized PendingVisit get(String userEmail, Long livingStoryId) {
+    PendingVisit visit = pendingVisits.get(getKey(userEmail, livingStoryId));
+    return visit == null ? null : visit.copy();
+  }
+
+  /**
+   * Returns copies of the pending visits of a user to any story.
+   */
+  public synchronized List<PendingVisit> getForUser(String userEmail) {
+    List<PendingVisit> visits = Lists.newArrayList();
+    for (PendingVisit visit : pendingVisits.values()) {
+      if (visit.getUserEmail().equals(userEmail)) {
+        visits.add(visit.copy());
+      }
+    }
+    return visits;
+  }
+
+  /**
+   * Removes all the pending visits from the buffer and returns them, so that they can be
+   * written.
+   */
+  public synchronized List<PendingVisit> drain() {
+    List<PendingVisit> visits = Lists.newArrayList(pendingVisits.values());
+    pendingVisits.clear();
+    oldestVisitTime = 0;
+    return visits;
+  }
+
+  /**
+   * Puts back visits that were drained but couldn't be written, merging them with any visits
+   * that were recorded in the meantime.
+   */
+  public synchronized void restore(Collection<PendingVisit> visits) {
+    for (PendingVisit visit : visits) {
+      merge(visit);
+    }
+  }
+
+  public synchronized void removeForStory(Long livingStoryId) {
+    Iterator<PendingVisit> iter = pendingVisits.values().iterator();
+    while (iter.hasNext()) {
+      if (iter.next().getLivingStoryId().equals(livingStoryId)) {
+        iter.remove();
+      }
+    }
+    if (pendingVisits.isEmpty()) {
+      oldestVisitTime = 0;
+    }
+  }
+
+  private void merge(PendingVisit visit) {
+    String key = getKey(visit.getUserEmail(), visit.getLivingStoryId());
+    PendingVisit existing = pendingVisits.get(key);
+    if (existing == null) {
+      pendingVisits.put(key, visit.copy());
+    } else {
+      existing.merge(visit);
+    }
+    long time = visit.getLastVisitTime().getTime();
+    if (oldestVisitTime == 0 || time < oldestVisitTime) {
+      oldestVisitTime = time;
+    }
+  }
+
+  private String getKey(String userEmail, Long livingStoryId) {
+    return livingStoryId + ":" + userEmail;
+  }
+
+  /**
+   * The visits of one user to one story that haven't been written yet.
+   */
+  public static class PendingVisit {
+    private final String userEmail;
+    private final Long livingStoryId;
+    private Date lastVisitTime;
+    private int visitCount;
+
+    public PendingVisit(String userEmail, Long livingStoryId, Date lastVisitTime,
+        int visitCount) {
+      this.userEmail = userEmail;
+      this.livingStoryId = livingStoryId;
+      this.lastVisitTime = lastVisitTime;
+      this.visitCount = visitCount;
+    }
+
+    public String getUserEmail() {
+      return userEmail;
+    }
+
+    public Long getLivingStoryId() {
+      return livingStoryId;
+    }
+
+    public Date getLastVisitTime() {
+      return lastVisitTime;
+    }
+
+    public int getVisitCount() {
+      return visitCount;
+    }
+
+    private void merge(PendingVisit other) {
+      if (other.lastVisitTime.after(lastVisitTime)) {
+        lastVisitTime = other.lastVisitTime;
+      }
+      visitCount += other.visitCount;
+    }
+
+    private PendingVisit copy() {
+      return new PendingVisit(userEmail, livingStoryId, lastVisitTime, visitCount);
+    }
+  }
+}
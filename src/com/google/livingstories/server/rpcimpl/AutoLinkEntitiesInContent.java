@@ -17,6 +17,7 @@
 package com.google.livingstories.server.rpcimpl;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.livingstories.client.AssetType;
 import com.google.livingstories.client.BackgroundContentItem;
@@ -24,10 +25,13 @@ import com.google.livingstories.client.ContentItemType;
 import com.google.livingstories.client.PlayerContentItem;
 import com.google.livingstories.client.PlayerType;
 import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
+import com.google.livingstories.server.util.DictionaryMatcher;
 
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -40,23 +44,109 @@ import java.util.regex.Pattern;
  * player will also be added to the linked content entities of contentEntity.
  * New as of 1/15/2010: background content items with a name i.e. concepts are also auto-linked in
  * the content. They are not returned in the suggestions.
+ *
+ * An instance is compiled from the players and concepts of one story, so that all of their names
+ * can be found in a single pass over the content. It doesn't change once it's built, and is
+ * cached until the story's players or concepts change; see {@link Caches#getAutoLinker}.
  */
 public class AutoLinkEntitiesInContent {
+  // Existing popup links, which tell which content items are already linked from the content.
+  private static final Pattern POPUP_LINK_PATTERN =
+      Pattern.compile("showContentItemPopup\\((\\d+), this\\)");
+  // Tags, and links along with their text, which names mustn't be matched in.
+  private static final Pattern MARKUP_PATTERN =
+      Pattern.compile("<a\\b.*?</a\\s*>|<[^>]*>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+  /**
+   * A content item that names are linked to, with the indexes of the names it's looked for by
+   * in the matcher's dictionary, in the order they're tried.
+   */
+  private static class LinkTarget {
+    public final Long id;
+    public final int[] nameIndexes;
+
+    public LinkTarget(Long id, int[] nameIndexes) {
+      this.id = id;
+      this.nameIndexes = nameIndexes;
+    }
+  }
+
+  private final List<LinkTarget> concepts = Lists.newArrayList();
+  private final List<LinkTarget> players = Lists.newArrayList();
+  private final List<String> names = Lists.newArrayList();
+  private final DictionaryMatcher matcher;
+
+  /**
+   * Compiles the names of the given players and concepts. Concepts take priority over players,
+   * and earlier players over later ones, when their names overlap in the content.
+   */
+  public AutoLinkEntitiesInContent(List<PlayerContentItem> playerContentItems,
+      List<BackgroundContentItem> concepts) {
+    Map<String, Integer> nameIndexes = Maps.newHashMap();
+    for (BackgroundContentItem concept : concepts) {
+      this.concepts.add(new LinkTarget(concept.getId(),
+          getNameIndexes(Collections.singletonList(concept.getConceptName()), nameIndexes)));
+    }
+    for (PlayerContentItem playerContentItem : playerContentItems) {
+      // Look for the player's full name first, then for the aliases. If neither is found, look
+      // for just the last part of the name for people (but not for organizations because the
+      // last words in their names are often common words such as "Group" or "Association")
+      // Note: this order can lead to a corner case in which the alias is mentioned first in the
+      // text and the full name is mentioned later. The full name will be linked later on in the
+      // text, instead of the alias being linked. This is acceptable because in writing, they
+      // usually put the full name in the first occurrence followed by shortened versions.
+      String playerName = playerContentItem.getName();
+      List<String> playerNames = Lists.newArrayList(playerName);
+      playerNames.addAll(playerContentItem.getAliases());
+      if (playerContentItem.getPlayerType() == PlayerType.PERSON) {
+        String[] playerNameParts = playerName.split("\\s");
+        if (playerNameParts.length > 1) {
+          playerNames.add(playerNameParts[playerNameParts.length - 1]);
+        }
+      }
+      players.add(new LinkTarget(playerContentItem.getId(),
+          getNameIndexes(playerNames, nameIndexes)));
+    }
+    matcher = new DictionaryMatcher(names);
+  }
+
+  private int[] getNameIndexes(List<String> targetNames, Map<String, Integer> nameIndexes) {
+    List<Integer> indexes = Lists.newArrayList();
+    for (String name : targetNames) {
+      // a long-standing bug in the Content manager means that players that originally had
+      // the empty string entered for their aliases actually are saved in the datastore as having
+      // one alias, "". We avoid paying attention to this as follows (which should catch some
+      // other cases too).
+      if (name == null || name.trim().isEmpty()) {
+        continue;
+      }
+      Integer index = nameIndexes.get(name);
+      if (index == null) {
+        index = names.size();
+        names.add(name);
+        nameIndexes.put(name, index);
+      }
+      indexes.add(index);
+    }
+    int[] result = new int[indexes.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = indexes.get(i);
+    }
+    return result;
+  }
   
   /**
-   * Looks for matches of the names and aliases of each of the given players in the content entity.
+   * Looks for matches of the names and aliases of each of the players in the content entity.
    * If a match is found and a corresponding link is not found around it, creates 1 per
    * player. Also adds these players to the base content entity as new linked content entities.
    * Also looks for matches of the names of concepts and creates a link if one doesn't exist. 
    */
-  public static Set<Long> createLinks(BaseContentEntity contentEntity, 
-      List<PlayerContentItem> playerContentItems, List<BackgroundContentItem> concepts) {
+  public Set<Long> createLinks(BaseContentEntity contentEntity) {
     Set<Long> suggestedAdditionIds = Sets.newHashSet();
     ContentItemType contentItemType = contentEntity.getContentItemType();
     Long contentEntityId = contentEntity.getId();
     if (contentItemType != ContentItemType.ASSET && contentItemType != ContentItemType.PLAYER) {
-      MatchResult matchResult = match(contentEntityId, contentEntity.getContent(),
-          playerContentItems, concepts);
+      MatchResult matchResult = match(contentEntityId, contentEntity.getContent(), true);
       // If matches were found, set the current content string with the new one that contains
       // <contentItem> tags
       if (matchResult.matchesFound) {
@@ -67,8 +157,7 @@ public class AutoLinkEntitiesInContent {
     
     // Do the same for event summary
     if (contentItemType == ContentItemType.EVENT) {
-      MatchResult matchResult = match(contentEntityId, contentEntity.getEventSummary(),
-          playerContentItems, concepts);
+      MatchResult matchResult = match(contentEntityId, contentEntity.getEventSummary(), true);
       if (matchResult.matchesFound) {
         contentEntity.setEventSummary(matchResult.newContent);
       }
@@ -77,8 +166,7 @@ public class AutoLinkEntitiesInContent {
     
     // For narrative summary: (some need for refactoring here!)
     if (contentItemType == ContentItemType.NARRATIVE) {
-      MatchResult matchResult = match(contentEntityId, contentEntity.getNarrativeSummary(),
-          playerContentItems, concepts);
+      MatchResult matchResult = match(contentEntityId, contentEntity.getNarrativeSummary(), true);
       if (matchResult.matchesFound) {
         contentEntity.setNarrativeSummary(matchResult.newContent);
       }
@@ -88,109 +176,125 @@ public class AutoLinkEntitiesInContent {
     // For asset caption, if applicable: (again, refactoring would be very good...)
     if (contentItemType == ContentItemType.ASSET
         && contentEntity.getAssetType() != AssetType.LINK) {
-      // Send an empty concept list here because we are only looking for player names to suggest
-      MatchResult matchResult = match(contentEntityId, contentEntity.getCaption(),
-          playerContentItems, Lists.<BackgroundContentItem>newArrayList());
+      // Leave out the concepts here because we are only looking for player names to suggest
+      MatchResult matchResult = match(contentEntityId, contentEntity.getCaption(), false);
       // We _don't_ reset the caption, which is just plain text, not HTML.
       suggestedAdditionIds.addAll(matchResult.suggestedPlayerIds);
     }
     return suggestedAdditionIds;
   }
   
-  
-  private static MatchResult match(Long contentEntityId, String content,
-      List<PlayerContentItem> playerContentItems, List<BackgroundContentItem> concepts) {
+  private MatchResult match(Long contentEntityId, String content, boolean linkConcepts) {
     MatchResult matchResult = new MatchResult();
     // We need to remove the newline characters \n from the string so we can look for matches
     content = content.replaceAll("\\s+", " ");
+
+    Set<Long> linkedIds = Sets.newHashSet();
+    Matcher popupLinkMatcher = POPUP_LINK_PATTERN.matcher(content);
+    while (popupLinkMatcher.find()) {
+      linkedIds.add(Long.valueOf(popupLinkMatcher.group(1)));
+    }
+    // The spans of the content that can't take a new link, by start position.
+    TreeMap<Integer, Integer> claimedSpans = new TreeMap<Integer, Integer>();
+    Matcher markupMatcher = MARKUP_PATTERN.matcher(content);
+    while (markupMatcher.find()) {
+      claimedSpans.put(markupMatcher.start(), markupMatcher.end());
+    }
+    Map<Integer, List<Integer>> occurrences = matcher.findAll(content);
+    // The new links, by start position.
+    TreeMap<Integer, Long> links = new TreeMap<Integer, Long>();
     
-    // First find the concept matches and construct the result partially
-    for (BackgroundContentItem concept : concepts) {
-      Long conceptId = concept.getId();
-      String javascript = "showContentItemPopup(" + conceptId + ", this)";
-      if (!conceptId.equals(contentEntityId) && !content.contains(javascript)) {
-        String conceptName = concept.getConceptName();
-        Pair<Boolean, String> result = matchAndReplace(content, conceptName, javascript);
-        if (result.first) {
-          matchResult.matchesFound = true;
-          content = result.second;
+    // First find the concept matches
+    if (linkConcepts) {
+      for (LinkTarget concept : concepts) {
+        if (!concept.id.equals(contentEntityId) && !linkedIds.contains(concept.id)) {
+          claimFirstMatch(concept, content, occurrences, claimedSpans, links);
         }
       }
     }
 
     // Then look for the player matches
     Set<Long> suggestedPlayerIds = Sets.newHashSet();
-    for (PlayerContentItem playerContentItem : playerContentItems) {
-      Long playerId = playerContentItem.getId();
-      String javascript = "showContentItemPopup(" + playerId + ", this)";      
-      if (content.contains(javascript)) {
+    for (LinkTarget player : players) {
+      if (linkedIds.contains(player.id)) {
         // If a showContentItemPopup() link for a player is already there, we should consistently
         // and repeatedly suggest that the player content item be linked as well. Note that it's no
         // problem if the suggestion duplicates a content item that has already really been linked
         // up; the frontend treats this as a sane, expected case.
-        suggestedPlayerIds.add(playerId);
-      } else {
-        String playerName = playerContentItem.getName();
-        // If a link to that player doesn't already exist, first look for the player's full
-        // name in the content
-        Pair<Boolean, String> result = matchAndReplace(content, playerName, javascript);
-        // If that doesn't exist, look for the aliases
-        Iterator<String> aliasIterator = playerContentItem.getAliases().iterator();
-        while (!result.first && aliasIterator.hasNext()) {
-          result = matchAndReplace(content, aliasIterator.next(), javascript);
-        }
-        if (!result.first && playerContentItem.getPlayerType() == PlayerType.PERSON) {
-          // If the full name or aliases don't exist, just look for the last part of the name
-          // for people (but not for organizations because the last words in their names are often
-          // common words such as "Group" or "Association")
-          String[] playerNameParts = playerName.split("\\s");
-          if (playerNameParts.length > 1) {
-            result = matchAndReplace(content, playerNameParts[playerNameParts.length - 1], 
-                javascript);
-          }
-        }
-        // Note: the order in which the matches are looked for above can lead to a corner case
-        // in which the alias is mentioned first in the text and the full name is mentioned later.
-        // The full name will be linked later on in the text, instead of the alias being linked.
-        // This is acceptable because in writing, they usually put the full name in the
-        // first occurrence followed by shortened versions.
-        
-        if (result.first) {
-          matchResult.matchesFound = true;
-          suggestedPlayerIds.add(playerId);
-          content = result.second;
-        }
+        suggestedPlayerIds.add(player.id);
+      } else if (claimFirstMatch(player, content, occurrences, claimedSpans, links)) {
+        suggestedPlayerIds.add(player.id);
+      }
+    }
+
+    if (!links.isEmpty()) {
+      matchResult.matchesFound = true;
+      StringBuilder sb = new StringBuilder();
+      int copiedUpTo = 0;
+      for (Map.Entry<Integer, Long> link : links.entrySet()) {
+        int start = link.getKey();
+        int end = claimedSpans.get(start);
+        sb.append(content, copiedUpTo, start);
+        sb.append("<a href=\"javascript:;\" onclick=\"showContentItemPopup(")
+            .append(link.getValue()).append(", this)\">")
+            .append(content, start, end).append("</a>");
+        copiedUpTo = end;
       }
+      sb.append(content, copiedUpTo, content.length());
+      content = sb.toString();
     }
     matchResult.newContent = content;
     matchResult.suggestedPlayerIds = suggestedPlayerIds;
     return matchResult;
   }
 
-  private static Pair<Boolean, String> matchAndReplace(String content, String playerName, 
-      String javascript) {
-    // a long-standing bug in the Content manager means that players that originally had
-    // the empty string entered for their aliases actually are saved in the datastore as having
-    // one alias, "". We avoid paying attention to this as follows (which should catch some
-    // other cases too).
-    if (playerName.trim().isEmpty()) {
-      return Pair.of(false, content);
-    }
-    
-    Matcher matcher = Pattern.compile("(\\b|\\W)(" + Pattern.quote(playerName) + ")(\\b|\\W)")
-        .matcher(content);
-    boolean foundMatch = false;
-    StringBuffer sb = new StringBuffer();
-    if (matcher.find()) {
-      foundMatch = true;
-      String match = matcher.group();
-      String contentItemLink = "<a href=\"javascript:;\" onclick=\"" +
-          javascript + "\">" + matcher.group(2) + "</a>";
-      match = match.replace(playerName, contentItemLink);
-      matcher.appendReplacement(sb, Matcher.quoteReplacement(match));
+  /**
+   * Finds the first occurrence of the target's first name that occurs in the content as a whole
+   * word, outside of the spans that are already claimed, and claims it for a link to the target.
+   * Returns whether one was found.
+   */
+  private boolean claimFirstMatch(LinkTarget target, String content,
+      Map<Integer, List<Integer>> occurrences, TreeMap<Integer, Integer> claimedSpans,
+      TreeMap<Integer, Long> links) {
+    for (int nameIndex : target.nameIndexes) {
+      List<Integer> starts = occurrences.get(nameIndex);
+      if (starts == null) {
+        continue;
+      }
+      for (int start : starts) {
+        int end = start + names.get(nameIndex).length();
+        if (isWholeWord(content, start, end) && !overlapsClaimedSpan(claimedSpans, start, end)) {
+          claimedSpans.put(start, end);
+          links.put(start, target.id);
+          return true;
+        }
+      }
     }
-    matcher.appendTail(sb);
-    return Pair.of(foundMatch, sb.toString());
+    return false;
+  }
+
+  /**
+   * Returns whether the name at [start, end) isn't part of a longer word. A name that starts or
+   * ends with punctuation may be adjacent to anything on that side.
+   */
+  private static boolean isWholeWord(String content, int start, int end) {
+    boolean startsWord = isWordCharacter(content.charAt(start));
+    boolean endsWord = isWordCharacter(content.charAt(end - 1));
+    return (start == 0 ? startsWord : !(startsWord && isWordCharacter(content.charAt(start - 1))))
+        && (end == content.length() ? endsWord
+            : !(endsWord && isWordCharacter(content.charAt(end))));
+  }
+
+  private static boolean isWordCharacter(char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+
+  private static boolean overlapsClaimedSpan(TreeMap<Integer, Integer> claimedSpans, int start,
+      int end) {
+    // The spans don't overlap each other, so only the last one that starts before end can
+    // reach past start.
+    Map.Entry<Integer, Integer> span = claimedSpans.floorEntry(end - 1);
+    return span != null && span.getValue() > start;
   }
   
   private static class MatchResult {
@@ -198,18 +302,4 @@ public class AutoLinkEntitiesInContent {
     public String newContent;
     public Set<Long> suggestedPlayerIds;
   }
-  
-  private static class Pair<A, B> {
-    public final A first;
-    public final B second;
-    
-    private Pair(A first, B second) {
-      this.first = first;
-      this.second = second;
-    }
-    
-    public static <A, B> Pair<A, B> of (A first, B second) {
-      return new Pair<A, B>(first, second);
-    }
-  }
 }
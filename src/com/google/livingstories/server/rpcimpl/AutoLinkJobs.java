@@ -0,0 +1,354 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.livingstories.client.ContentItemType;
+import com.google.livingstories.client.util.GlobalUtil;
+import com.google.livingstories.server.dataservices.entities.AutoLinkJobEntity;
+import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
+import com.google.livingstories.server.dataservices.impl.PMF;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+
+/**
+ * Re-runs auto-linking over all of the content of a story in the background, so that content
+ * that was written before a player or concept was added gets linked to it too. Like the
+ * auto-linking on save, this only rewrites the text; the linked players that an editor would be
+ * offered aren't added.
+ *
+ * The job is a chain of tasks, each of which goes through the next few batches of content items
+ * in id order, with a batch per worker thread, and then records its progress in the story's
+ * {@link AutoLinkJobEntity} and queues the next task. A task that fails is retried by the task
+ * queue, and since content that is already linked is left alone, redoing part of a batch is
+ * harmless. Starting the job again while it runs restarts it, and the tasks of the old run stop.
+ * The story's caches are only cleared once, when the last task finishes.
+ *
+ * A batch is read all at once, but each content item that it changes is written in a
+ * transaction of its own, which reads the item again and leaves it alone if it was modified
+ * after the batch was read. An edit made while the job runs is therefore never overwritten; the
+ * edited item is linked when it's saved instead.
+ */
+public class AutoLinkJobs {
+  public static final String QUEUE_NAME = "auto-link";
+  public static final String TASK_URL = "/relinkContent";
+  public static final String LIVING_STORY_ID_PARAM = "livingStoryId";
+  public static final String RUN_ID_PARAM = "runId";
+
+  private static final int BATCH_SIZE = 50;
+  private static final int WORKER_COUNT = 4;
+
+  private static final Logger logger = Logger.getLogger(AutoLinkJobs.class.getCanonicalName());
+
+  /**
+   * What a batch did: how many content items it looked at and relinked, and the related-content
+   * ids of the relinked ones.
+   */
+  private static class BatchResult {
+    public int checkedCount = 0;
+    public int relinkedCount = 0;
+    public Set<Long> relatedContentItemIds = Sets.newHashSet();
+  }
+
+  /**
+   * Starts relinking the content of a story, or starts it over if it's already running.
+   */
+  public void startJob(Long livingStoryId) {
+    int totalCount = getContentItemIds(livingStoryId, 0L, Integer.MAX_VALUE).size();
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Transaction tx = pm.currentTransaction();
+    AutoLinkJobEntity job;
+    try {
+      tx.begin();
+      try {
+        job = pm.getObjectById(AutoLinkJobEntity.class,
+            AutoLinkJobEntity.createKey(livingStoryId));
+      } catch (JDOObjectNotFoundException e) {
+        job = new AutoLinkJobEntity(livingStoryId);
+      }
+      job.restart(totalCount);
+      pm.makePersistent(job);
+      tx.commit();
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+      pm.close();
+    }
+    enqueueStep(job);
+    logger.info("Started relinking " + totalCount + " content items of story " + livingStoryId);
+  }
+
+  /**
+   * Returns the progress of the story's latest job, or null if it never had one.
+   */
+  public AutoLinkJobEntity getJob(Long livingStoryId) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      return pm.getObjectById(AutoLinkJobEntity.class,
+          AutoLinkJobEntity.createKey(livingStoryId));
+    } catch (JDOObjectNotFoundException e) {
+      return null;
+    } finally {
+      pm.close();
+    }
+  }
+
+  /**
+   * Relinks the next few batches of content items of the job's run, and queues the task for the
+   * ones after them. Does nothing if the job has finished or was restarted since the task was
+   * queued.
+   */
+  public void runStep(final Long livingStoryId, Long runId) {
+    AutoLinkJobEntity job = getJob(livingStoryId);
+    if (job == null || !runId.equals(job.getRunId()) || job.isFinished()) {
+      return;
+    }
+
+    List<Long> ids = getContentItemIds(livingStoryId, job.getLastDoneId(),
+        WORKER_COUNT * BATCH_SIZE);
+    final AutoLinkEntitiesInContent autoLinker = ContentRpcImpl.getAutoLinker(livingStoryId);
+    List<BatchResult> results = Lists.newArrayList();
+    ExecutorService workers =
+        Executors.newFixedThreadPool(WORKER_COUNT, ThreadManager.currentRequestThreadFactory());
+    try {
+      List<Future<BatchResult>> futures = Lists.newArrayList();
+      for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+        final List<Long> batchIds = ids.subList(i, Math.min(i + BATCH_SIZE, ids.size()));
+        futures.add(workers.submit(new Callable<BatchResult>() {
+          public BatchResult call() {
+            return relinkBatch(livingStoryId, batchIds, autoLinker);
+          }
+        }));
+      }
+      for (Future<BatchResult> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      workers.shutdownNow();
+    }
+
+    Long lastDoneId = ids.isEmpty() ? job.getLastDoneId() : ids.get(ids.size() - 1);
+    boolean finished = ids.size() < WORKER_COUNT * BATCH_SIZE;
+    job = recordProgress(livingStoryId, runId, lastDoneId, results, finished);
+    if (job == null) {
+      // The job was restarted in the meantime.
+      return;
+    }
+    if (finished) {
+      Caches.clearLivingStory(livingStoryId);
+      Caches.clearRelatedContentItemBundles(job.getRelatedContentItemIds());
+      Caches.clearStartPageBundle();
+      logger.info("Finished relinking story " + livingStoryId + ": relinked "
+          + job.getRelinkedCount() + " of " + job.getCheckedCount() + " content items");
+    } else {
+      enqueueStep(job);
+    }
+  }
+
+  /**
+   * Returns the ids of up to limit content items of the story with ids greater than afterId,
+   * in ascending order. The built-in index on livingStoryId is enough for this query, since
+   * its entries are sorted by key within each value.
+   */
+  private List<Long> getContentItemIds(Long livingStoryId, Long afterId, int limit) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(BaseContentEntity.class);
+    query.setFilter("livingStoryId == livingStoryIdParam && id > afterIdParam");
+    query.declareParameters("java.lang.Long livingStoryIdParam, java.lang.Long afterIdParam");
+    query.setOrdering("id asc");
+    query.setResult("id");
+    query.setRange(0, limit);
+    try {
+      @SuppressWarnings("unchecked")
+      List<Long> ids = (List<Long>) query.execute(livingStoryId, afterId);
+      return Lists.newArrayList(ids);
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+
+  /**
+   * Relinks the content items with the given ids, and saves the ones that changed.
+   * Content items are skipped the same way as when they're saved from the content manager.
+   */
+  private BatchResult relinkBatch(Long livingStoryId, List<Long> ids,
+      AutoLinkEntitiesInContent autoLinker) {
+    BatchResult result = new BatchResult();
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      List<Object> oids = Lists.newArrayList();
+      for (Long id : ids) {
+        oids.add(pm.newObjectIdInstance(BaseContentEntity.class, id));
+      }
+      @SuppressWarnings("unchecked")
+      Collection<BaseContentEntity> contentEntities = pm.getObjectsById(oids);
+      // These copies are only relinked to see whether saving would change them; the writes go
+      // through saveRelinked.
+      pm.retrieveAll(contentEntities);
+      pm.makeTransientAll(contentEntities);
+      for (BaseContentEntity contentEntity : contentEntities) {
+        if (!livingStoryId.equals(contentEntity.getLivingStoryId())
+            || contentEntity.getContentItemType() == ContentItemType.PLAYER
+            || GlobalUtil.isContentEmpty(contentEntity.getContent())) {
+          continue;
+        }
+        result.checkedCount++;
+        if (relink(contentEntity, autoLinker)
+            && saveRelinked(contentEntity.getId(), contentEntity.getLastModifiedTime(),
+                autoLinker)) {
+          result.relinkedCount++;
+          result.relatedContentItemIds.addAll(contentEntity.getLinkedContentEntityIds());
+          result.relatedContentItemIds.addAll(contentEntity.getContributorIds());
+        }
+      }
+      return result;
+    } finally {
+      pm.close();
+    }
+  }
+
+  /**
+   * Auto-links the content entity's text, and returns whether that changed it.
+   */
+  private boolean relink(BaseContentEntity contentEntity, AutoLinkEntitiesInContent autoLinker) {
+    String content = contentEntity.getContent();
+    String eventSummary = contentEntity.getEventSummary();
+    String narrativeSummary = contentEntity.getNarrativeSummary();
+    autoLinker.createLinks(contentEntity);
+    return !Objects.equal(content, contentEntity.getContent())
+        || !Objects.equal(eventSummary, contentEntity.getEventSummary())
+        || !Objects.equal(narrativeSummary, contentEntity.getNarrativeSummary());
+  }
+
+  /**
+   * Relinks and saves a content item in a transaction, unless it was modified since the given
+   * time. Returns whether it was saved.
+   */
+  private boolean saveRelinked(Long id, Date lastModifiedTime,
+      AutoLinkEntitiesInContent autoLinker) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Transaction tx = pm.currentTransaction();
+    try {
+      tx.begin();
+      BaseContentEntity contentEntity;
+      try {
+        contentEntity = pm.getObjectById(BaseContentEntity.class, id);
+      } catch (JDOObjectNotFoundException e) {
+        // Deleted since the batch was read.
+        return false;
+      }
+      if (!Objects.equal(lastModifiedTime, contentEntity.getLastModifiedTime())
+          || !relink(contentEntity, autoLinker)) {
+        return false;
+      }
+      pm.makePersistent(contentEntity);
+      tx.commit();
+      return true;
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+      pm.close();
+    }
+  }
+
+  /**
+   * Adds the results of a step to the job, if it's still on the same run. Returns the updated
+   * job, or null if it isn't.
+   */
+  private AutoLinkJobEntity recordProgress(Long livingStoryId, Long runId, Long lastDoneId,
+      List<BatchResult> results, boolean finished) {
+    int checkedCount = 0;
+    int relinkedCount = 0;
+    Set<Long> relatedContentItemIds = Sets.newHashSet();
+    for (BatchResult result : results) {
+      checkedCount += result.checkedCount;
+      relinkedCount += result.relinkedCount;
+      relatedContentItemIds.addAll(result.relatedContentItemIds);
+    }
+
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Transaction tx = pm.currentTransaction();
+    try {
+      tx.begin();
+      AutoLinkJobEntity job = pm.getObjectById(AutoLinkJobEntity.class,
+          AutoLinkJobEntity.createKey(livingStoryId));
+      if (!runId.equals(job.getRunId())) {
+        return null;
+      }
+      job.recordProgress(lastDoneId, checkedCount, relinkedCount, relatedContentItemIds);
+      if (finished) {
+        job.setFinished();
+      }
+      pm.makePersistent(job);
+      tx.commit();
+      return job;
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+      pm.close();
+    }
+  }
+
+  /**
+   * Queues the task for the job's next step. The task is named after the step, so that a step
+   * that's retried after queueing its successor doesn't queue it twice.
+   */
+  private void enqueueStep(AutoLinkJobEntity job) {
+    try {
+      QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withUrl(TASK_URL)
+          .taskName("relink-" + job.getLivingStoryId() + "-" + job.getRunId() + "-"
+              + job.getLastDoneId())
+          .param(LIVING_STORY_ID_PARAM, String.valueOf(job.getLivingStoryId()))
+          .param(RUN_ID_PARAM, String.valueOf(job.getRunId())));
+    } catch (TaskAlreadyExistsException e) {
+      // A retry of the current step already queued the next one.
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.livingstories.client.FilterSpec;
+import com.google.livingstories.client.LivingStory;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills the caches with the data that the first requests after a cold start or a cache flush
+ * would otherwise have to load from the datastore: the start page, the list of published
+ * stories, and the default view of the stories that have been getting the most traffic.
+ *
+ * Warming goes through the regular RPC code paths, so whatever they cache gets cached here too,
+ * and concurrent requests for the same data are coalesced with the warm-up.
+ */
+public class CacheWarmer {
+  public static final String WARMUP_QUEUE_NAME = "cache-warmup";
+  public static final String WARMUP_URL = "/warmCache";
+  public static final String LIVING_STORY_ID_PARAM = "livingStoryId";
+
+  // A new instance has a request waiting on it once warm-up is done, so it only warms the very
+  // top stories itself. After a flush, the work is spread over the task queue and can go deeper.
+  private static final int STORIES_TO_WARM_ON_STARTUP = 5;
+  private static final int STORIES_TO_WARM_AFTER_CLEAR = 20;
+
+  private static final Logger logger = Logger.getLogger(CacheWarmer.class.getCanonicalName());
+
+  private final LivingStoryRpcImpl livingStoryRpc = new LivingStoryRpcImpl();
+  private final ContentRpcImpl contentRpc = new ContentRpcImpl();
+
+  /**
+   * Warms the global caches and the most visited stories in the current request. Meant for
+   * the warm-up request that a new instance gets before it is sent user traffic.
+   */
+  public void warmOnStartup() {
+    warmGlobalCaches();
+    for (Long livingStoryId : getMostVisitedLivingStoryIds(STORIES_TO_WARM_ON_STARTUP)) {
+      warmLivingStory(livingStoryId);
+    }
+  }
+
+  /**
+   * Clears all the caches, and queues up tasks to warm them again. The ranking of stories by
+   * traffic is read before clearing, since the traffic counts are cleared along with
+   * everything else.
+   */
+  public void clearAllAndWarm() {
+    List<Long> livingStoryIds = getMostVisitedLivingStoryIds(STORIES_TO_WARM_AFTER_CLEAR);
+    Caches.clearAll();
+    enqueueWarmup(livingStoryIds);
+  }
+
+  public void warmGlobalCaches() {
+    livingStoryRpc.getAllLivingStories(true);
+    livingStoryRpc.getStartPageBundle();
+  }
+
+  /**
+   * Loads the data that the default view of a story's page asks for, including the summary as
+   * returning readers see it. Failures are logged rather than thrown, since the data will simply
+   * be loaded on demand instead.
+   */
+  public void warmLivingStory(Long livingStoryId) {
+    try {
+      livingStoryRpc.getThemeInfoForLivingStory(livingStoryId);
+      contentRpc.getContributorsByIdForLivingStory(livingStoryId);
+      contentRpc.getDisplayContentItemBundle(livingStoryId, new FilterSpec(), null,
+          (String) null);
+      livingStoryRpc.precomputeDiffedSummaries(livingStoryId);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Could not warm caches for living story " + livingStoryId, e);
+    }
+  }
+
+  /**
+   * Returns the ids of up to count published stories, most visited first.
+   */
+  public List<Long> getMostVisitedLivingStoryIds(int count) {
+    final Map<Long, Long> viewsById = new HashMap<Long, Long>();
+    for (LivingStory story : livingStoryRpc.getAllLivingStories(true)) {
+      viewsById.put(story.getId(), Caches.getRecentLivingStoryViews(story.getId()));
+    }
+    List<Long> livingStoryIds = Lists.newArrayList(viewsById.keySet());
+    Collections.sort(livingStoryIds, new Comparator<Long>() {
+      public int compare(Long lhs, Long rhs) {
+        return viewsById.get(rhs).compareTo(viewsById.get(lhs));
+      }
+    });
+    return livingStoryIds.subList(0, Math.min(count, livingStoryIds.size()));
+  }
+
+  /**
+   * Queues a task to warm the caches of one story, e.g. after it changed.
+   */
+  public static void enqueueLivingStoryWarmup(Long livingStoryId) {
+    try {
+      QueueFactory.getQueue(WARMUP_QUEUE_NAME).add(TaskOptions.Builder.withUrl(WARMUP_URL)
+          .method(TaskOptions.Method.GET)
+          .param(LIVING_STORY_ID_PARAM, String.valueOf(livingStoryId)));
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Could not queue cache warm-up for living story "
+          + livingStoryId, e);
+    }
+  }
+
+  /**
+   * Queues one task for the global caches and one per story. The queue's rate and
+   * concurrency limits keep the warm-up from competing too hard with user requests.
+   */
+  private static void enqueueWarmup(List<Long> livingStoryIds) {
+    try {
+      Queue queue = QueueFactory.getQueue(WARMUP_QUEUE_NAME);
+      queue.add(TaskOptions.Builder.withUrl(WARMUP_URL).method(TaskOptions.Method.GET));
+      for (Long livingStoryId : livingStoryIds) {
+        queue.add(TaskOptions.Builder.withUrl(WARMUP_URL).method(TaskOptions.Method.GET)
+            .param(LIVING_STORY_ID_PARAM, String.valueOf(livingStoryId)));
+      }
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Could not queue cache warm-up", e);
+    }
+  }
+}
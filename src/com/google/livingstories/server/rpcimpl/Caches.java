@@ -17,6 +17,8 @@
 package com.google.livingstories.server.rpcimpl;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
 import com.google.livingstories.client.BaseContentItem;
 import com.google.livingstories.client.ContentItemTypesBundle;
 import com.google.livingstories.client.DisplayContentItemBundle;
@@ -25,71 +27,531 @@ import com.google.livingstories.client.LivingStory;
 import com.google.livingstories.client.PlayerContentItem;
 import com.google.livingstories.client.StartPageBundle;
 import com.google.livingstories.client.Theme;
+import com.google.livingstories.server.dataservices.CacheStats;
 import com.google.livingstories.server.dataservices.ServerCache;
 import com.google.livingstories.server.dataservices.impl.AppEngineCacheImpl;
+import com.google.livingstories.server.dataservices.impl.TwoLevelCacheImpl;
 import com.google.livingstories.server.util.LRUCache;
+import com.google.livingstories.server.util.SerializationUtil;
 
+import java.io.Serializable;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
 
 /**
  * Class that stores references to different cache instances in the app.
+ *
+ * Rather than removing cached values when the underlying data changes, most cache keys embed a
+ * generation number, and a change just increments the relevant generation. The values cached
+ * under the old generation are never looked up again, and eventually fall out of memcache.
+ * There are generations for each living story, which cover everything derived from the story's
+ * content; for the players and concepts of each story, which its auto-linker is compiled from;
+ * for the related-content bundles of each player or contributor; for the list of stories; and
+ * for the start page.
+ *
+ * The most expensive values are loaded through getOrLoad, which makes sure that when many
+ * requests miss on the same key at once, only one of them does the work: other threads on the
+ * same instance wait for it, and other instances wait for it to show up in memcache.
+ *
+ * Cached values are shared, immutable snapshots: they're handed to concurrent requests without
+ * any locking, so callers must copy them rather than modify them.
  */
 public class Caches {
-  // Use a no-expiration memcache to store the most commonly used things.
-  private static final ServerCache noExpirationCache = new AppEngineCacheImpl(0);
+  private static final Logger logger = Logger.getLogger(Caches.class.getCanonicalName());
+
+  // Upper bound on the memory used by the in-process copies of cached values.
+  private static final long LOCAL_CACHE_BYTES = 32L * 1024 * 1024;
+
+  // How long, in seconds, an instance may serve a value from its own memory before checking
+  // memcache again. Values under generation-numbered keys never change, so they can be kept
+  // for a long time. It's the generation numbers themselves that have to be checked often, since
+  // they are what bounds staleness when another instance changes the underlying data.
+  private static final int DEFAULT_LOCAL_TTL_SECONDS = 300;
+  private static final ImmutableMap<String, Integer> LOCAL_TTL_SECONDS_BY_FAMILY =
+      ImmutableMap.of("generation", 1, "traffic", 60);
+
+  // Hits, misses, loads, value sizes and failures for all of the caches below, by key family.
+  private static final CacheStats cacheStats = new CacheStats();
+
+  // Use a no-expiration memcache to store the most commonly used things, with an in-process
+  // cache in front of it for the hottest values.
+  private static final ServerCache noExpirationCache = new TwoLevelCacheImpl(
+      new AppEngineCacheImpl(0, cacheStats), LOCAL_CACHE_BYTES, DEFAULT_LOCAL_TTL_SECONDS,
+      LOCAL_TTL_SECONDS_BY_FAMILY, cacheStats);
+
+  /**
+   * Returns this instance's cache activity since it started.
+   */
+  public static CacheStats getCacheStats() {
+    return cacheStats;
+  }
 
   public static void clearAll() {
     noExpirationCache.clear();
+    contentIndexes.clear();
+    searchIndexes.clear();
+    autoLinkers.clear();
   }
-  
+
+  /** Coalesced loading methods **/
+
+  // How long an instance may hold the right to load a key before others stop waiting for it.
+  private static final int LOAD_LEASE_SECONDS = 10;
+  // How often, and for how long, an instance that doesn't hold the lease checks memcache for
+  // the value before giving up and loading it itself.
+  private static final long LOAD_POLL_INTERVAL_MILLIS = 50;
+  private static final long LOAD_MAX_WAIT_MILLIS = 5000;
+
+  private static final ConcurrentMap<String, FutureTask<Object>> loadsInProgress =
+      new ConcurrentHashMap<String, FutureTask<Object>>();
+
+  /**
+   * A location in the cache. The key identifies the slot for coalescing purposes, and has to
+   * change whenever the data it's derived from does, so it should include the relevant
+   * generation. It's computed once, before loading, so a value that was loaded from old data is
+   * never stored under a newer generation.
+   */
+  private abstract static class CacheSlot<T> {
+    final String key;
+
+    public CacheSlot(String key) {
+      this.key = key;
+    }
+
+    public abstract T read();
+    public abstract void write(T value);
+  }
+
+  /**
+   * A slot that holds its value directly under its key in noExpirationCache.
+   */
+  private static class SimpleCacheSlot<T> extends CacheSlot<T> {
+    public SimpleCacheSlot(String key) {
+      super(key);
+    }
+
+    @Override
+    public T read() {
+      return noExpirationCache.<T>get(key);
+    }
+
+    @Override
+    public void write(T value) {
+      noExpirationCache.put(key, value);
+    }
+  }
+
+  /**
+   * Returns the value in slot, loading and storing it first if it isn't there. Concurrent
+   * callers for the same slot on this instance share a single load. Across instances, a
+   * memcache lease elects a single loader, and the rest poll memcache for its result for a
+   * while before falling back to loading the value themselves. Loaders must not return null.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T getOrLoad(final CacheSlot<T> slot, final Supplier<T> loader) {
+    T value = slot.read();
+    if (value != null) {
+      return value;
+    }
+
+    FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+      public Object call() {
+        return loadIntoSlot(slot, loader);
+      }
+    });
+    FutureTask<Object> existingTask = loadsInProgress.putIfAbsent(slot.key, task);
+    if (existingTask == null) {
+      try {
+        task.run();
+      } finally {
+        loadsInProgress.remove(slot.key, task);
+      }
+    } else {
+      task = existingTask;
+    }
+
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return (T) task.get();
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static <T> T loadIntoSlot(CacheSlot<T> slot, Supplier<T> loader) {
+    String leaseKey = "loadLease:" + slot.key;
+    if (noExpirationCache.putIfAbsent(leaseKey, Boolean.TRUE, LOAD_LEASE_SECONDS)) {
+      try {
+        T value = timeLoad(slot, loader);
+        slot.write(value);
+        return value;
+      } finally {
+        noExpirationCache.remove(leaseKey);
+      }
+    }
+
+    // Another instance is loading this value; give it a chance to finish.
+    long deadline = System.currentTimeMillis() + LOAD_MAX_WAIT_MILLIS;
+    try {
+      while (System.currentTimeMillis() < deadline) {
+        Thread.sleep(LOAD_POLL_INTERVAL_MILLIS);
+        T value = slot.read();
+        if (value != null) {
+          return value;
+        }
+      }
+      logger.info("Gave up waiting for another instance to load " + slot.key);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    T value = timeLoad(slot, loader);
+    slot.write(value);
+    return value;
+  }
+
+  private static <T> T timeLoad(CacheSlot<T> slot, Supplier<T> loader) {
+    long start = System.currentTimeMillis();
+    try {
+      return loader.get();
+    } finally {
+      cacheStats.forKey(slot.key).recordLoad(System.currentTimeMillis() - start);
+    }
+  }
+
+  /** Generation methods **/
+
+  /**
+   * Returns the current generation for the given scope. If memcache has lost track of it,
+   * the generation restarts at the current time, which is greater than any generation that
+   * could have been handed out before.
+   */
+  private static long getGeneration(String scope) {
+    String key = getGenerationCacheKey(scope);
+    Long generation = noExpirationCache.get(key);
+    if (generation == null) {
+      generation = noExpirationCache.increment(key, 0, System.currentTimeMillis());
+    }
+    return generation;
+  }
+
+  private static void incrementGeneration(String scope) {
+    noExpirationCache.increment(getGenerationCacheKey(scope), 1, System.currentTimeMillis());
+  }
+
+  private static String getGenerationCacheKey(String scope) {
+    return "generation:" + scope;
+  }
+
+  private static String getLivingStoryScope(Long livingStoryId) {
+    return "story:" + livingStoryId;
+  }
+
+  private static String getAutoLinkScope(Long livingStoryId) {
+    return "autoLink:" + livingStoryId;
+  }
+
+  private static String getRelatedContentItemsScope(Long contentItemId) {
+    return "related:" + contentItemId;
+  }
+
+  /** Traffic methods **/
+
+  // Story views are counted in hourly buckets. A story's recent traffic is the number of views
+  // in the current and the previous bucket.
+  private static final long TRAFFIC_BUCKET_MILLIS = 60 * 60 * 1000;
+
+  public static void recordLivingStoryView(Long livingStoryId) {
+    long bucket = System.currentTimeMillis() / TRAFFIC_BUCKET_MILLIS;
+    noExpirationCache.increment(getTrafficCacheKey(livingStoryId, bucket), 1, 0);
+  }
+
+  /**
+   * Returns the approximate number of times the story was viewed in the last hour or two.
+   * Counts live in memcache, so they start over whenever memcache is cleared.
+   */
+  public static long getRecentLivingStoryViews(Long livingStoryId) {
+    long bucket = System.currentTimeMillis() / TRAFFIC_BUCKET_MILLIS;
+    long views = 0;
+    for (long i = bucket - 1; i <= bucket; i++) {
+      Number count = noExpirationCache.get(getTrafficCacheKey(livingStoryId, i));
+      if (count != null) {
+        views += count.longValue();
+      }
+    }
+    return views;
+  }
+
+  private static String getTrafficCacheKey(Long livingStoryId, long bucket) {
+    return "traffic:" + livingStoryId + ":" + bucket;
+  }
+
   /** Living story cache methods */
 
   public static List<LivingStory> getLivingStories() {
     return noExpirationCache.get(getLivingStoryCacheKey());
   }
 
-  public static synchronized void setLivingStories(List<LivingStory> livingStories) {
+  public static void setLivingStories(List<LivingStory> livingStories) {
     noExpirationCache.put(getLivingStoryCacheKey(), livingStories);
   }
 
   public static void clearLivingStories() {
-    noExpirationCache.remove(getLivingStoryCacheKey());
+    incrementGeneration("allLivingStories");
   }
 
   private static String getLivingStoryCacheKey() {
-    return "allLivingStories";
+    return "allLivingStories:g" + getGeneration("allLivingStories");
+  }
+
+  /**
+   * Invalidates everything that's cached for the given story: its content items, themes,
+   * theme info, contributors and display bundles. This takes a single memcache operation.
+   */
+  public static void clearLivingStory(Long livingStoryId) {
+    incrementGeneration(getLivingStoryScope(livingStoryId));
+  }
+
+  private static String getLivingStoryKeyPrefix(String family, Long livingStoryId) {
+    return getLivingStoryKeyPrefix(family, livingStoryId,
+        getGeneration(getLivingStoryScope(livingStoryId)));
+  }
+
+  private static String getLivingStoryKeyPrefix(String family, Long livingStoryId,
+      long generation) {
+    return family + ":" + livingStoryId + ":g" + generation;
+  }
+
+  /**
+   * The cached content of a story at one generation. Values that aren't cached are null.
+   */
+  public static class LivingStoryContent {
+    public final Long livingStoryId;
+    public final long generation;
+    public final List<BaseContentItem> contentItems;
+    public final List<BaseContentItem> publishedContentItems;
+    public final List<Theme> themes;
+    public final Map<Long, ContentItemTypesBundle> themeInfo;
+    public final Map<Long, PlayerContentItem> contributors;
+
+    public LivingStoryContent(Long livingStoryId, long generation,
+        List<BaseContentItem> contentItems, List<BaseContentItem> publishedContentItems,
+        List<Theme> themes, Map<Long, ContentItemTypesBundle> themeInfo,
+        Map<Long, PlayerContentItem> contributors) {
+      this.livingStoryId = livingStoryId;
+      this.generation = generation;
+      this.contentItems = contentItems;
+      this.publishedContentItems = publishedContentItems;
+      this.themes = themes;
+      this.themeInfo = themeInfo;
+      this.contributors = contributors;
+    }
+  }
+
+  /**
+   * Returns what's currently cached for the given story, without loading anything.
+   */
+  public static LivingStoryContent getLivingStoryContent(Long livingStoryId) {
+    long generation = getGeneration(getLivingStoryScope(livingStoryId));
+    String contentItemsPrefix =
+        getLivingStoryKeyPrefix("livingStoryContentItems", livingStoryId, generation);
+    return new LivingStoryContent(livingStoryId, generation,
+        noExpirationCache.<List<BaseContentItem>>get(contentItemsPrefix + ":false"),
+        noExpirationCache.<List<BaseContentItem>>get(contentItemsPrefix + ":true"),
+        noExpirationCache.<List<Theme>>get(
+            getLivingStoryKeyPrefix("themes", livingStoryId, generation)),
+        noExpirationCache.<Map<Long, ContentItemTypesBundle>>get(
+            getLivingStoryKeyPrefix("themeinfo", livingStoryId, generation)),
+        noExpirationCache.<Map<Long, PlayerContentItem>>get(
+            getLivingStoryKeyPrefix("contributors", livingStoryId, generation)));
+  }
+
+  /**
+   * Invalidates everything that's cached for a story, like clearLivingStory, and then caches
+   * the non-null values of content under the new generation, so that readers don't have to
+   * rebuild them. The content must be the result of applying the change that's being made to
+   * what was cached at content.generation - 1. If the story was also changed by someone else
+   * in the meantime, the new generation won't be that one, and the content is dropped.
+   */
+  public static void replaceLivingStoryContent(LivingStoryContent content) {
+    long generation = noExpirationCache.increment(
+        getGenerationCacheKey(getLivingStoryScope(content.livingStoryId)), 1,
+        System.currentTimeMillis());
+    if (generation != content.generation) {
+      return;
+    }
+
+    Long livingStoryId = content.livingStoryId;
+    String contentItemsPrefix =
+        getLivingStoryKeyPrefix("livingStoryContentItems", livingStoryId, generation);
+    putIfNotNull(contentItemsPrefix + ":false", content.contentItems);
+    putIfNotNull(contentItemsPrefix + ":true", content.publishedContentItems);
+    putIfNotNull(getLivingStoryKeyPrefix("themes", livingStoryId, generation), content.themes);
+    putIfNotNull(getLivingStoryKeyPrefix("themeinfo", livingStoryId, generation),
+        content.themeInfo);
+    putIfNotNull(getLivingStoryKeyPrefix("contributors", livingStoryId, generation),
+        content.contributors);
+  }
+
+  private static void putIfNotNull(String key, Object value) {
+    if (value != null) {
+      noExpirationCache.put(key, value);
+    }
   }
 
 
   /** ContentItems for livingStory cache methods **/
 
+  /**
+   * Returns the cached content items of a story, calling loader to load them on a miss.
+   */
   public static List<BaseContentItem> getLivingStoryContentItems(Long livingStoryId,
+      boolean onlyPublished, Supplier<List<BaseContentItem>> loader) {
+    return getOrLoad(new SimpleCacheSlot<List<BaseContentItem>>(
+        getLivingStoryContentItemsCacheKey(livingStoryId, onlyPublished)), loader);
+  }
+
+  private static String getLivingStoryContentItemsCacheKey(Long livingStoryId,
       boolean onlyPublished) {
-    return noExpirationCache.get(getLivingStoryContentItemsCacheKey(livingStoryId, onlyPublished));
+    return getLivingStoryKeyPrefix("livingStoryContentItems", livingStoryId) + ":" + onlyPublished;
+  }
+
+
+  /** Process-local cache methods **/
+
+  /**
+   * A value that's only cached in process memory, along with the generation of the scope it
+   * was built in. Each story has one entry per cache, under a key without the generation, so
+   * that a rebuilt value replaces the stale one in place instead of having to win admission to
+   * the cache against it.
+   */
+  private static class LocalValue<T> {
+    public final long generation;
+    public final T value;
+
+    public LocalValue(long generation, T value) {
+      this.generation = generation;
+      this.value = value;
+    }
   }
 
-  public static void setLivingStoryContentItems(
-      Long livingStoryId, boolean onlyPublished, List<BaseContentItem> livingStoryContentItems) {
-    noExpirationCache.put(getLivingStoryContentItemsCacheKey(livingStoryId, onlyPublished),
-        livingStoryContentItems);
+  /**
+   * Returns the value cached locally under key if it was built in the given generation, and
+   * otherwise calls loader to build it.
+   */
+  private static <T> T getLocal(LRUCache<String, LocalValue<T>> cache, String key,
+      long generation, Supplier<T> loader) {
+    LocalValue<T> cached = cache.get(key);
+    if (cached != null && cached.generation == generation) {
+      cacheStats.forKey(key).recordLocalHit();
+      return cached.value;
+    }
+    cacheStats.forKey(key).recordMiss();
+    long start = System.currentTimeMillis();
+    T value = loader.get();
+    cacheStats.forKey(key).recordLoad(System.currentTimeMillis() - start);
+    cache.put(key, new LocalValue<T>(generation, value));
+    return value;
   }
 
-  public static void clearLivingStoryContentItems(Long livingStoryId) {
-    noExpirationCache.remove(getLivingStoryContentItemsCacheKey(livingStoryId, true));
-    noExpirationCache.remove(getLivingStoryContentItemsCacheKey(livingStoryId, false));
-    noExpirationCache.remove(getDisplayContentItemBundleCacheKey(livingStoryId));
-    noExpirationCache.remove(getContributorsForLivingStoryCacheKey(livingStoryId));
-    // also, in case any non-living-story-specific information was changed here; e.g., authorship
-    noExpirationCache.remove(getDisplayContentItemBundleCacheKey(null));
+
+  /** Content index cache methods **/
+
+  // Indexes are quick to rebuild from the cached content item lists, and would only double the
+  // size of what's stored in memcache, so they're only kept in process memory.
+  private static final int LOCAL_CONTENT_INDEX_COUNT = 100;
+  private static final LRUCache<String, LocalValue<StoryContentIndex>> contentIndexes =
+      new LRUCache<String, LocalValue<StoryContentIndex>>(LOCAL_CONTENT_INDEX_COUNT, null,
+          new LRUCache.EvictionListener<String>() {
+            public void onEviction(String key) {
+              cacheStats.forKey(key).recordEviction();
+            }
+          });
+
+  /**
+   * Returns the index of the story's current published content, calling loader to build it if
+   * this instance doesn't have it yet.
+   */
+  static StoryContentIndex getLivingStoryContentIndex(Long livingStoryId,
+      Supplier<StoryContentIndex> loader) {
+    return getLocal(contentIndexes, "contentIndex:" + livingStoryId,
+        getGeneration(getLivingStoryScope(livingStoryId)), loader);
   }
 
-  private static String getLivingStoryContentItemsCacheKey(Long livingStoryId,
-      boolean onlyPublished) {
-    return "livingStoryContentItems:" + livingStoryId + ":" + onlyPublished;
+
+  /** Search index cache methods **/
+
+  // Search indexes are much bigger than content indexes, and only used by editors, so fewer of
+  // them are kept. They're rebuilt from the stored search documents.
+  private static final int LOCAL_SEARCH_INDEX_COUNT = 20;
+  private static final LRUCache<String, LocalValue<ContentSearchIndex>> searchIndexes =
+      new LRUCache<String, LocalValue<ContentSearchIndex>>(LOCAL_SEARCH_INDEX_COUNT, null,
+          new LRUCache.EvictionListener<String>() {
+            public void onEviction(String key) {
+              cacheStats.forKey(key).recordEviction();
+            }
+          });
+
+  /**
+   * Returns the full-text index of the story's current content, calling loader to build it if
+   * this instance doesn't have it yet.
+   */
+  static ContentSearchIndex getLivingStorySearchIndex(Long livingStoryId,
+      Supplier<ContentSearchIndex> loader) {
+    return getLocal(searchIndexes, "searchIndex:" + livingStoryId,
+        getGeneration(getLivingStoryScope(livingStoryId)), loader);
   }
 
+  /** Auto-linker cache methods **/
+
+  // Auto-linkers are only needed when content is saved, and only change with a story's players
+  // and concepts, so they're kept in process memory under their own generation rather than the
+  // story's, which changes with every save.
+  private static final int LOCAL_AUTO_LINKER_COUNT = 20;
+  private static final LRUCache<String, LocalValue<AutoLinkEntitiesInContent>> autoLinkers =
+      new LRUCache<String, LocalValue<AutoLinkEntitiesInContent>>(LOCAL_AUTO_LINKER_COUNT, null,
+          new LRUCache.EvictionListener<String>() {
+            public void onEviction(String key) {
+              cacheStats.forKey(key).recordEviction();
+            }
+          });
+
+  /**
+   * Returns the auto-linker for the story's current players and concepts, calling loader to
+   * compile it if this instance doesn't have it yet.
+   */
+  static AutoLinkEntitiesInContent getAutoLinker(Long livingStoryId,
+      Supplier<AutoLinkEntitiesInContent> loader) {
+    return getLocal(autoLinkers, "autoLinker:" + livingStoryId,
+        getGeneration(getAutoLinkScope(livingStoryId)), loader);
+  }
+
+  public static void clearAutoLinker(Long livingStoryId) {
+    incrementGeneration(getAutoLinkScope(livingStoryId));
+  }
 
   /** Theme cache methods **/
 
@@ -101,106 +563,192 @@ public class Caches {
     noExpirationCache.put(getLivingStoryThemesCacheKey(livingStoryId), livingStoryThemes);
   }
 
-  public static void clearLivingStoryThemes(Long livingStoryId) {
-    noExpirationCache.remove(getLivingStoryThemesCacheKey(livingStoryId));
-  }
-
   private static String getLivingStoryThemesCacheKey(Long livingStoryId) {
-    return "themes:" + String.valueOf(livingStoryId);
+    return getLivingStoryKeyPrefix("themes", livingStoryId);
   }
 
   public static Map<Long, ContentItemTypesBundle> getLivingStoryThemeInfo(Long livingStoryId) {
     return noExpirationCache.get(getLivingStoryThemeInfoCacheKey(livingStoryId));
   }
-  
+
   public static void setLivingStoryThemeInfo(
       Long livingStoryId, Map<Long, ContentItemTypesBundle> themeInfo) {
     noExpirationCache.put(getLivingStoryThemeInfoCacheKey(livingStoryId), themeInfo);
   }
-  
-  public static void clearLivingStoryThemeInfo(Long livingStoryId) {
-    noExpirationCache.remove(getLivingStoryThemeInfoCacheKey(livingStoryId));
-  }
 
   private static String getLivingStoryThemeInfoCacheKey(Long livingStoryId) {
-    return "themeinfo:" + String.valueOf(livingStoryId);
+    return getLivingStoryKeyPrefix("themeinfo", livingStoryId);
   }
-  
+
   /** Contributor cache methods **/
-  
+
   public static Map<Long, PlayerContentItem> getContributorsForLivingStory(Long livingStoryId) {
     return noExpirationCache.get(getContributorsForLivingStoryCacheKey(livingStoryId));
   }
-  
+
   public static void setContributorsForLivingStory(
       Long livingStoryId, Map<Long, PlayerContentItem> contributors) {
     noExpirationCache.put(getContributorsForLivingStoryCacheKey(livingStoryId), contributors);
   }
-  
-  public static void clearContributorsForLivingStory(Long livingStoryId) {
-    noExpirationCache.remove(getContributorsForLivingStoryCacheKey(livingStoryId));
-  }
-  
+
   private static String getContributorsForLivingStoryCacheKey(Long livingStoryId) {
-    return "contributors:" + livingStoryId;
+    return getLivingStoryKeyPrefix("contributors", livingStoryId);
   }
-  
+
   /** Display content item bundle cache methods **/
-  
-  private static final int DISPLAY_CONTENT_ITEM_BUNDLE_CACHE_SIZE = 5;
-  
+
+  // The bundles for a story are stored together in a single memcache value, so their total
+  // size has to stay well below memcache's 1MB limit on values.
+  private static final long DISPLAY_CONTENT_ITEM_BUNDLE_CACHE_BYTES = 512 * 1024;
+
+  /**
+   * Returns the cached display bundle for the given view of a story, calling loader to build it
+   * on a miss.
+   */
+  public static DisplayContentItemBundle getDisplayContentItemBundle(Long livingStoryId,
+      FilterSpec filter, Long focusedContentItemId, Date cutoff,
+      Supplier<DisplayContentItemBundle> loader) {
+    return getOrLoad(new BundleCacheSlot(getDisplayContentItemBundleCacheKey(livingStoryId),
+        getDisplayContentItemBundleMapKey(filter, focusedContentItemId, cutoff)), loader);
+  }
+
+  /**
+   * Like the Date-based version, for bundles that continue from a cursor.
+   */
   public static DisplayContentItemBundle getDisplayContentItemBundle(Long livingStoryId,
-      FilterSpec filter, Long focusedContentItemId, Date cutoff) {
-    LRUCache<String, DisplayContentItemBundle> cache =
-        noExpirationCache.get(getDisplayContentItemBundleCacheKey(livingStoryId));
+      FilterSpec filter, Long focusedContentItemId, String cursor,
+      Supplier<DisplayContentItemBundle> loader) {
+    String mapKey = Joiner.on(":").useForNull("null").join(filter.getMapKeyString(),
+        focusedContentItemId, "cursor", cursor);
+    return getOrLoad(new BundleCacheSlot(getDisplayContentItemBundleCacheKey(livingStoryId),
+        mapKey), loader);
+  }
+
+  private static String getDisplayContentItemBundleCacheKey(Long livingStoryId) {
+    return getLivingStoryKeyPrefix("displayContentItemBundle", livingStoryId);
+  }
+
+  private static String getDisplayContentItemBundleMapKey(FilterSpec filter,
+      Long focusedContentItemId, Date cutoff) {
+    return Joiner.on(":").useForNull("null").join(filter.getMapKeyString(),
+        focusedContentItemId, (cutoff == null ? null : cutoff.getTime()));
+  }
+
+  /**
+   * Related content item bundles list the content that links to, or was contributed by, a
+   * player. They're cached per player, since they draw from all stories.
+   */
+  public static DisplayContentItemBundle getRelatedContentItemBundle(Long contentItemId,
+      FilterSpec filter, Date cutoff) {
+    return getBundle(getRelatedContentItemBundleCacheKey(contentItemId),
+        getDisplayContentItemBundleMapKey(filter, null, cutoff));
+  }
+
+  public static void setRelatedContentItemBundle(Long contentItemId, FilterSpec filter,
+      Date cutoff, DisplayContentItemBundle bundle) {
+    setBundle(getRelatedContentItemBundleCacheKey(contentItemId),
+        getDisplayContentItemBundleMapKey(filter, null, cutoff), bundle);
+  }
+
+  /**
+   * Invalidates the related content item bundles of each of the given content items.
+   */
+  public static void clearRelatedContentItemBundles(Collection<Long> contentItemIds) {
+    for (Long contentItemId : contentItemIds) {
+      incrementGeneration(getRelatedContentItemsScope(contentItemId));
+    }
+  }
+
+  private static String getRelatedContentItemBundleCacheKey(Long contentItemId) {
+    return "relatedContentItemBundle:" + contentItemId + ":g"
+        + getGeneration(getRelatedContentItemsScope(contentItemId));
+  }
+
+  /**
+   * A slot for one bundle within the per-story or per-player LRUCache of bundles.
+   */
+  private static class BundleCacheSlot extends CacheSlot<DisplayContentItemBundle> {
+    private final String cacheKey;
+    private final String mapKey;
+
+    public BundleCacheSlot(String cacheKey, String mapKey) {
+      super(cacheKey + "/" + mapKey);
+      this.cacheKey = cacheKey;
+      this.mapKey = mapKey;
+    }
+
+    @Override
+    public DisplayContentItemBundle read() {
+      return getBundle(cacheKey, mapKey);
+    }
+
+    @Override
+    public void write(DisplayContentItemBundle value) {
+      setBundle(cacheKey, mapKey, value);
+    }
+  }
+
+  private static DisplayContentItemBundle getBundle(String cacheKey, String mapKey) {
+    LRUCache<String, DisplayContentItemBundle> cache = noExpirationCache.get(cacheKey);
     if (cache != null) {
-      return cache.get(getDisplayContentItemBundleMapKey(filter, focusedContentItemId, cutoff));
+      return cache.get(mapKey);
     } else {
       return null;
     }
   }
 
-  public static void setDisplayContentItemBundle(Long livingStoryId,
-      FilterSpec filter, Long focusedContentItemId, Date cutoff, DisplayContentItemBundle bundle) {
-    String cacheKey = getDisplayContentItemBundleCacheKey(livingStoryId);
+  private static void setBundle(String cacheKey, String mapKey, DisplayContentItemBundle bundle) {
     LRUCache<String, DisplayContentItemBundle> cache = noExpirationCache.get(cacheKey);
     if (cache == null) {
       cache = new LRUCache<String, DisplayContentItemBundle>(
-          DISPLAY_CONTENT_ITEM_BUNDLE_CACHE_SIZE);
+          DISPLAY_CONTENT_ITEM_BUNDLE_CACHE_BYTES, new SerializedSizeWeigher());
     }
-    cache.put(getDisplayContentItemBundleMapKey(filter, focusedContentItemId, cutoff), bundle);
+    cache.put(mapKey, bundle);
     noExpirationCache.put(cacheKey, cache);
   }
 
-  public static void clearDisplayContentItemBundles(Long livingStoryId) {
-    noExpirationCache.remove(getDisplayContentItemBundleCacheKey(livingStoryId));
+  /**
+   * Weighs display bundles by their serialized size. Serializable because the LRUCache that
+   * uses it is itself stored in memcache.
+   */
+  private static class SerializedSizeWeigher
+      implements LRUCache.Weigher<DisplayContentItemBundle>, Serializable {
+    @Override
+    public int weigh(DisplayContentItemBundle bundle) {
+      return (int) Math.max(0, SerializationUtil.getSerializedSize(bundle));
+    }
   }
 
-  private static String getDisplayContentItemBundleCacheKey(Long livingStoryId) {
-    return "displayContentItemBundle:" + String.valueOf(livingStoryId);
-  }  
+  /** Diffed summary cache methods **/
 
-  private static String getDisplayContentItemBundleMapKey(FilterSpec filter,
-      Long focusedContentItemId, Date cutoff) {
-    return Joiner.on(":").useForNull("null").join(filter.getMapKeyString(),
-        focusedContentItemId, (cutoff == null ? null : cutoff.getTime()));
+  /**
+   * Returns a story's summary revision at currentRevisionTime, highlighted for a reader who last
+   * saw the revision at lastSeenRevisionTime, calling loader to diff them if that hasn't been
+   * done yet. lastSeenRevisionTime is null if the reader saw no summary at all. A pair of
+   * revisions always diffs the same way, so the key doesn't need a generation.
+   */
+  public static String getDiffedSummary(Long livingStoryId, Date currentRevisionTime,
+      Date lastSeenRevisionTime, Supplier<String> loader) {
+    return getOrLoad(new SimpleCacheSlot<String>("diffedSummary:" + livingStoryId + ":"
+        + currentRevisionTime.getTime() + ":"
+        + (lastSeenRevisionTime == null ? 0 : lastSeenRevisionTime.getTime())), loader);
   }
-  
+
   /** Start page cache methods **/
-  
+
   public static StartPageBundle getStartPageBundle() {
     return noExpirationCache.get(getStartPageBundleCacheKey());
   }
-  
+
   public static void setStartPageBundle(StartPageBundle bundle) {
     noExpirationCache.put(getStartPageBundleCacheKey(), bundle);
   }
-  
+
   public static void clearStartPageBundle() {
-    noExpirationCache.remove(getStartPageBundleCacheKey());
+    incrementGeneration("startpage");
   }
-  
+
   private static String getStartPageBundleCacheKey() {
-    return "startpage:";
+    return "startpage:g" + getGeneration("startpage");
   }
 }
@@ -17,18 +17,18 @@
 package com.google.livingstories.server.rpcimpl;
 
 import com.google.common.base.Function;
-import com.google.common.collect.HashMultimap;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 import com.google.livingstories.client.AssetContentItem;
 import com.google.livingstories.client.BackgroundContentItem;
 import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemSummary;
 import com.google.livingstories.client.ContentItemType;
+import com.google.livingstories.client.ContentItemTypesBundle;
 import com.google.livingstories.client.ContentRpcService;
 import com.google.livingstories.client.DisplayContentItemBundle;
 import com.google.livingstories.client.EventContentItem;
@@ -39,31 +39,26 @@ import com.google.livingstories.client.PlayerContentItem;
 import com.google.livingstories.client.PublishState;
 import com.google.livingstories.client.contentmanager.SearchTerms;
 import com.google.livingstories.client.util.GlobalUtil;
-import com.google.livingstories.client.util.SnippetUtil;
-import com.google.livingstories.client.util.dom.JavaNodeAdapter;
 import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
 import com.google.livingstories.server.dataservices.entities.LivingStoryEntity;
-import com.google.livingstories.server.dataservices.entities.UserLivingStoryEntity;
+import com.google.livingstories.server.dataservices.entities.LivingStoryUpdatesEntity;
 import com.google.livingstories.server.dataservices.impl.DataImplFactory;
 import com.google.livingstories.server.dataservices.impl.PMF;
-import com.google.livingstories.server.util.AlertSender;
-import com.google.livingstories.server.util.StringUtil;
+import com.google.livingstories.server.util.StripedLocks;
 import com.google.livingstories.servlet.ExternalServiceKeyChain;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
@@ -80,16 +75,57 @@ import javax.servlet.http.HttpServletRequest;
 public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcService {
   public static final int CONTENT_ITEM_COUNT_LIMIT = 20;  
   public static final int JUMP_TO_CONTENT_ITEM_CONTEXT_COUNT = 3;
-  private static final int EMAIL_ALERT_SNIPPET_LENGTH = 500;
   
   private static final Logger logger =
       Logger.getLogger(ContentRpcImpl.class.getCanonicalName());
   
-  private InternetAddress cachedFromAddress = null;
-  private String cachedPublisherName = null;
+  // Concurrent requests may both initialize these, but they'd compute the same values.
+  private volatile InternetAddress cachedFromAddress = null;
+  private volatile String cachedPublisherName = null;
+
+  private final EmailAlerts emailAlerts = new EmailAlerts();
+  private final AutoLinkJobs autoLinkJobs = new AutoLinkJobs();
+
+  // Reads don't take any locks: the values they get from the caches are snapshots that nobody
+  // modifies, and everything else comes straight from the datastore. Writes to the content of
+  // a story are serialized per story, so that their datastore updates and cache invalidations
+  // don't interleave.
+  static final StripedLocks livingStoryWriteLocks = new StripedLocks(64);
+
+  // Number of latest updates shown for each story on the start page.
+  private static final int START_PAGE_UPDATE_COUNT = 3;
+
+  // The most content item summaries returned by a single call, to bound the size of a response.
+  private static final int MAX_SUMMARY_PAGE_SIZE = 500;
+
+  /**
+   * Orders content items the way getContentItemsForLivingStory returns them, by descending
+   * timestamp. Content items without a timestamp go last.
+   */
+  private static final Comparator<BaseContentItem> NEWEST_FIRST =
+      new Comparator<BaseContentItem>() {
+        public int compare(BaseContentItem lhs, BaseContentItem rhs) {
+          Date lhsTimestamp = lhs.getTimestamp();
+          Date rhsTimestamp = rhs.getTimestamp();
+          if (lhsTimestamp == null || rhsTimestamp == null) {
+            return lhsTimestamp == rhsTimestamp ? 0 : (lhsTimestamp == null ? 1 : -1);
+          }
+          return rhsTimestamp.compareTo(lhsTimestamp);
+        }
+      };
 
   @Override
-  public synchronized BaseContentItem createOrChangeContentItem(BaseContentItem contentItem) {
+  public BaseContentItem createOrChangeContentItem(BaseContentItem contentItem) {
+    Lock lock = livingStoryWriteLocks.getLock(contentItem.getLivingStoryId());
+    lock.lock();
+    try {
+      return saveContentItem(contentItem);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private BaseContentItem saveContentItem(BaseContentItem contentItem) {
     // Get the list of content items to link within the content first so that if there is an
     // exception with the queries, it doesn't affect the saving of the content entity. Except for
     // unassigned content items and player content items, because we don't auto-link from their
@@ -97,13 +133,11 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     boolean runAutoLink = contentItem.getLivingStoryId() != null 
         && contentItem.getContentItemType() != ContentItemType.PLAYER
         && !GlobalUtil.isContentEmpty(contentItem.getContent());
-    List<PlayerContentItem> playerContentItems = null;
-    List<BackgroundContentItem> concepts = null;
+    AutoLinkEntitiesInContent autoLinker = null;
     
     try {
       if (runAutoLink) {
-        playerContentItems = getPlayers(contentItem.getLivingStoryId());
-        concepts = getConcepts(contentItem.getLivingStoryId());
+        autoLinker = getAutoLinker(contentItem.getLivingStoryId());
       }
     } catch (Exception e) {
       logger.warning("Skipping auto-linking. Error with retrieving players or concepts."
@@ -115,21 +149,32 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     Transaction tx = null;
     BaseContentEntity contentEntity;
     PublishState oldPublishState = null;
+    List<String> oldAutoLinkNames = ImmutableList.of();
     
     Set<Long> newLinkedContentItemSuggestions = null;
     
+    // What the entity looked like before the change matters for updating caches, too.
+    Set<Long> affectedLivingStoryIds = Sets.newHashSet();
+    Set<Long> relatedContentItemIds = Sets.newHashSet();
+    boolean affectsStartPage = false;
+    // Other entities whose client objects change as a side effect of this save.
+    List<BaseContentEntity> otherChangedContentEntities = Lists.newArrayList();
+    
     try {
       if (contentItem.getId() != null) {
         contentEntity = pm.getObjectById(BaseContentEntity.class, contentItem.getId());
         oldPublishState = contentEntity.getPublishState();
+        affectedLivingStoryIds.add(contentEntity.getLivingStoryId());
+        relatedContentItemIds.addAll(getRelatedContentItemIds(contentEntity));
+        affectsStartPage = appearsOnStartPage(contentEntity);
+        oldAutoLinkNames = getAutoLinkNames(contentEntity);
         contentEntity.copyFields(contentItem);
       } else {
         contentEntity = BaseContentEntity.fromClientObject(contentItem);
       }
       
       if (runAutoLink) {
-        newLinkedContentItemSuggestions = 
-            AutoLinkEntitiesInContent.createLinks(contentEntity, playerContentItems, concepts);
+        newLinkedContentItemSuggestions = autoLinker.createLinks(contentEntity);
       }
 
       tx = pm.currentTransaction();
@@ -155,15 +200,20 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
         @SuppressWarnings("unchecked")
         Collection<BaseContentEntity> linkedContentEntities = pm.getObjectsById(oids);
         for (BaseContentEntity linkedContentEntity : linkedContentEntities) {
-          if (linkedContentEntity.getContentItemType() == ContentItemType.NARRATIVE) {
+          if (linkedContentEntity.getContentItemType() == ContentItemType.NARRATIVE
+              && linkedContentEntity.isStandalone()) {
             linkedContentEntity.setIsStandalone(false);
+            otherChangedContentEntities.add(linkedContentEntity);
+            affectedLivingStoryIds.add(linkedContentEntity.getLivingStoryId());
           }
         }
       }
 
       // TODO: may also want to invalidate linked content items if they changed
       // and aren't from the same living story.
-      invalidateCache(contentItem.getLivingStoryId());
+      affectedLivingStoryIds.add(contentEntity.getLivingStoryId());
+      relatedContentItemIds.addAll(getRelatedContentItemIds(contentEntity));
+      affectsStartPage |= appearsOnStartPage(contentEntity);
     } finally {
       if (tx != null && tx.isActive()) {
         tx.rollback();
@@ -171,11 +221,36 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
       pm.close();
     }
     
+    List<BaseContentItem> savedContentItems = Lists.newArrayList(contentEntity.toClientObject());
+    for (BaseContentEntity otherChangedContentEntity : otherChangedContentEntities) {
+      savedContentItems.add(otherChangedContentEntity.toClientObject());
+    }
+    updateCaches(affectedLivingStoryIds, getIds(savedContentItems), savedContentItems,
+        relatedContentItemIds, affectsStartPage,
+        getAutoLinkerLivingStoryIds(contentEntity, affectedLivingStoryIds));
+    
+    // If other content can now be linked to a player or concept it couldn't be linked to before,
+    // relink the existing content in the background: of the story, or, for a global player, of
+    // every story that uses it.
+    if (!oldAutoLinkNames.containsAll(getAutoLinkNames(contentEntity))) {
+      Set<Long> relinkedLivingStoryIds = contentEntity.getLivingStoryId() == null
+          ? getLivingStoryIdsUsingPlayer(contentEntity.getId())
+          : Collections.singleton(contentEntity.getLivingStoryId());
+      for (Long livingStoryId : relinkedLivingStoryIds) {
+        try {
+          autoLinkJobs.startJob(livingStoryId);
+        } catch (RuntimeException e) {
+          logger.warning("Couldn't start relinking story " + livingStoryId + ": "
+              + e.getMessage());
+        }
+      }
+    }
+
     // Send email alerts if an event content item was changed from 'Draft' to 'Published'
     if (contentEntity.getContentItemType() == ContentItemType.EVENT
         && contentEntity.getPublishState() == PublishState.PUBLISHED
         && oldPublishState != null && oldPublishState == PublishState.DRAFT) {
-      sendEmailAlerts((EventContentItem)contentItem);
+      sendEmailAlerts(contentEntity);
     }
 
     // We pass suggested new linked content items back to the client by adding their ids to the
@@ -192,12 +267,88 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     return ret;
   }
   
+  /**
+   * Returns the auto-linker for the story's current players and concepts.
+   */
+  static AutoLinkEntitiesInContent getAutoLinker(final Long livingStoryId) {
+    return Caches.getAutoLinker(livingStoryId, new Supplier<AutoLinkEntitiesInContent>() {
+      public AutoLinkEntitiesInContent get() {
+        return new AutoLinkEntitiesInContent(getPlayers(livingStoryId),
+            getConcepts(livingStoryId));
+      }
+    });
+  }
+
+  /**
+   * Returns the names that other content is auto-linked to the content entity by, which are
+   * none unless it's a published player or concept.
+   */
+  private static List<String> getAutoLinkNames(BaseContentEntity contentEntity) {
+    if (!isAutoLinkTarget(contentEntity)
+        || contentEntity.getPublishState() != PublishState.PUBLISHED
+        || GlobalUtil.isContentEmpty(contentEntity.getName())) {
+      return ImmutableList.of();
+    }
+    List<String> names = Lists.newArrayList(contentEntity.getName());
+    if (contentEntity.getContentItemType() == ContentItemType.PLAYER) {
+      names.addAll(contentEntity.getAliases());
+    }
+    return names;
+  }
+
+  /**
+   * Returns the stories whose auto-linkers have to be recompiled when the content entity, which
+   * is or was in the given stories, is saved or deleted. Story players are linked to by the name
+   * and aliases of their global player, so a change to a global player affects every story that
+   * has a story player for it.
+   */
+  private static Set<Long> getAutoLinkerLivingStoryIds(BaseContentEntity contentEntity,
+      Set<Long> livingStoryIds) {
+    Set<Long> autoLinkerLivingStoryIds = Sets.newHashSet();
+    if (isAutoLinkTarget(contentEntity)) {
+      autoLinkerLivingStoryIds.addAll(livingStoryIds);
+      if (contentEntity.getLivingStoryId() == null) {
+        autoLinkerLivingStoryIds.addAll(getLivingStoryIdsUsingPlayer(contentEntity.getId()));
+      }
+    }
+    return autoLinkerLivingStoryIds;
+  }
+
+  /**
+   * Returns the ids of the stories that have a story player for the given global player.
+   */
+  static Set<Long> getLivingStoryIdsUsingPlayer(Long playerId) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(BaseContentEntity.class);
+    query.setFilter("parentPlayerContentEntityId == playerIdParam");
+    query.declareParameters("java.lang.Long playerIdParam");
+    query.setResult("livingStoryId");
+    try {
+      @SuppressWarnings("unchecked")
+      List<Long> livingStoryIds = (List<Long>) query.execute(playerId);
+      return Sets.newHashSet(livingStoryIds);
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+
+  /**
+   * Returns whether the content entity is one that other content can be auto-linked to, so that
+   * changing it means recompiling the auto-linkers that include it.
+   */
+  private static boolean isAutoLinkTarget(BaseContentEntity contentEntity) {
+    ContentItemType contentItemType = contentEntity.getContentItemType();
+    return contentItemType == ContentItemType.PLAYER
+        || contentItemType == ContentItemType.BACKGROUND;
+  }
+
   @Override
   public List<PlayerContentItem> getUnassignedPlayers() {
     return getPlayers(null);
   }
   
-  private List<PlayerContentItem> getPlayers(Long livingStoryId) {
+  private static List<PlayerContentItem> getPlayers(Long livingStoryId) {
     List<BaseContentEntity> playerEntities =
         getPublishedContentEntitiesByType(livingStoryId, ContentItemType.PLAYER);
     List<PlayerContentItem> playerContentItems = Lists.newArrayList();
@@ -207,7 +358,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     return playerContentItems;
   }
   
-  private List<BackgroundContentItem> getConcepts(Long livingStoryId) {
+  private static List<BackgroundContentItem> getConcepts(Long livingStoryId) {
     List<BaseContentEntity> backgroundEntities = 
         getPublishedContentEntitiesByType(livingStoryId, ContentItemType.BACKGROUND);
     List<BackgroundContentItem> backgroundContentItems = Lists.newArrayList();
@@ -219,7 +370,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     return backgroundContentItems;
   }
   
-  private List<BaseContentEntity> getPublishedContentEntitiesByType(Long livingStoryId,
+  private static List<BaseContentEntity> getPublishedContentEntitiesByType(Long livingStoryId,
       ContentItemType contentItemType) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     
@@ -240,62 +391,51 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     }
   }
   
-  private void sendEmailAlerts(EventContentItem eventContentItem) {
+  /**
+   * Queues up an email alert about a newly published event for the subscribers of its story.
+   * The emails are sent in the background, by {@link EmailAlerts}.
+   */
+  private void sendEmailAlerts(BaseContentEntity eventEntity) {
+    // getServletContext() doesn't return a valid result at construction-time, so
+    // we initialize the external properties lazily.
+    if (cachedFromAddress == null && cachedPublisherName == null) {
+      ExternalServiceKeyChain externalKeys = new ExternalServiceKeyChain(getServletContext());
+      cachedPublisherName = externalKeys.getPublisherName();
+      cachedFromAddress = externalKeys.getFromAddress();
+    }
+    if (cachedFromAddress == null) {
+      return;
+    }
+
     PersistenceManager pm = PMF.get().getPersistenceManager();
-    
-    // Get list of users
-    Query query = pm.newQuery(UserLivingStoryEntity.class); 
-    query.setFilter("livingStoryId == livingStoryIdParam && subscribedToEmails == true");
-    query.declareParameters("long livingStoryIdParam");
-    
     try {
-      @SuppressWarnings("unchecked")
-      List<UserLivingStoryEntity> userLivingStoryEntities =
-          (List<UserLivingStoryEntity>) query.execute(eventContentItem.getLivingStoryId());
-      Multimap<String, String> usersByLocale = HashMultimap.create();
-      for (UserLivingStoryEntity entity : userLivingStoryEntities) {
-        usersByLocale.put(entity.getSubscriptionLocale(), entity.getParentEmailAddress());
-      }
+      // Determine what all the placeholder text should be for the per-locale e-mails.
+      // This needs the current request, so it can't be left to the background task.
+      LivingStoryEntity livingStory = pm.getObjectById(LivingStoryEntity.class,
+          eventEntity.getLivingStoryId());
+      String baseLspUrl = getBaseServerUrl() + "/lsps/" + livingStory.getUrl();
       
-      if (!usersByLocale.isEmpty()) {
-        // Determine what all the placeholder text should be for the per-locale e-mails.
-
-        // getServletContext() doesn't return a valid result at construction-time, so
-        // we initialize the external properties lazily.
-        if (cachedFromAddress == null && cachedPublisherName == null) {
-          ExternalServiceKeyChain externalKeys = new ExternalServiceKeyChain(getServletContext());
-          cachedPublisherName = externalKeys.getPublisherName();
-          cachedFromAddress = externalKeys.getFromAddress();
-        }
-       
-        LivingStoryEntity livingStory = pm.getObjectById(LivingStoryEntity.class,
-            eventContentItem.getLivingStoryId());
-        String baseLspUrl = getBaseServerUrl() + "/lsps/" + livingStory.getUrl();
-        
-        String eventSummary = eventContentItem.getEventSummary();
-        String eventDetails = eventContentItem.getContent();
-        if (GlobalUtil.isContentEmpty(eventSummary) 
-            && !GlobalUtil.isContentEmpty(eventDetails)) {
-          eventSummary = SnippetUtil.createSnippet(JavaNodeAdapter.fromHtml(eventDetails), 
-              EMAIL_ALERT_SNIPPET_LENGTH);
-        }
-
-        ImmutableMap<String, String> placeholderMap = new ImmutableMap.Builder<String, String>()
-            .put("storyTitle", livingStory.getTitle())
-            .put("updateTitle", eventContentItem.getEventUpdate())
-            .put("publisherName", cachedPublisherName)
-            .put("snippet", StringUtil.stripForExternalSites(eventSummary))
-            .put("linkUrl", baseLspUrl + "#OVERVIEW:false,false,false,false,n,n,n:"
-                + eventContentItem.getId())
-            .put("loginUrl", DataImplFactory.getUserLoginService().createLoginUrl(baseLspUrl))
-            .build();
-       
-        for (String locale : usersByLocale.keySet()) {
-          sendEmailsForLocale(placeholderMap, locale, usersByLocale.get(locale));
-        }
+      // The external versions of the summary and snippet were worked out when the event was
+      // saved.
+      String snippet = eventEntity.getExternalSummary();
+      if (GlobalUtil.isContentEmpty(snippet)
+          && !GlobalUtil.isContentEmpty(eventEntity.getContent())) {
+        snippet = eventEntity.getExternalSnippet();
       }
+
+      Map<String, String> placeholderMap = Maps.newHashMap();
+      placeholderMap.put("storyTitle", livingStory.getTitle());
+      placeholderMap.put("updateTitle", eventEntity.getEventUpdate());
+      placeholderMap.put("publisherName", cachedPublisherName);
+      placeholderMap.put("snippet", snippet);
+      placeholderMap.put("linkUrl", baseLspUrl + "#OVERVIEW:false,false,false,false,n,n,n:"
+          + eventEntity.getId());
+      placeholderMap.put("loginUrl",
+          DataImplFactory.getUserLoginService().createLoginUrl(baseLspUrl));
+
+      emailAlerts.enqueueAlert(eventEntity.getLivingStoryId(), eventEntity.getId(),
+          cachedFromAddress, placeholderMap);
     } finally {
-      query.closeAll();
       pm.close();
     }
   }
@@ -306,74 +446,19 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     return url.substring(0, url.length() - request.getRequestURI().length());
   }
 
-  private void sendEmailsForLocale(
-      Map<String, String> placeholderMap, String localeString, Collection<String> recipients) {
-    // We reconstruct the Locale from the locale string. This ignores the possibility that
-    // a language variant is being specified, a script is being specified, etc.
-    // TODO: fix that.
-    Locale locale = Locale.ENGLISH;
-    if (!localeString.isEmpty()) {
-      String[] splitRes = localeString.split("_");
-      locale = splitRes.length == 1 ? new Locale(splitRes[0])
-          : new Locale(splitRes[0], splitRes[1]);
-    }
-    
-    ResourceBundle emailBundle = ResourceBundle.getBundle(
-        "com.google.livingstories.server.rpcimpl.emailTemplate", locale);
-
-    String subject = emailBundle.getString("updateEmailSubject")
-        .replace("{0}", placeholderMap.get("storyTitle"));
-
-    // get the template in the .properties file, converting to the format expected by
-    // java.util.Formatter. A simple replaceAll won't suffice here 'cause the source format
-    // is 0-indexed, but the target format is 1-indexed. We use a StringBuffer below rather
-    // than a StringBuilder because Matcher is only compatible with the former.
-    StringBuffer sb = new StringBuffer();
-    Pattern p = Pattern.compile("\\{(\\d+)\\}");
-    Matcher m = p.matcher(emailBundle.getString("updateEmailTemplate"));
-    while (m.find()) {
-      int num = Integer.parseInt(m.group(1));
-      m.appendReplacement(sb, "%" + (num + 1) + "\\$s");
-    }
-    m.appendTail(sb);
-    
-    String template = sb.toString();
-    
-    // Some parts of this template aren't necessary if certain placeholders are blank.
-    // Do some replacement logic to correct this. Note the reluctant quantifiers.
-    String publisherName = placeholderMap.get("publisherName");
-    if (GlobalUtil.isContentEmpty(publisherName)) {
-      template = template.replaceFirst("<span class=\"p_span\".*?</span>", "");
-    }
-    String snippet = placeholderMap.get("snippet");
-    if (snippet == null || snippet.isEmpty()) {
-      template = template.replaceFirst("<div class=\"s_div\".*?</div>", "");
-    }
-
-    // The transformations above may have taken some of these placeholders out of the
-    // template, but that's okay!
-    String body = String.format(template,
-        placeholderMap.get("updateTitle"),
-        publisherName,
-        snippet,
-        placeholderMap.get("linkUrl"),
-        placeholderMap.get("loginUrl"));
-
-    if (cachedFromAddress != null) {
-      AlertSender.sendEmail(cachedFromAddress, recipients, subject, body);
-    }
-  }
-  
-  @SuppressWarnings("unchecked")
   @Override
-  public synchronized List<BaseContentItem> getContentItemsForLivingStory(
+  public List<BaseContentItem> getContentItemsForLivingStory(
+      final Long livingStoryId, final boolean onlyPublished) {
+    return Caches.getLivingStoryContentItems(livingStoryId, onlyPublished,
+        new Supplier<List<BaseContentItem>>() {
+          public List<BaseContentItem> get() {
+            return loadContentItemsForLivingStory(livingStoryId, onlyPublished);
+          }
+        });
+  }
+
+  private List<BaseContentItem> loadContentItemsForLivingStory(
       Long livingStoryId, boolean onlyPublished) {
-    List<BaseContentItem> contentItems =
-        Caches.getLivingStoryContentItems(livingStoryId, onlyPublished);
-    if (contentItems != null) {
-      return contentItems;
-    }
- 
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(BaseContentEntity.class);
     query.setFilter("livingStoryId == livingStoryIdParam"
@@ -389,13 +474,20 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
       for (BaseContentEntity result : results) {
         clientContentItems.add(result.toClientObject());
       }
-      Caches.setLivingStoryContentItems(livingStoryId, onlyPublished, clientContentItems);
       return clientContentItems;
     } finally {
       query.closeAll();
       pm.close();
     }
   }
+
+  @Override
+  public List<ContentItemSummary> getContentItemSummariesForLivingStory(Long livingStoryId,
+      boolean onlyPublished, int start, int count) {
+    return DataImplFactory.getContentService().retrieveSummariesByLivingStory(livingStoryId,
+        onlyPublished ? PublishState.PUBLISHED : null, Math.max(start, 0),
+        Math.min(Math.max(count, 0), MAX_SUMMARY_PAGE_SIZE));
+  }
     
   /**
    * Gets the eventBundle for a given date range within a living story. 
@@ -410,60 +502,93 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
    * @return an appropriate DisplayContentItemBundle
    */
   @Override
-  public synchronized DisplayContentItemBundle getDisplayContentItemBundle(Long livingStoryId,
-      FilterSpec filterSpec, Long focusedContentItemId, Date cutoff) {
+  public DisplayContentItemBundle getDisplayContentItemBundle(
+      final Long livingStoryId, final FilterSpec filterSpec, final Long focusedContentItemId,
+      final Date cutoff) {
+    checkRemoteFilterSpec(filterSpec);
+    return Caches.getDisplayContentItemBundle(livingStoryId, filterSpec, focusedContentItemId,
+        cutoff, new Supplier<DisplayContentItemBundle>() {
+          public DisplayContentItemBundle get() {
+            return buildDisplayContentItemBundle(
+                livingStoryId, filterSpec, focusedContentItemId, false, cutoff, null);
+          }
+        });
+  }
+
+  /**
+   * Gets a page of the content items of a living story. Unlike the Date-based version, pages
+   * have a fixed size, and the bundle includes a cursor for the next page, from which the next
+   * call continues without skipping or repeating content items that share a date.
+   * @param cursor the next cursor of the previous page, or null for the first page. A malformed
+   * cursor is treated like null.
+   */
+  @Override
+  public DisplayContentItemBundle getDisplayContentItemBundle(
+      final Long livingStoryId, final FilterSpec filterSpec, final Long focusedContentItemId,
+      String cursor) {
+    checkRemoteFilterSpec(filterSpec);
+    if (cursor != null && !StoryContentIndex.isValidCursor(cursor)) {
+      logger.warning("Ignoring malformed cursor " + cursor);
+      cursor = null;
+    }
+    final String startCursor = cursor;
+    return Caches.getDisplayContentItemBundle(livingStoryId, filterSpec, focusedContentItemId,
+        startCursor, new Supplier<DisplayContentItemBundle>() {
+          public DisplayContentItemBundle get() {
+            return buildDisplayContentItemBundle(
+                livingStoryId, filterSpec, focusedContentItemId, true, null, startCursor);
+          }
+        });
+  }
+  
+  private void checkRemoteFilterSpec(FilterSpec filterSpec) {
     if (filterSpec.contributorId != null || filterSpec.playerId != null) {
       throw new IllegalArgumentException(
           "filterSpec.contributorId and filterSpec.playerId should not be set by remote callers."
           + " contributorId = " + filterSpec.contributorId + " playerId = "+ filterSpec.playerId);
     }
-    DisplayContentItemBundle result = Caches.getDisplayContentItemBundle(
-        livingStoryId, filterSpec, focusedContentItemId, cutoff);
-    if (result != null) {
-      return result;
-    }
-    
+  }
+
+  /**
+   * Builds a display bundle that starts either at a cutoff date, or, if pageByCursor is set,
+   * at a cursor.
+   */
+  private DisplayContentItemBundle buildDisplayContentItemBundle(Long livingStoryId,
+      FilterSpec filterSpec, Long focusedContentItemId, boolean pageByCursor, Date cutoff,
+      String cursor) {
     FilterSpec localFilterSpec = new FilterSpec(filterSpec);
+    StoryContentIndex index = getContentIndexForLivingStory(livingStoryId);
     
     BaseContentItem focusedContentItem = null;
     if (focusedContentItemId != null) {
-      focusedContentItem = getContentItem(focusedContentItemId, false);
+      focusedContentItem = index.getContentItem(focusedContentItemId);
+      if (focusedContentItem == null) {
+        // It's not published, but it still determines the filter.
+        focusedContentItem = getContentItem(focusedContentItemId, false);
+      }
       if (focusedContentItem != null) {
         if (adjustFilterSpecForContentItem(localFilterSpec, focusedContentItem)) {
           // If we had to adjust the filter spec to accommodate the focused content item,
           // we'll be switching filter views, so we want to clear the start date
           // and reload the list from the beginning.
           cutoff = null;
+          cursor = null;
         }
       }
     }
     
-    // Some preliminaries. Note that the present implementation just filters all content items for
-    // a story, which could be a bit expensive if there's a cache miss. By and large, though,
-    // we'd expect a lot more cache hits than cache misses, unlike the case with, say,
-    // a twitter "following" feed, which is more likely to be unique to that user.
-    List<BaseContentItem> allContentItems = getContentItemsForLivingStory(livingStoryId, true);
-    
-    Map<Long, BaseContentItem> idToContentItemMap = Maps.newHashMap();
-    List<BaseContentItem> relevantContentItems = Lists.newArrayList();
-    for (BaseContentItem contentItem : allContentItems) {
-      idToContentItemMap.put(contentItem.getId(), contentItem);
-      
-      Date sortKey = contentItem.getDateSortKey();
-      boolean matchesStartDate = (cutoff == null) ||
-          (localFilterSpec.oldestFirst ? !sortKey.before(cutoff) : !sortKey.after(cutoff));
-
-      if (matchesStartDate && localFilterSpec.doesContentItemMatch(contentItem)) {
-        relevantContentItems.add(contentItem);
-      }
+    // The index gives us the matching content items in sorted order without looking at the
+    // rest, so that even a miss on the bundle cache is cheap.
+    StoryContentIndex.Matches relevantContentItems = pageByCursor
+        ? index.query(localFilterSpec, cursor) : index.query(localFilterSpec, cutoff);
+    Integer focusedIndex = null;
+    if (focusedContentItemId != null && index.getContentItem(focusedContentItemId) != null) {
+      focusedIndex = relevantContentItems.indexOfId(focusedContentItemId);
     }
-    sortContentItemList(relevantContentItems, localFilterSpec);
-
-    // Need to get the focused content item from the map instead of using the object directly.
-    // This is because we use indexOf() to find the location of the focused content item in the
-    // list and the original contentItem isn't the same object instance.
-    List<BaseContentItem> coreContentItems = getSublist(relevantContentItems,
-        focusedContentItem == null ? null : idToContentItemMap.get(focusedContentItemId), cutoff);
+    // Pages that start at a cursor don't need to include every content item that shares the
+    // last one's date, since the next page will start at exactly the right content item.
+    List<BaseContentItem> coreContentItems = getSublist(relevantContentItems, focusedIndex,
+        pageByCursor ? cursor != null : cutoff != null, !pageByCursor);
     Set<Long> linkedContentItemIds = Sets.newHashSet();
     
     for (BaseContentItem contentItem : coreContentItems) {
@@ -476,7 +601,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
 
     Set<BaseContentItem> linkedContentItems = Sets.newHashSet();
     for (Long id : linkedContentItemIds) {
-      BaseContentItem linkedContentItem = idToContentItemMap.get(id);
+      BaseContentItem linkedContentItem = index.getContentItem(id);
       if (linkedContentItem == null) {
         System.err.println("Linked content item with id " + id + " is not found.");
       } else {
@@ -485,7 +610,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
         if (linkedContentItem.getContentItemType() == ContentItemType.NARRATIVE) {
           for (Long linkedToLinkedContentItemId : linkedContentItem.getLinkedContentItemIds()) {
             BaseContentItem linkedToLinkedContentItem =
-                idToContentItemMap.get(linkedToLinkedContentItemId);
+                index.getContentItem(linkedToLinkedContentItemId);
             if (linkedToLinkedContentItem != null) {
               linkedContentItems.add(linkedToLinkedContentItem);
             }
@@ -495,12 +620,21 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     }
     
     Date nextDateInSequence = getNextDateInSequence(coreContentItems, relevantContentItems);
+    String nextCursor = null;
+    if (pageByCursor && coreContentItems.size() < relevantContentItems.size()) {
+      nextCursor = relevantContentItems.getCursor(coreContentItems.size());
+    }
 
-    result = new DisplayContentItemBundle(coreContentItems, linkedContentItems, nextDateInSequence,
-        localFilterSpec);
-    Caches.setDisplayContentItemBundle(livingStoryId, filterSpec, focusedContentItemId, cutoff,
-        result);
-    return result;
+    return new DisplayContentItemBundle(coreContentItems, linkedContentItems, nextDateInSequence,
+        nextCursor, localFilterSpec);
+  }
+
+  private StoryContentIndex getContentIndexForLivingStory(final Long livingStoryId) {
+    return Caches.getLivingStoryContentIndex(livingStoryId, new Supplier<StoryContentIndex>() {
+      public StoryContentIndex get() {
+        return new StoryContentIndex(getContentItemsForLivingStory(livingStoryId, true));
+      }
+    });
   }
 
   /**
@@ -538,23 +672,30 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
         filterSpec.oldestFirst ? BaseContentItem.COMPARATOR : BaseContentItem.REVERSE_COMPARATOR);
   }
   
+  /**
+   * Returns the content items to show from the start of allContentItems.
+   * @param focusedIndex null if there's no focused content item; otherwise, its index in
+   *    allContentItems, or -1 if it's not in the list
+   * @param appending whether the content items will be appended to ones the client already has
+   * @param extendOverEqualDates whether to include all content items that share the date of
+   *    the last one
+   */
   private List<BaseContentItem> getSublist(List<BaseContentItem> allContentItems,
-      BaseContentItem focusedContentItem, Date cutoff) {
+      Integer focusedIndex, boolean appending, boolean extendOverEqualDates) {
     int contentItemLimit;
-    if (focusedContentItem == null) {
+    if (focusedIndex == null) {
       contentItemLimit = CONTENT_ITEM_COUNT_LIMIT;
     } else {
-      contentItemLimit =
-          allContentItems.indexOf(focusedContentItem) + 1 + JUMP_TO_CONTENT_ITEM_CONTEXT_COUNT;
+      contentItemLimit = focusedIndex + 1 + JUMP_TO_CONTENT_ITEM_CONTEXT_COUNT;
       // If we are not appending content items and there are less than 20 results because of a
       // focussed content item, bump the limit up to 20
-      if (cutoff == null && contentItemLimit < CONTENT_ITEM_COUNT_LIMIT) {
+      if (!appending && contentItemLimit < CONTENT_ITEM_COUNT_LIMIT) {
         contentItemLimit = CONTENT_ITEM_COUNT_LIMIT;
       }
     }
     contentItemLimit = Math.min(allContentItems.size(), contentItemLimit);
 
-    while (contentItemLimit < allContentItems.size() - 1) {
+    while (extendOverEqualDates && contentItemLimit < allContentItems.size() - 1) {
       Date thisContentItemDate = allContentItems.get(contentItemLimit).getDateSortKey();
       Date nextContentItemDate = allContentItems.get(contentItemLimit + 1).getDateSortKey();
       if (!thisContentItemDate.equals(nextContentItemDate)) {
@@ -587,7 +728,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
   }
   
   @Override
-  public synchronized BaseContentItem getContentItem(Long id, boolean getLinkedContentItems) {
+  public BaseContentItem getContentItem(Long id, boolean getLinkedContentItems) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     
     try {
@@ -605,7 +746,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
   
   @SuppressWarnings("unchecked")
   @Override
-  public synchronized List<BaseContentItem> getContentItems(Collection<Long> ids) {
+  public List<BaseContentItem> getContentItems(Collection<Long> ids) {
     if (ids.isEmpty()) {
       return new ArrayList<BaseContentItem>();
     }
@@ -629,7 +770,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
   }
 
   @Override
-  public synchronized DisplayContentItemBundle getRelatedContentItems(
+  public DisplayContentItemBundle getRelatedContentItems(
       Long contentItemId, boolean byContribution, Date cutoff) {
     // translate contentItemId and byContribution into an appropriate FilterSpec, which we use
     // to respond from cache instead of by making fresh queries.
@@ -640,7 +781,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
       filterSpec.playerId = contentItemId;
     }
     DisplayContentItemBundle result =
-        Caches.getDisplayContentItemBundle(null, filterSpec, null, cutoff);
+        Caches.getRelatedContentItemBundle(contentItemId, filterSpec, cutoff);
     if (result != null) {
       return result;
     }
@@ -670,12 +811,13 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
       
       // sort and put a window on the list, get the next date in the sequence
       sortContentItemList(relevantContentItems, filterSpec);
-      List<BaseContentItem> coreContentItems = getSublist(relevantContentItems, null, cutoff); 
+      List<BaseContentItem> coreContentItems =
+          getSublist(relevantContentItems, null, cutoff != null, true);
       Date nextDateInSequence = getNextDateInSequence(coreContentItems, relevantContentItems);
       
       result = new DisplayContentItemBundle(coreContentItems,
           Collections.<BaseContentItem>emptySet(), nextDateInSequence, filterSpec);
-      Caches.setDisplayContentItemBundle(null, filterSpec, null, cutoff, result);
+      Caches.setRelatedContentItemBundle(contentItemId, filterSpec, cutoff, result);
       return result;
     } finally {
       query.closeAll();
@@ -683,6 +825,81 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     }
   }
   
+  /**
+   * Performs a content entity query given a set of search filter terms. If the terms include
+   * text, the story's content items are looked up in its full-text index, and returned best
+   * match first; otherwise they're queried from the datastore, newest first. Either way, only
+   * the page of results that the terms ask for is returned.
+   */
+  @Override
+  public List<BaseContentItem> executeSearch(SearchTerms searchTerms) {
+    if (searchTerms.text == null || searchTerms.text.trim().length() == 0) {
+      return executeStructuredSearch(searchTerms);
+    }
+    List<BaseContentItem> results = executeTextSearch(searchTerms);
+    if (searchTerms.count <= 0) {
+      return results;
+    }
+    int start = Math.min(searchTerms.start, results.size());
+    return new ArrayList<BaseContentItem>(
+        results.subList(start, Math.min(start + searchTerms.count, results.size())));
+  }
+
+  private List<BaseContentItem> executeTextSearch(SearchTerms searchTerms) {
+    final Long livingStoryId = searchTerms.livingStoryId;
+    final List<BaseContentItem> contentItems =
+        getContentItemsForLivingStory(livingStoryId, false);
+    ContentSearchIndex index = Caches.getLivingStorySearchIndex(livingStoryId,
+        new Supplier<ContentSearchIndex>() {
+          public ContentSearchIndex get() {
+            return new ContentSearchIndex(
+                SearchDocuments.loadForLivingStory(livingStoryId, contentItems));
+          }
+        });
+
+    Map<Long, BaseContentItem> contentItemsById = Maps.newHashMap();
+    for (BaseContentItem contentItem : contentItems) {
+      contentItemsById.put(contentItem.getId(), contentItem);
+    }
+    List<BaseContentItem> results = Lists.newArrayList();
+    for (Long id : index.search(searchTerms.text)) {
+      BaseContentItem contentItem = contentItemsById.get(id);
+      if (contentItem != null && matchesSearchTerms(contentItem, searchTerms)) {
+        results.add(contentItem);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Returns whether a content item passes the filters of executeStructuredSearch.
+   */
+  private static boolean matchesSearchTerms(BaseContentItem contentItem,
+      SearchTerms searchTerms) {
+    Date timestamp = contentItem.getTimestamp();
+    ContentItemType contentItemType = contentItem.getContentItemType();
+    if (contentItem.getPublishState() != searchTerms.publishState
+        || (searchTerms.beforeDate != null
+            && (timestamp == null || !timestamp.before(searchTerms.beforeDate)))
+        || (searchTerms.afterDate != null
+            && (timestamp == null || timestamp.before(searchTerms.afterDate)))
+        || (searchTerms.importance != null
+            && contentItem.getImportance() != searchTerms.importance)
+        || (searchTerms.contentItemType != null
+            && contentItemType != searchTerms.contentItemType)) {
+      return false;
+    }
+    if (contentItemType == ContentItemType.PLAYER && searchTerms.playerType != null) {
+      return ((PlayerContentItem) contentItem).getPlayerType() == searchTerms.playerType;
+    } else if (contentItemType == ContentItemType.ASSET && searchTerms.assetType != null) {
+      return ((AssetContentItem) contentItem).getAssetType() == searchTerms.assetType;
+    } else if (contentItemType == ContentItemType.NARRATIVE
+        && searchTerms.narrativeType != null) {
+      return ((NarrativeContentItem) contentItem).getNarrativeType() == searchTerms.narrativeType;
+    }
+    return true;
+  }
+
   /**
    * Performs a content entity query given a set of search filter terms.
    * 
@@ -698,8 +915,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
    * - LivingStoryId/PublishState/Timestamp/Importance/ContentItemType/AssetType
    * - LivingStoryId/PublishState/Timestamp/Importance/ContentItemType/NarrativeType
    */
-  @Override
-  public List<BaseContentItem> executeSearch(SearchTerms searchTerms) {
+  private List<BaseContentItem> executeStructuredSearch(SearchTerms searchTerms) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
 
     Query query = pm.newQuery(BaseContentEntity.class);
@@ -740,6 +956,9 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     query.setFilter(queryFilters.toString());
     query.declareParameters("java.util.Date beforeDateParam, java.util.Date afterDateParam");
     query.setOrdering("timestamp desc");
+    if (searchTerms.count > 0) {
+      query.setRange(searchTerms.start, searchTerms.start + searchTerms.count);
+    }
 
     try {
       List<BaseContentItem> clientContentItems = new ArrayList<BaseContentItem>();
@@ -760,40 +979,236 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
 
   
   @Override
-  public synchronized void deleteContentItem(final Long id) {
-    PersistenceManager pm = PMF.get().getPersistenceManager();
-
+  public void deleteContentItem(final Long id) {
+    Lock lock = null;
     try {
-      BaseContentEntity contentEntity = pm.getObjectById(BaseContentEntity.class, id);
+      PersistenceManager pm = PMF.get().getPersistenceManager();
+      Set<Long> affectedLivingStoryIds = Sets.newHashSet();
+      Set<Long> relatedContentItemIds;
+      boolean affectsStartPage;
+      Set<Long> autoLinkerLivingStoryIds;
+      // Entities that referred to the deleted one, by id, since the same entity may be found by
+      // both queries below.
+      Map<Long, BaseContentEntity> referringContentEntities = Maps.newHashMap();
 
-      updateContentEntityReferencesHelper(pm, "linkedContentEntityIds", id,
-          new Function<BaseContentEntity, Void>() {
-            public Void apply(BaseContentEntity contentEntity) { 
-              contentEntity.removeLinkedContentEntityId(id); return null;
-            }
-          });
-
-      // If deleting a contributor as well, update relevant contributor ids too.
-      if (contentEntity.getContentItemType() == ContentItemType.PLAYER) {
-        updateContentEntityReferencesHelper(pm, "contributorIds", id,
-            new Function<BaseContentEntity, Void>() {
-              public Void apply(BaseContentEntity contentEntity) {
-                contentEntity.removeContributorId(id); return null;
+      try {
+        BaseContentEntity contentEntity = pm.getObjectById(BaseContentEntity.class, id);
+        lock = livingStoryWriteLocks.getLock(contentEntity.getLivingStoryId());
+        lock.lock();
+
+        referringContentEntities.putAll(updateContentEntityReferencesHelper(pm,
+            "linkedContentEntityIds", id, new Function<BaseContentEntity, Void>() {
+              public Void apply(BaseContentEntity contentEntity) { 
+                contentEntity.removeLinkedContentEntityId(id); return null;
               }
-            });
+            }));
+
+        // If deleting a contributor as well, update relevant contributor ids too.
+        if (contentEntity.getContentItemType() == ContentItemType.PLAYER) {
+          referringContentEntities.putAll(updateContentEntityReferencesHelper(pm,
+              "contributorIds", id, new Function<BaseContentEntity, Void>() {
+                public Void apply(BaseContentEntity contentEntity) {
+                  contentEntity.removeContributorId(id); return null;
+                }
+              }));
+        }
+        
+        affectedLivingStoryIds.add(contentEntity.getLivingStoryId());
+        relatedContentItemIds = getRelatedContentItemIds(contentEntity);
+        affectsStartPage = appearsOnStartPage(contentEntity);
+        autoLinkerLivingStoryIds =
+            getAutoLinkerLivingStoryIds(contentEntity, affectedLivingStoryIds);
+        pm.deletePersistent(contentEntity);
+      } finally {
+        pm.close();
       }
-      
-      invalidateCache(contentEntity.getLivingStoryId());
-      pm.deletePersistent(contentEntity);
+
+      // Update the caches only after the delete, so that a concurrent read can't cache the
+      // deleted item again under the new generation.
+      List<BaseContentItem> savedContentItems = Lists.newArrayList();
+      for (BaseContentEntity referringContentEntity : referringContentEntities.values()) {
+        savedContentItems.add(referringContentEntity.toClientObject());
+        affectedLivingStoryIds.add(referringContentEntity.getLivingStoryId());
+      }
+      Set<Long> changedContentItemIds = getIds(savedContentItems);
+      changedContentItemIds.add(id);
+      updateCaches(affectedLivingStoryIds, changedContentItemIds, savedContentItems,
+          relatedContentItemIds, affectsStartPage, autoLinkerLivingStoryIds);
     } finally {
-      pm.close();
+      if (lock != null) {
+        lock.unlock();
+      }
+    }
+  }
+  
+  /**
+   * Updates the cached data that a change to content can affect: the content of the given
+   * stories, the related-content bundles of the given content item ids, and, if asked to, the
+   * start page, along with the stories' stored start page updates, and the given stories'
+   * auto-linkers. The search documents of the changed content items are rewritten too.
+   * @param livingStoryIds the stories whose content changed
+   * @param changedContentItemIds the ids of all content items that were saved or deleted
+   * @param savedContentItems the new versions of the content items that were saved
+   * @param autoLinkerLivingStoryIds the stories whose players or concepts changed
+   */
+  private void updateCaches(Set<Long> livingStoryIds, Set<Long> changedContentItemIds,
+      List<BaseContentItem> savedContentItems, Set<Long> relatedContentItemIds,
+      boolean affectsStartPage, Set<Long> autoLinkerLivingStoryIds) {
+    SearchDocuments.update(changedContentItemIds, savedContentItems);
+    for (Long livingStoryId : livingStoryIds) {
+      updateCachedLivingStory(livingStoryId, changedContentItemIds, savedContentItems);
+    }
+    Caches.clearRelatedContentItemBundles(relatedContentItemIds);
+    for (Long livingStoryId : autoLinkerLivingStoryIds) {
+      Caches.clearAutoLinker(livingStoryId);
+    }
+    if (affectsStartPage) {
+      for (Long livingStoryId : livingStoryIds) {
+        if (livingStoryId != null) {
+          refreshLatestUpdates(livingStoryId, changedContentItemIds, savedContentItems);
+        }
+      }
+      Caches.clearStartPageBundle();
+    }
+  }
+  
+  /**
+   * Brings the cached content of a story up to date with a change to some content items,
+   * without reloading the rest of the story from the datastore. Content items with the changed
+   * ids are taken out of the cached lists, and the saved content items that belong to the story
+   * are put back in, in sorted position. The theme info and contributors are then recomputed
+   * from the patched list in memory, and only contributors that weren't cached yet are fetched.
+   * The story's display bundles are invalidated, as they are cheap to rebuild from the list.
+   */
+  private void updateCachedLivingStory(Long livingStoryId, Set<Long> changedContentItemIds,
+      List<BaseContentItem> savedContentItems) {
+    Caches.LivingStoryContent cached = Caches.getLivingStoryContent(livingStoryId);
+    
+    List<BaseContentItem> storyContentItems = Lists.newArrayList();
+    for (BaseContentItem contentItem : savedContentItems) {
+      Long contentItemLivingStoryId = contentItem.getLivingStoryId();
+      if (livingStoryId == null ? contentItemLivingStoryId == null
+          : livingStoryId.equals(contentItemLivingStoryId)) {
+        storyContentItems.add(contentItem);
+      }
+    }
+    
+    List<BaseContentItem> contentItems = patchContentItemList(
+        cached.contentItems, changedContentItemIds, storyContentItems, false);
+    List<BaseContentItem> publishedContentItems = patchContentItemList(
+        cached.publishedContentItems, changedContentItemIds, storyContentItems, true);
+    Map<Long, ContentItemTypesBundle> themeInfo = null;
+    Map<Long, PlayerContentItem> contributors = null;
+    if (publishedContentItems != null) {
+      if (cached.themes != null) {
+        themeInfo = LivingStoryRpcImpl.buildThemeInfo(cached.themes, publishedContentItems);
+      }
+      if (cached.contributors != null) {
+        contributors = patchContributors(cached.contributors, publishedContentItems,
+            savedContentItems);
+      }
+    }
+    
+    Caches.replaceLivingStoryContent(new Caches.LivingStoryContent(livingStoryId,
+        cached.generation + 1, contentItems, publishedContentItems, cached.themes, themeInfo,
+        contributors));
+  }
+  
+  /**
+   * Returns a copy of a cached content item list, sorted newest first, with the changed content
+   * items taken out and the saved ones inserted. Returns null if cachedList is null.
+   */
+  private static List<BaseContentItem> patchContentItemList(List<BaseContentItem> cachedList,
+      Set<Long> changedContentItemIds, List<BaseContentItem> savedContentItems,
+      boolean onlyPublished) {
+    if (cachedList == null) {
+      return null;
+    }
+    List<BaseContentItem> result =
+        new ArrayList<BaseContentItem>(cachedList.size() + savedContentItems.size());
+    for (BaseContentItem contentItem : cachedList) {
+      if (!changedContentItemIds.contains(contentItem.getId())) {
+        result.add(contentItem);
+      }
+    }
+    for (BaseContentItem contentItem : savedContentItems) {
+      if (!onlyPublished || contentItem.getPublishState() == PublishState.PUBLISHED) {
+        int index = Collections.binarySearch(result, contentItem, NEWEST_FIRST);
+        result.add(index < 0 ? -index - 1 : index, contentItem);
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Returns the contributors of the given published content items, reusing the cached player
+   * objects where possible, except for players that were just saved.
+   */
+  private Map<Long, PlayerContentItem> patchContributors(
+      Map<Long, PlayerContentItem> cachedContributors,
+      List<BaseContentItem> publishedContentItems, List<BaseContentItem> savedContentItems) {
+    Map<Long, BaseContentItem> savedContentItemsById = Maps.newHashMap();
+    for (BaseContentItem contentItem : savedContentItems) {
+      savedContentItemsById.put(contentItem.getId(), contentItem);
+    }
+    
+    Map<Long, PlayerContentItem> result = new HashMap<Long, PlayerContentItem>();
+    Set<Long> missingContributorIds = Sets.newHashSet();
+    for (BaseContentItem contentItem : publishedContentItems) {
+      for (Long contributorId : contentItem.getContributorIds()) {
+        BaseContentItem savedContentItem = savedContentItemsById.get(contributorId);
+        if (savedContentItem != null
+            && savedContentItem.getContentItemType() == ContentItemType.PLAYER) {
+          result.put(contributorId, (PlayerContentItem) savedContentItem);
+        } else if (savedContentItem == null && cachedContributors.containsKey(contributorId)) {
+          result.put(contributorId, cachedContributors.get(contributorId));
+        } else {
+          missingContributorIds.add(contributorId);
+        }
+      }
+    }
+    missingContributorIds.removeAll(result.keySet());
+    
+    for (BaseContentItem contributor : getContentItems(missingContributorIds)) {
+      if (contributor.getContentItemType() == ContentItemType.PLAYER) {
+        result.put(contributor.getId(), (PlayerContentItem) contributor);
+      } else {
+        logger.warning("Contributor id " + contributor.getId() + " does not map to a player");
+      }
     }
+    return result;
   }
   
-  private void invalidateCache(Long livingStoryId) {
-    Caches.clearLivingStoryContentItems(livingStoryId);
-    Caches.clearLivingStoryThemeInfo(livingStoryId);
-    Caches.clearStartPageBundle();
+  private static Set<Long> getIds(Collection<BaseContentItem> contentItems) {
+    Set<Long> ids = Sets.newHashSet();
+    for (BaseContentItem contentItem : contentItems) {
+      ids.add(contentItem.getId());
+    }
+    return ids;
+  }
+  
+  /**
+   * Returns the ids of the players whose related-content bundles may include contentEntity.
+   * A player's own id is included so that changes to it also reach those bundles.
+   */
+  private static Set<Long> getRelatedContentItemIds(BaseContentEntity contentEntity) {
+    Set<Long> ids = contentEntity.getLinkedContentEntityIds();
+    ids.addAll(contentEntity.getContributorIds());
+    if (contentEntity.getContentItemType() == ContentItemType.PLAYER
+        && contentEntity.getId() != null) {
+      ids.add(contentEntity.getId());
+    }
+    return ids;
+  }
+  
+  /**
+   * Returns whether contentEntity can be one of the story updates shown on the start page.
+   */
+  private static boolean appearsOnStartPage(BaseContentEntity contentEntity) {
+    ContentItemType contentItemType = contentEntity.getContentItemType();
+    return contentEntity.getPublishState() == PublishState.PUBLISHED
+        && (contentItemType == ContentItemType.EVENT
+            || contentItemType == ContentItemType.NARRATIVE);
   }
   
   /**
@@ -802,19 +1217,23 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
    * @param relevantField relevant field name for the query
    * @param removeFunc a Function to apply to the results of the query
    * @param id the id of the to-be-deleted content entity
+   * @return the updated content entities, by id
    */
-  private void updateContentEntityReferencesHelper(PersistenceManager pm, String relevantField,
-      Long id, Function<BaseContentEntity, Void> removeFunc) {
+  private Map<Long, BaseContentEntity> updateContentEntityReferencesHelper(PersistenceManager pm,
+      String relevantField, Long id, Function<BaseContentEntity, Void> removeFunc) {
     Query query = pm.newQuery(BaseContentEntity.class);
     query.setFilter(relevantField + " == contentItemIdParam");
     query.declareParameters("java.lang.Long contentItemIdParam");
     try {
       @SuppressWarnings("unchecked")
       List<BaseContentEntity> results = (List<BaseContentEntity>) query.execute(id);
+      Map<Long, BaseContentEntity> updatedContentEntities = Maps.newHashMap();
       for (BaseContentEntity result : results) {
         removeFunc.apply(result);
+        updatedContentEntities.put(result.getId(), result);
       }
       pm.makePersistentAll(results);
+      return updatedContentEntities;
     } finally {
       query.closeAll();
     }
@@ -850,18 +1269,40 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
   }
   
   @Override
-  public synchronized Integer getUpdateCountSinceTime(Long livingStoryId, Date time) {
+  public Integer getUpdateCountSinceTime(Long livingStoryId, Date time) {
+    // The index is built from the cached content of the story, so this usually doesn't need
+    // the datastore at all.
+    return getContentIndexForLivingStory(livingStoryId).countUpdatesSince(time);
+  }
+  
+  @Override
+  public List<BaseContentItem> getUpdatesSinceTime(Long livingStoryId, Date time) {
+    List<BaseContentItem> updates = new ArrayList<BaseContentItem>();
+    for (BaseContentEntity entity : getUpdateEntitiesSinceTime(livingStoryId, time)) {
+      updates.add(entity.toClientObject());
+    }
+    return updates;
+  }
+
+  /**
+   * Returns the entities of the updates that getUpdatesSinceTime returns, for callers on the
+   * server that also need what's derived from them, such as their external summaries.
+   */
+  public List<BaseContentEntity> getUpdateEntitiesSinceTime(Long livingStoryId, Date time) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
 
     List<Query> updateQueries = getUpdateQueries(pm, time, 0);
     
     try {
-      int result = 0;
+      List<BaseContentEntity> updates = new ArrayList<BaseContentEntity>();
       for (Query query : updateQueries) {
-        query.setResult("count(id)");
-        result += (Integer) query.execute(livingStoryId, time);
+        @SuppressWarnings("unchecked")
+        List<BaseContentEntity> results = 
+            (List<BaseContentEntity>) query.execute(livingStoryId, time);
+        pm.retrieveAll(results);
+        updates.addAll(results);
       }
-      return result;
+      return updates;
     } finally {
       for (Query query : updateQueries) {
         query.closeAll();
@@ -870,52 +1311,149 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     }
   }
   
-  @Override
-  public List<BaseContentItem> getUpdatesSinceTime(Long livingStoryId, Date time) {
+  /**
+   * Return the latest 3 updates on top-level display items for each of the given stories, sorted
+   * in reverse-chronological order, by living story id. The updates are read from the stories'
+   * LivingStoryUpdatesEntity records with one query and one batch fetch, however many stories
+   * there are. Stories that don't have a record yet get one, computed from their content.
+   */
+  public Map<Long, List<BaseContentItem>> getUpdatesForStartPage(
+      Collection<Long> livingStoryIds) {
+    Map<Long, List<Long>> updateIdsByStory = Maps.newHashMap();
     PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(LivingStoryUpdatesEntity.class);
+    try {
+      @SuppressWarnings("unchecked")
+      List<LivingStoryUpdatesEntity> records = (List<LivingStoryUpdatesEntity>) query.execute();
+      for (LivingStoryUpdatesEntity record : records) {
+        updateIdsByStory.put(record.getLivingStoryId(), record.getLatestUpdateIds());
+      }
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
 
-    List<Query> updateQueries = getUpdateQueries(pm, time, 0);
+    Map<Long, List<BaseContentItem>> updatesByStory = Maps.newHashMap();
+    Set<Long> allUpdateIds = Sets.newHashSet();
+    for (Long livingStoryId : livingStoryIds) {
+      List<Long> updateIds = updateIdsByStory.get(livingStoryId);
+      if (updateIds == null) {
+        updatesByStory.put(livingStoryId, refreshLatestUpdates(livingStoryId));
+      } else {
+        allUpdateIds.addAll(updateIds);
+      }
+    }
+    
+    Map<Long, BaseContentItem> updatesById = getExistingContentItems(allUpdateIds);
+    boolean someUpdatesMissing = updatesById.size() != allUpdateIds.size();
     
+    for (Long livingStoryId : livingStoryIds) {
+      if (!updatesByStory.containsKey(livingStoryId)) {
+        List<Long> updateIds = updateIdsByStory.get(livingStoryId);
+        if (someUpdatesMissing && !updatesById.keySet().containsAll(updateIds)) {
+          // Content was deleted without going through deleteContentItem, e.g. with the GQL
+          // servlet, so this story's record is out of date.
+          logger.warning("Rebuilding start page updates for story " + livingStoryId
+              + ", some of its updates no longer exist");
+          updatesByStory.put(livingStoryId, refreshLatestUpdates(livingStoryId));
+        } else {
+          List<BaseContentItem> updates = new ArrayList<BaseContentItem>();
+          for (Long updateId : updateIds) {
+            updates.add(updatesById.get(updateId));
+          }
+          updatesByStory.put(livingStoryId, updates);
+        }
+      }
+    }
+    return updatesByStory;
+  }
+
+  /**
+   * Returns the content items with the given ids, by id, leaving out the ones that don't exist.
+   * The items are fetched in one batch; only if some of them are missing are they fetched one
+   * at a time to find out which.
+   */
+  private Map<Long, BaseContentItem> getExistingContentItems(Collection<Long> ids) {
+    Map<Long, BaseContentItem> contentItemsById = Maps.newHashMap();
+    if (ids.isEmpty()) {
+      return contentItemsById;
+    }
+
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    List<Object> oids = new ArrayList<Object>(ids.size());
+    for (Long id : ids) {
+      oids.add(pm.newObjectIdInstance(BaseContentEntity.class, id));
+    }
+
     try {
-      List<BaseContentItem> updates = new ArrayList<BaseContentItem>();
-      for (Query query : updateQueries) {
-        @SuppressWarnings("unchecked")
-        List<BaseContentEntity> results = 
-            (List<BaseContentEntity>) query.execute(livingStoryId, time);
-        for (BaseContentEntity result : results) {
-          updates.add(result.toClientObject());
+      try {
+        for (Object result : pm.getObjectsById(oids)) {
+          BaseContentItem contentItem = ((BaseContentEntity) result).toClientObject();
+          contentItemsById.put(contentItem.getId(), contentItem);
+        }
+      } catch (JDOObjectNotFoundException e) {
+        contentItemsById.clear();
+        for (Long id : ids) {
+          try {
+            contentItemsById.put(id, pm.getObjectById(BaseContentEntity.class, id)
+                .toClientObject());
+          } catch (JDOObjectNotFoundException e2) {
+            // Left out of the results.
+          }
         }
       }
-      return updates;
+      return contentItemsById;
     } finally {
-      for (Query query : updateQueries) {
-        query.closeAll();
-      }
       pm.close();
     }
   }
+
+  private List<BaseContentItem> refreshLatestUpdates(Long livingStoryId) {
+    return refreshLatestUpdates(livingStoryId, Collections.<Long>emptySet(),
+        Collections.<BaseContentItem>emptyList());
+  }
   
   /**
-   * Return the latest 3 updates on top-level display items for a story, sorted in reverse-
-   * chronological order.
+   * Recomputes and stores the start page updates of a story, and returns them.
+   * Queries may not reflect a change that was just made, so content items with the given
+   * changed ids are left out of the query results, and the saved versions of content items are
+   * considered in their place.
    */
-  public List<BaseContentItem> getUpdatesForStartPage(Long livingStoryId) {
+  private List<BaseContentItem> refreshLatestUpdates(Long livingStoryId,
+      Set<Long> changedContentItemIds, List<BaseContentItem> savedContentItems) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
-    List<Query> updateQueries = getUpdateQueries(pm, null, 3);
+    // Ask for enough results to make up for the ones that may be left out.
+    List<Query> updateQueries = getUpdateQueries(pm, null,
+        START_PAGE_UPDATE_COUNT + changedContentItemIds.size());
     try {
       List<BaseContentItem> updates = new ArrayList<BaseContentItem>();
-      // Get the latest 3 events and latest 3 narratives and then return the latest 3 items
-      // from those 6 because there is no way to do one appengine query for that
+      // Get the latest events and latest narratives and then keep the latest 3 items from those
+      // because there is no way to do one appengine query for that
       for (Query query : updateQueries) {
         @SuppressWarnings("unchecked")
         List<BaseContentEntity> results = (List<BaseContentEntity>) query.execute(livingStoryId);
         for (BaseContentEntity result : results) {
-          updates.add(result.toClientObject());
+          if (!changedContentItemIds.contains(result.getId())) {
+            updates.add(result.toClientObject());
+          }
+        }
+      }
+      for (BaseContentItem contentItem : savedContentItems) {
+        if (isStartPageUpdate(contentItem, livingStoryId)) {
+          updates.add(contentItem);
         }
       }
       Collections.sort(updates, BaseContentItem.REVERSE_COMPARATOR);
-      // Just return the latest 3 updates
-      return new ArrayList<BaseContentItem>(updates.subList(0, Math.min(3, updates.size())));
+      updates = new ArrayList<BaseContentItem>(
+          updates.subList(0, Math.min(START_PAGE_UPDATE_COUNT, updates.size())));
+      
+      List<Long> updateIds = new ArrayList<Long>();
+      for (BaseContentItem update : updates) {
+        updateIds.add(update.getId());
+      }
+      pm.makePersistent(new LivingStoryUpdatesEntity(livingStoryId, updateIds,
+          updates.isEmpty() ? null : updates.get(0).getTimestamp()));
+      return updates;
     } finally {
       for (Query query : updateQueries) {
         query.closeAll();
@@ -924,6 +1462,30 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     }
   }
   
+  private static boolean isStartPageUpdate(BaseContentItem contentItem, Long livingStoryId) {
+    ContentItemType contentItemType = contentItem.getContentItemType();
+    return livingStoryId.equals(contentItem.getLivingStoryId())
+        && contentItem.getPublishState() == PublishState.PUBLISHED
+        && (contentItemType == ContentItemType.EVENT
+            || (contentItemType == ContentItemType.NARRATIVE
+                && ((NarrativeContentItem) contentItem).isStandalone()));
+  }
+  
+  /**
+   * Deletes the stored start page updates of a story.
+   */
+  public void deleteLatestUpdates(Long livingStoryId) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      pm.deletePersistent(pm.getObjectById(LivingStoryUpdatesEntity.class,
+          LivingStoryUpdatesEntity.createKey(livingStoryId)));
+    } catch (JDOObjectNotFoundException e) {
+      // The story never made it to the start page; nothing to delete.
+    } finally {
+      pm.close();
+    }
+  }
+  
   @Override
   public List<EventContentItem> getImportantEventsForLivingStory(Long livingStoryId) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
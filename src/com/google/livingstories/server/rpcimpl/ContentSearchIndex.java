@@ -0,0 +1,498 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.livingstories.client.AssetContentItem;
+import com.google.livingstories.client.BackgroundContentItem;
+import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.EventContentItem;
+import com.google.livingstories.client.NarrativeContentItem;
+import com.google.livingstories.client.PlayerContentItem;
+import com.google.livingstories.server.util.CompressionUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Full-text index over the content items of one story, for the content manager's search.
+ *
+ * The text of a content item is split into three fields: its headline, i.e. an event's update,
+ * a narrative's headline, a player's name and aliases or a concept's name; its summary; and its
+ * body. Words are the runs of letters and digits in the text, after HTML tags are taken out,
+ * lowercased. For each word, the index keeps the content items that contain it, with the
+ * positions at which it occurs. The positions of each field start far enough apart that a
+ * phrase never matches across fields, and tell which field a match is in.
+ *
+ * A query is a list of clauses, all of which a content item has to match:
+ * <ul>
+ * <li>a word, such as <code>senate</code>;
+ * <li>a prefix, such as <code>senat*</code>, which matches any word that starts with it;
+ * <li>a phrase in double quotes, such as <code>"health care"</code>, which matches the words in
+ *     sequence.
+ * </ul>
+ * Matches are ranked by the sum of the clauses' scores. A clause scores higher the more often
+ * it matches, the more important the field it matches in, and the rarer its words are in the
+ * story. Phrase matches get an extra boost.
+ *
+ * Indexes are immutable once built, and can be shared between threads.
+ */
+class ContentSearchIndex {
+  // How much a match in the headline, summary and body fields counts.
+  private static final int[] FIELD_WEIGHTS = {4, 2, 1};
+  private static final int FIELD_POSITION_GAP = 1 << 20;
+  private static final double PHRASE_BOOST = 2.0;
+  // A short prefix can match a large part of the vocabulary; only this many words are tried.
+  private static final int MAX_PREFIX_EXPANSIONS = 100;
+
+  private static final Pattern TAG_PATTERN = Pattern.compile("<[^>]*>");
+  private static final Pattern CHARACTER_ENTITY_PATTERN = Pattern.compile("&#?\\w+;");
+  private static final Pattern QUERY_CLAUSE_PATTERN = Pattern.compile("\"([^\"]*)\"?|(\\S+)");
+
+  private final Map<String, Posting[]> postingsByTerm;
+  private final TreeMap<String, Posting[]> sortedTerms;
+  private final int documentCount;
+
+  /**
+   * Builds the index.
+   * @param documents the positions of each word in each content item of the story, by content
+   *     item id, as computed by getPositions
+   */
+  public ContentSearchIndex(Map<Long, Map<String, int[]>> documents) {
+    Map<String, List<Posting>> postingLists = Maps.newHashMap();
+    for (Map.Entry<Long, Map<String, int[]>> document : documents.entrySet()) {
+      for (Map.Entry<String, int[]> term : document.getValue().entrySet()) {
+        List<Posting> postings = postingLists.get(term.getKey());
+        if (postings == null) {
+          postings = Lists.newArrayList();
+          postingLists.put(term.getKey(), postings);
+        }
+        postings.add(new Posting(document.getKey(), term.getValue()));
+      }
+    }
+    postingsByTerm = Maps.newHashMap();
+    for (Map.Entry<String, List<Posting>> entry : postingLists.entrySet()) {
+      postingsByTerm.put(entry.getKey(),
+          entry.getValue().toArray(new Posting[entry.getValue().size()]));
+    }
+    sortedTerms = new TreeMap<String, Posting[]>(postingsByTerm);
+    documentCount = documents.size();
+  }
+
+  /**
+   * Returns the ids of the content items that match the query, best match first. Items with
+   * the same score are in descending id order, which is roughly newest first. A query without
+   * any words matches nothing.
+   */
+  public List<Long> search(String query) {
+    Map<Long, Double> scores = null;
+    Matcher matcher = QUERY_CLAUSE_PATTERN.matcher(query);
+    while (matcher.find()) {
+      Map<Long, Double> clauseScores;
+      if (matcher.group(1) != null) {
+        clauseScores = matchPhrase(tokenize(matcher.group(1)), false);
+      } else {
+        String clause = matcher.group(2);
+        boolean isPrefix = clause.endsWith("*");
+        // Something like "u.s." is taken as the phrase of its words.
+        clauseScores = matchPhrase(
+            tokenize(isPrefix ? clause.substring(0, clause.length() - 1) : clause), isPrefix);
+      }
+      if (clauseScores == null) {
+        // The clause had no words in it.
+        continue;
+      }
+      scores = scores == null ? clauseScores : intersect(scores, clauseScores);
+      if (scores.isEmpty()) {
+        break;
+      }
+    }
+    if (scores == null) {
+      return Collections.emptyList();
+    }
+
+    final Map<Long, Double> finalScores = scores;
+    List<Long> results = Lists.newArrayList(scores.keySet());
+    Collections.sort(results, new Comparator<Long>() {
+      public int compare(Long lhs, Long rhs) {
+        int result = Double.compare(finalScores.get(rhs), finalScores.get(lhs));
+        return result == 0 ? rhs.compareTo(lhs) : result;
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Returns the scores of the content items that contain the words in sequence, or null if
+   * there are no words. If lastIsPrefix is set, the last word only has to be the start of a
+   * word in the content item.
+   */
+  private Map<Long, Double> matchPhrase(List<String> words, boolean lastIsPrefix) {
+    if (words.isEmpty()) {
+      return null;
+    }
+    if (words.size() == 1) {
+      String word = words.get(0);
+      return lastIsPrefix ? matchPrefix(word) : matchTerm(word, postingsByTerm.get(word));
+    }
+
+    // Find the positions of each word in each candidate content item, starting with the items
+    // that contain the first word.
+    List<Map<Long, int[]>> positionsByWord = Lists.newArrayList();
+    double idfSum = 0;
+    for (int i = 0; i < words.size(); i++) {
+      Map<Long, int[]> positions = Maps.newHashMap();
+      if (lastIsPrefix && i == words.size() - 1) {
+        for (Posting[] postings : getPrefixExpansions(words.get(i)).values()) {
+          for (Posting posting : postings) {
+            positions.put(posting.contentItemId,
+                union(positions.get(posting.contentItemId), posting.positions));
+          }
+        }
+        idfSum += getIdf(positions.size());
+      } else {
+        Posting[] postings = postingsByTerm.get(words.get(i));
+        if (postings == null) {
+          return Maps.newHashMap();
+        }
+        for (Posting posting : postings) {
+          positions.put(posting.contentItemId, posting.positions);
+        }
+        idfSum += getIdf(postings.length);
+      }
+      positionsByWord.add(positions);
+    }
+
+    Map<Long, Double> scores = Maps.newHashMap();
+    for (Map.Entry<Long, int[]> candidate : positionsByWord.get(0).entrySet()) {
+      Long contentItemId = candidate.getKey();
+      int weightedMatches = 0;
+      for (int start : candidate.getValue()) {
+        boolean matches = true;
+        for (int i = 1; i < words.size() && matches; i++) {
+          int[] positions = positionsByWord.get(i).get(contentItemId);
+          matches = positions != null && Arrays.binarySearch(positions, start + i) >= 0;
+        }
+        if (matches) {
+          weightedMatches += getFieldWeight(start);
+        }
+      }
+      if (weightedMatches > 0) {
+        scores.put(contentItemId, PHRASE_BOOST * idfSum * Math.sqrt(weightedMatches));
+      }
+    }
+    return scores;
+  }
+
+  private Map<Long, Double> matchTerm(String term, Posting[] postings) {
+    Map<Long, Double> scores = Maps.newHashMap();
+    if (postings != null) {
+      double idf = getIdf(postings.length);
+      for (Posting posting : postings) {
+        scores.put(posting.contentItemId, idf * Math.sqrt(getWeightedCount(posting.positions)));
+      }
+    }
+    return scores;
+  }
+
+  private Map<Long, Double> matchPrefix(String prefix) {
+    Map<Long, Double> scores = Maps.newHashMap();
+    for (Map.Entry<String, Posting[]> term : getPrefixExpansions(prefix).entrySet()) {
+      for (Map.Entry<Long, Double> score : matchTerm(term.getKey(), term.getValue()).entrySet()) {
+        Double previousScore = scores.get(score.getKey());
+        scores.put(score.getKey(),
+            previousScore == null ? score.getValue() : previousScore + score.getValue());
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * Returns the postings of the words that start with prefix, up to MAX_PREFIX_EXPANSIONS of
+   * them.
+   */
+  private Map<String, Posting[]> getPrefixExpansions(String prefix) {
+    SortedMap<String, Posting[]> matching =
+        sortedTerms.subMap(prefix, prefix + Character.MAX_VALUE);
+    if (matching.size() <= MAX_PREFIX_EXPANSIONS) {
+      return matching;
+    }
+    Map<String, Posting[]> expansions = Maps.newHashMap();
+    for (Map.Entry<String, Posting[]> entry : matching.entrySet()) {
+      if (expansions.size() == MAX_PREFIX_EXPANSIONS) {
+        break;
+      }
+      expansions.put(entry.getKey(), entry.getValue());
+    }
+    return expansions;
+  }
+
+  private double getIdf(int matchingDocumentCount) {
+    return Math.log(1 + (double) documentCount / Math.max(1, matchingDocumentCount));
+  }
+
+  private static int getWeightedCount(int[] positions) {
+    int count = 0;
+    for (int position : positions) {
+      count += getFieldWeight(position);
+    }
+    return count;
+  }
+
+  private static int getFieldWeight(int position) {
+    return FIELD_WEIGHTS[Math.min(position / FIELD_POSITION_GAP, FIELD_WEIGHTS.length - 1)];
+  }
+
+  private static Map<Long, Double> intersect(Map<Long, Double> lhs, Map<Long, Double> rhs) {
+    Map<Long, Double> result = Maps.newHashMap();
+    for (Map.Entry<Long, Double> entry : lhs.entrySet()) {
+      Double otherScore = rhs.get(entry.getKey());
+      if (otherScore != null) {
+        result.put(entry.getKey(), entry.getValue() + otherScore);
+      }
+    }
+    return result;
+  }
+
+  private static int[] union(int[] lhs, int[] rhs) {
+    if (lhs == null) {
+      return rhs;
+    }
+    int[] result = new int[lhs.length + rhs.length];
+    System.arraycopy(lhs, 0, result, 0, lhs.length);
+    System.arraycopy(rhs, 0, result, lhs.length, rhs.length);
+    Arrays.sort(result);
+    return result;
+  }
+
+  private static class Posting {
+    public final Long contentItemId;
+    // Ascending.
+    public final int[] positions;
+
+    public Posting(Long contentItemId, int[] positions) {
+      this.contentItemId = contentItemId;
+      this.positions = positions;
+    }
+  }
+
+  /** Text processing methods **/
+
+  /**
+   * Returns the text of a content item's headline, summary and body fields. Fields the item
+   * doesn't have are empty.
+   */
+  public static String[] getFieldTexts(BaseContentItem contentItem) {
+    StringBuilder headline = new StringBuilder();
+    String summary = null;
+    String body = contentItem.getContent();
+    switch (contentItem.getContentItemType()) {
+      case EVENT:
+        EventContentItem event = (EventContentItem) contentItem;
+        headline.append(nullToEmpty(event.getEventUpdate()));
+        summary = event.getEventSummary();
+        break;
+      case NARRATIVE:
+        NarrativeContentItem narrative = (NarrativeContentItem) contentItem;
+        headline.append(nullToEmpty(narrative.getHeadline()));
+        summary = narrative.getNarrativeSummary();
+        break;
+      case PLAYER:
+        PlayerContentItem player = (PlayerContentItem) contentItem;
+        headline.append(nullToEmpty(player.getName()));
+        if (player.getAliases() != null) {
+          for (String alias : player.getAliases()) {
+            headline.append('\n').append(nullToEmpty(alias));
+          }
+        }
+        break;
+      case BACKGROUND:
+        headline.append(nullToEmpty(((BackgroundContentItem) contentItem).getConceptName()));
+        break;
+      case ASSET:
+        summary = ((AssetContentItem) contentItem).getCaption();
+        break;
+      default:
+        break;
+    }
+    return new String[] {headline.toString(), nullToEmpty(summary), nullToEmpty(body)};
+  }
+
+  /**
+   * Returns the positions of each word in the given field texts, as used to build the index.
+   */
+  public static Map<String, int[]> getPositions(String[] fieldTexts) {
+    Map<String, List<Integer>> positionLists = Maps.newHashMap();
+    for (int field = 0; field < fieldTexts.length; field++) {
+      int position = field * FIELD_POSITION_GAP;
+      for (String word : tokenize(fieldTexts[field])) {
+        List<Integer> positions = positionLists.get(word);
+        if (positions == null) {
+          positions = Lists.newArrayList();
+          positionLists.put(word, positions);
+        }
+        positions.add(position++);
+      }
+    }
+    Map<String, int[]> result = Maps.newHashMap();
+    for (Map.Entry<String, List<Integer>> entry : positionLists.entrySet()) {
+      int[] positions = new int[entry.getValue().size()];
+      for (int i = 0; i < positions.length; i++) {
+        positions[i] = entry.getValue().get(i);
+      }
+      result.put(entry.getKey(), positions);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a digest of the field texts, which changes when the words in them might have.
+   */
+  public static String getFingerprint(String[] fieldTexts) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      for (String text : fieldTexts) {
+        digest.update(text.getBytes("UTF-8"));
+        digest.update((byte) 0);
+      }
+      StringBuilder result = new StringBuilder();
+      for (byte b : digest.digest()) {
+        result.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+      }
+      return result.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Splits text into lowercase words, leaving out HTML tags and character entities.
+   */
+  static List<String> tokenize(String text) {
+    List<String> words = Lists.newArrayList();
+    String plainText = CHARACTER_ENTITY_PATTERN.matcher(
+        TAG_PATTERN.matcher(text).replaceAll(" ")).replaceAll(" ");
+    int start = -1;
+    for (int i = 0; i <= plainText.length(); i++) {
+      boolean isWordCharacter =
+          i < plainText.length() && Character.isLetterOrDigit(plainText.charAt(i));
+      if (isWordCharacter && start < 0) {
+        start = i;
+      } else if (!isWordCharacter && start >= 0) {
+        words.add(plainText.substring(start, i).toLowerCase());
+        start = -1;
+      }
+    }
+    return words;
+  }
+
+  private static String nullToEmpty(String text) {
+    return text == null ? "" : text;
+  }
+
+  /** Encoding methods **/
+
+  /**
+   * Encodes the word positions of a content item compactly, for storage.
+   */
+  public static byte[] encodePositions(Map<String, int[]> positions) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(positions.size());
+      for (Map.Entry<String, int[]> entry : positions.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().length);
+        int previous = 0;
+        for (int position : entry.getValue()) {
+          // The positions are ascending, so the differences are small.
+          writeVarInt(out, position - previous);
+          previous = position;
+        }
+      }
+      out.close();
+    } catch (IOException e) {
+      // Writing to a byte array doesn't fail.
+      throw new RuntimeException(e);
+    }
+    return CompressionUtil.compress(bytes.toByteArray());
+  }
+
+  /**
+   * Decodes the output of encodePositions.
+   * @throws IllegalArgumentException if the bytes can't be decoded
+   */
+  public static Map<String, int[]> decodePositions(byte[] encoded)
+      throws IllegalArgumentException {
+    DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(CompressionUtil.decompress(encoded)));
+    try {
+      int termCount = in.readInt();
+      Map<String, int[]> positions = Maps.newHashMap();
+      for (int i = 0; i < termCount; i++) {
+        String term = in.readUTF();
+        int[] termPositions = new int[in.readInt()];
+        int previous = 0;
+        for (int j = 0; j < termPositions.length; j++) {
+          previous += readVarInt(in);
+          termPositions[j] = previous;
+        }
+        positions.put(term, termPositions);
+      }
+      return positions;
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Corrupt search document", e);
+    }
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+}
@@ -0,0 +1,370 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.livingstories.client.util.GlobalUtil;
+import com.google.livingstories.server.dataservices.entities.EmailAlertEntity;
+import com.google.livingstories.server.dataservices.entities.EmailBatchEntity;
+import com.google.livingstories.server.dataservices.entities.UserLivingStoryEntity;
+import com.google.livingstories.server.dataservices.impl.PMF;
+import com.google.livingstories.server.util.AlertSender;
+import com.google.livingstories.server.util.LRUCache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Sends email alerts to the subscribers of a story through the task queue, so that publishing
+ * an event doesn't have to wait for the emails to go out.
+ *
+ * An alert is stored in the datastore when the event is published, along with a task that
+ * splits its subscribers up into batches of the same locale. Each batch is then sent as one
+ * message by a task of its own. A batch that fails to send is retried by the task queue, with
+ * the backoff set up in queue.xml, and records its attempts and the last error.
+ */
+public class EmailAlerts {
+  public static final String QUEUE_NAME = "email-alerts";
+  public static final String TASK_URL = "/sendEmailAlerts";
+  public static final String ALERT_ID_PARAM = "alertId";
+  public static final String BATCH_PARAM = "batch";
+
+  // The most recipients that go into a single message.
+  private static final int RECIPIENTS_PER_BATCH = 50;
+
+  private static final Logger logger = Logger.getLogger(EmailAlerts.class.getCanonicalName());
+
+  // The email templates, converted to the format expected by java.util.Formatter, by locale.
+  private static final ConcurrentMap<Locale, String[]> templatesByLocale =
+      new ConcurrentHashMap<Locale, String[]>();
+  // Every batch of an alert with the same locale gets the same message, so it is only rendered
+  // once per instance.
+  private static final LRUCache<String, RenderedEmail> renderedEmails =
+      new LRUCache<String, RenderedEmail>(100);
+
+  /**
+   * Stores an alert and queues the task that will send it, unless the story has no subscribers.
+   * The placeholder map has the values for the placeholders in the email template.
+   */
+  public void enqueueAlert(Long livingStoryId, Long contentItemId, InternetAddress fromAddress,
+      Map<String, String> placeholderMap) {
+    EmailAlertEntity alert = new EmailAlertEntity(livingStoryId, contentItemId,
+        fromAddress.toString(), placeholderMap);
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      if (!hasSubscribers(pm, livingStoryId)) {
+        return;
+      }
+      pm.makePersistent(alert);
+    } finally {
+      pm.close();
+    }
+    QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withUrl(TASK_URL)
+        .param(ALERT_ID_PARAM, String.valueOf(alert.getId())));
+  }
+
+  /**
+   * Splits the subscribers of an alert's story up into batches, and queues a task to send each
+   * batch. This can be run again if it fails part way through; batches that were already
+   * created are left alone.
+   */
+  public void queueBatches(Long alertId) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      EmailAlertEntity alert;
+      try {
+        alert = pm.getObjectById(EmailAlertEntity.class, alertId);
+      } catch (JDOObjectNotFoundException e) {
+        logger.warning("Email alert " + alertId + " no longer exists");
+        return;
+      }
+      if (alert.isBatchesQueued()) {
+        return;
+      }
+
+      Map<String, List<String>> recipientsByLocale =
+          getSubscribersByLocale(pm, alert.getLivingStoryId());
+      Set<String> existingBatchNames = getBatchNames(pm, alertId);
+      List<EmailBatchEntity> newBatches = Lists.newArrayList();
+      List<String> batchNames = Lists.newArrayList();
+      for (Map.Entry<String, List<String>> entry : recipientsByLocale.entrySet()) {
+        List<String> recipients = entry.getValue();
+        for (int i = 0; i * RECIPIENTS_PER_BATCH < recipients.size(); i++) {
+          String name = EmailBatchEntity.createName(alertId, entry.getKey(), i);
+          batchNames.add(name);
+          if (!existingBatchNames.contains(name)) {
+            newBatches.add(new EmailBatchEntity(alertId, entry.getKey(), i, recipients.subList(
+                i * RECIPIENTS_PER_BATCH,
+                Math.min((i + 1) * RECIPIENTS_PER_BATCH, recipients.size()))));
+          }
+        }
+      }
+      pm.makePersistentAll(newBatches);
+
+      // The tasks are named after the batches, so a batch is never queued twice.
+      Queue queue = QueueFactory.getQueue(QUEUE_NAME);
+      for (String name : batchNames) {
+        try {
+          queue.add(TaskOptions.Builder.withUrl(TASK_URL).taskName(name)
+              .param(BATCH_PARAM, name));
+        } catch (TaskAlreadyExistsException e) {
+          // An earlier run of this task already queued the batch, so there's nothing to do.
+        }
+      }
+
+      alert.setBatchesQueued(true);
+      pm.makePersistent(alert);
+      logger.info("Queued " + batchNames.size() + " batches for email alert " + alertId);
+    } finally {
+      pm.close();
+    }
+  }
+
+  private boolean hasSubscribers(PersistenceManager pm, Long livingStoryId) {
+    Query query = pm.newQuery(UserLivingStoryEntity.class);
+    query.setFilter("livingStoryId == livingStoryIdParam && subscribedToEmails == true");
+    query.declareParameters("long livingStoryIdParam");
+    query.setRange(0, 1);
+    try {
+      return !((List<?>) query.execute(livingStoryId)).isEmpty();
+    } finally {
+      query.closeAll();
+    }
+  }
+
+  /**
+   * Returns the email addresses of the subscribers of a story, by locale. The addresses are
+   * sorted, so that they're split up into the same batches every time.
+   */
+  private Map<String, List<String>> getSubscribersByLocale(PersistenceManager pm,
+      Long livingStoryId) {
+    Query query = pm.newQuery(UserLivingStoryEntity.class);
+    query.setFilter("livingStoryId == livingStoryIdParam && subscribedToEmails == true");
+    query.declareParameters("long livingStoryIdParam");
+    try {
+      @SuppressWarnings("unchecked")
+      List<UserLivingStoryEntity> userLivingStoryEntities =
+          (List<UserLivingStoryEntity>) query.execute(livingStoryId);
+      Map<String, List<String>> recipientsByLocale = Maps.newHashMap();
+      for (UserLivingStoryEntity entity : userLivingStoryEntities) {
+        String locale = entity.getSubscriptionLocale() == null ? ""
+            : entity.getSubscriptionLocale();
+        List<String> recipients = recipientsByLocale.get(locale);
+        if (recipients == null) {
+          recipients = Lists.newArrayList();
+          recipientsByLocale.put(locale, recipients);
+        }
+        recipients.add(entity.getParentEmailAddress());
+      }
+      for (List<String> recipients : recipientsByLocale.values()) {
+        Collections.sort(recipients);
+      }
+      return recipientsByLocale;
+    } finally {
+      query.closeAll();
+    }
+  }
+
+  private Set<String> getBatchNames(PersistenceManager pm, Long alertId) {
+    Query query = pm.newQuery(EmailBatchEntity.class);
+    query.setFilter("alertId == alertIdParam");
+    query.declareParameters("java.lang.Long alertIdParam");
+    try {
+      @SuppressWarnings("unchecked")
+      List<EmailBatchEntity> batches = (List<EmailBatchEntity>) query.execute(alertId);
+      Set<String> names = Sets.newHashSet();
+      for (EmailBatchEntity batch : batches) {
+        names.add(batch.getName());
+      }
+      return names;
+    } finally {
+      query.closeAll();
+    }
+  }
+
+  /**
+   * Sends a batch, unless it has been sent already. Throws an exception if sending failed in a
+   * way that may go away, so that the task is retried. Batches that can never be sent, e.g.
+   * because of a malformed address, are marked as failed instead.
+   */
+  public void sendBatch(String batchName) throws MessagingException {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      EmailBatchEntity batch;
+      try {
+        batch = pm.getObjectById(EmailBatchEntity.class, EmailBatchEntity.createKey(batchName));
+      } catch (JDOObjectNotFoundException e) {
+        logger.warning("Email batch " + batchName + " no longer exists");
+        return;
+      }
+      if (batch.getState() != EmailBatchEntity.State.PENDING) {
+        return;
+      }
+
+      try {
+        RenderedEmail email = getRenderedEmail(pm, batch.getAlertId(), batch.getLocale());
+        if (email == null) {
+          batch.recordAttempt("The alert no longer exists", true);
+          return;
+        }
+        AlertSender.sendEmail(email.fromAddress, batch.getRecipients(), email.subject,
+            email.body);
+        batch.recordAttempt(null, false);
+        logger.info("Sent email batch " + batchName + " to " + batch.getRecipients().size()
+            + " recipients after " + batch.getAttempts() + " attempt(s)");
+      } catch (AddressException e) {
+        batch.recordAttempt(e.toString(), true);
+        logger.log(Level.WARNING, "Giving up on email batch " + batchName, e);
+      } catch (MessagingException e) {
+        batch.recordAttempt(e.toString(), false);
+        throw e;
+      } finally {
+        pm.makePersistent(batch);
+      }
+    } finally {
+      pm.close();
+    }
+  }
+
+  /**
+   * Returns the message that the recipients of an alert with the given locale get, or null
+   * if the alert doesn't exist.
+   */
+  private RenderedEmail getRenderedEmail(PersistenceManager pm, Long alertId, String localeString)
+      throws AddressException {
+    String cacheKey = alertId + ":" + localeString;
+    RenderedEmail email = renderedEmails.get(cacheKey);
+    if (email == null) {
+      EmailAlertEntity alert;
+      try {
+        alert = pm.getObjectById(EmailAlertEntity.class, alertId);
+      } catch (JDOObjectNotFoundException e) {
+        return null;
+      }
+      email = render(alert, localeString);
+      renderedEmails.put(cacheKey, email);
+    }
+    return email;
+  }
+
+  private RenderedEmail render(EmailAlertEntity alert, String localeString)
+      throws AddressException {
+    Map<String, String> placeholderMap = alert.getPlaceholderMap();
+    String[] templates = getTemplates(getLocale(localeString));
+
+    String subject = templates[0].replace("{0}", placeholderMap.get("storyTitle"));
+    String template = templates[1];
+    
+    // Some parts of this template aren't necessary if certain placeholders are blank.
+    // Do some replacement logic to correct this. Note the reluctant quantifiers.
+    String publisherName = placeholderMap.get("publisherName");
+    if (GlobalUtil.isContentEmpty(publisherName)) {
+      template = template.replaceFirst("<span class=\"p_span\".*?</span>", "");
+    }
+    String snippet = placeholderMap.get("snippet");
+    if (snippet.isEmpty()) {
+      template = template.replaceFirst("<div class=\"s_div\".*?</div>", "");
+    }
+
+    // The transformations above may have taken some of these placeholders out of the
+    // template, but that's okay!
+    String body = String.format(template,
+        placeholderMap.get("updateTitle"),
+        publisherName,
+        snippet,
+        placeholderMap.get("linkUrl"),
+        placeholderMap.get("loginUrl"));
+
+    return new RenderedEmail(new InternetAddress(alert.getFromAddress()), subject, body);
+  }
+
+  private Locale getLocale(String localeString) {
+    // We reconstruct the Locale from the locale string. This ignores the possibility that
+    // a language variant is being specified, a script is being specified, etc.
+    // TODO: fix that.
+    Locale locale = Locale.ENGLISH;
+    if (!localeString.isEmpty()) {
+      String[] splitRes = localeString.split("_");
+      locale = splitRes.length == 1 ? new Locale(splitRes[0])
+          : new Locale(splitRes[0], splitRes[1]);
+    }
+    return locale;
+  }
+
+  /**
+   * Returns the subject template and the body template for a locale.
+   */
+  private String[] getTemplates(Locale locale) {
+    String[] templates = templatesByLocale.get(locale);
+    if (templates == null) {
+      ResourceBundle emailBundle = ResourceBundle.getBundle(
+          "com.google.livingstories.server.rpcimpl.emailTemplate", locale);
+
+      // get the template in the .properties file, converting to the format expected by
+      // java.util.Formatter. A simple replaceAll won't suffice here 'cause the source format
+      // is 0-indexed, but the target format is 1-indexed. We use a StringBuffer below rather
+      // than a StringBuilder because Matcher is only compatible with the former.
+      StringBuffer sb = new StringBuffer();
+      Pattern p = Pattern.compile("\\{(\\d+)\\}");
+      Matcher m = p.matcher(emailBundle.getString("updateEmailTemplate"));
+      while (m.find()) {
+        int num = Integer.parseInt(m.group(1));
+        m.appendReplacement(sb, "%" + (num + 1) + "\\$s");
+      }
+      m.appendTail(sb);
+
+      templates = new String[] {emailBundle.getString("updateEmailSubject"), sb.toString()};
+      templatesByLocale.put(locale, templates);
+    }
+    return templates;
+  }
+
+  private static class RenderedEmail {
+    private final InternetAddress fromAddress;
+    private final String subject;
+    private final String body;
+
+    public RenderedEmail(InternetAddress fromAddress, String subject, String body) {
+      this.fromAddress = fromAddress;
+      this.subject = subject;
+      this.body = body;
+    }
+  }
+}
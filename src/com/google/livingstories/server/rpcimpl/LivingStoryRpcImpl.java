@@ -16,6 +16,7 @@
 
 package com.google.livingstories.server.rpcimpl;
 
+import com.google.common.base.Supplier;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
@@ -34,14 +35,15 @@ import com.google.livingstories.client.util.DateUtil;
 import com.google.livingstories.server.dataservices.LivingStoryDataService;
 import com.google.livingstories.server.dataservices.ThemeDataService;
 import com.google.livingstories.server.dataservices.impl.DataImplFactory;
+import com.google.livingstories.server.util.SummaryDiffUtil;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Logger;
 
 /**
@@ -62,8 +64,13 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
   private static final Logger logger =
       Logger.getLogger(LivingStoryRpcImpl.class.getCanonicalName());
 
+  // How many of the revisions before the latest one the latest summary is diffed against ahead
+  // of time. The story page is given the last few revisions by default, so readers who last saw
+  // an older one are rare.
+  private static final int PRECOMPUTED_DIFF_COUNT = 5;
+
   @Override
-  public synchronized LivingStory createLivingStory(String url, String title) {
+  public LivingStory createLivingStory(String url, String title) {
     LivingStory story = livingStoryDataService.save(null, url, title, PublishState.DRAFT, "");
     Caches.clearLivingStories();
     Caches.clearStartPageBundle();
@@ -71,7 +78,7 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
   }
   
   @Override
-  public synchronized List<LivingStory> getAllLivingStories(boolean onlyPublished) {
+  public List<LivingStory> getAllLivingStories(boolean onlyPublished) {
     List<LivingStory> allLivingStories = Caches.getLivingStories();
     if (allLivingStories == null) {
       allLivingStories = livingStoryDataService.retrieveAll(null, true);
@@ -92,7 +99,7 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
   }
   
   @Override
-  public synchronized List<LivingStory> getLivingStoriesForContentManager() {
+  public List<LivingStory> getLivingStoriesForContentManager() {
     return livingStoryDataService.retrieveAll(null, true);
   }
   
@@ -107,26 +114,80 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
   }
   
   @Override
-  public synchronized LivingStory saveLivingStory(long id, String url, String title, 
+  public LivingStory saveLivingStory(long id, String url, String title, 
       PublishState publishState, String summary) {
-    LivingStory story = livingStoryDataService.save(id, url, title, publishState, summary);
-    Caches.clearLivingStories();
-    Caches.clearStartPageBundle();
-    return story;
+    Lock lock = ContentRpcImpl.livingStoryWriteLocks.getLock(id);
+    lock.lock();
+    try {
+      LivingStory story = livingStoryDataService.save(id, url, title, publishState, summary);
+      Caches.clearLivingStories();
+      Caches.clearStartPageBundle();
+      if (publishState == PublishState.PUBLISHED) {
+        // Returning readers get the new summary diffed against what they saw last; have those
+        // diffs ready before they come back.
+        CacheWarmer.enqueueLivingStoryWarmup(id);
+      }
+      return story;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Returns the story's latest summary, with the paragraphs that are new since the reader's last
+   * visit highlighted. Every reader who last saw the same revision gets the same result, so the
+   * diffs are cached by the pair of revisions.
+   */
+  public String getDiffedSummary(LivingStory livingStory, Date lastVisitTime) {
+    final String currentRevision = livingStory.getSummary();
+    final String lastSeenRevision = livingStory.getLastSummaryRevisionBeforeTime(lastVisitTime);
+    if (lastVisitTime == null || currentRevision.equals(lastSeenRevision)) {
+      return currentRevision;
+    }
+    return Caches.getDiffedSummary(livingStory.getId(), livingStory.getLastChangeTimestamp(),
+        livingStory.getLastSummaryRevisionTimeBeforeTime(lastVisitTime),
+        new Supplier<String>() {
+          public String get() {
+            return SummaryDiffUtil.getDiffedSummary(currentRevision, lastSeenRevision);
+          }
+        });
+  }
+
+  /**
+   * Diffs the story's latest summary against the revisions before it, so that returning readers
+   * find the diffs cached.
+   */
+  public void precomputeDiffedSummaries(Long livingStoryId) {
+    LivingStory livingStory = livingStoryDataService.retrieveById(livingStoryId, true);
+    if (livingStory == null) {
+      return;
+    }
+    List<LivingStory.Summary> revisions = livingStory.getSummaryRevisions();
+    int oldestRevision = Math.max(0, revisions.size() - 1 - PRECOMPUTED_DIFF_COUNT);
+    for (int i = revisions.size() - 2; i >= oldestRevision; i--) {
+      // What a reader who visited right after revision i was saved would get.
+      Date visitTime = new Date(revisions.get(i).getTimestamp().getTime() + 1);
+      getDiffedSummary(livingStory, visitTime);
+    }
   }
   
   @Override
-  public synchronized void deleteLivingStory(long id) {
-    livingStoryDataService.delete(id);
-    Caches.clearLivingStories();
-    Caches.clearLivingStoryContentItems(id);
-    Caches.clearLivingStoryThemes(id);
-    Caches.clearLivingStoryThemeInfo(id);
-    Caches.clearStartPageBundle();
+  public void deleteLivingStory(long id) {
+    Lock lock = ContentRpcImpl.livingStoryWriteLocks.getLock(id);
+    lock.lock();
+    try {
+      livingStoryDataService.delete(id);
+      contentRpcService.deleteLatestUpdates(id);
+      Caches.clearLivingStories();
+      Caches.clearLivingStory(id);
+      Caches.clearStartPageBundle();
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
-  public synchronized List<Theme> getThemesForLivingStory(long livingStoryId) {
+  public List<Theme> getThemesForLivingStory(long livingStoryId) {
     List<Theme> themes = Caches.getLivingStoryThemes(livingStoryId);
     if (themes == null) {
       themes = themeDataService.retrieveByLivingStory(livingStoryId);
@@ -144,29 +205,37 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
    * @return a map of ContentItemTypeBundles appropriately filled in.
    */
   @Override
-  public synchronized Map<Long, ContentItemTypesBundle> getThemeInfoForLivingStory(
+  public Map<Long, ContentItemTypesBundle> getThemeInfoForLivingStory(
       long livingStoryId) {
     Map<Long, ContentItemTypesBundle> result = Caches.getLivingStoryThemeInfo(livingStoryId); 
     if (result != null) {
       return result;
     }
 
-    result = Maps.newHashMap();
+    result = buildThemeInfo(getThemesForLivingStory(livingStoryId),
+        contentRpcService.getContentItemsForLivingStory(livingStoryId, true));
+    Caches.setLivingStoryThemeInfo(livingStoryId, result);
+    return result;
+  }
+
+  /**
+   * Computes the theme info of a story from its themes and its published content items.
+   */
+  static Map<Long, ContentItemTypesBundle> buildThemeInfo(List<Theme> themes,
+      List<BaseContentItem> allContentItems) {
+    Map<Long, ContentItemTypesBundle> result = Maps.newHashMap();
     ContentItemTypesBundle globalBundle = new ContentItemTypesBundle("");
     result.put(null, globalBundle);
 
     // put an entry in the map for each theme, too. Since some themes may have no content items,
     // we should do this up-front, not lazily.
-    for (Theme theme : getThemesForLivingStory(livingStoryId)) {
+    for (Theme theme : themes) {
       result.put(theme.getId(), new ContentItemTypesBundle(theme.getName()));
     }
     
     // In principle, we could try to track when we've found every content item type that we care
     // about, in every possible theme, terminating the loop early if our dance card is completely
     // filled, but it's such a micro-optimization at this point that it's not worthwhile.
-    List<BaseContentItem> allContentItems =
-        contentRpcService.getContentItemsForLivingStory(livingStoryId, true);
-    
     for (BaseContentItem contentItem : allContentItems) {
       if (!addContentItemToTypesBundle(contentItem, globalBundle)) {
         continue;
@@ -182,8 +251,6 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
         }
       }
     }
-
-    Caches.setLivingStoryThemeInfo(livingStoryId, result);
     return result;
   }      
 
@@ -192,7 +259,7 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
    * @return false if this is a content item that should be ignored completely. Handy to the caller,
    * which can then avoid adding contentItem to other, theme-specific types bundles.
    */
-  private boolean addContentItemToTypesBundle(BaseContentItem contentItem,
+  private static boolean addContentItemToTypesBundle(BaseContentItem contentItem,
       ContentItemTypesBundle bundle) {
     ContentItemType contentItemType = contentItem.getContentItemType();
     
@@ -220,25 +287,40 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
   }
 
   @Override
-  public synchronized Theme getThemeById(long id) {
+  public Theme getThemeById(long id) {
     return themeDataService.retrieveById(id);
   }
   
   @Override
-  public synchronized Theme saveTheme(Theme theme) {
-    Theme result = themeDataService.save(theme);
-    // Clear caches
-    Caches.clearLivingStoryThemes(theme.getLivingStoryId());
-    Caches.clearLivingStoryThemeInfo(theme.getLivingStoryId());
-    return result;
+  public Theme saveTheme(Theme theme) {
+    Lock lock = ContentRpcImpl.livingStoryWriteLocks.getLock(theme.getLivingStoryId());
+    lock.lock();
+    try {
+      Theme result = themeDataService.save(theme);
+      // Clear caches
+      Caches.clearLivingStory(theme.getLivingStoryId());
+      return result;
+    } finally {
+      lock.unlock();
+    }
   }
   
   @Override
-  public synchronized void deleteTheme(long id) {
-    themeDataService.delete(id);
-    // Clear caches
-    Caches.clearLivingStoryThemes(id);
-    Caches.clearLivingStoryThemeInfo(id);
+  public void deleteTheme(long id) {
+    Theme theme = themeDataService.retrieveById(id);
+    if (theme == null) {
+      themeDataService.delete(id);
+      return;
+    }
+    Lock lock = ContentRpcImpl.livingStoryWriteLocks.getLock(theme.getLivingStoryId());
+    lock.lock();
+    try {
+      themeDataService.delete(id);
+      // Clear caches
+      Caches.clearLivingStory(theme.getLivingStoryId());
+    } finally {
+      lock.unlock();
+    }
   }
   
   @Override
@@ -246,16 +328,18 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
     StartPageBundle bundle = Caches.getStartPageBundle();
     if (bundle == null) {
       List<LivingStory> unsortedLivingStories = getAllLivingStories(true);
+      List<Long> livingStoryIds = new ArrayList<Long>();
+      for (LivingStory livingStory : unsortedLivingStories) {
+        livingStoryIds.add(livingStory.getId());
+      }
+      // Get the last 3 updates of every living story at once - the updates are sorted in reverse
+      // chronological order
       Map<Long, List<BaseContentItem>> storyIdToUpdateMap =
-          new HashMap<Long, List<BaseContentItem>>();
+          contentRpcService.getUpdatesForStartPage(livingStoryIds);
       List<LivingStoryAndLastUpdateTime> livingStoriesAndUpdateTimes = 
         new ArrayList<LivingStoryAndLastUpdateTime>();
-      // For each living story, get the last 3 updates - the updates are sorted in reverse
-      // chronological order
       for (LivingStory livingStory : unsortedLivingStories) {
-        List<BaseContentItem> updates =
-            contentRpcService.getUpdatesForStartPage(livingStory.getId());
-        storyIdToUpdateMap.put(livingStory.getId(), updates);
+        List<BaseContentItem> updates = storyIdToUpdateMap.get(livingStory.getId());
         livingStoriesAndUpdateTimes.add(
             new LivingStoryAndLastUpdateTime(livingStory,
                 updates.isEmpty() ? null : updates.get(0).getTimestamp()));
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.server.dataservices.entities.SearchDocumentEntity;
+import com.google.livingstories.server.dataservices.impl.PMF;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+
+/**
+ * Keeps the stored word positions of the content items, from which the content search index
+ * of a story is built, up to date.
+ *
+ * Documents are rewritten whenever content items are saved or deleted through the content
+ * service. Content can also change in other ways, e.g. by an import, so when a story's index is
+ * built, any document that doesn't match its content item's current text is recomputed then.
+ */
+class SearchDocuments {
+  private static final Logger logger = Logger.getLogger(SearchDocuments.class.getCanonicalName());
+
+  /**
+   * Rewrites the documents of the saved content items, and deletes those of the other changed
+   * content items. Failures are only logged, since the documents get fixed up when they're next
+   * used anyway.
+   * @param changedContentItemIds the ids of all content items that were saved or deleted
+   * @param savedContentItems the new versions of the content items that were saved
+   */
+  public static void update(Set<Long> changedContentItemIds,
+      List<BaseContentItem> savedContentItems) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      Set<Long> deletedContentItemIds = Sets.newHashSet(changedContentItemIds);
+      List<SearchDocumentEntity> documents = Lists.newArrayList();
+      for (BaseContentItem contentItem : savedContentItems) {
+        deletedContentItemIds.remove(contentItem.getId());
+        String[] fieldTexts = ContentSearchIndex.getFieldTexts(contentItem);
+        documents.add(createDocument(contentItem, fieldTexts,
+            ContentSearchIndex.getPositions(fieldTexts)));
+      }
+      pm.makePersistentAll(documents);
+      for (Long contentItemId : deletedContentItemIds) {
+        try {
+          pm.deletePersistent(pm.getObjectById(SearchDocumentEntity.class,
+              SearchDocumentEntity.createKey(contentItemId)));
+        } catch (JDOObjectNotFoundException e) {
+          // The content item was never indexed.
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Could not update the search documents", e);
+    } finally {
+      pm.close();
+    }
+  }
+
+  /**
+   * Returns the word positions of each of the given content items of a story, by content item
+   * id. Stored documents are used where they're up to date; the others are recomputed and
+   * stored, and documents of content items that are no longer in the story are deleted.
+   * @param contentItems all the content items of the story
+   */
+  public static Map<Long, Map<String, int[]>> loadForLivingStory(Long livingStoryId,
+      List<BaseContentItem> contentItems) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(SearchDocumentEntity.class);
+    query.setFilter("livingStoryId == livingStoryIdParam");
+    query.declareParameters("java.lang.Long livingStoryIdParam");
+
+    try {
+      @SuppressWarnings("unchecked")
+      List<SearchDocumentEntity> storedDocuments =
+          (List<SearchDocumentEntity>) query.execute(livingStoryId);
+      Map<Long, SearchDocumentEntity> storedDocumentsById = Maps.newHashMap();
+      for (SearchDocumentEntity document : storedDocuments) {
+        storedDocumentsById.put(document.getContentItemId(), document);
+      }
+
+      Map<Long, Map<String, int[]>> result = Maps.newHashMap();
+      List<SearchDocumentEntity> newDocuments = Lists.newArrayList();
+      for (BaseContentItem contentItem : contentItems) {
+        String[] fieldTexts = ContentSearchIndex.getFieldTexts(contentItem);
+        SearchDocumentEntity storedDocument = storedDocumentsById.remove(contentItem.getId());
+        Map<String, int[]> positions = null;
+        if (storedDocument != null && storedDocument.getFingerprint().equals(
+            ContentSearchIndex.getFingerprint(fieldTexts))) {
+          try {
+            positions = ContentSearchIndex.decodePositions(storedDocument.getPostings());
+          } catch (IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Recomputing an unreadable search document", e);
+          }
+        }
+        if (positions == null) {
+          positions = ContentSearchIndex.getPositions(fieldTexts);
+          newDocuments.add(createDocument(contentItem, fieldTexts, positions));
+        }
+        result.put(contentItem.getId(), positions);
+      }
+
+      if (!newDocuments.isEmpty() || !storedDocumentsById.isEmpty()) {
+        logger.info("Recomputed " + newDocuments.size() + " and deleted "
+            + storedDocumentsById.size() + " search documents of story " + livingStoryId);
+      }
+      pm.makePersistentAll(newDocuments);
+      pm.deletePersistentAll(storedDocumentsById.values());
+      return result;
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+
+  private static SearchDocumentEntity createDocument(BaseContentItem contentItem,
+      String[] fieldTexts, Map<String, int[]> positions) {
+    return new SearchDocumentEntity(contentItem.getId(), contentItem.getLivingStoryId(),
+        ContentSearchIndex.getFingerprint(fieldTexts),
+        ContentSearchIndex.encodePositions(positions));
+  }
+}
@@ -0,0 +1,499 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.livingstories.client.AssetContentItem;
+import com.google.livingstories.client.AssetType;
+import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemType;
+import com.google.livingstories.client.FilterSpec;
+import com.google.livingstories.client.Importance;
+import com.google.livingstories.client.NarrativeContentItem;
+import com.google.livingstories.client.PlayerContentItem;
+import com.google.livingstories.client.PlayerType;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Index over the published content items of one story, which answers the queries behind
+ * getDisplayContentItemBundle without looking at every content item.
+ *
+ * There is one ordering of the content items for each sort direction. Each ordering keeps, for
+ * every value of every field that a FilterSpec can filter on, the ascending array of positions
+ * of the matching content items. A query intersects the arrays for the filter's conditions, and
+ * then binary searches the result for its starting point: a cutoff date, or a cursor.
+ *
+ * Content items are ordered by date sort key, then by descending timestamp, and finally by id.
+ * Up to content items that share both dates, that's the same as filtering the story's content
+ * items with FilterSpec.doesContentItemMatch and stable-sorting them by date sort key, as
+ * getDisplayContentItemBundle used to do. Since the order is total, a cursor, which is the sort
+ * key of the first content item of the next page, identifies the point to continue from exactly,
+ * even if content items were added or removed in between.
+ *
+ * The index also keeps the sorted timestamps of the story's updates, i.e. its events and
+ * standalone narratives, to count the updates since a given time.
+ *
+ * Indexes are immutable once built, and can be shared between threads.
+ */
+class StoryContentIndex {
+  private static final int[] EMPTY = new int[0];
+
+  private final Map<Long, BaseContentItem> contentItemsById = Maps.newHashMap();
+  private final Ordering oldestFirst;
+  private final Ordering newestFirst;
+  // Timestamps of the updates, in ascending order.
+  private final long[] updateTimes;
+
+  /**
+   * Builds the index.
+   * @param contentItems the story's published content items, in the order in which
+   *    getContentItemsForLivingStory returns them
+   */
+  public StoryContentIndex(List<BaseContentItem> contentItems) {
+    List<BaseContentItem> filterable = Lists.newArrayList();
+    List<Long> updateTimeList = Lists.newArrayList();
+    for (BaseContentItem contentItem : contentItems) {
+      contentItemsById.put(contentItem.getId(), contentItem);
+      ContentItemType contentItemType = contentItem.getContentItemType();
+      if (contentItem.getTimestamp() != null && (contentItemType == ContentItemType.EVENT
+          || (contentItemType == ContentItemType.NARRATIVE
+              && ((NarrativeContentItem) contentItem).isStandalone()))) {
+        updateTimeList.add(contentItem.getTimestamp().getTime());
+      }
+      // These never match any filter.
+      if (contentItemType != ContentItemType.BACKGROUND
+          && contentItemType != ContentItemType.REACTION) {
+        filterable.add(contentItem);
+      }
+    }
+
+    oldestFirst = new Ordering(filterable, true);
+    newestFirst = new Ordering(filterable, false);
+
+    updateTimes = new long[updateTimeList.size()];
+    for (int i = 0; i < updateTimes.length; i++) {
+      updateTimes[i] = updateTimeList.get(i);
+    }
+    Arrays.sort(updateTimes);
+  }
+
+  /**
+   * Returns the number of updates with a timestamp after time. Returning visitors usually
+   * haven't missed anything, which only takes a comparison with the latest update to tell.
+   * @param time may be null, to count all updates
+   */
+  public int countUpdatesSince(Date time) {
+    if (time == null) {
+      return updateTimes.length;
+    }
+    long since = time.getTime();
+    if (updateTimes.length == 0 || updateTimes[updateTimes.length - 1] <= since) {
+      return 0;
+    }
+    // Find the first update after since; equal timestamps don't count.
+    int low = 0;
+    int high = updateTimes.length - 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (updateTimes[middle] <= since) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return updateTimes.length - low;
+  }
+
+  /**
+   * Returns the published content item with the given id, which doesn't need to match any
+   * filter, or null if there isn't one.
+   */
+  public BaseContentItem getContentItem(Long id) {
+    return contentItemsById.get(id);
+  }
+
+  /**
+   * Returns the content items that match filter, and whose date sort key is not before
+   * (or, if the filter is for newest first, not after) cutoff, in the filter's order.
+   * @param cutoff may be null, for no bound
+   */
+  public Matches query(FilterSpec filter, Date cutoff) {
+    // The first key with the cutoff date, in either order.
+    SortKey from = cutoff == null ? null
+        : new SortKey(cutoff.getTime(), Long.MAX_VALUE, Long.MIN_VALUE);
+    return (filter.oldestFirst ? oldestFirst : newestFirst).query(filter, from);
+  }
+
+  /**
+   * Returns the content items that match filter, in the filter's order, starting at the
+   * position given by a cursor from Matches.getCursor.
+   * @param cursor may be null, to start at the beginning
+   * @throws IllegalArgumentException if cursor is malformed
+   */
+  public Matches query(FilterSpec filter, String cursor) {
+    return (filter.oldestFirst ? oldestFirst : newestFirst).query(filter,
+        cursor == null ? null : SortKey.parse(cursor));
+  }
+
+  /**
+   * Returns whether cursor is well formed, i.e. whether query would accept it.
+   */
+  public static boolean isValidCursor(String cursor) {
+    if (cursor == null) {
+      return false;
+    }
+    try {
+      SortKey.parse(cursor);
+      return true;
+    } catch (IllegalArgumentException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * The position of a content item in the sort orders.
+   */
+  private static class SortKey {
+    public final long date;
+    public final long timestamp;
+    public final long id;
+
+    public SortKey(long date, long timestamp, long id) {
+      this.date = date;
+      this.timestamp = timestamp;
+      this.id = id;
+    }
+
+    public SortKey(BaseContentItem contentItem) {
+      this(getTime(contentItem.getDateSortKey()), getTime(contentItem.getTimestamp()),
+          contentItem.getId() == null ? Long.MIN_VALUE : contentItem.getId());
+    }
+
+    private static long getTime(Date date) {
+      return date == null ? Long.MIN_VALUE : date.getTime();
+    }
+
+    public static SortKey parse(String cursor) {
+      String[] parts = cursor.split("_");
+      if (parts.length != 3) {
+        throw new IllegalArgumentException("Malformed cursor: " + cursor);
+      }
+      try {
+        return new SortKey(Long.parseLong(parts[0], Character.MAX_RADIX),
+            Long.parseLong(parts[1], Character.MAX_RADIX),
+            Long.parseLong(parts[2], Character.MAX_RADIX));
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("Malformed cursor: " + cursor);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return Long.toString(date, Character.MAX_RADIX) + "_"
+          + Long.toString(timestamp, Character.MAX_RADIX) + "_"
+          + Long.toString(id, Character.MAX_RADIX);
+    }
+  }
+
+  /**
+   * The content items of a story, in one sort order, with their posting arrays.
+   */
+  private static class Ordering {
+    private final BaseContentItem[] contentItems;
+    private final SortKey[] sortKeys;
+    private final boolean ascending;
+    private final Map<Long, Integer> positionsById = Maps.newHashMap();
+
+    private final int[] topLevel;
+    private final int[] important;
+    private final int[] opinionNarratives;
+    private final int[] otherNarratives;
+    private final int[] people;
+    private final Map<ContentItemType, int[]> byContentItemType;
+    private final Map<AssetType, int[]> byAssetType;
+    private final Map<Long, int[]> byThemeId;
+
+    public Ordering(List<BaseContentItem> unsorted, boolean ascending) {
+      this.ascending = ascending;
+      List<BaseContentItem> sorted = new ArrayList<BaseContentItem>(unsorted);
+      final Map<BaseContentItem, SortKey> keys = Maps.newIdentityHashMap();
+      for (BaseContentItem contentItem : sorted) {
+        keys.put(contentItem, new SortKey(contentItem));
+      }
+      Collections.sort(sorted, new Comparator<BaseContentItem>() {
+        public int compare(BaseContentItem lhs, BaseContentItem rhs) {
+          return compareKeys(keys.get(lhs), keys.get(rhs));
+        }
+      });
+      contentItems = sorted.toArray(new BaseContentItem[sorted.size()]);
+      sortKeys = new SortKey[contentItems.length];
+
+      Postings topLevel = new Postings();
+      Postings important = new Postings();
+      Postings opinionNarratives = new Postings();
+      Postings otherNarratives = new Postings();
+      Postings people = new Postings();
+      Map<ContentItemType, Postings> byContentItemType = Maps.newHashMap();
+      Map<AssetType, Postings> byAssetType = Maps.newHashMap();
+      Map<Long, Postings> byThemeId = Maps.newHashMap();
+
+      for (int i = 0; i < contentItems.length; i++) {
+        BaseContentItem contentItem = contentItems[i];
+        sortKeys[i] = keys.get(contentItem);
+        positionsById.put(contentItem.getId(), i);
+
+        if (contentItem.displayTopLevel()) {
+          topLevel.add(i);
+        }
+        if (contentItem.getImportance() == Importance.HIGH) {
+          important.add(i);
+        }
+        ContentItemType contentItemType = contentItem.getContentItemType();
+        Postings.get(byContentItemType, contentItemType).add(i);
+        for (Long themeId : contentItem.getThemeIds()) {
+          Postings.get(byThemeId, themeId).add(i);
+        }
+
+        switch (contentItemType) {
+          case ASSET:
+            AssetType assetType = ((AssetContentItem) contentItem).getAssetType();
+            Postings.get(byAssetType, assetType).add(i);
+            // The link filter covers documents, too.
+            if (assetType == AssetType.DOCUMENT) {
+              Postings.get(byAssetType, AssetType.LINK).add(i);
+            }
+            break;
+          case NARRATIVE:
+            if (((NarrativeContentItem) contentItem).isOpinion()) {
+              opinionNarratives.add(i);
+            } else {
+              otherNarratives.add(i);
+            }
+            break;
+          case PLAYER:
+            PlayerType playerType = ((PlayerContentItem) contentItem).getPlayerType();
+            if (playerType == PlayerType.PERSON || playerType == PlayerType.ORGANIZATION) {
+              people.add(i);
+            }
+            break;
+          default:
+            break;
+        }
+      }
+
+      this.topLevel = topLevel.toArray();
+      this.important = important.toArray();
+      this.opinionNarratives = opinionNarratives.toArray();
+      this.otherNarratives = otherNarratives.toArray();
+      this.people = people.toArray();
+      this.byContentItemType = Postings.toArrays(byContentItemType);
+      this.byAssetType = Postings.toArrays(byAssetType);
+      this.byThemeId = Postings.toArrays(byThemeId);
+    }
+
+    private int compareKeys(SortKey lhs, SortKey rhs) {
+      if (lhs.date != rhs.date) {
+        return (lhs.date < rhs.date) == ascending ? -1 : 1;
+      } else if (lhs.timestamp != rhs.timestamp) {
+        return lhs.timestamp > rhs.timestamp ? -1 : 1;
+      } else {
+        return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+      }
+    }
+
+    /**
+     * Returns the matches for filter, starting with the first that doesn't sort before from.
+     * @param from may be null, to start at the beginning
+     */
+    public Matches query(FilterSpec filter, SortKey from) {
+      // Mirrors the conditions in FilterSpec.doesContentItemMatch.
+      List<int[]> conditions = Lists.newArrayList();
+      ContentItemType contentItemType = filter.contentItemType;
+      if (contentItemType == null) {
+        conditions.add(topLevel);
+      } else {
+        conditions.add(get(byContentItemType, contentItemType));
+        if (contentItemType == ContentItemType.ASSET && filter.assetType != null) {
+          conditions.add(get(byAssetType, filter.assetType));
+        } else if (contentItemType == ContentItemType.NARRATIVE) {
+          conditions.add(filter.opinion ? opinionNarratives : otherNarratives);
+        } else if (contentItemType == ContentItemType.PLAYER) {
+          conditions.add(people);
+        }
+      }
+      if (filter.themeId != null) {
+        conditions.add(get(byThemeId, filter.themeId));
+      }
+      if (filter.importantOnly) {
+        conditions.add(important);
+      }
+
+      // Intersecting the shortest arrays first keeps the intermediate results small.
+      Collections.sort(conditions, new Comparator<int[]>() {
+        public int compare(int[] lhs, int[] rhs) {
+          return lhs.length - rhs.length;
+        }
+      });
+      int[] positions = conditions.get(0);
+      for (int i = 1; i < conditions.size(); i++) {
+        positions = intersect(positions, conditions.get(i));
+      }
+
+      int start = 0;
+      if (from != null) {
+        start = findFirstNotBefore(positions, from);
+      }
+      return new Matches(this, positions, start);
+    }
+
+    /**
+     * Returns the index of the first entry of positions whose content item doesn't sort before
+     * key, which can be positions.length.
+     */
+    private int findFirstNotBefore(int[] positions, SortKey key) {
+      int low = 0;
+      int high = positions.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (compareKeys(sortKeys[positions[mid]], key) >= 0) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      return low;
+    }
+
+    private static <K> int[] get(Map<K, int[]> postings, K key) {
+      int[] result = postings.get(key);
+      return result == null ? EMPTY : result;
+    }
+
+    private static int[] intersect(int[] lhs, int[] rhs) {
+      int[] result = new int[Math.min(lhs.length, rhs.length)];
+      int count = 0;
+      int i = 0;
+      int j = 0;
+      while (i < lhs.length && j < rhs.length) {
+        if (lhs[i] < rhs[j]) {
+          i++;
+        } else if (lhs[i] > rhs[j]) {
+          j++;
+        } else {
+          result[count++] = lhs[i];
+          i++;
+          j++;
+        }
+      }
+      return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+  }
+
+  /**
+   * Collects an ascending array of positions.
+   */
+  private static class Postings {
+    private int[] positions = new int[4];
+    private int size = 0;
+
+    public void add(int position) {
+      if (size == positions.length) {
+        positions = Arrays.copyOf(positions, size * 2);
+      }
+      positions[size++] = position;
+    }
+
+    public int[] toArray() {
+      return Arrays.copyOf(positions, size);
+    }
+
+    public static <K> Postings get(Map<K, Postings> postingsByKey, K key) {
+      Postings postings = postingsByKey.get(key);
+      if (postings == null) {
+        postings = new Postings();
+        postingsByKey.put(key, postings);
+      }
+      return postings;
+    }
+
+    public static <K> Map<K, int[]> toArrays(Map<K, Postings> postingsByKey) {
+      Map<K, int[]> result = Maps.newHashMap();
+      for (Map.Entry<K, Postings> entry : postingsByKey.entrySet()) {
+        result.put(entry.getKey(), entry.getValue().toArray());
+      }
+      return result;
+    }
+  }
+
+  /**
+   * The result of a query: a read-only list view of the matching content items, in order.
+   */
+  public static class Matches extends AbstractList<BaseContentItem> implements RandomAccess {
+    private final Ordering ordering;
+    private final int[] positions;
+    private final int start;
+
+    private Matches(Ordering ordering, int[] positions, int start) {
+      this.ordering = ordering;
+      this.positions = positions;
+      this.start = start;
+    }
+
+    @Override
+    public BaseContentItem get(int index) {
+      if (index < 0 || index >= size()) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+      }
+      return ordering.contentItems[positions[start + index]];
+    }
+
+    @Override
+    public int size() {
+      return positions.length - start;
+    }
+
+    /**
+     * Returns a cursor that starts a query at the content item at index.
+     */
+    public String getCursor(int index) {
+      return ordering.sortKeys[positions[start + index]].toString();
+    }
+
+    /**
+     * Returns the index in this list of the content item with the given id, or -1 if it isn't
+     * in the list.
+     */
+    public int indexOfId(Long id) {
+      Integer position = ordering.positionsById.get(id);
+      if (position == null) {
+        return -1;
+      }
+      int index = Arrays.binarySearch(positions, start, positions.length, position);
+      return index < 0 ? -1 : index - start;
+    }
+  }
+}
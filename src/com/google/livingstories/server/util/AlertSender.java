@@ -24,7 +24,6 @@ import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Session;
 import javax.mail.Transport;
-import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
@@ -34,29 +33,30 @@ import javax.mail.internet.MimeMultipart;
  * Utility class for sending email alerts
  */
 public class AlertSender {
-  public static void sendEmail(InternetAddress fromAddress, Collection<String> recipients, String subject,
-      String msgBody) {
-    Session session = Session.getDefaultInstance(new Properties(), null);
+  // Sessions are threadsafe, and the default properties never change, so one is enough.
+  private static final Session session = Session.getDefaultInstance(new Properties(), null);
 
-    try {
-      Message msg = new MimeMessage(session);
-      // Note that the 'from' field may only be set to the currently logged in user,
-      // or to an administrator email addreess.
-      msg.setFrom(fromAddress);
-      for (String recipient : recipients) {
-        msg.addRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
-      }
-      msg.setSubject(subject);
-      
-      Multipart mp = new MimeMultipart();
-      MimeBodyPart htmlPart = new MimeBodyPart();
-      htmlPart.setContent(msgBody, "text/html");
-      mp.addBodyPart(htmlPart);
-      msg.setContent(mp);
-      
-      Transport.send(msg);
-    } catch (AddressException ignored) {
-    } catch (MessagingException ignored) {
+  /**
+   * Sends a message to the given recipients. An AddressException means that the message can
+   * never be sent as it is; other MessagingExceptions may be temporary.
+   */
+  public static void sendEmail(InternetAddress fromAddress, Collection<String> recipients,
+      String subject, String msgBody) throws MessagingException {
+    Message msg = new MimeMessage(session);
+    // Note that the 'from' field may only be set to the currently logged in user,
+    // or to an administrator email addreess.
+    msg.setFrom(fromAddress);
+    for (String recipient : recipients) {
+      msg.addRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
     }
+    msg.setSubject(subject);
+    
+    Multipart mp = new MimeMultipart();
+    MimeBodyPart htmlPart = new MimeBodyPart();
+    htmlPart.setContent(msgBody, "text/html");
+    mp.addBodyPart(htmlPart);
+    msg.setContent(mp);
+    
+    Transport.send(msg);
   }
 }
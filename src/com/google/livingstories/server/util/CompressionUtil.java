@@ -0,0 +1,202 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed encodings for long strings and for cached values. Encoded bytes start with a
+ * header that says how the rest was compressed, so that the encoding can change later without
+ * making data that's already stored unreadable.
+ *
+ * Compression can be turned off by setting the "livingstories.compressText" system property to
+ * "false". Values that were stored compressed can still be read then.
+ */
+public class CompressionUtil {
+  public static final String COMPRESSION_PROPERTY = "livingstories.compressText";
+
+  // Strings shorter than this are stored as they are: they rarely shrink enough to be worth
+  // the extra work on every read.
+  public static final int MIN_COMPRESSED_STRING_LENGTH = 512;
+
+  // Cached values whose serialized form is smaller than this are stored as they are.
+  public static final int MIN_COMPRESSED_VALUE_BYTES = 16 * 1024;
+
+  private static final byte MAGIC = (byte) 0xC5;
+  private static final byte VERSION_DEFLATE = 1;
+  private static final int HEADER_LENGTH = 2;
+
+  private static final boolean enabled =
+      !"false".equalsIgnoreCase(System.getProperty(COMPRESSION_PROPERTY));
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the compressed encoding of value, or null if value should be stored as it is:
+   * because compression is turned off, or the value is short, or it doesn't get any smaller.
+   */
+  public static byte[] compressString(String value) {
+    if (!enabled || value == null || value.length() < MIN_COMPRESSED_STRING_LENGTH) {
+      return null;
+    }
+    try {
+      byte[] utf8 = value.getBytes("UTF-8");
+      byte[] compressed = compress(utf8);
+      return compressed.length < utf8.length ? compressed : null;
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the string encoded by compressString.
+   * @throws IllegalArgumentException if the bytes aren't in an encoding that this version
+   * knows about, or are corrupt
+   */
+  public static String decompressString(byte[] bytes) throws IllegalArgumentException {
+    try {
+      return new String(decompress(bytes), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns a {@link CompressedValue} holding value if its serialized form is big enough to be
+   * worth compressing, and value itself otherwise.
+   */
+  public static Object compressValue(Object value) {
+    if (!enabled || !(value instanceof Serializable)) {
+      return value;
+    }
+    return compressValue(value, SerializationUtil.serialize(value));
+  }
+
+  /**
+   * Like compressValue(Object), for callers that already have value in serialized form, from
+   * SerializationUtil.serialize. serializedValue may be null if value couldn't be serialized.
+   */
+  public static Object compressValue(Object value, byte[] serializedValue) {
+    if (!enabled || serializedValue == null
+        || serializedValue.length < MIN_COMPRESSED_VALUE_BYTES) {
+      return value;
+    }
+    return new CompressedValue(compress(serializedValue));
+  }
+
+  /**
+   * Undoes compressValue: returns the value that a {@link CompressedValue} holds, and any other
+   * value as it is.
+   * @throws IllegalArgumentException if the compressed value can't be read
+   */
+  public static Object decompressValue(Object value) throws IllegalArgumentException {
+    if (!(value instanceof CompressedValue)) {
+      return value;
+    }
+    try {
+      ObjectInputStream in = new ObjectInputStream(
+          new ByteArrayInputStream(decompress(((CompressedValue) value).bytes)));
+      try {
+        return in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not read a compressed value", e);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalArgumentException("Could not read a compressed value", e);
+    }
+  }
+
+  /**
+   * Compresses data, and puts the header in front of it.
+   */
+  public static byte[] compress(byte[] data) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + HEADER_LENGTH);
+    bytes.write(MAGIC);
+    bytes.write(VERSION_DEFLATE);
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    try {
+      DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+      out.write(data);
+      out.close();
+    } catch (IOException e) {
+      // Writing to a byte array doesn't fail.
+      throw new RuntimeException(e);
+    } finally {
+      deflater.end();
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decompresses bytes that were compressed with compress.
+   * @throws IllegalArgumentException if the bytes don't have a known header, or are corrupt
+   */
+  public static byte[] decompress(byte[] bytes) throws IllegalArgumentException {
+    if (!isCompressed(bytes)) {
+      throw new IllegalArgumentException("Not compressed, or in an unknown encoding");
+    }
+    Inflater inflater = new Inflater();
+    try {
+      InputStream in = new InflaterInputStream(
+          new ByteArrayInputStream(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH), inflater);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 3);
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Corrupt compressed data", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Returns whether bytes start with a header that this version can decompress.
+   */
+  public static boolean isCompressed(byte[] bytes) {
+    return bytes != null && bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC
+        && bytes[1] == VERSION_DEFLATE;
+  }
+
+  /**
+   * A cached value in compressed, serialized form.
+   */
+  public static class CompressedValue implements Serializable {
+    private final byte[] bytes;
+
+    CompressedValue(byte[] bytes) {
+      this.bytes = bytes;
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Finds all occurrences of a fixed set of words in a text, in a single pass over the text,
+ * however many words there are. This is the Aho-Corasick algorithm: the words are compiled into
+ * a trie whose nodes also point at the node for their longest proper suffix that's in the trie,
+ * so that the scan never has to back up.
+ *
+ * Matching is case sensitive and doesn't care about word boundaries; callers filter the
+ * occurrences as they need to. Instances are immutable and can be shared between threads.
+ */
+public class DictionaryMatcher {
+  private static final int[] NO_WORDS = new int[0];
+
+  private final int[] wordLengths;
+
+  // The trie, with node 0 as the root. The transitions out of a node are in ascending order of
+  // their characters, so they can be binary searched.
+  private final char[][] transitionChars;
+  private final int[][] transitionTargets;
+  private final int[] failureLinks;
+  // The indexes of the words that end at each node, including those that end at the nodes its
+  // failure links lead to.
+  private final int[][] nodeWords;
+
+  /**
+   * Compiles a matcher for the given words. Empty words are never matched, and a word that's
+   * given more than once is reported under each of its indexes.
+   */
+  public DictionaryMatcher(List<String> words) {
+    wordLengths = new int[words.size()];
+    List<SortedMap<Character, Integer>> trie = Lists.newArrayList();
+    List<int[]> wordsEndingAt = Lists.newArrayList();
+    trie.add(new TreeMap<Character, Integer>());
+    wordsEndingAt.add(NO_WORDS);
+
+    for (int i = 0; i < words.size(); i++) {
+      String word = words.get(i);
+      wordLengths[i] = word.length();
+      if (word.length() == 0) {
+        continue;
+      }
+      int node = 0;
+      for (int j = 0; j < word.length(); j++) {
+        Integer child = trie.get(node).get(word.charAt(j));
+        if (child == null) {
+          child = trie.size();
+          trie.add(new TreeMap<Character, Integer>());
+          wordsEndingAt.add(NO_WORDS);
+          trie.get(node).put(word.charAt(j), child);
+        }
+        node = child;
+      }
+      wordsEndingAt.set(node, append(wordsEndingAt.get(node), i));
+    }
+
+    int nodeCount = trie.size();
+    transitionChars = new char[nodeCount][];
+    transitionTargets = new int[nodeCount][];
+    for (int node = 0; node < nodeCount; node++) {
+      SortedMap<Character, Integer> transitions = trie.get(node);
+      transitionChars[node] = new char[transitions.size()];
+      transitionTargets[node] = new int[transitions.size()];
+      int j = 0;
+      for (Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+        transitionChars[node][j] = transition.getKey();
+        transitionTargets[node][j] = transition.getValue();
+        j++;
+      }
+    }
+
+    // Nodes are visited breadth first, so that the failure link of a node's parent, and the
+    // nodes along its chain of failure links, are always complete before the node itself.
+    failureLinks = new int[nodeCount];
+    nodeWords = new int[nodeCount][];
+    nodeWords[0] = wordsEndingAt.get(0);
+    LinkedList<Integer> queue = Lists.newLinkedList();
+    for (int child : transitionTargets[0]) {
+      failureLinks[child] = 0;
+      nodeWords[child] = wordsEndingAt.get(child);
+      queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+      int node = queue.removeFirst();
+      for (int j = 0; j < transitionChars[node].length; j++) {
+        char c = transitionChars[node][j];
+        int child = transitionTargets[node][j];
+        int fallback = failureLinks[node];
+        int target;
+        while ((target = getTransition(fallback, c)) < 0 && fallback != 0) {
+          fallback = failureLinks[fallback];
+        }
+        failureLinks[child] = target < 0 ? 0 : target;
+        nodeWords[child] = concat(wordsEndingAt.get(child), nodeWords[failureLinks[child]]);
+        queue.add(child);
+      }
+    }
+  }
+
+  /**
+   * Returns all occurrences of all words in text, including occurrences that overlap each
+   * other. They're given as the start positions of each word's occurrences, in ascending order,
+   * by the word's index in the list the matcher was built from. Words that don't occur are left
+   * out.
+   */
+  public Map<Integer, List<Integer>> findAll(CharSequence text) {
+    Map<Integer, List<Integer>> occurrences = Maps.newHashMap();
+    int node = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      int target;
+      while ((target = getTransition(node, c)) < 0 && node != 0) {
+        node = failureLinks[node];
+      }
+      node = target < 0 ? 0 : target;
+      for (int wordIndex : nodeWords[node]) {
+        List<Integer> starts = occurrences.get(wordIndex);
+        if (starts == null) {
+          starts = Lists.newArrayList();
+          occurrences.put(wordIndex, starts);
+        }
+        starts.add(i + 1 - wordLengths[wordIndex]);
+      }
+    }
+    return occurrences;
+  }
+
+  private int getTransition(int node, char c) {
+    int j = Arrays.binarySearch(transitionChars[node], c);
+    return j < 0 ? -1 : transitionTargets[node][j];
+  }
+
+  private static int[] append(int[] values, int value) {
+    int[] result = Arrays.copyOf(values, values.length + 1);
+    result[values.length] = value;
+    return result;
+  }
+
+  private static int[] concat(int[] first, int[] second) {
+    if (second.length == 0) {
+      return first;
+    }
+    int[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+}
@@ -16,45 +16,432 @@
 
 package com.google.livingstories.server.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Simple implementation of a threadsafe LRU Cache of a fixed size.
+ * Threadsafe cache with a bounded total weight. By default every value weighs 1, which makes
+ * the bound a maximum number of entries.
+ *
+ * Reads never block: they look the key up in a concurrent map, and only reorder the entry if
+ * the internal lock happens to be free. Every operation takes constant time.
+ *
+ * Eviction follows the W-TinyLFU scheme. New entries go into a small LRU "window". Entries
+ * that fall out of the window are only admitted into the main LRU region if they have been
+ * requested more often than the main region's least recently used entry, as estimated by a
+ * compact frequency sketch. This keeps a burst of one-off keys from flushing out the values
+ * that are requested over and over again. Putting a new value for a key that's already in the
+ * main region replaces it there, so callers that keep one entry per key don't have to earn
+ * admission again on every update.
+ *
+ * Instances can be serialized, e.g. to store them in memcache. A custom Weigher or
+ * EvictionListener must be Serializable in that case.
  */
 public class LRUCache<K,V> implements Serializable {
-  private Map<K, V> cache = new HashMap<K, V>();
-  private LinkedList<K> cacheKeys = new LinkedList<K>();
-  private int maxSize;
-  
+  /**
+   * Computes the weight of a value. Weights must be non-negative and must not change while
+   * the value is in the cache.
+   */
+  public interface Weigher<V> {
+    int weigh(V value);
+  }
+
+  /**
+   * Notified when an entry is evicted to make room for others. It's called while the cache's
+   * internal lock is held, so it must be quick and must not call back into the cache.
+   */
+  public interface EvictionListener<K> {
+    void onEviction(K key);
+  }
+
+  // Share of the total weight that's reserved for the admission window.
+  private static final int WINDOW_PERCENT = 1;
+  // The window holds at least this many entries, however little that leaves for the main
+  // region, so that in small caches a new entry can be requested a few times before it has to
+  // compete for admission.
+  private static final int MIN_WINDOW_ENTRIES = 3;
+
+  private final long maxWeight;
+  private final long maxWindowWeight;
+  private final Weigher<? super V> weigher;
+  private final EvictionListener<? super K> evictionListener;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  // Only mutated while holding evictionLock, but read without it.
+  private transient volatile ConcurrentHashMap<K, Node<K, V>> map;
+
+  // The fields below are guarded by evictionLock.
+  private transient ReentrantLock evictionLock;
+  private transient Node<K, V> window;
+  private transient Node<K, V> main;
+  private transient long windowWeight;
+  private transient int windowCount;
+  private transient long mainWeight;
+  private transient FrequencySketch sketch;
+
   public LRUCache(int maxSize) {
-    this.maxSize = maxSize;
-  }
-  
-  public synchronized V get(K key) {
-    V value = cache.get(key);
-    if (value != null) {
-      // Access successful, refresh the key value
-      cacheKeys.remove(key);
-      cacheKeys.push(key);
-    }
-    return value;
-  }
-  
-  public synchronized void put(K key, V value) {
-    if (get(key) != null) {
-      return;
+    this(maxSize, null);
+  }
+
+  public LRUCache(long maxWeight, Weigher<? super V> weigher) {
+    this(maxWeight, weigher, null);
+  }
+
+  public LRUCache(long maxWeight, Weigher<? super V> weigher,
+      EvictionListener<? super K> evictionListener) {
+    this.maxWeight = maxWeight;
+    this.maxWindowWeight = Math.max(1, maxWeight * WINDOW_PERCENT / 100);
+    this.weigher = weigher;
+    this.evictionListener = evictionListener;
+    // With unit weights the bound tells us how many keys to expect; otherwise the sketch grows
+    // along with the number of entries.
+    initialize(new FrequencySketch(weigher == null ? (int) Math.min(maxWeight, 1 << 16) : 16));
+  }
+
+  private void initialize(FrequencySketch sketch) {
+    map = new ConcurrentHashMap<K, Node<K, V>>();
+    evictionLock = new ReentrantLock();
+    window = Node.createSentinel();
+    main = Node.createSentinel();
+    windowWeight = 0;
+    windowCount = 0;
+    mainWeight = 0;
+    this.sketch = sketch;
+  }
+
+  public V get(K key) {
+    Node<K, V> node = map.get(key);
+    if (node == null) {
+      missCount.incrementAndGet();
     } else {
-      if (cacheKeys.size() == maxSize) {
-        // Cache is at the maximum size.  Remove the least recently used
-        // cache value.
-        K lruKey = cacheKeys.removeLast();
-        cache.remove(lruKey);        
-      }
-      cacheKeys.push(key);
-      cache.put(key, value);
+      hitCount.incrementAndGet();
+    }
+
+    // Recording the access is best effort. A busy lock means another thread is already
+    // maintaining the structure, and losing a little recency information is better than waiting.
+    if (evictionLock.tryLock()) {
+      try {
+        sketch.increment(key);
+        if (node != null && !node.removed) {
+          node.unlink();
+          node.linkAfter(node.inWindow ? window : main);
+        }
+      } finally {
+        evictionLock.unlock();
+      }
+    }
+    return node == null ? null : node.value;
+  }
+
+  /**
+   * Associates value with key, replacing any previous value. A value that replaces one in the
+   * main region stays there.
+   */
+  public void put(K key, V value) {
+    int weight = weigher == null ? 1 : weigher.weigh(value);
+
+    evictionLock.lock();
+    try {
+      Node<K, V> existing = map.get(key);
+      boolean inWindow = existing == null || existing.inWindow;
+      if (existing != null) {
+        unlinkAndForget(existing);
+      }
+      Node<K, V> node = new Node<K, V>(key, value, weight);
+      link(node, inWindow);
+      map.put(key, node);
+
+      if (map.size() > sketch.capacity()) {
+        sketch = new FrequencySketch(map.size() * 2);
+      }
+      sketch.increment(key);
+      evict();
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  public void remove(K key) {
+    evictionLock.lock();
+    try {
+      Node<K, V> node = map.get(key);
+      if (node != null) {
+        unlinkAndForget(node);
+      }
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  public void clear() {
+    evictionLock.lock();
+    try {
+      for (Node<K, V> node : map.values()) {
+        node.removed = true;
+      }
+      initialize(sketch);
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public long getWeightedSize() {
+    evictionLock.lock();
+    try {
+      return windowWeight + mainWeight;
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  // Callers must hold evictionLock.
+  private void link(Node<K, V> node, boolean inWindow) {
+    node.inWindow = inWindow;
+    if (inWindow) {
+      node.linkAfter(window);
+      windowWeight += node.weight;
+      windowCount++;
+    } else {
+      node.linkAfter(main);
+      mainWeight += node.weight;
+    }
+  }
+
+  // Callers must hold evictionLock.
+  private void unlinkAndForget(Node<K, V> node) {
+    node.unlink();
+    node.removed = true;
+    if (node.inWindow) {
+      windowWeight -= node.weight;
+      windowCount--;
+    } else {
+      mainWeight -= node.weight;
+    }
+    map.remove(node.key);
+  }
+
+  /**
+   * Moves entries that have overflowed the window into the main region, if the sketch says
+   * they're worth more than what they'd displace there, and then trims the main region to
+   * whatever weight the window leaves it. Callers must hold evictionLock.
+   */
+  private void evict() {
+    while (window.prev != window && windowWeight > maxWindowWeight
+        && (windowCount > MIN_WINDOW_ENTRIES || windowWeight > maxWeight)) {
+      Node<K, V> candidate = window.prev;
+      candidate.unlink();
+      windowWeight -= candidate.weight;
+      windowCount--;
+      candidate.inWindow = false;
+
+      long maxMainWeight = getMaxMainWeight();
+      boolean admitted = candidate.weight <= maxMainWeight;
+      int candidateFrequency = sketch.frequency(candidate.key);
+      while (admitted && mainWeight + candidate.weight > maxMainWeight) {
+        Node<K, V> victim = main.prev;
+        if (candidateFrequency > sketch.frequency(victim.key)) {
+          unlinkAndForget(victim);
+          recordEviction(victim.key);
+        } else {
+          admitted = false;
+        }
+      }
+
+      if (admitted) {
+        candidate.linkAfter(main);
+        mainWeight += candidate.weight;
+      } else {
+        candidate.removed = true;
+        map.remove(candidate.key);
+        recordEviction(candidate.key);
+      }
+    }
+
+    // The main region can be over its share after a value in it was replaced by a heavier one,
+    // or while the window holds more than its share.
+    long maxMainWeight = getMaxMainWeight();
+    while (mainWeight > maxMainWeight && main.prev != main) {
+      Node<K, V> victim = main.prev;
+      unlinkAndForget(victim);
+      recordEviction(victim.key);
+    }
+  }
+
+  // Callers must hold evictionLock.
+  private long getMaxMainWeight() {
+    return maxWeight - Math.max(maxWindowWeight, windowWeight);
+  }
+
+  private void recordEviction(K key) {
+    evictionCount.incrementAndGet();
+    if (evictionListener != null) {
+      evictionListener.onEviction(key);
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    evictionLock.lock();
+    try {
+      out.defaultWriteObject();
+      out.writeObject(sketch);
+      out.writeInt(map.size());
+      // Least recently used first, so that reading the entries back in restores the order.
+      writeEntries(out, main);
+      writeEntries(out, window);
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  private void writeEntries(ObjectOutputStream out, Node<K, V> sentinel) throws IOException {
+    for (Node<K, V> node = sentinel.prev; node != sentinel; node = node.prev) {
+      out.writeObject(node.key);
+      out.writeObject(node.value);
+      out.writeInt(node.weight);
+      out.writeBoolean(node.inWindow);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    initialize((FrequencySketch) in.readObject());
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      Node<K, V> node = new Node<K, V>((K) in.readObject(), (V) in.readObject(), in.readInt());
+      link(node, in.readBoolean());
+      map.put(node.key, node);
+    }
+  }
+
+  /**
+   * Entry in one of the circular, doubly linked access-order lists. The node after a list's
+   * sentinel is the most recently used one.
+   */
+  private static class Node<K, V> {
+    final K key;
+    final V value;
+    final int weight;
+    Node<K, V> prev;
+    Node<K, V> next;
+    boolean inWindow;
+    volatile boolean removed;
+
+    Node(K key, V value, int weight) {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+    }
+
+    static <K, V> Node<K, V> createSentinel() {
+      Node<K, V> sentinel = new Node<K, V>(null, null, 0);
+      sentinel.prev = sentinel;
+      sentinel.next = sentinel;
+      return sentinel;
+    }
+
+    void linkAfter(Node<K, V> sentinel) {
+      prev = sentinel;
+      next = sentinel.next;
+      sentinel.next.prev = this;
+      sentinel.next = this;
+    }
+
+    void unlink() {
+      if (prev != null) {
+        prev.next = next;
+        next.prev = prev;
+        prev = null;
+        next = null;
+      }
+    }
+  }
+
+  /**
+   * Count-min sketch of 4 rows of saturating counters, used to estimate how often each key has
+   * been requested recently. Counters are halved periodically so that the estimates favor
+   * recent popularity over all-time popularity.
+   */
+  private static class FrequencySketch implements Serializable {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+
+    private final byte[] counters;
+    private final int widthMask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    FrequencySketch(int expectedSize) {
+      int width = Integer.highestOneBit(Math.max(16, expectedSize - 1)) << 1;
+      counters = new byte[DEPTH * width];
+      widthMask = width - 1;
+      sampleSize = 10 * width;
+    }
+
+    int capacity() {
+      return widthMask + 1;
+    }
+
+    int frequency(Object key) {
+      int hash = spread(key.hashCode());
+      int step = spread(hash * 0x9E3779B9) | 1;
+      int frequency = MAX_COUNT;
+      for (int row = 0; row < DEPTH; row++) {
+        frequency = Math.min(frequency, counters[indexOf(row, hash, step)]);
+      }
+      return frequency;
+    }
+
+    void increment(Object key) {
+      int hash = spread(key.hashCode());
+      int step = spread(hash * 0x9E3779B9) | 1;
+      for (int row = 0; row < DEPTH; row++) {
+        int index = indexOf(row, hash, step);
+        if (counters[index] < MAX_COUNT) {
+          counters[index]++;
+        }
+      }
+      if (++additions == sampleSize) {
+        for (int i = 0; i < counters.length; i++) {
+          counters[i] >>= 1;
+        }
+        additions /= 2;
+      }
+    }
+
+    private int indexOf(int row, int hash, int step) {
+      return row * (widthMask + 1) + ((hash + row * step) & widthMask);
+    }
+
+    private static int spread(int hash) {
+      hash ^= (hash >>> 17);
+      hash *= 0xed5ad4bb;
+      hash ^= (hash >>> 11);
+      return hash;
     }
   }
 }
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Helpers for reasoning about the java-serialized form of objects, which is what memcache
+ * stores.
+ */
+public class SerializationUtil {
+  /**
+   * Returns the number of bytes that value takes up in java serialized form. This is a reasonable
+   * proxy both for its in-memory footprint and for the space it uses in memcache.
+   * Returns -1 if the value can't be serialized.
+   */
+  public static long getSerializedSize(Object value) {
+    CountingOutputStream counter = new CountingOutputStream();
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(counter);
+      out.writeObject(value);
+      out.close();
+      return counter.count;
+    } catch (IOException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns value in java serialized form, or null if it can't be serialized.
+   */
+  public static byte[] serialize(Object value) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(value);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    public long count = 0;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
@@ -17,7 +17,7 @@
 package com.google.livingstories.server.util;
 
 import com.google.common.collect.Lists;
-import com.google.livingstories.client.LivingStory;
+import com.google.common.collect.Maps;
 
 import name.neil.fraser.plaintext.diff_match_patch;
 import name.neil.fraser.plaintext.diff_match_patch.Diff;
@@ -30,17 +30,16 @@ import org.w3c.tidy.Tidy;
 
 import java.io.ByteArrayOutputStream;
 import java.io.StringReader;
-import java.text.DateFormat;
-import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Utility class that creates html for a diffed living story summary based on the
- * supplied last visit time.  Assumes that all interesting text is in
+ * revision of it that the reader last saw.  Assumes that all interesting text is in
  * paragraph tags, and ignores everything else.
  */
 public class SummaryDiffUtil {
@@ -51,14 +50,14 @@ public class SummaryDiffUtil {
   
   private static final Logger logger = Logger.getLogger(SummaryDiffUtil.class.getCanonicalName());
 
-  public static String getDiffedSummary(LivingStory livingStory, Date lastVisitTime) {
+  /**
+   * Returns the current revision of a summary, with the paragraphs that are new since the last
+   * seen revision highlighted. The result only depends on the two revisions, so callers can
+   * cache it by them.
+   */
+  public static String getDiffedSummary(String currentRevisionString,
+      String lastRevisionString) {
     // Short circuits
-    if (lastVisitTime == null) {
-      return livingStory.getSummary();
-    }
-
-    String currentRevisionString = livingStory.getSummary();
-    String lastRevisionString = livingStory.getLastSummaryRevisionBeforeTime(lastVisitTime);
     if (currentRevisionString.equals(lastRevisionString)) {
       return currentRevisionString;
     }
@@ -68,33 +67,37 @@ public class SummaryDiffUtil {
     Document currentRevision = tidy.parseDOM(new StringReader(currentRevisionString), null);
     Document lastSeenRevision = tidy.parseDOM(new StringReader(lastRevisionString), null);
 
-    // Get all the paragraphs in the old and new text
+    // Get all the paragraphs in the new text, and the text of those in the old text. The text
+    // of a paragraph is worked out once, rather than every time it's compared.
     List<Node> newParagraphs = Lists.newArrayList();
-    List<Node> oldParagraphs = Lists.newArrayList();
-    
+    List<String> newParagraphTexts = Lists.newArrayList();
     NodeList newParagraphNodeList = currentRevision.getElementsByTagName("p");
     for (int i = 0; i < newParagraphNodeList.getLength(); i++) {
       newParagraphs.add(newParagraphNodeList.item(i));
+      newParagraphTexts.add(getTextContent(newParagraphNodeList.item(i)));
     }
+    // Old paragraph texts, with the number of times each occurs.
+    Map<String, Integer> oldParagraphTextCounts = Maps.newHashMap();
     NodeList oldParagraphNodeList = lastSeenRevision.getElementsByTagName("p");
     for (int i = 0; i < oldParagraphNodeList.getLength(); i++) {
-      oldParagraphs.add(oldParagraphNodeList.item(i));
+      String text = getTextContent(oldParagraphNodeList.item(i));
+      Integer count = oldParagraphTextCounts.get(text);
+      oldParagraphTextCounts.put(text, count == null ? 1 : count + 1);
     }
     
-    // Remove paragraphs that appear in both the old and new text
+    // Remove paragraphs that appear in both the old and new text. Each old paragraph can only
+    // account for one new one.
     int paragraph = 0;
     while (paragraph < newParagraphs.size()) {
-      Node newParagraph = newParagraphs.get(paragraph);
-      boolean foundMatch = false;
-      for (Node oldParagraph : oldParagraphs) {
-        if (getTextContent(newParagraph).equals(getTextContent(oldParagraph))) {
-          foundMatch = true;
-          oldParagraphs.remove(oldParagraph);
-          break;
+      Integer count = oldParagraphTextCounts.get(newParagraphTexts.get(paragraph));
+      if (count != null) {
+        if (count == 1) {
+          oldParagraphTextCounts.remove(newParagraphTexts.get(paragraph));
+        } else {
+          oldParagraphTextCounts.put(newParagraphTexts.get(paragraph), count - 1);
         }
-      }
-      if (foundMatch) {
         newParagraphs.remove(paragraph);
+        newParagraphTexts.remove(paragraph);
       } else {
         paragraph++;
       }
@@ -103,19 +106,20 @@ public class SummaryDiffUtil {
     // If there are still paragraphs left over, determine whether or not they should be highlighted.
     // Since we can't tell which new paragraph mapped to which old one to do a straight up diff,
     // this method gets the edit distance between each remaining new paragraph
-    // and each remaining old paragraph.  It finds the minimum edit distance for each new
-    // paragraph, and if it's higher than the threshold,  we highlight it.
+    // and each remaining old paragraph.  If none of them is within the threshold, we highlight
+    // it. As only the threshold matters, pairs that are certain to be too far apart aren't
+    // diffed, and the search stops at the first old paragraph that's close enough.
     if (!newParagraphs.isEmpty()) {
+      List<ParagraphText> oldParagraphs = Lists.newArrayList();
+      for (Map.Entry<String, Integer> entry : oldParagraphTextCounts.entrySet()) {
+        // Duplicates would diff the same way, so one of each is enough.
+        oldParagraphs.add(new ParagraphText(entry.getKey()));
+      }
       diff_match_patch dmp = new diff_match_patch();
-      for (Node newParagraph : newParagraphs) {
-        int minEditDistance = Integer.MAX_VALUE;
-        for (Node oldParagraph : oldParagraphs) {
-          LinkedList<Diff> diffs = dmp.diff_main(
-              getTextContent(oldParagraph), getTextContent(newParagraph));
-          minEditDistance = Math.min(minEditDistance, modifiedLevenshteinDistance(diffs));
-        }
-        if (minEditDistance > EDIT_DISTANCE_THRESHOLD) {
-          Element paragraphElement = (Element) newParagraph;
+      for (int i = 0; i < newParagraphs.size(); i++) {
+        if (!hasSimilarParagraph(dmp, new ParagraphText(newParagraphTexts.get(i)),
+            oldParagraphs)) {
+          Element paragraphElement = (Element) newParagraphs.get(i);
           String className = paragraphElement.getAttribute("class");
           className = (className + " " + HIGHLIGHT_CLASS).trim();
           paragraphElement.setAttribute("class", className);
@@ -132,10 +136,63 @@ public class SummaryDiffUtil {
     } else {
       // Something went terribly wrong; this shouldn't happen.
       // Just return the current revision without doing any diffing or parsing.
-      logger.warning("Failed to get diffed summary HTML for living story " + livingStory.getUrl()
-          + " and timestamp " + DateFormat.getDateTimeInstance().format(lastVisitTime));
-      return livingStory.getSummary();
+      logger.warning("Failed to get diffed summary HTML; showing the summary unhighlighted");
+      return currentRevisionString;
+    }
+  }
+
+  /**
+   * The text of a paragraph, along with the number of times each character occurs in it.
+   */
+  private static class ParagraphText {
+    public final String text;
+    public final Map<Character, Integer> characterCounts = Maps.newHashMap();
+
+    public ParagraphText(String text) {
+      this.text = text;
+      for (int i = 0; i < text.length(); i++) {
+        Integer count = characterCounts.get(text.charAt(i));
+        characterCounts.put(text.charAt(i), count == null ? 1 : count + 1);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the modified edit distance from any of the old paragraphs to the new one is
+   * within EDIT_DISTANCE_THRESHOLD.
+   */
+  private static boolean hasSimilarParagraph(diff_match_patch dmp, ParagraphText newParagraph,
+      List<ParagraphText> oldParagraphs) {
+    for (ParagraphText oldParagraph : oldParagraphs) {
+      if (getMinimumDistance(oldParagraph, newParagraph) <= EDIT_DISTANCE_THRESHOLD
+          && modifiedLevenshteinDistance(dmp.diff_main(oldParagraph.text, newParagraph.text))
+              <= EDIT_DISTANCE_THRESHOLD) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns a lower bound on the modified edit distance between two paragraphs, which is much
+   * cheaper to compute than a diff. The distance counts every inserted character, and a diff
+   * can't keep more characters of the new text than the two texts have in common, so the
+   * distance is at least the number of characters of the new text that the old one can't
+   * account for.
+   */
+  private static int getMinimumDistance(ParagraphText oldParagraph, ParagraphText newParagraph) {
+    int lengthDifference = newParagraph.text.length() - oldParagraph.text.length();
+    if (lengthDifference > EDIT_DISTANCE_THRESHOLD) {
+      return lengthDifference;
+    }
+    int commonCharacters = 0;
+    for (Map.Entry<Character, Integer> entry : newParagraph.characterCounts.entrySet()) {
+      Integer oldCount = oldParagraph.characterCounts.get(entry.getKey());
+      if (oldCount != null) {
+        commonCharacters += Math.min(oldCount, entry.getValue());
+      }
     }
+    return newParagraph.text.length() - commonCharacters;
   }
 
   // Need this because Node.getTextContent() is not implemented by JTidy's DOM
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.servlet;
+
+import com.google.livingstories.server.dataservices.entities.AutoLinkJobEntity;
+import com.google.livingstories.server.rpcimpl.AutoLinkJobs;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the tasks of the jobs that relink the content of a story, and reports their progress.
+ * A GET with a livingStoryId parameter shows how far the story's latest job got; adding a start
+ * parameter starts it over first. A POST is a task of a running job.
+ */
+public class AutoLinkJobServlet extends HttpServlet {
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    Long livingStoryId = getLongParameter(req, AutoLinkJobs.LIVING_STORY_ID_PARAM);
+    if (livingStoryId == null) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    AutoLinkJobs autoLinkJobs = new AutoLinkJobs();
+    if (req.getParameter("start") != null) {
+      autoLinkJobs.startJob(livingStoryId);
+    }
+
+    AutoLinkJobEntity job = autoLinkJobs.getJob(livingStoryId);
+    resp.setContentType("text/plain");
+    PrintWriter writer = resp.getWriter();
+    if (job == null) {
+      writer.println("Story " + livingStoryId + " has never been relinked");
+      return;
+    }
+    writer.println((job.isFinished() ? "Finished" : "Running") + ", started at "
+        + job.getStartTime());
+    writer.println("Checked " + job.getCheckedCount() + " of about " + job.getTotalCount()
+        + " content items, relinked " + job.getRelinkedCount());
+    if (job.isFinished()) {
+      writer.println("Finished at " + job.getFinishTime());
+    }
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    Long livingStoryId = getLongParameter(req, AutoLinkJobs.LIVING_STORY_ID_PARAM);
+    Long runId = getLongParameter(req, AutoLinkJobs.RUN_ID_PARAM);
+    if (livingStoryId == null || runId == null) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    new AutoLinkJobs().runStep(livingStoryId, runId);
+    resp.getWriter().append("Done");
+  }
+
+  private Long getLongParameter(HttpServletRequest req, String name) {
+    try {
+      return Long.valueOf(req.getParameter(name));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.servlet;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.livingstories.server.dataservices.CacheStats.FamilyStats;
+import com.google.livingstories.server.rpcimpl.Caches;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports this instance's cache activity by key family. The report is JSON by default, or
+ * Prometheus' text format if the format parameter is "prometheus".
+ */
+public class CacheStatsServlet extends HttpServlet {
+  private static final String METRIC_PREFIX = "livingstories_cache_";
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    Map<String, FamilyStats> statsByFamily = Caches.getCacheStats().getStatsByFamily();
+    if ("prometheus".equals(req.getParameter("format"))) {
+      resp.setContentType("text/plain; version=0.0.4");
+      writePrometheus(resp.getWriter(), statsByFamily);
+    } else {
+      try {
+        JSONObject result = new JSONObject();
+        for (Map.Entry<String, FamilyStats> entry : statsByFamily.entrySet()) {
+          result.put(entry.getKey(), getCounters(entry.getValue()));
+        }
+        resp.setContentType("application/json");
+        resp.getWriter().append(result.toString());
+      } catch (JSONException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  private void writePrometheus(PrintWriter writer, Map<String, FamilyStats> statsByFamily) {
+    if (statsByFamily.isEmpty()) {
+      return;
+    }
+    for (String counter : getCounters(new FamilyStats()).keySet()) {
+      String metric = METRIC_PREFIX + counter;
+      String type = counter.equals("max_value_bytes") ? "gauge" : "counter";
+      writer.println("# TYPE " + metric + " " + type);
+      for (Map.Entry<String, FamilyStats> entry : statsByFamily.entrySet()) {
+        writer.println(metric + "{family=\"" + entry.getKey() + "\"} "
+            + getCounters(entry.getValue()).get(counter));
+      }
+    }
+  }
+
+  private Map<String, Long> getCounters(FamilyStats stats) {
+    return ImmutableMap.<String, Long>builder()
+        .put("local_hits", stats.getLocalHits())
+        .put("remote_hits", stats.getRemoteHits())
+        .put("misses", stats.getMisses())
+        .put("loads", stats.getLoads())
+        .put("load_millis", stats.getLoadMillis())
+        .put("puts", stats.getPuts())
+        .put("bytes_put", stats.getBytesPut())
+        .put("max_value_bytes", stats.getMaxValueBytes())
+        .put("put_failures", stats.getPutFailures())
+        .put("get_failures", stats.getGetFailures())
+        .put("evictions", stats.getEvictions())
+        .build();
+  }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.servlet;
+
+import com.google.livingstories.server.rpcimpl.CacheWarmer;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handles both the warm-up request that App Engine sends to a new instance, and the warm-up
+ * tasks that are queued after the caches are cleared. A task with a livingStoryId parameter
+ * warms that story; one without warms the caches that aren't specific to a story.
+ */
+public class CacheWarmupServlet extends HttpServlet {
+  private static final String STARTUP_WARMUP_PATH = "/_ah/warmup";
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    CacheWarmer warmer = new CacheWarmer();
+    if (STARTUP_WARMUP_PATH.equals(req.getServletPath())) {
+      warmer.warmOnStartup();
+    } else {
+      String livingStoryId = req.getParameter(CacheWarmer.LIVING_STORY_ID_PARAM);
+      if (livingStoryId == null) {
+        warmer.warmGlobalCaches();
+      } else {
+        try {
+          warmer.warmLivingStory(Long.valueOf(livingStoryId));
+        } catch (NumberFormatException e) {
+          resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+          return;
+        }
+      }
+    }
+    resp.getWriter().append("Caches warmed");
+  }
+}
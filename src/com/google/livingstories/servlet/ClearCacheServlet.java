@@ -16,7 +16,7 @@
 
 package com.google.livingstories.servlet;
 
-import com.google.livingstories.server.rpcimpl.Caches;
+import com.google.livingstories.server.rpcimpl.CacheWarmer;
 
 import java.io.IOException;
 
@@ -27,7 +27,7 @@ import javax.servlet.http.HttpServletResponse;
 public class ClearCacheServlet extends HttpServlet {
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-    Caches.clearAll();
+    new CacheWarmer().clearAllAndWarm();
     resp.getWriter().append("All caches cleared");
   }
 }
@@ -16,20 +16,28 @@
 
 package com.google.livingstories.servlet;
 
+import com.google.common.base.Joiner;
 import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
 import com.google.livingstories.server.dataservices.entities.JSONSerializable;
 import com.google.livingstories.server.dataservices.entities.LivingStoryEntity;
 import com.google.livingstories.server.dataservices.entities.ThemeEntity;
 import com.google.livingstories.server.dataservices.impl.PMF;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
+import org.json.JSONWriter;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import javax.jdo.Extent;
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.Query;
 import javax.servlet.http.HttpServlet;
@@ -39,29 +47,88 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Exports data from the appengine datastore into a json-formatted text file.
  * This works in both local and prod instances.
+ *
+ * Entities are written to the response as they are read from the datastore, so the export
+ * never has to be held in memory as a whole. The following parameters are optional:
+ * <ul>
+ * <li>livingStoryId: only export this living story, along with its themes and content.
+ * <li>since: only export content that was saved after this time, given in milliseconds since
+ *     the epoch. Living stories and themes are always exported in full, since content refers to
+ *     them. Deletions aren't part of the export.
+ * <li>gzip: if "true", the export is gzipped and sent as a file download.
+ * </ul>
  */
 public class DataExportServlet extends HttpServlet {
   
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Long livingStoryId;
+    Date since;
+    try {
+      String livingStoryIdParam = req.getParameter("livingStoryId");
+      livingStoryId = livingStoryIdParam == null ? null : Long.valueOf(livingStoryIdParam);
+      String sinceParam = req.getParameter("since");
+      since = sinceParam == null ? null : new Date(Long.parseLong(sinceParam));
+    } catch (NumberFormatException ex) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+      return;
+    }
 
+    PersistenceManager pm = PMF.get().getPersistenceManager();
     try {
-      JSONObject result = new JSONObject();
-      
+      LivingStoryEntity livingStory = null;
+      if (livingStoryId != null) {
+        try {
+          livingStory = pm.getObjectById(LivingStoryEntity.class, livingStoryId);
+        } catch (JDOObjectNotFoundException ex) {
+          resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No living story " + livingStoryId);
+          return;
+        }
+      }
+
+      OutputStream out = resp.getOutputStream();
+      if ("true".equals(req.getParameter("gzip"))) {
+        resp.setContentType("application/x-gzip");
+        resp.setHeader("Content-Disposition", "attachment; filename=export.json.gz");
+        out = new GZIPOutputStream(out);
+      } else {
+        resp.setContentType("application/json; charset=UTF-8");
+      }
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+      JSONWriter json = new JSONWriter(writer);
+      json.object();
+
       // Write the json for living story entities and theme entities first
-      addJSON(result, LivingStoryEntity.class, pm);
-      addJSON(result, ThemeEntity.class, pm);
-      
+      json.key(LivingStoryEntity.class.getSimpleName()).array();
+      if (livingStory == null) {
+        writeAll(json, LivingStoryEntity.class, pm);
+      } else {
+        json.value(livingStory.toJSON());
+      }
+      json.endArray();
+
+      json.key(ThemeEntity.class.getSimpleName()).array();
+      if (livingStoryId == null) {
+        writeAll(json, ThemeEntity.class, pm);
+      } else {
+        Query query = pm.newQuery(ThemeEntity.class);
+        query.setFilter("livingStoryId == livingStoryIdParam");
+        query.declareParameters("java.lang.Long livingStoryIdParam");
+        writeQueryResults(json, query, pm, livingStoryId);
+      }
+      json.endArray();
+
       // Then write the json for content entities without living stories followed by content
       // entities with living stories
-      JSONArray contentJson = new JSONArray();
-      processContentEntities(contentJson, pm, true);
-      processContentEntities(contentJson, pm, false);
-      result.put(BaseContentEntity.class.getSimpleName(), contentJson);
-      
-      resp.setContentType("application/json");
-      resp.getOutputStream().write(result.toString().getBytes());
+      json.key(BaseContentEntity.class.getSimpleName()).array();
+      if (livingStoryId == null) {
+        writeContentEntities(json, pm, null, true, since);
+      }
+      writeContentEntities(json, pm, livingStoryId, false, since);
+      json.endArray();
+
+      json.endObject();
+      writer.close();
     } catch (JSONException ex) {
       throw new RuntimeException(ex);
     } finally {
@@ -69,41 +136,81 @@ public class DataExportServlet extends HttpServlet {
     }
   }
   
-  private <T extends JSONSerializable> void addJSON(
-      JSONObject result, Class<T> entityClass, PersistenceManager pm) {
+  private <T extends JSONSerializable> void writeAll(JSONWriter json, Class<T> entityClass,
+      PersistenceManager pm) throws JSONException {
     Extent<T> entities = pm.getExtent(entityClass);
-
     try {
-      JSONArray json = new JSONArray();
       for (T entity : entities) {
-        json.put(entity.toJSON());
+        json.value(entity.toJSON());
+        // Entities are only written once, so there's no point keeping them in the persistence
+        // manager's cache.
+        pm.evict(entity);
       }
-      result.put(entityClass.getSimpleName(), json);
-
-    } catch (JSONException ex) {
-      throw new RuntimeException(ex);
     } finally {
       entities.closeAll();
     }
   }
-  
-  private void processContentEntities(JSONArray json, PersistenceManager pm,
-      boolean nullLivingStory) {
-    Query query = pm.newQuery(BaseContentEntity.class);
-    if (nullLivingStory) {
-      query.setFilter("livingStoryId == null");
+
+  /**
+   * Writes the content entities of one living story, or, if livingStoryId is null, either those
+   * without a living story or those with one.
+   */
+  private void writeContentEntities(JSONWriter json, PersistenceManager pm, Long livingStoryId,
+      boolean nullLivingStory, Date since) throws JSONException {
+    List<String> filters = new ArrayList<String>();
+    List<String> parameterDeclarations = new ArrayList<String>();
+    List<Object> parameters = new ArrayList<Object>();
+    // The datastore doesn't allow inequality filters on both livingStoryId and lastModifiedTime,
+    // so in that case content without a living story is skipped as it's read instead.
+    boolean skipNullLivingStory = false;
+    if (livingStoryId != null) {
+      filters.add("livingStoryId == livingStoryIdParam");
+      parameterDeclarations.add("java.lang.Long livingStoryIdParam");
+      parameters.add(livingStoryId);
+    } else if (nullLivingStory) {
+      filters.add("livingStoryId == null");
+    } else if (since == null) {
+      filters.add("livingStoryId != null");
     } else {
-      query.setFilter("livingStoryId != null");
+      skipNullLivingStory = true;
+    }
+    if (since != null) {
+      filters.add("lastModifiedTime > sinceParam");
+      parameterDeclarations.add("java.util.Date sinceParam");
+      parameters.add(since);
+    }
+
+    Query query = pm.newQuery(BaseContentEntity.class);
+    query.setFilter(Joiner.on(" && ").join(filters));
+    if (!parameterDeclarations.isEmpty()) {
+      query.declareParameters(Joiner.on(", ").join(parameterDeclarations));
     }
-    @SuppressWarnings("unchecked")
-    List<BaseContentEntity> entities = (List<BaseContentEntity>) query.execute();
     try {
+      @SuppressWarnings("unchecked")
+      List<BaseContentEntity> entities =
+          (List<BaseContentEntity>) query.executeWithArray(parameters.toArray());
       for (BaseContentEntity entity : entities) {
-        json.put(entity.toJSON());
+        if (!skipNullLivingStory || entity.getLivingStoryId() != null) {
+          json.value(entity.toJSON());
+        }
+        pm.evict(entity);
+      }
+    } finally {
+      query.closeAll();
+    }
+  }
+
+  private void writeQueryResults(JSONWriter json, Query query, PersistenceManager pm,
+      Object... parameters) throws JSONException {
+    try {
+      @SuppressWarnings("unchecked")
+      List<JSONSerializable> entities = (List<JSONSerializable>) query.executeWithArray(parameters);
+      for (JSONSerializable entity : entities) {
+        json.value(entity.toJSON());
+        pm.evict(entity);
       }
     } finally {
       query.closeAll();
     }
   }
-  
 }
@@ -16,6 +16,9 @@
 
 package com.google.livingstories.servlet;
 
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Key;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -25,53 +28,85 @@ import com.google.common.collect.Sets;
 import com.google.livingstories.client.ContentItemType;
 import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
 import com.google.livingstories.server.dataservices.entities.HasSerializableLivingStoryId;
+import com.google.livingstories.server.dataservices.entities.ImportChunkEntity;
+import com.google.livingstories.server.dataservices.entities.ImportStateEntity;
 import com.google.livingstories.server.dataservices.entities.JSONSerializable;
 import com.google.livingstories.server.dataservices.entities.LivingStoryEntity;
+import com.google.livingstories.server.dataservices.entities.LivingStoryUpdatesEntity;
 import com.google.livingstories.server.dataservices.entities.ThemeEntity;
+import com.google.livingstories.server.dataservices.entities.ImportStateEntity.Phase;
 import com.google.livingstories.server.dataservices.impl.PMF;
+import com.google.livingstories.server.rpcimpl.CacheWarmer;
 import com.google.livingstories.server.rpcimpl.Caches;
 
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.commons.fileupload.util.Streams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
-import javax.jdo.Extent;
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * Servlet that imports JSON data from a file into the appengine datastore.
- * This uses persistent, static values, so ensure that only one person is importing at a time!
+ * Only one import can be in progress at a time.
  * 
  * To overcome the timeout issue, the system will:
- * 1. Accept an input file from a page that uses an ajax file uploader.
- * 2. Begin processing the data, checking the time periodically.
+ * 1. Accept an input file from a page that uses an ajax file uploader, and store it in the
+ *    datastore in chunks of a few entities each, as it is parsed.
+ * 2. Begin processing the chunks, checking the time periodically.
  * 3. If the timeout is approaching, stop what we're doing and post the status
  *    back to the request page.
  * 4. The input page will then issue another request if the run state is still 'running'.
+ *
+ * The progress of the import is stored in the datastore after every chunk, so an import that
+ * was interrupted, or ran into an error, resumes where it left off with the next request that
+ * doesn't upload a file. Memory use is bounded by the size of the chunks: the upload is parsed
+ * as a stream, and the map from exported ids to new ids is kept in the datastore.
+ *
+ * Within a request, chunks are processed by a pool of worker threads. The number of entities per
+ * chunk, which is also the size of the batches in which they are saved, and the number of
+ * workers can be set with the batchSize and workerCount init parameters.
+ *
+ * Uploaded files whose name ends in ".gz" are gunzipped.
  */
 public class DataImportServlet extends HttpServlet {
   private static final long TIMEOUT_MILLIS = 2000; // 2 seconds
-  private static final int SHARD_COUNT = 5;
+  private static final int DEFAULT_BATCH_SIZE = 50;
+  private static final int DEFAULT_WORKER_COUNT = 4;
+  // Chunks are stored in a single entity, which has to stay well under a megabyte.
+  private static final int MAX_CHUNK_CHARS = 300000;
   
   private static final Pattern goToContentItemPattern =
       Pattern.compile("(goToContentItem\\()(\\d+)");
@@ -82,6 +117,8 @@ public class DataImportServlet extends HttpServlet {
   private static final Pattern showSourcePopupPattern =
       Pattern.compile("(showSourcePopup\\()[\"'].+?[\"'],\\s*(\\d+)");
   private static final Pattern contentItemIdPattern = Pattern.compile("(contentItemId=\")(\\d+)");
+  private static final List<Pattern> inlineIdPatterns = ImmutableList.of(goToContentItemPattern,
+      lightboxPattern, showContentItemPopupPattern, showSourcePopupPattern, contentItemIdPattern);
   
   public static List<Class<? extends HasSerializableLivingStoryId>> EXPORTED_ENTITY_CLASSES = 
     ImmutableList.<Class<? extends HasSerializableLivingStoryId>>of(
@@ -89,6 +126,10 @@ public class DataImportServlet extends HttpServlet {
         ThemeEntity.class,
         BaseContentEntity.class);
 
+  // Entities that are computed from the exported ones. They're deleted along with the exported
+  // entities, and get recomputed when they're needed.
+  private static final List<Class<?>> DERIVED_ENTITY_CLASSES =
+      ImmutableList.<Class<?>>of(LivingStoryUpdatesEntity.class);
 
   private static final Map<Class<?>, Function<JSONObject, String>> identifierFunctionMap =
       new ImmutableMap.Builder<Class<?>, Function<JSONObject, String>>()
@@ -109,19 +150,27 @@ public class DataImportServlet extends HttpServlet {
   private enum RunState {
     RUNNING, FINISHED, ERROR;
   }
-  
-  private static JSONObject inputData;
-  private static String message;
-  private static RunState runState = RunState.FINISHED;
-  private static long startTime;
-  
-  private static List<PersistenceManager> pms;
-  private static Map<Integer, List<JSONSerializable>> shardedEntities;
-  private static List<Function<Void, Boolean>> workQueue;
 
-  private static Map<String, LivingStoryEntity> livingStoryMap;
-  private static Map<String, ThemeEntity> themeMap;
-  private static Map<String, BaseContentEntity> contentMap;
+  private static final Map<Phase, String> phaseMessages = ImmutableMap.of(
+      Phase.DELETING, "Deleting entities",
+      Phase.CREATING, "Creating entities",
+      Phase.MAPPING, "Mapping IDs",
+      Phase.CLEANING_UP, "Removing orphaned entities",
+      Phase.FINISHED, "Import finished");
+
+  private int batchSize;
+  private int workerCount;
+
+  @Override
+  public void init() throws ServletException {
+    batchSize = getIntInitParameter("batchSize", DEFAULT_BATCH_SIZE);
+    workerCount = getIntInitParameter("workerCount", DEFAULT_WORKER_COUNT);
+  }
+
+  private int getIntInitParameter(String name, int defaultValue) {
+    String value = getInitParameter(name);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
 
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -130,46 +179,33 @@ public class DataImportServlet extends HttpServlet {
   
   @Override
   public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-    startTime = System.currentTimeMillis();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    String message;
+    RunState runState;
 
-    message = "";
-
-    if (req.getContentType().contains("multipart/form-data")) {
-      try {
-        ServletFileUpload upload = new ServletFileUpload();
-        JSONObject data = null;
-        boolean override = false;
-        FileItemIterator iter = upload.getItemIterator(req);
-        while (iter.hasNext()) {
-          FileItemStream item = iter.next();
-          if (item.getFieldName().equals("override")) {
-            override = true;
-          } else if (item.getFieldName().equals("data")) {
-            data = new JSONObject(Streams.asString(item.openStream()));
-          }
-        }
-        checkRunState(override);
-        inputData = data; 
-        setUp();
-      } catch (FileUploadException ex) {
-        throw new RuntimeException(ex);
-      } catch (JSONException ex) {
-        throw new RuntimeException(ex);
-      }
-    }
-    
     try {
-      process();
+      ImportStateEntity state;
+      String contentType = req.getContentType();
+      if (contentType != null && contentType.contains("multipart/form-data")) {
+        state = stageUpload(req);
+      } else {
+        state = loadState();
+      }
+      Phase phase = state == null ? Phase.FINISHED : process(state, deadline);
+      message = phaseMessages.get(phase);
+      runState = phase == Phase.FINISHED ? RunState.FINISHED : RunState.RUNNING;
     } catch (Exception ex) {
       Writer result = new StringWriter();
       PrintWriter printWriter = new PrintWriter(result);
       ex.printStackTrace(printWriter);
       message = result.toString();
       runState = RunState.ERROR;
-    } finally {
-      if (runState != RunState.RUNNING) {
-        tearDown();
-      }
+    }
+
+    if (runState != RunState.RUNNING) {
+      new CacheWarmer().clearAllAndWarm();
+    } else {
+      // No point warming the caches while later steps are still going to change the data.
       Caches.clearAll();
     }
     
@@ -177,333 +213,626 @@ public class DataImportServlet extends HttpServlet {
     resp.getWriter().append(message + "<br>" + runState.name());
   }
   
-  private synchronized void checkRunState(boolean override) {
-    if (runState == RunState.RUNNING) {
-      if (override) {
-        return;
-      } else {
-        throw new RuntimeException("Servlet is already running!");
+  /**
+   * Parses the uploaded file into chunks, and starts a new import with them.
+   */
+  private ImportStateEntity stageUpload(HttpServletRequest req)
+      throws FileUploadException, IOException, JSONException {
+    ServletFileUpload upload = new ServletFileUpload();
+    boolean override = false;
+    Long importId = null;
+    FileItemIterator iter = upload.getItemIterator(req);
+    while (iter.hasNext()) {
+      FileItemStream item = iter.next();
+      if (item.getFieldName().equals("override")) {
+        override = true;
+      } else if (item.getFieldName().equals("data")) {
+        // Until the state is switched over below, these chunks don't belong to any import, so
+        // staging them doesn't get in the way of an import that is still in progress.
+        importId = System.currentTimeMillis();
+        InputStream in = item.openStream();
+        if (item.getName() != null && item.getName().endsWith(".gz")) {
+          in = new GZIPInputStream(in);
+        }
+        stageChunks(importId, new JSONTokener(new InputStreamReader(in, "UTF-8")));
       }
     }
-    runState = RunState.RUNNING;
-  }
-  
-  private void setUp() {
-    pms = Lists.newArrayListWithCapacity(SHARD_COUNT);
-    shardedEntities = Maps.newHashMap();
-    for (int i = 0; i < SHARD_COUNT; i++) {
-      pms.add(PMF.get().getPersistenceManager());
-      shardedEntities.put(i, Lists.<JSONSerializable>newArrayList());
+    if (importId == null) {
+      throw new IllegalArgumentException("No data was uploaded");
+    }
+
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      ImportStateEntity state = getState(pm);
+      if (state != null && state.getPhase() != Phase.FINISHED && !override) {
+        // The staged chunks are deleted along with the other leftovers when the next import
+        // cleans up.
+        throw new IllegalStateException("Servlet is already running!");
+      }
+      state = new ImportStateEntity(importId);
+      pm.makePersistent(state);
+      return state;
+    } finally {
+      pm.close();
     }
-    
-    livingStoryMap = Maps.newHashMap();
-    themeMap = Maps.newHashMap();
-    contentMap = Maps.newHashMap();
-
-    workQueue = Lists.newArrayList();
-    workQueue.add(new DeleteAllDataFunction());
-    workQueue.add(new CreateEntitiesFunction<LivingStoryEntity>(
-        LivingStoryEntity.class, livingStoryMap));
-    workQueue.add(new CreateEntitiesFunction<ThemeEntity>(ThemeEntity.class, themeMap));
-    workQueue.add(new CreateEntitiesFunction<BaseContentEntity>(
-        BaseContentEntity.class, contentMap));
-    workQueue.add(new MapIdsFunction());
-    workQueue.add(new MapContentEntityIdsFunction());
-    workQueue.add(new MapContentEntityInlineIdsFunction());
-    workQueue.add(new MapLivingStoryInlineIdsFunction());
-    workQueue.add(new ClosePMsFuction());
-    workQueue.add(new RemoveUnusedContributorsFunction());
   }
-  
-  private void process() {
-    if (workQueue.isEmpty()) {
-      runState = RunState.FINISHED;
-    } else {
-      Function<Void, Boolean> task = workQueue.get(0);
-      boolean timedOut = task.apply(null);
-      if (!timedOut) {
-        workQueue.remove(0);
+
+  /**
+   * Reads the JSON of an export entity by entity, and stores it in chunks of up to batchSize
+   * entities of the same kind.
+   */
+  private void stageChunks(Long importId, JSONTokener tokener) throws JSONException {
+    Map<String, Class<? extends JSONSerializable>> entityClassesByKind = Maps.newHashMap();
+    for (Class<? extends JSONSerializable> entityClass : EXPORTED_ENTITY_CLASSES) {
+      entityClassesByKind.put(entityClass.getSimpleName(), entityClass);
+    }
+
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      expect(tokener, '{');
+      if (!hasNext(tokener, '}')) {
+        return;
       }
+      do {
+        String kind = tokener.nextValue().toString();
+        boolean wanted = entityClassesByKind.containsKey(kind);
+        expect(tokener, ':');
+        expect(tokener, '[');
+        if (!hasNext(tokener, ']')) {
+          continue;
+        }
+        JSONArray chunk = new JSONArray();
+        int chunkChars = 0;
+        do {
+          Object value = tokener.nextValue();
+          if (!(value instanceof JSONObject)) {
+            throw tokener.syntaxError("Expected an entity");
+          }
+          if (wanted) {
+            int valueChars = value.toString().length();
+            if (chunk.length() > 0
+                && (chunk.length() >= batchSize || chunkChars + valueChars > MAX_CHUNK_CHARS)) {
+              saveChunk(pm, importId, kind, chunk);
+              chunk = new JSONArray();
+              chunkChars = 0;
+            }
+            chunk.put(value);
+            chunkChars += valueChars;
+          }
+        } while (hasMore(tokener, ']'));
+        if (chunk.length() > 0) {
+          saveChunk(pm, importId, kind, chunk);
+        }
+      } while (hasMore(tokener, '}'));
+    } finally {
+      pm.close();
     }
   }
-  
-  private void tearDown() {
-    pms = null;
-    shardedEntities = null;
-    inputData = null;
-    workQueue = null;
-    livingStoryMap = null;
-    themeMap = null;
-    contentMap = null;
+
+  private void saveChunk(PersistenceManager pm, Long importId, String kind, JSONArray chunk) {
+    ImportChunkEntity chunkEntity = new ImportChunkEntity(importId, kind, chunk.toString());
+    pm.makePersistent(chunkEntity);
+    pm.evict(chunkEntity);
   }
 
-  private boolean timeout() {
-    return (System.currentTimeMillis() - startTime) > TIMEOUT_MILLIS;
+  private void expect(JSONTokener tokener, char expected) throws JSONException {
+    if (tokener.nextClean() != expected) {
+      throw tokener.syntaxError("Expected '" + expected + "'");
+    }
   }
-  
+
   /**
-   * Deletes all data in the datastore
+   * Returns whether an object or array that was just opened has any content.
    */
-  private class DeleteAllDataFunction implements Function<Void, Boolean> {
-    public Boolean apply(Void ignore) {
-      message = "Deleting entities";
-      
-      // We don't care which pm we use to delete data with, so just use the first.
-      PersistenceManager pm = pms.get(0);
-      for (Class<? extends JSONSerializable> entityClass : EXPORTED_ENTITY_CLASSES) {
-        Extent<? extends JSONSerializable> extent = pm.getExtent(entityClass);
-        Iterator<? extends JSONSerializable> iter = extent.iterator();
-        while (iter.hasNext()) {
-          pm.deletePersistent(iter.next());
-          if (timeout()) {
-            return true;
-          }
-        }
-      }
+  private boolean hasNext(JSONTokener tokener, char closing) throws JSONException {
+    if (tokener.nextClean() == closing) {
       return false;
     }
+    tokener.back();
+    return true;
   }
-  
+
   /**
-   * Creates datastore entities given the JSON data, a persistence manager,
-   * and an entity class to create.
-   * Returns a map of old entity ids to the created entities.
-   * This map will be used by code later on to translate old entity id references
-   * to the new ones in other objects.
-   * 
-   * Note that this method uses reflection to access a static 'fromJSON' method
-   * on the JSONSerializable object.  Interfaces can't define static methods,
-   * so it is up to the user to ensure that this method is defined for all entities.
+   * Consumes the separator after a value in an object or array, and returns whether another
+   * value follows.
    */
-  private class CreateEntitiesFunction<T extends JSONSerializable>
-      implements Function<Void, Boolean> {
-    private static final int BATCH_SIZE = 20;
-    
-    private Class<T> entityClass;
-    private Map<String, T> entityMap;
-    private int startValue = 0;
-    
-    public CreateEntitiesFunction(Class<T> entityClass, Map<String, T> entityMap) {
-      this.entityClass = entityClass;
-      this.entityMap = entityMap;
+  private boolean hasMore(JSONTokener tokener, char closing) throws JSONException {
+    char c = tokener.nextClean();
+    if (c == ',') {
+      return true;
+    } else if (c == closing) {
+      return false;
     }
-    
-    public Boolean apply(Void ignore) {
-      message = "Creating entities";
-      boolean timedOut = false;
-      for (int i = 0; i < SHARD_COUNT; i++) {
-        shardedEntities.get(i).clear();
+    throw tokener.syntaxError("Expected ',' or '" + closing + "'");
+  }
+
+  private ImportStateEntity loadState() {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      return getState(pm);
+    } finally {
+      pm.close();
+    }
+  }
+
+  private ImportStateEntity getState(PersistenceManager pm) {
+    try {
+      return pm.getObjectById(ImportStateEntity.class, ImportStateEntity.KEY);
+    } catch (JDOObjectNotFoundException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Works on the import until it is finished or the deadline passes, and returns the phase
+   * it got to.
+   */
+  private Phase process(ImportStateEntity state, long deadline) throws JSONException {
+    ImportIdMap idMap = new ImportIdMap(state.getImportId());
+    Phase phase = state.getPhase();
+    while (phase != Phase.FINISHED && System.currentTimeMillis() < deadline) {
+      boolean done;
+      switch (phase) {
+        case DELETING:
+          done = deleteExistingData(deadline);
+          break;
+        case CREATING:
+          done = processChunks(state.getImportId(), ImportChunkEntity.State.STAGED, idMap,
+              deadline);
+          break;
+        case MAPPING:
+          done = processChunks(state.getImportId(), ImportChunkEntity.State.CREATED, idMap,
+              deadline);
+          break;
+        case CLEANING_UP:
+          done = cleanUp(state.getImportId(), idMap, deadline);
+          break;
+        default:
+          throw new IllegalStateException("Unexpected phase " + phase);
       }
-      
-      try {
-        JSONArray json;
+
+      if (done) {
+        phase = phase.next();
+        PersistenceManager pm = PMF.get().getPersistenceManager();
         try {
-          json = inputData.getJSONArray(entityClass.getSimpleName());
-        } catch (JSONException allowable) {
-          // if the export was for story-specific data, some entity classes won't be mentioned.
+          ImportStateEntity currentState = getState(pm);
+          if (currentState == null || !currentState.getImportId().equals(state.getImportId())) {
+            throw new IllegalStateException("The import was replaced by another one");
+          }
+          currentState.setPhase(phase);
+          pm.makePersistent(currentState);
+        } finally {
+          pm.close();
+        }
+      }
+    }
+    return phase;
+  }
+
+  /**
+   * Deletes a batch of existing entities at a time, until there are none left or the deadline
+   * passes. Returns whether all of them were deleted.
+   */
+  private boolean deleteExistingData(long deadline) {
+    List<Class<?>> entityClasses = Lists.<Class<?>>newArrayList(EXPORTED_ENTITY_CLASSES);
+    entityClasses.addAll(DERIVED_ENTITY_CLASSES);
+    for (Class<?> entityClass : entityClasses) {
+      while (deleteSome(entityClass)) {
+        if (System.currentTimeMillis() >= deadline) {
           return false;
         }
-        for (int i = startValue; i < json.length(); i++) {
-          if (timeout() || i > startValue + BATCH_SIZE) {
-            startValue = i;
-            timedOut = true;
-            break;
-          }
-          JSONObject object = json.getJSONObject(i);
-          try {
-            @SuppressWarnings("unchecked")
-            T entityToAdd =
-              (T) entityClass.getMethod("fromJSON", JSONObject.class).invoke(null, object);
-            entityMap.put(identifierFunctionMap.get(entityClass).apply(object), entityToAdd);
-            shardedEntities.get(i % SHARD_COUNT).add(entityToAdd);
-          } catch (NoSuchMethodException ex) {
-            throw new RuntimeException(ex);
-          } catch (InvocationTargetException ex) {
-            throw new RuntimeException(ex);
-          } catch (IllegalAccessException ex) {
-            throw new RuntimeException(ex);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Deletes a batch of entities of the given class, and returns false if there were none.
+   */
+  private boolean deleteSome(Class<?> entityClass) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(entityClass);
+    query.setRange(0, batchSize);
+    try {
+      List<?> entities = (List<?>) query.execute();
+      pm.deletePersistentAll(entities);
+      return !entities.isEmpty();
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+
+  /**
+   * Deletes a batch of the chunks of the given import and of earlier ones, and returns false if
+   * there were none.
+   */
+  private boolean deleteSomeChunks(Long importId) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(ImportChunkEntity.class);
+    query.setFilter("importId <= importIdParam");
+    query.declareParameters("java.lang.Long importIdParam");
+    query.setRange(0, batchSize);
+    try {
+      List<?> chunks = (List<?>) query.execute(importId);
+      pm.deletePersistentAll(chunks);
+      return !chunks.isEmpty();
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+
+  /**
+   * Takes the chunks of this import that are in the given state to the next one, with a pool
+   * of workers, until there are no chunks left in that state or the deadline passes.
+   * Returns whether all of them were processed.
+   */
+  private boolean processChunks(Long importId, ImportChunkEntity.State state,
+      final ImportIdMap idMap, final long deadline) throws JSONException {
+    final Queue<Long> pendingChunkIds = new ConcurrentLinkedQueue<Long>(
+        getChunkIds(importId, state, workerCount * batchSize));
+    if (pendingChunkIds.isEmpty()) {
+      return true;
+    }
+
+    ExecutorService workers =
+        Executors.newFixedThreadPool(workerCount, ThreadManager.currentRequestThreadFactory());
+    try {
+      List<Future<Void>> results = Lists.newArrayList();
+      for (int i = 0; i < workerCount; i++) {
+        results.add(workers.submit(new Callable<Void>() {
+          public Void call() throws JSONException {
+            Long chunkId;
+            while (System.currentTimeMillis() < deadline
+                && (chunkId = pendingChunkIds.poll()) != null) {
+              processChunk(chunkId, idMap);
+            }
+            return null;
           }
-        }
-      } catch (JSONException ex) {
-        throw new RuntimeException(ex);
+        }));
       }
-      
-      // Shard the entities across multiple persistence managers.  This helps
-      // later on when we update the entities; we can thus save a fraction of the
-      // datastore in each request.
-      for (int i = 0; i < SHARD_COUNT; i++) {
-        pms.get(i).makePersistentAll(shardedEntities.get(i));
+      for (Future<Void> result : results) {
+        result.get();
       }
-      return timedOut;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof JSONException) {
+        throw (JSONException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      workers.shutdownNow();
+    }
+    // There may be more chunks than were fetched; the next call will tell.
+    return false;
+  }
+
+  private List<Long> getChunkIds(Long importId, ImportChunkEntity.State state, int limit) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(ImportChunkEntity.class);
+    query.setFilter("importId == importIdParam && state == stateParam");
+    query.declareParameters("java.lang.Long importIdParam, "
+        + "com.google.livingstories.server.dataservices.entities.ImportChunkEntity.State "
+        + "stateParam");
+    query.setResult("id");
+    query.setRange(0, limit);
+    try {
+      @SuppressWarnings("unchecked")
+      List<Long> chunkIds = (List<Long>) query.execute(importId, state);
+      return Lists.newArrayList(chunkIds);
+    } finally {
+      query.closeAll();
+      pm.close();
     }
   }
 
   /**
-   * Maps the old entity ids to the new ones.
+   * Takes one chunk to its next state, and records that it got there.
+   *
+   * Either step can be repeated after a failure with the same result. The ids of a chunk's
+   * entities are allocated and saved with the chunk before any of the entities are written, so
+   * creating them again overwrites the same entities instead of adding copies. And the entities
+   * are mapped from the chunk's JSON rather than from their saved versions, so mapping them
+   * again doesn't look up ids that were already mapped.
    */
-  private class MapIdsFunction implements Function<Void, Boolean> {
-    public Boolean apply(Void ignore) {
-      message = "Mapping IDs";
+  private void processChunk(Long chunkId, ImportIdMap idMap) throws JSONException {
+    ImportChunkEntity.State state;
+    Class<? extends JSONSerializable> entityClass;
+    JSONArray json;
+    List<Long> ids;
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      ImportChunkEntity chunk = pm.getObjectById(ImportChunkEntity.class, chunkId);
+      state = chunk.getState();
+      entityClass = getEntityClass(chunk.getEntityKind());
+      json = new JSONArray(chunk.getJson());
+      ids = chunk.getCreatedIds();
+      if (ids.isEmpty()) {
+        ids = allocateIds(entityClass, json.length());
+        chunk.setCreatedIds(ids);
+        pm.makePersistent(chunk);
+      }
+    } finally {
+      pm.close();
+    }
+
+    if (state == ImportChunkEntity.State.STAGED) {
+      createEntities(entityClass, json, ids, idMap);
+      state = ImportChunkEntity.State.CREATED;
+    } else {
+      mapIds(entityClass, json, ids, idMap);
+      state = ImportChunkEntity.State.MAPPED;
+    }
+
+    pm = PMF.get().getPersistenceManager();
+    try {
+      ImportChunkEntity chunk = pm.getObjectById(ImportChunkEntity.class, chunkId);
+      chunk.setState(state);
+      pm.makePersistent(chunk);
+    } finally {
+      pm.close();
+    }
+  }
 
-      for (ThemeEntity theme : themeMap.values()) {
-        theme.setLivingStoryId(livingStoryMap.get(theme.getLivingStoryId().toString()).getId());
+  private List<Long> allocateIds(Class<?> entityClass, int count) {
+    List<Long> ids = Lists.newArrayListWithCapacity(count);
+    for (Key key : DatastoreServiceFactory.getDatastoreService().allocateIds(
+        entityClass.getSimpleName(), count)) {
+      ids.add(key.getId());
+    }
+    return ids;
+  }
+
+  /**
+   * Creates datastore entities from the JSON of a chunk, with the given ids, and records the
+   * mapping from their old ids to their new ones. This map will be used later on to translate
+   * old entity id references to the new ones in other objects.
+   */
+  private void createEntities(Class<? extends JSONSerializable> entityClass, JSONArray json,
+      List<Long> ids, ImportIdMap idMap) throws JSONException {
+    List<JSONSerializable> entities = readEntities(entityClass, json, ids);
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      pm.makePersistentAll(entities);
+    } finally {
+      pm.close();
+    }
+
+    Map<String, Long> newIdsByOldId = Maps.newHashMap();
+    for (int i = 0; i < json.length(); i++) {
+      String oldId = identifierFunctionMap.get(entityClass).apply(json.getJSONObject(i));
+      if (!oldId.isEmpty()) {
+        newIdsByOldId.put(oldId, ids.get(i));
       }
-      return false;
     }
+    idMap.putAll(entityClass, newIdsByOldId);
   }
-  
+
   /**
-   * Maps the old content entity ids to the new ones
+   * Returns the entities in the JSON of a chunk, with the given ids.
+   *
+   * Note that this method uses reflection to access a static 'fromJSON' method
+   * on the JSONSerializable object.  Interfaces can't define static methods,
+   * so it is up to the user to ensure that this method is defined for all entities.
    */
-  private class MapContentEntityIdsFunction implements Function<Void, Boolean> {
-    private Iterator<BaseContentEntity> iter = null;
-    
-    @Override
-    public Boolean apply(Void arg0) {
-      message = "Mapping content entity IDs";
-      
-      if (iter == null) {
-        iter = contentMap.values().iterator();
+  private List<JSONSerializable> readEntities(Class<? extends JSONSerializable> entityClass,
+      JSONArray json, List<Long> ids) throws JSONException {
+    List<JSONSerializable> entities = Lists.newArrayListWithCapacity(json.length());
+    for (int i = 0; i < json.length(); i++) {
+      JSONSerializable entity;
+      try {
+        entity = (JSONSerializable)
+            entityClass.getMethod("fromJSON", JSONObject.class).invoke(null, json.getJSONObject(i));
+      } catch (NoSuchMethodException ex) {
+        throw new RuntimeException(ex);
+      } catch (InvocationTargetException ex) {
+        throw new RuntimeException(ex);
+      } catch (IllegalAccessException ex) {
+        throw new RuntimeException(ex);
       }
-      // Map all the ids in the BaseContentEntity objects to the new ones
-      while (iter.hasNext()) {
-        BaseContentEntity contentEntity = iter.next();
-        // Living Story ids
-        if (contentEntity.getLivingStoryId() != null) {
-          LivingStoryEntity livingStory =
-              livingStoryMap.get(contentEntity.getLivingStoryId().toString());
-          if (livingStory != null) {
-            contentEntity.setLivingStoryId(livingStory.getId());
-          }
-        }
-        
-        // Theme ids
-        Set<Long> themeIds = Sets.newHashSet();
-        for (Long themeId : contentEntity.getThemeIds()) {
-          ThemeEntity theme = themeMap.get(themeId.toString());
-          if (theme != null) {
-            themeIds.add(theme.getId());
-          }
-        }
-        contentEntity.setThemeIds(themeIds);
-        
-        // Contributor ids
-        Set<Long> contributorIds = Sets.newHashSet();
-        for (Long contributorId : contentEntity.getContributorIds()) {
-          BaseContentEntity user = contentMap.get(contributorId.toString());
-          if (user != null) {
-            contributorIds.add(user.getId());
-          }
-        }
-        contentEntity.setContributorIds(contributorIds);
-        
-        // Linked content entity ids
-        Set<Long> linkedContentEntityIds = Sets.newHashSet();
-        for (Long linkedContentEntityId : contentEntity.getLinkedContentEntityIds()) {
-          BaseContentEntity linkedContentEntity = contentMap.get(linkedContentEntityId.toString());
-          if (linkedContentEntity != null) {
-            linkedContentEntityIds.add(linkedContentEntity.getId());
-          }
-        }
-        contentEntity.setLinkedContentEntityIds(linkedContentEntityIds);
-        
-        // Photo content entity id
-        if (contentEntity.getContentItemType() == ContentItemType.PLAYER
-            && contentEntity.getPhotoContentEntityId() != null) {
-          BaseContentEntity photoContentEntity =
-              contentMap.get(contentEntity.getPhotoContentEntityId().toString());
-          if (photoContentEntity != null) {
-            contentEntity.setPhotoContentEntityId(photoContentEntity.getId());
-          } else {
-            contentEntity.setPhotoContentEntityId(null);
-          }
-        }
-        
-        // Parent player content entity id
-        if (contentEntity.getContentItemType() == ContentItemType.PLAYER
-            && contentEntity.getParentPlayerContentEntityId() != null) {
-          BaseContentEntity playerParentEntity =
-              contentMap.get(contentEntity.getParentPlayerContentEntityId().toString());
-          if (playerParentEntity == null) {
-            contentEntity.setParentPlayerContentEntityId(null);
-          } else {
-            contentEntity.setParentPlayerContentEntityId(playerParentEntity.getId());
-          }
-        }
-        
-        if (timeout()) {
-          return true;
-        }
+      setId(entity, ids.get(i));
+      entities.add(entity);
+    }
+    return entities;
+  }
+
+  private Class<? extends JSONSerializable> getEntityClass(String kind) {
+    for (Class<? extends JSONSerializable> entityClass : EXPORTED_ENTITY_CLASSES) {
+      if (entityClass.getSimpleName().equals(kind)) {
+        return entityClass;
       }
-      return false;
     }
+    throw new IllegalArgumentException("Unknown entity kind " + kind);
   }
-  
+
+  private void setId(JSONSerializable entity, Long id) {
+    if (entity instanceof LivingStoryEntity) {
+      ((LivingStoryEntity) entity).setId(id);
+    } else if (entity instanceof ThemeEntity) {
+      ((ThemeEntity) entity).setId(id);
+    } else {
+      ((BaseContentEntity) entity).setId(id);
+    }
+  }
+
   /**
-   * Maps content entity ids in inline links in rich content fields to the right
-   * values. 
+   * Saves the entities of a chunk again, with the old ids that they refer to replaced with the
+   * new ones.
    */
-  private class MapContentEntityInlineIdsFunction implements Function<Void, Boolean> {
-    private Iterator<BaseContentEntity> iter = null;
-    
-    public Boolean apply(Void ignore) {
-      message = "Mapping content entity inline IDs";
+  private void mapIds(Class<? extends JSONSerializable> entityClass, JSONArray json,
+      List<Long> ids, ImportIdMap idMap) throws JSONException {
+    List<JSONSerializable> entities = readEntities(entityClass, json, ids);
+    for (JSONSerializable entity : entities) {
+      if (entity instanceof LivingStoryEntity) {
+        mapLivingStoryInlineIds((LivingStoryEntity) entity, idMap);
+      } else if (entity instanceof ThemeEntity) {
+        mapThemeIds((ThemeEntity) entity, idMap);
+      } else {
+        mapContentEntityIds((BaseContentEntity) entity, idMap);
+      }
+    }
+
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      pm.makePersistentAll(entities);
+    } finally {
+      pm.close();
+    }
+  }
+
+  private void mapThemeIds(ThemeEntity theme, ImportIdMap idMap) {
+    Long livingStoryId = idMap.get(LivingStoryEntity.class, theme.getLivingStoryId().toString());
+    if (livingStoryId != null) {
+      theme.setLivingStoryId(livingStoryId);
+    }
+  }
 
-      if (iter == null) {
-        iter = contentMap.values().iterator();
+  /**
+   * Maps all the ids in a BaseContentEntity object to the new ones, including content entity
+   * ids in inline links in rich content fields.
+   */
+  private void mapContentEntityIds(BaseContentEntity contentEntity, ImportIdMap idMap) {
+    boolean isPlayer = contentEntity.getContentItemType() == ContentItemType.PLAYER;
+
+    // Look up all the ids that the content entity refers to at once
+    Set<String> contentEntityIds = Sets.newHashSet();
+    addAll(contentEntityIds, contentEntity.getContributorIds());
+    addAll(contentEntityIds, contentEntity.getLinkedContentEntityIds());
+    if (isPlayer) {
+      addIfNotNull(contentEntityIds, contentEntity.getPhotoContentEntityId());
+      addIfNotNull(contentEntityIds, contentEntity.getParentPlayerContentEntityId());
+    }
+    List<String> richTextFields = Lists.newArrayList(contentEntity.getContent());
+    if (contentEntity.getContentItemType() == ContentItemType.ASSET) {
+      richTextFields.add(contentEntity.getCaption());
+    } else if (contentEntity.getContentItemType() == ContentItemType.EVENT) {
+      richTextFields.add(contentEntity.getEventUpdate());
+      richTextFields.add(contentEntity.getEventSummary());
+    }
+    for (String richText : richTextFields) {
+      collectInlineIds(richText, contentEntityIds);
+    }
+    Map<String, Long> newContentEntityIds = idMap.getAll(BaseContentEntity.class, contentEntityIds);
+    Set<String> themeIds = Sets.newHashSet();
+    addAll(themeIds, contentEntity.getThemeIds());
+    Map<String, Long> newThemeIds = idMap.getAll(ThemeEntity.class, themeIds);
+
+    // Living Story ids
+    if (contentEntity.getLivingStoryId() != null) {
+      Long livingStoryId =
+          idMap.get(LivingStoryEntity.class, contentEntity.getLivingStoryId().toString());
+      if (livingStoryId != null) {
+        contentEntity.setLivingStoryId(livingStoryId);
       }
-      while (iter.hasNext()) {
-        BaseContentEntity contentEntity = iter.next();
-        contentEntity.setContent(matchAll(contentEntity.getContent()));
-        if (contentEntity.getContentItemType() == ContentItemType.ASSET) {
-          contentEntity.setCaption(matchAll(contentEntity.getCaption()));
-        } else if (contentEntity.getContentItemType() == ContentItemType.EVENT) {
-          contentEntity.setEventUpdate(matchAll(contentEntity.getEventUpdate()));
-          contentEntity.setEventSummary(matchAll(contentEntity.getEventSummary()));
-        }
-        if (timeout()) {
-          return true;
-        }
+    }
+
+    contentEntity.setThemeIds(mapAll(contentEntity.getThemeIds(), newThemeIds));
+    contentEntity.setContributorIds(
+        mapAll(contentEntity.getContributorIds(), newContentEntityIds));
+    contentEntity.setLinkedContentEntityIds(
+        mapAll(contentEntity.getLinkedContentEntityIds(), newContentEntityIds));
+
+    if (isPlayer) {
+      // Photo content entity id
+      if (contentEntity.getPhotoContentEntityId() != null) {
+        contentEntity.setPhotoContentEntityId(
+            newContentEntityIds.get(contentEntity.getPhotoContentEntityId().toString()));
+      }
+      // Parent player content entity id
+      if (contentEntity.getParentPlayerContentEntityId() != null) {
+        contentEntity.setParentPlayerContentEntityId(
+            newContentEntityIds.get(contentEntity.getParentPlayerContentEntityId().toString()));
       }
-      return false;
     }
-    
+
+    contentEntity.setContent(mapInlineIds(contentEntity.getContent(), newContentEntityIds));
+    if (contentEntity.getContentItemType() == ContentItemType.ASSET) {
+      contentEntity.setCaption(mapInlineIds(contentEntity.getCaption(), newContentEntityIds));
+    } else if (contentEntity.getContentItemType() == ContentItemType.EVENT) {
+      contentEntity.setEventUpdate(
+          mapInlineIds(contentEntity.getEventUpdate(), newContentEntityIds));
+      contentEntity.setEventSummary(
+          mapInlineIds(contentEntity.getEventSummary(), newContentEntityIds));
+    }
   }
 
   /**
-   * Maps living story ids in inline links in the story summary to the right values. 
+   * Maps content entity ids in inline links in the story summary to the right values. 
    */
-  private class MapLivingStoryInlineIdsFunction implements Function<Void, Boolean> {
-    public Boolean apply(Void ignore) {
-      message = "Mapping living story inline IDs";
+  private void mapLivingStoryInlineIds(LivingStoryEntity livingStory, ImportIdMap idMap) {
+    Set<String> contentEntityIds = Sets.newHashSet();
+    for (LivingStoryEntity.Summary revision : livingStory.getAllSummaryRevisions()) {
+      collectInlineIds(revision.getContent(), contentEntityIds);
+    }
+    Map<String, Long> newContentEntityIds = idMap.getAll(BaseContentEntity.class, contentEntityIds);
+    for (LivingStoryEntity.Summary revision : livingStory.getAllSummaryRevisions()) {
+      revision.setContent(mapInlineIds(revision.getContent(), newContentEntityIds));
+    }
+  }
+
+  private void addAll(Set<String> ids, Collection<Long> values) {
+    if (values != null) {
+      for (Long value : values) {
+        ids.add(value.toString());
+      }
+    }
+  }
 
-      for (LivingStoryEntity livingStory : livingStoryMap.values()) {
-        for (LivingStoryEntity.Summary revision : livingStory.getAllSummaryRevisions()) {
-          revision.setContent(matchAll(revision.getContent()));
+  private void addIfNotNull(Set<String> ids, Long value) {
+    if (value != null) {
+      ids.add(value.toString());
+    }
+  }
+
+  /**
+   * Returns the new ids of the given old ids, leaving out the ones that weren't imported.
+   */
+  private Set<Long> mapAll(Collection<Long> oldIds, Map<String, Long> newIdsByOldId) {
+    Set<Long> newIds = Sets.newHashSet();
+    if (oldIds != null) {
+      for (Long oldId : oldIds) {
+        Long newId = newIdsByOldId.get(oldId.toString());
+        if (newId != null) {
+          newIds.add(newId);
         }
       }
-      return false;
     }
+    return newIds;
   }
-  
-  private String matchAll(String content) {
+
+  private void collectInlineIds(String content, Set<String> ids) {
     if (content != null) {
-      content = doMatch(content, goToContentItemPattern);
-      content = doMatch(content, lightboxPattern);
-      content = doMatch(content, showContentItemPopupPattern);
-      content = doMatch(content, showSourcePopupPattern);
-      content = doMatch(content, contentItemIdPattern);
+      for (Pattern pattern : inlineIdPatterns) {
+        Matcher matcher = pattern.matcher(content);
+        while (matcher.find()) {
+          ids.add(matcher.group(2));
+        }
+      }
+    }
+  }
+
+  private String mapInlineIds(String content, Map<String, Long> newIdsByOldId) {
+    if (content != null) {
+      for (Pattern pattern : inlineIdPatterns) {
+        content = doMatch(content, pattern, newIdsByOldId);
+      }
     }
     return content;
   }
   
-  private String doMatch(String content, Pattern pattern) {
+  private String doMatch(String content, Pattern pattern, Map<String, Long> newIdsByOldId) {
     Matcher matcher = pattern.matcher(content);
     StringBuffer sb = new StringBuffer();
     while (matcher.find()) {
       String id = matcher.group(2);
-      if (contentMap.containsKey(id)) {
-        matcher.appendReplacement(sb, "$1" + contentMap.get(id).getId());
+      if (newIdsByOldId.containsKey(id)) {
+        matcher.appendReplacement(sb, "$1" + newIdsByOldId.get(id));
       } else {
         matcher.appendReplacement(sb, "$0");
       }
@@ -511,76 +840,83 @@ public class DataImportServlet extends HttpServlet {
     matcher.appendTail(sb);
     return sb.toString();
   }
-  
+
   /**
-   * Closes the persistence managers one by one, causing the entities in each one
-   * to be persisted to the datastore. 
+   * Deletes unassigned entities that have been orphaned from deleting the old version of an
+   * lsp, and then the chunks and id mappings of this and any earlier, abandoned imports.
+   * Uploads that were staged after this import started are left alone, since one of them may
+   * have replaced it. Returns whether it got done before the deadline.
    */
-  private class ClosePMsFuction implements Function<Void, Boolean> {
-    public Boolean apply(Void ignore) {
-      message = "Saving entities";
-
-      while (!pms.isEmpty()) {
-        pms.get(0).close();
-        pms.remove(0);
-        if (timeout()) {
-          return true;
-        }
+  private boolean cleanUp(Long importId, ImportIdMap idMap, long deadline) {
+    removeUnusedContributors();
+    while (deleteSomeChunks(importId) || idMap.deleteSome()) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
       }
-      return false;
     }
+    return true;
   }
-  
+
   /**
    * This is a final cleanup step that deletes unassigned entities that have been orphaned
    * from deleting the old version of an lsp.
    * 
-   * This MUST happen after the persistence managers are closed, otherwise
+   * This MUST happen after all the entities have been created and mapped, otherwise
    * the new entities won't be visible to the task.
+   *
+   * Only the unassigned entities are loaded. Whether each one is still used is checked with
+   * keys-only queries on the fields that can refer to an entity of its type: players are
+   * referred to as contributors and as parent players, and assets as player photos.
    */
-  private class RemoveUnusedContributorsFunction implements Function<Void, Boolean> {
-    private List<BaseContentEntity> allUnassignedContentEntities = Lists.newArrayList();
-    private Set<Long> allUsedUnassignedIds = Sets.newHashSet();
-    
-    public Boolean apply(Void ignore) {
-      message = "Removing orphaned entities";
-      
-      PersistenceManager pm = PMF.get().getPersistenceManager();
+  private void removeUnusedContributors() {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(BaseContentEntity.class);
+    query.setFilter("livingStoryId == null");
 
-      try {
-        // Get all content entities
-        Extent<BaseContentEntity> contentEntities = pm.getExtent(BaseContentEntity.class);
-        for (BaseContentEntity contentEntity : contentEntities) {
-          // Put the unassigned content entities in a list
-          if (contentEntity.getLivingStoryId() == null) {
-            allUnassignedContentEntities.add(contentEntity);
-          }
-          
-          // Put the ids of the contributors, player parents and used photos in a set
-          Set<Long> contributorIds = contentEntity.getContributorIds();
-          if (contributorIds != null) {
-            allUsedUnassignedIds.addAll(contributorIds);
-          }
-          Long photoContentEntityId = contentEntity.getPhotoContentEntityId();
-          if (photoContentEntityId != null) {
-            allUsedUnassignedIds.add(photoContentEntityId);
-          }
-          Long parentPlayerId = contentEntity.getParentPlayerContentEntityId();
-          if (parentPlayerId != null) {
-            allUsedUnassignedIds.add(parentPlayerId);
-          }
+    try {
+      @SuppressWarnings("unchecked")
+      List<BaseContentEntity> unassignedContentEntities =
+          (List<BaseContentEntity>) query.execute();
+      List<BaseContentEntity> unusedContentEntities = Lists.newArrayList();
+      for (BaseContentEntity contentEntity : unassignedContentEntities) {
+        if (!isReferenced(pm, contentEntity)) {
+          unusedContentEntities.add(contentEntity);
         }
-  
-        // Delete all unassigned content entities that weren't in the used set
-        for (BaseContentEntity unassignedContentEntity : allUnassignedContentEntities) {
-          if (!allUsedUnassignedIds.contains(unassignedContentEntity.getId())) {
-            pm.deletePersistent(unassignedContentEntity);
-          }
+      }
+      pm.deletePersistentAll(unusedContentEntities);
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+
+  private boolean isReferenced(PersistenceManager pm, BaseContentEntity contentEntity) {
+    List<String> referringFields;
+    switch (contentEntity.getContentItemType()) {
+      case PLAYER:
+        referringFields = ImmutableList.of("contributorIds", "parentPlayerContentEntityId");
+        break;
+      case ASSET:
+        referringFields = ImmutableList.of("photoContentEntityId");
+        break;
+      default:
+        referringFields = ImmutableList.of(
+            "contributorIds", "parentPlayerContentEntityId", "photoContentEntityId");
+    }
+    for (String field : referringFields) {
+      Query query = pm.newQuery(BaseContentEntity.class);
+      query.setFilter(field + " == idParam");
+      query.declareParameters("java.lang.Long idParam");
+      query.setResult("id");
+      query.setRange(0, 1);
+      try {
+        if (!((List<?>) query.execute(contentEntity.getId())).isEmpty()) {
+          return true;
         }
       } finally {
-        pm.close();
+        query.closeAll();
       }
-      return false;
     }
+    return false;
   }
 }
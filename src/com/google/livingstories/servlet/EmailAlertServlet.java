@@ -0,0 +1,60 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.servlet;
+
+import com.google.livingstories.server.rpcimpl.EmailAlerts;
+
+import java.io.IOException;
+
+import javax.mail.MessagingException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the email alert tasks. A task with an alertId parameter splits the alert's recipients
+ * up into batches; one with a batch parameter sends that batch. A failed send results in an
+ * error response, which makes the task queue retry it later.
+ */
+public class EmailAlertServlet extends HttpServlet {
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException, ServletException {
+    EmailAlerts emailAlerts = new EmailAlerts();
+    String alertId = req.getParameter(EmailAlerts.ALERT_ID_PARAM);
+    String batch = req.getParameter(EmailAlerts.BATCH_PARAM);
+    if (alertId != null) {
+      try {
+        emailAlerts.queueBatches(Long.valueOf(alertId));
+      } catch (NumberFormatException e) {
+        resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        return;
+      }
+    } else if (batch != null) {
+      try {
+        emailAlerts.sendBatch(batch);
+      } catch (MessagingException e) {
+        throw new ServletException(e);
+      }
+    } else {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    resp.getWriter().append("Done");
+  }
+}
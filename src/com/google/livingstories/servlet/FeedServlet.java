@@ -17,16 +17,15 @@
 package com.google.livingstories.servlet;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.livingstories.client.BaseContentItem;
 import com.google.livingstories.client.ContentItemType;
-import com.google.livingstories.client.ContentRpcService;
 import com.google.livingstories.client.EventContentItem;
 import com.google.livingstories.client.LivingStory;
 import com.google.livingstories.client.LivingStoryRpcService;
 import com.google.livingstories.client.NarrativeContentItem;
 import com.google.livingstories.client.util.GlobalUtil;
-import com.google.livingstories.client.util.SnippetUtil;
-import com.google.livingstories.client.util.dom.JavaNodeAdapter;
+import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
 import com.google.livingstories.server.rpcimpl.ContentRpcImpl;
 import com.google.livingstories.server.rpcimpl.LivingStoryRpcImpl;
 import com.google.livingstories.server.util.StringUtil;
@@ -44,6 +43,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -55,10 +55,9 @@ import javax.servlet.http.HttpServletResponse;
 public class FeedServlet extends HttpServlet {
   private static final String DEFAULT_FEED_TYPE = "rss_2.0";
   private static final long MILLIS_PER_DAY = 1000 * 60 * 60 * 24;
-  private static final int MAXIMUM_SNIPPET_LENGTH = 500;
   
   private LivingStoryRpcService livingStoryService;
-  private ContentRpcService contentService;
+  private ContentRpcImpl contentService;
 
   public FeedServlet() {
     livingStoryService = new LivingStoryRpcImpl();
@@ -97,8 +96,15 @@ public class FeedServlet extends HttpServlet {
       return null;
     }
     
-    List<BaseContentItem> updates = contentService.getUpdatesSinceTime(
-        livingStory.getId(), twoWeeksAgo);
+    // The entities are kept for their external summaries and snippets, which were worked out
+    // when they were saved.
+    Map<Long, BaseContentEntity> updateEntities = Maps.newHashMap();
+    List<BaseContentItem> updates = Lists.newArrayList();
+    for (BaseContentEntity entity :
+        contentService.getUpdateEntitiesSinceTime(livingStory.getId(), twoWeeksAgo)) {
+      updateEntities.put(entity.getId(), entity);
+      updates.add(entity.toClientObject());
+    }
     Collections.sort(updates, BaseContentItem.REVERSE_COMPARATOR);
     
     SyndFeed feed = new SyndFeedImpl();
@@ -111,6 +117,7 @@ public class FeedServlet extends HttpServlet {
     
     List<SyndEntry> items = Lists.newArrayList();
     for (BaseContentItem update : updates) {
+      BaseContentEntity updateEntity = updateEntities.get(update.getId());
       SyndContent title = new SyndContentImpl();
       SyndContent content = new SyndContentImpl();
       if (update.getContentItemType() == ContentItemType.EVENT) {
@@ -118,18 +125,16 @@ public class FeedServlet extends HttpServlet {
         title.setType("text/html");
         title.setValue(event.getEventUpdate());
         content.setType("text/html");
-        content.setValue(StringUtil.stripForExternalSites(event.getEventSummary()));
+        content.setValue(updateEntity.getExternalSummary());
       } else if (update.getContentItemType() == ContentItemType.NARRATIVE) {
         NarrativeContentItem narrative = (NarrativeContentItem) update;
         title.setType("text/html");
         title.setValue(narrative.getHeadline() + "&nbsp;-&nbsp;" 
             + narrative.getNarrativeType().toString());
         content.setType("text/html");
-        String narrativeSummary = StringUtil.stripForExternalSites(
-            narrative.getNarrativeSummary());
+        String narrativeSummary = updateEntity.getExternalSummary();
         if (GlobalUtil.isContentEmpty(narrativeSummary)) {
-          content.setValue(SnippetUtil.createSnippet(
-              JavaNodeAdapter.fromHtml(narrative.getContent()), MAXIMUM_SNIPPET_LENGTH));
+          content.setValue(updateEntity.getExternalSnippet());
         } else {
           content.setValue(narrativeSummary);
         }
@@ -20,7 +20,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.gxp.base.GxpContext;
 import com.google.livingstories.gxps.GqlServletHtml;
 import com.google.livingstories.server.dataservices.impl.PMF;
-import com.google.livingstories.server.rpcimpl.Caches;
+import com.google.livingstories.server.rpcimpl.CacheWarmer;
 
 import java.io.IOException;
 import java.util.List;
@@ -51,7 +51,7 @@ public class GqlServlet extends HttpServlet {
       if (delete != null) {
         long numDeleted = q.deletePersistentAll();
         results = ImmutableList.<Object>of("Deleted " + numDeleted + " entities");
-        Caches.clearAll();
+        new CacheWarmer().clearAllAndWarm();
       } else {
         results = ImmutableList.copyOf((List<Object>) q.execute());
       }
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.servlet;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.livingstories.server.util.LRUCache;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the ids that entities had in an exported data set to the ids they were given when they
+ * were imported. An import can have more entities than fit in memory, and spans many requests,
+ * so the map is kept in the datastore, with the most recently used entries cached in memory.
+ *
+ * This uses the low-level datastore API, since it looks up many mappings at once, some of which
+ * may not exist.
+ */
+class ImportIdMap {
+  private static final String KIND = "ImportIdMapping";
+  private static final String NEW_ID_PROPERTY = "newId";
+  private static final String IMPORT_ID_PROPERTY = "importId";
+  private static final int CACHED_MAPPING_COUNT = 100000;
+  private static final int DELETE_BATCH_SIZE = 500;
+
+  // Shared by all imports, so the keys include the import id.
+  private static final LRUCache<String, Long> cache =
+      new LRUCache<String, Long>(CACHED_MAPPING_COUNT);
+
+  private final Long importId;
+  private final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  public ImportIdMap(Long importId) {
+    this.importId = importId;
+  }
+
+  public void putAll(Class<?> entityClass, Map<String, Long> newIdsByOldId) {
+    List<Entity> mappings = Lists.newArrayList();
+    for (Map.Entry<String, Long> entry : newIdsByOldId.entrySet()) {
+      String name = getName(entityClass, entry.getKey());
+      Entity mapping = new Entity(KeyFactory.createKey(KIND, name));
+      mapping.setUnindexedProperty(NEW_ID_PROPERTY, entry.getValue());
+      mapping.setProperty(IMPORT_ID_PROPERTY, importId);
+      mappings.add(mapping);
+      cache.put(name, entry.getValue());
+    }
+    datastore.put(mappings);
+  }
+
+  /**
+   * Returns the new ids of the given old ids of entities of entityClass. Old ids that aren't
+   * mapped, e.g. because they refer to entities that weren't part of the import, are left out.
+   */
+  public Map<String, Long> getAll(Class<?> entityClass, Collection<String> oldIds) {
+    Map<String, Long> newIdsByOldId = Maps.newHashMap();
+    Map<Key, String> oldIdsByKey = Maps.newHashMap();
+    for (String oldId : oldIds) {
+      String name = getName(entityClass, oldId);
+      Long newId = cache.get(name);
+      if (newId != null) {
+        newIdsByOldId.put(oldId, newId);
+      } else {
+        oldIdsByKey.put(KeyFactory.createKey(KIND, name), oldId);
+      }
+    }
+
+    if (!oldIdsByKey.isEmpty()) {
+      for (Entity mapping : datastore.get(oldIdsByKey.keySet()).values()) {
+        Long newId = (Long) mapping.getProperty(NEW_ID_PROPERTY);
+        newIdsByOldId.put(oldIdsByKey.get(mapping.getKey()), newId);
+        cache.put(mapping.getKey().getName(), newId);
+      }
+    }
+    return newIdsByOldId;
+  }
+
+  public Long get(Class<?> entityClass, String oldId) {
+    return getAll(entityClass, Lists.newArrayList(oldId)).get(oldId);
+  }
+
+  /**
+   * Deletes a batch of mappings, of this or any earlier import. The mappings of later imports,
+   * one of which may have replaced this one, are left alone. Returns false once there are no
+   * more to delete.
+   */
+  public boolean deleteSome() {
+    Query query = new Query(KIND).setKeysOnly()
+        .addFilter(IMPORT_ID_PROPERTY, Query.FilterOperator.LESS_THAN_OR_EQUAL, importId);
+    List<Key> keys = Lists.newArrayList();
+    for (Entity mapping : datastore.prepare(query).asIterable(
+        FetchOptions.Builder.withLimit(DELETE_BATCH_SIZE))) {
+      keys.add(mapping.getKey());
+    }
+    datastore.delete(keys);
+    return !keys.isEmpty();
+  }
+
+  private String getName(Class<?> entityClass, String oldId) {
+    return importId + ":" + entityClass.getSimpleName() + ":" + oldId;
+  }
+}
@@ -26,6 +26,8 @@ import com.google.livingstories.server.dataservices.LivingStoryDataService;
 import com.google.livingstories.server.dataservices.UserDataService;
 import com.google.livingstories.server.dataservices.UserLoginService;
 import com.google.livingstories.server.dataservices.impl.DataImplFactory;
+import com.google.livingstories.server.rpcimpl.Caches;
+import com.google.livingstories.server.rpcimpl.LivingStoryRpcImpl;
 
 import java.io.IOException;
 import java.util.Date;
@@ -42,11 +44,13 @@ public class LspDispatcher extends HttpServlet {
   protected LivingStoryDataService livingStoryDataService;
   protected UserLoginService userLoginService;
   protected UserDataService userDataService;
+  protected LivingStoryRpcImpl livingStoryRpcService;
 
   public LspDispatcher() {
     this.livingStoryDataService = DataImplFactory.getLivingStoryService();
     this.userLoginService = DataImplFactory.getUserLoginService();
     this.userDataService = DataImplFactory.getUserDataService();
+    this.livingStoryRpcService = new LivingStoryRpcImpl();
   }
 
   @Override
@@ -60,6 +64,7 @@ public class LspDispatcher extends HttpServlet {
       return;
     }
     Long livingStoryId = livingStory.getId();
+    Caches.recordLivingStoryView(livingStoryId);
     Date lastVisitTime = null;
     boolean subscribedToEmails = false;
     FilterSpec defaultView = null;
@@ -110,6 +115,7 @@ public class LspDispatcher extends HttpServlet {
         userLoginService.createLoginUrl(currentUrl),
         userLoginService.createLogoutUrl(currentUrl),
         getSubscriptionUrl(livingStoryId, lspUrl),
+        livingStoryRpcService.getDiffedSummary(livingStory, lastVisitTime),
         lastVisitTime,
         subscribedToEmails,
         defaultView,
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.servlet;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
+import com.google.livingstories.server.dataservices.entities.LivingStoryEntity;
+import com.google.livingstories.server.dataservices.impl.PMF;
+import com.google.livingstories.server.util.CompressionUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Rewrites the long text fields of the content entities and of the living stories' summary
+ * revisions in the current encoding, so that text stored before compression was turned on gets
+ * compressed too. Reads don't depend on this having run: text in the old encoding can always be
+ * read.
+ *
+ * A GET starts the job. The work is done by a chain of tasks on the maintenance queue, each of
+ * which rewrites one batch of entities of one kind, in id order, and queues the task for the
+ * next batch. A batch that fails is retried by the task queue, and the chain picks up from where
+ * it stopped.
+ */
+public class RecompressTextServlet extends HttpServlet {
+  public static final String QUEUE_NAME = "maintenance";
+  private static final String TASK_URL = "/recompressText";
+  private static final String KIND_PARAM = "kind";
+  private static final String AFTER_ID_PARAM = "afterId";
+
+  private static final int BATCH_SIZE = 50;
+  private static final List<Class<?>> KINDS =
+      Arrays.<Class<?>>asList(BaseContentEntity.class, LivingStoryEntity.class);
+
+  private static final Logger logger =
+      Logger.getLogger(RecompressTextServlet.class.getCanonicalName());
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (!CompressionUtil.isEnabled()) {
+      resp.getWriter().append("Compression is turned off; there's nothing to recompress");
+      return;
+    }
+    enqueueBatch(KINDS.get(0), 0L);
+    resp.getWriter().append("Recompression started");
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    Class<?> kind = null;
+    for (Class<?> candidate : KINDS) {
+      if (candidate.getSimpleName().equals(req.getParameter(KIND_PARAM))) {
+        kind = candidate;
+      }
+    }
+    Long afterId;
+    try {
+      afterId = Long.valueOf(req.getParameter(AFTER_ID_PARAM));
+    } catch (NumberFormatException e) {
+      afterId = null;
+    }
+    if (kind == null || afterId == null) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+
+    Long lastId = recompressBatch(kind, afterId);
+    if (lastId != null) {
+      enqueueBatch(kind, lastId);
+    } else {
+      int nextKindIndex = KINDS.indexOf(kind) + 1;
+      if (nextKindIndex < KINDS.size()) {
+        enqueueBatch(KINDS.get(nextKindIndex), 0L);
+      } else {
+        logger.info("Recompression finished");
+      }
+    }
+    resp.getWriter().append("Done");
+  }
+
+  /**
+   * Rewrites the next batch of entities of the given kind with ids after afterId.
+   * @return the id of the last entity in the batch, or null if there are no more entities of
+   * this kind after this batch
+   */
+  private Long recompressBatch(Class<?> kind, Long afterId) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(kind);
+    query.setFilter("id > afterIdParam");
+    query.declareParameters("java.lang.Long afterIdParam");
+    query.setOrdering("id asc");
+    query.setRange(0, BATCH_SIZE);
+
+    try {
+      List<?> entities = (List<?>) query.execute(afterId);
+      List<Object> changedEntities = new ArrayList<Object>();
+      Long lastId = null;
+      for (Object entity : entities) {
+        if (entity instanceof BaseContentEntity) {
+          BaseContentEntity contentEntity = (BaseContentEntity) entity;
+          lastId = contentEntity.getId();
+          if (contentEntity.reencodeLongStrings()) {
+            changedEntities.add(contentEntity);
+          }
+        } else {
+          LivingStoryEntity livingStoryEntity = (LivingStoryEntity) entity;
+          lastId = livingStoryEntity.getId();
+          if (livingStoryEntity.reencodeLongStrings()) {
+            changedEntities.add(livingStoryEntity);
+          }
+        }
+      }
+      pm.makePersistentAll(changedEntities);
+      logger.info("Recompressed " + changedEntities.size() + " of " + entities.size() + " "
+          + kind.getSimpleName() + " entities after id " + afterId);
+      return entities.size() < BATCH_SIZE ? null : lastId;
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+
+  private void enqueueBatch(Class<?> kind, Long afterId) {
+    QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withUrl(TASK_URL)
+        .param(KIND_PARAM, kind.getSimpleName())
+        .param(AFTER_ID_PARAM, String.valueOf(afterId)));
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.servlet;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
+import com.google.livingstories.server.dataservices.impl.PMF;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Computes and stores the derived fields of the content entities that were last stored before
+ * the fields were added, or with an older way of deriving them, so that they don't have to be
+ * derived every time they're shown. Reads don't depend on this having run: entities without
+ * current derived fields derive them when they're read.
+ *
+ * A GET starts the job. Like {@link RecompressTextServlet}, the work is done by a chain of tasks
+ * on the maintenance queue, each of which updates one batch of entities, in id order, and queues
+ * the task for the next batch.
+ */
+public class UpdateDerivedFieldsServlet extends HttpServlet {
+  private static final String TASK_URL = "/updateDerivedFields";
+  private static final String AFTER_ID_PARAM = "afterId";
+
+  private static final int BATCH_SIZE = 50;
+
+  private static final Logger logger =
+      Logger.getLogger(UpdateDerivedFieldsServlet.class.getCanonicalName());
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    enqueueBatch(0L);
+    resp.getWriter().append("Update of derived fields started");
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    Long afterId;
+    try {
+      afterId = Long.valueOf(req.getParameter(AFTER_ID_PARAM));
+    } catch (NumberFormatException e) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+
+    Long lastId = updateBatch(afterId);
+    if (lastId != null) {
+      enqueueBatch(lastId);
+    } else {
+      logger.info("Update of derived fields finished");
+    }
+    resp.getWriter().append("Done");
+  }
+
+  /**
+   * Updates the next batch of content entities with ids after afterId.
+   * @return the id of the last entity in the batch, or null if there are no more entities after
+   * this batch
+   */
+  private Long updateBatch(Long afterId) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(BaseContentEntity.class);
+    query.setFilter("id > afterIdParam");
+    query.declareParameters("java.lang.Long afterIdParam");
+    query.setOrdering("id asc");
+    query.setRange(0, BATCH_SIZE);
+
+    try {
+      @SuppressWarnings("unchecked")
+      List<BaseContentEntity> entities = (List<BaseContentEntity>) query.execute(afterId);
+      List<BaseContentEntity> changedEntities = new ArrayList<BaseContentEntity>();
+      Long lastId = null;
+      for (BaseContentEntity entity : entities) {
+        lastId = entity.getId();
+        if (!entity.hasCurrentDerivedFields()) {
+          entity.updateDerivedFields();
+          changedEntities.add(entity);
+        }
+      }
+      pm.makePersistentAll(changedEntities);
+      logger.info("Updated the derived fields of " + changedEntities.size() + " of "
+          + entities.size() + " content entities after id " + afterId);
+      return entities.size() < BATCH_SIZE ? null : lastId;
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+
+  private void enqueueBatch(Long afterId) {
+    QueueFactory.getQueue(RecompressTextServlet.QUEUE_NAME).add(
+        TaskOptions.Builder.withUrl(TASK_URL).param(AFTER_ID_PARAM, String.valueOf(afterId)));
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.servlet;
+
+import com.google.livingstories.server.dataservices.impl.DataImplFactory;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Writes out the story visits buffered on this instance once they're old enough, at the end of
+ * each request. Without this, visits recorded just before an instance goes quiet would only be
+ * written when the next visit comes in. An instance that's shut down while idle can still lose
+ * the visits of its last few seconds, which only affects the visit counts; the latest visit
+ * times are also in memcache.
+ */
+public class VisitFlushFilter implements Filter {
+  private static final Logger logger =
+      Logger.getLogger(VisitFlushFilter.class.getCanonicalName());
+
+  @Override
+  public void init(FilterConfig config) {
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      try {
+        DataImplFactory.getUserDataService().flushBufferedVisits();
+      } catch (RuntimeException e) {
+        // The visits stay buffered for the next flush; don't fail the request over them.
+        logger.log(Level.WARNING, "Could not flush story visits", e);
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+  }
+}
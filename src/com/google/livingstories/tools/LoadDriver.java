@@ -0,0 +1,222 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A standalone load driver for measuring how a running instance's throughput scales with the
+ * number of concurrent requests, e.g. to compare a change to the server's locking against the
+ * revision before it. It sends the same request from 1, 2, 4, ... up to the given number of
+ * threads, each level for a fixed time, and prints the requests per second and the mean
+ * latency at each level.
+ *
+ * Usage:
+ *   java com.google.livingstories.tools.LoadDriver [options] url
+ * Options:
+ *   -threads n      the highest number of concurrent threads (default 16)
+ *   -seconds n      how long to run each level for (default 10)
+ *   -post file      POST the contents of the file instead of sending a GET
+ *   -header "k: v"  add a request header; may be repeated
+ *
+ * A story page, e.g. http://localhost:8888/lsps/some-story, goes through the living story and
+ * user data services. To drive one of the GWT RPC services directly, capture a request body
+ * from the browser and post it with the content type text/x-gwt-rpc; charset=utf-8, and the
+ * X-GWT-Permutation and X-GWT-Module-Base headers that the browser sent. Warm the caches with
+ * a first run, since the first requests to a story are much slower than the rest.
+ */
+public class LoadDriver {
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int READ_TIMEOUT_MILLIS = 60000;
+
+  private final URL url;
+  private final byte[] postBody;
+  private final Map<String, String> headers;
+
+  public LoadDriver(URL url, byte[] postBody, Map<String, String> headers) {
+    this.url = url;
+    this.postBody = postBody;
+    this.headers = headers;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int maxThreads = 16;
+    int seconds = 10;
+    byte[] postBody = null;
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+    String url = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-threads") && i + 1 < args.length) {
+        maxThreads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-seconds") && i + 1 < args.length) {
+        seconds = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-post") && i + 1 < args.length) {
+        postBody = readFile(args[++i]);
+      } else if (args[i].equals("-header") && i + 1 < args.length) {
+        String header = args[++i];
+        int colon = header.indexOf(':');
+        if (colon < 0) {
+          usage();
+        }
+        headers.put(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+      } else if (url == null && !args[i].startsWith("-")) {
+        url = args[i];
+      } else {
+        usage();
+      }
+    }
+    if (url == null) {
+      usage();
+    }
+
+    LoadDriver driver = new LoadDriver(new URL(url), postBody, headers);
+    System.out.println("threads\trequests/s\tmean ms\terrors");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      driver.runLevel(threads, seconds * 1000L);
+    }
+  }
+
+  private static void usage() {
+    System.err.println("Usage: LoadDriver [-threads n] [-seconds n] [-post file] "
+        + "[-header \"name: value\"]... url");
+    System.exit(1);
+  }
+
+  /**
+   * Sends requests from the given number of threads for the given time, and prints the results.
+   */
+  public void runLevel(int threadCount, final long durationMillis) throws InterruptedException {
+    final AtomicLong requestCount = new AtomicLong();
+    final AtomicLong errorCount = new AtomicLong();
+    final AtomicLong totalLatencyNanos = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final long[] deadline = new long[1];
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < threadCount; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          while (System.currentTimeMillis() < deadline[0]) {
+            long requestStart = System.nanoTime();
+            boolean ok = sendRequest();
+            totalLatencyNanos.addAndGet(System.nanoTime() - requestStart);
+            requestCount.incrementAndGet();
+            if (!ok) {
+              errorCount.incrementAndGet();
+            }
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+
+    long startMillis = System.currentTimeMillis();
+    deadline[0] = startMillis + durationMillis;
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsedMillis = System.currentTimeMillis() - startMillis;
+
+    long requests = requestCount.get();
+    System.out.println(String.format("%d\t%.1f\t%.1f\t%d", threadCount,
+        requests * 1000.0 / elapsedMillis,
+        requests == 0 ? 0.0 : totalLatencyNanos.get() / 1e6 / requests, errorCount.get()));
+  }
+
+  /**
+   * Sends one request and reads the whole response. Returns whether it succeeded.
+   */
+  private boolean sendRequest() {
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) url.openConnection();
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      connection.setInstanceFollowRedirects(false);
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+      if (postBody != null) {
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream out = connection.getOutputStream();
+        try {
+          out.write(postBody);
+        } finally {
+          out.close();
+        }
+      }
+      int status = connection.getResponseCode();
+      InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+      if (in != null) {
+        drain(in);
+      }
+      return status < 400;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    byte[] buffer = new byte[8192];
+    try {
+      while (in.read(buffer) >= 0) {
+        // Only the time it takes to read the response matters.
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] readFile(String fileName) throws IOException {
+    InputStream in = new FileInputStream(fileName);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
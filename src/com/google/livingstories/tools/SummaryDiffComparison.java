@@ -0,0 +1,292 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.tools;
+
+import com.google.common.collect.Lists;
+import com.google.livingstories.server.util.SummaryDiffUtil;
+
+import name.neil.fraser.plaintext.diff_match_patch;
+import name.neil.fraser.plaintext.diff_match_patch.Diff;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.tidy.Tidy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Checks {@link SummaryDiffUtil} against the implementation it replaced, on the summary
+ * revisions of real stories, and times both. The input is a file written by the data export
+ * servlet (gzipped if its name ends in ".gz"). For every revision of every story, the revision
+ * is diffed against each of the revisions up to -window before it, the way it would be for a
+ * reader who last saw that one. Each pair is diffed by both implementations, the outputs are
+ * compared, and then each implementation is timed over all of the pairs.
+ *
+ * Usage:
+ *   java com.google.livingstories.tools.SummaryDiffComparison [-window n] [-repeat n] file
+ *
+ * The exit status is 1 if any pair came out differently.
+ */
+public class SummaryDiffComparison {
+  private static final int MAX_REPORTED_MISMATCHES = 10;
+
+  /**
+   * A revision that was current, and one that a reader may have last seen before it.
+   */
+  private static class RevisionPair {
+    public final String storyUrl;
+    public final int currentIndex;
+    public final int lastSeenIndex;
+    public final String current;
+    public final String lastSeen;
+
+    public RevisionPair(String storyUrl, int currentIndex, int lastSeenIndex, String current,
+        String lastSeen) {
+      this.storyUrl = storyUrl;
+      this.currentIndex = currentIndex;
+      this.lastSeenIndex = lastSeenIndex;
+      this.current = current;
+      this.lastSeen = lastSeen;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int window = 10;
+    int repeat = 3;
+    String fileName = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-window") && i + 1 < args.length) {
+        window = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-repeat") && i + 1 < args.length) {
+        repeat = Integer.parseInt(args[++i]);
+      } else if (fileName == null && !args[i].startsWith("-")) {
+        fileName = args[i];
+      } else {
+        usage();
+      }
+    }
+    if (fileName == null) {
+      usage();
+    }
+
+    List<RevisionPair> pairs = readRevisionPairs(fileName, window);
+    System.out.println("Comparing " + pairs.size() + " revision pairs");
+
+    // Checking the outputs also warms up both implementations before they're timed.
+    int mismatchCount = 0;
+    for (RevisionPair pair : pairs) {
+      String expected = BaselineSummaryDiff.getDiffedSummary(pair.current, pair.lastSeen);
+      String actual = SummaryDiffUtil.getDiffedSummary(pair.current, pair.lastSeen);
+      if (!expected.equals(actual)) {
+        mismatchCount++;
+        if (mismatchCount <= MAX_REPORTED_MISMATCHES) {
+          System.out.println("Mismatch in story " + pair.storyUrl + ", revision "
+              + pair.currentIndex + " against revision " + pair.lastSeenIndex + ":\n  expected: "
+              + expected + "\n  actual:   " + actual);
+        }
+      }
+    }
+    System.out.println(mismatchCount + " of " + pairs.size() + " pairs came out differently");
+
+    long baselineNanos = Long.MAX_VALUE;
+    long currentNanos = Long.MAX_VALUE;
+    for (int i = 0; i < repeat; i++) {
+      long start = System.nanoTime();
+      for (RevisionPair pair : pairs) {
+        BaselineSummaryDiff.getDiffedSummary(pair.current, pair.lastSeen);
+      }
+      baselineNanos = Math.min(baselineNanos, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (RevisionPair pair : pairs) {
+        SummaryDiffUtil.getDiffedSummary(pair.current, pair.lastSeen);
+      }
+      currentNanos = Math.min(currentNanos, System.nanoTime() - start);
+    }
+    System.out.println(String.format("Best of %d runs: old %.1f ms, new %.1f ms, speedup %.2fx",
+        repeat, baselineNanos / 1e6, currentNanos / 1e6,
+        (double) baselineNanos / Math.max(currentNanos, 1)));
+
+    System.exit(mismatchCount == 0 ? 0 : 1);
+  }
+
+  private static void usage() {
+    System.err.println("Usage: SummaryDiffComparison [-window n] [-repeat n] exportFile");
+    System.exit(2);
+  }
+
+  private static List<RevisionPair> readRevisionPairs(String fileName, int window)
+      throws IOException, JSONException {
+    InputStream in = new FileInputStream(fileName);
+    try {
+      if (fileName.endsWith(".gz")) {
+        in = new GZIPInputStream(in);
+      }
+      JSONObject export =
+          new JSONObject(new JSONTokener(new InputStreamReader(in, "UTF-8")));
+      List<RevisionPair> pairs = Lists.newArrayList();
+      JSONArray stories = export.optJSONArray("LivingStoryEntity");
+      for (int i = 0; stories != null && i < stories.length(); i++) {
+        JSONObject story = stories.getJSONObject(i);
+        JSONArray revisions = story.getJSONArray("summaryRevisions");
+        for (int current = 1; current < revisions.length(); current++) {
+          for (int lastSeen = Math.max(0, current - window); lastSeen < current; lastSeen++) {
+            pairs.add(new RevisionPair(story.optString("url"), current, lastSeen,
+                revisions.getJSONObject(current).getString("content"),
+                revisions.getJSONObject(lastSeen).getString("content")));
+          }
+        }
+      }
+      return pairs;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * SummaryDiffUtil.getDiffedSummary as it was before its paragraph matching was changed to
+   * avoid quadratic text comparisons, kept as the reference to compare against.
+   */
+  private static class BaselineSummaryDiff {
+    private static final String HIGHLIGHT_CLASS = "summaryHighlights";
+    private static final int EDIT_DISTANCE_THRESHOLD = 50;
+    private static final Pattern BODY_CONTENT_PATTERN =
+        Pattern.compile(".*<body>(.*)</body>.*", Pattern.DOTALL);
+
+    public static String getDiffedSummary(String currentRevisionString,
+        String lastRevisionString) {
+      if (currentRevisionString.equals(lastRevisionString)) {
+        return currentRevisionString;
+      }
+
+      Tidy tidy = new Tidy();
+      Document currentRevision = tidy.parseDOM(new StringReader(currentRevisionString), null);
+      Document lastSeenRevision = tidy.parseDOM(new StringReader(lastRevisionString), null);
+
+      List<Node> newParagraphs = Lists.newArrayList();
+      List<Node> oldParagraphs = Lists.newArrayList();
+
+      NodeList newParagraphNodeList = currentRevision.getElementsByTagName("p");
+      for (int i = 0; i < newParagraphNodeList.getLength(); i++) {
+        newParagraphs.add(newParagraphNodeList.item(i));
+      }
+      NodeList oldParagraphNodeList = lastSeenRevision.getElementsByTagName("p");
+      for (int i = 0; i < oldParagraphNodeList.getLength(); i++) {
+        oldParagraphs.add(oldParagraphNodeList.item(i));
+      }
+
+      int paragraph = 0;
+      while (paragraph < newParagraphs.size()) {
+        Node newParagraph = newParagraphs.get(paragraph);
+        boolean foundMatch = false;
+        for (Node oldParagraph : oldParagraphs) {
+          if (getTextContent(newParagraph).equals(getTextContent(oldParagraph))) {
+            foundMatch = true;
+            oldParagraphs.remove(oldParagraph);
+            break;
+          }
+        }
+        if (foundMatch) {
+          newParagraphs.remove(paragraph);
+        } else {
+          paragraph++;
+        }
+      }
+
+      if (!newParagraphs.isEmpty()) {
+        diff_match_patch dmp = new diff_match_patch();
+        for (Node newParagraph : newParagraphs) {
+          int minEditDistance = Integer.MAX_VALUE;
+          for (Node oldParagraph : oldParagraphs) {
+            LinkedList<Diff> diffs = dmp.diff_main(
+                getTextContent(oldParagraph), getTextContent(newParagraph));
+            minEditDistance = Math.min(minEditDistance, modifiedLevenshteinDistance(diffs));
+          }
+          if (minEditDistance > EDIT_DISTANCE_THRESHOLD) {
+            Element paragraphElement = (Element) newParagraph;
+            String className = paragraphElement.getAttribute("class");
+            className = (className + " " + HIGHLIGHT_CLASS).trim();
+            paragraphElement.setAttribute("class", className);
+          }
+        }
+      }
+
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      tidy.pprint(currentRevision, outputStream);
+      Matcher matcher = BODY_CONTENT_PATTERN.matcher(outputStream.toString());
+      return matcher.matches() ? matcher.group(1) : currentRevisionString;
+    }
+
+    private static String getTextContent(Node node) {
+      if (node.getNodeType() == Node.ELEMENT_NODE) {
+        StringBuilder sb = new StringBuilder();
+        NodeList childNodes = node.getChildNodes();
+        for (int i = 0; i < childNodes.getLength(); i++) {
+          sb.append(getTextContent(childNodes.item(i)));
+        }
+        return sb.toString();
+      } else if (node.getNodeType() == Node.TEXT_NODE) {
+        return node.getNodeValue();
+      } else {
+        return "";
+      }
+    }
+
+    private static int modifiedLevenshteinDistance(LinkedList<Diff> diffs) {
+      int levenshtein = 0;
+      int insertions = 0;
+      int deletions = 0;
+      for (Diff aDiff : diffs) {
+        switch (aDiff.operation) {
+        case INSERT:
+          insertions += aDiff.text.length();
+          break;
+        case DELETE:
+          deletions += aDiff.text.length();
+          break;
+        case EQUAL:
+          if (insertions > 0) {
+            levenshtein += Math.max(insertions, deletions);
+          }
+          insertions = 0;
+          deletions = 0;
+          break;
+        }
+      }
+      if (insertions > 0) {
+        levenshtein += Math.max(insertions, deletions);
+      }
+      return levenshtein;
+    }
+  }
+}